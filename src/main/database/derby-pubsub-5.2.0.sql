@@ -25,3 +25,101 @@ create procedure TigPubSubMamUpdateItem(node_id bigint, uuid varchar(36),
 	DYNAMIC RESULT SETS 1
 	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubMamUpdateItem';
 -- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubTrimItems(node_id bigint, max_items int, itemsOrder int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubTrimItems';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubPurgeItems(node_id bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubPurgeItems';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubDeleteItems(node_id bigint, items_ids varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubDeleteItems';
+-- QUERY END:
+
+-- QUERY START:
+create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date );
+-- QUERY END:
+
+-- QUERY START:
+create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date );
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubQueryItemsPage(nodes_ids varchar(32672), since timestamp, "to" timestamp, "order" int, "limit" int, "node_id" bigint, "item_id" varchar(1024), backward int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubQueryItemsPage';
+-- QUERY END:
+
+-- QUERY START:
+create index tig_pubsub_mam_node_id_ts on tig_pubsub_mam ( node_id, ts, uuid );
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubMamQueryItemsPage(node_id bigint, since timestamp, "to" timestamp, after_id varchar(36), before_id varchar(36), "key" varchar(36), backward int, "limit" int, "count" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubMamQueryItemsPage';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubUpsertItem(node_id bigint, item_id varchar(1024), publisher varchar(2049),
+	publisher_id bigint, item_data varchar(32672), ts timestamp, uuid varchar(36))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubUpsertItem';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodeAffiliation(node_id bigint, jid varchar(2049))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetNodeAffiliation';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodeSubscription(node_id bigint, jid varchar(2049))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetNodeSubscription';
+-- QUERY END:
+
+-- QUERY START:
+alter table tig_pubsub_nodes add column version bigint not null default 0;
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubIncrementNodeVersion(node_id bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubIncrementNodeVersion';
+-- QUERY END:
@@ -22,6 +22,40 @@ delimiter ;
 alter table tig_pubsub_mam modify ts datetime(6) not null;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists TigPubSubUpgrade;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigPubSubUpgrade()
+begin
+    if not exists (SELECT 1 FROM information_schema.statistics s1 WHERE s1.table_schema = database() AND s1.table_name = 'tig_pubsub_items' AND s1.index_name = 'node_id_creation_date') then
+        create index node_id_creation_date on tig_pubsub_items ( node_id, creation_date );
+    end if;
+    if not exists (SELECT 1 FROM information_schema.statistics s1 WHERE s1.table_schema = database() AND s1.table_name = 'tig_pubsub_items' AND s1.index_name = 'node_id_update_date') then
+        create index node_id_update_date on tig_pubsub_items ( node_id, update_date );
+    end if;
+    if not exists (SELECT 1 FROM information_schema.statistics s1 WHERE s1.table_schema = database() AND s1.table_name = 'tig_pubsub_mam' AND s1.index_name = 'node_id_ts') then
+        create index node_id_ts on tig_pubsub_mam ( node_id, ts, uuid );
+    end if;
+    if not exists (SELECT 1 FROM information_schema.columns c1 WHERE c1.table_schema = database() AND c1.table_name = 'tig_pubsub_nodes' AND c1.column_name = 'version') then
+        alter table tig_pubsub_nodes add `version` bigint not null default 0;
+    end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call TigPubSubUpgrade();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubUpgrade;
+-- QUERY END:
+
 -- QUERY START:
 drop procedure if exists TigPubSubMamQueryItem;
 -- QUERY END:
@@ -58,6 +92,46 @@ drop procedure if exists TigPubSubSetNodeSubscription;
 drop procedure if exists TigPubSubRemoveService;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists TigPubSubTrimItems;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubPurgeItems;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubDeleteItems;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubQueryItemsPage;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubMamQueryItemsPage;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubUpsertItem;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubGetNodeAffiliation;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubGetNodeSubscription;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubGetNodeMeta;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubIncrementNodeVersion;
+-- QUERY END:
+
 
 delimiter //
 
@@ -310,4 +384,295 @@ begin
 end //
 -- QUERY END:
 
-delimiter ;
\ No newline at end of file
+-- QUERY START:
+create procedure TigPubSubTrimItems(_node_id bigint, _max_items int, _order int)
+begin
+    -- DO NOT REMOVE, required for properly handle exceptions within transactions!
+    DECLARE exit handler for sqlexception
+    BEGIN
+        -- ERROR
+        ROLLBACK;
+        RESIGNAL;
+    END;
+
+    START TRANSACTION;
+    select i.id
+        from tig_pubsub_items i
+        where i.node_id = _node_id
+        order by case when _order = 1 then i.creation_date else i.update_date end desc
+        limit _max_items, 18446744073709551615
+        for update;
+    update tig_pubsub_mam m
+        join (
+            select i.id_sha1, i.id
+                from tig_pubsub_items i
+                where i.node_id = _node_id
+                order by case when _order = 1 then i.creation_date else i.update_date end desc
+                limit _max_items, 18446744073709551615
+        ) r on m.item_id_sha1 = r.id_sha1 and m.item_id = r.id
+        set m.data = null
+        where m.node_id = _node_id;
+    delete i
+        from tig_pubsub_items i
+        join (
+            select t.id_sha1
+                from tig_pubsub_items t
+                where t.node_id = _node_id
+                order by case when _order = 1 then t.creation_date else t.update_date end desc
+                limit _max_items, 18446744073709551615
+        ) r on i.id_sha1 = r.id_sha1
+        where i.node_id = _node_id;
+    COMMIT;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubPurgeItems(_node_id bigint)
+begin
+    -- DO NOT REMOVE, required for properly handle exceptions within transactions!
+    DECLARE exit handler for sqlexception
+    BEGIN
+        -- ERROR
+        ROLLBACK;
+        RESIGNAL;
+    END;
+
+    START TRANSACTION;
+    select i.id from tig_pubsub_items i where i.node_id = _node_id for update;
+    update tig_pubsub_mam m
+        join tig_pubsub_items i on i.node_id = m.node_id and i.id_sha1 = m.item_id_sha1 and i.id = m.item_id
+        set m.data = null
+        where m.node_id = _node_id;
+    delete from tig_pubsub_items where node_id = _node_id;
+    COMMIT;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubDeleteItems(_node_id bigint, _items_ids mediumtext charset utf8mb4 collate utf8mb4_bin)
+begin
+    declare _idx int default 0;
+    declare _count int;
+    declare _item_id varchar(1024) charset utf8mb4 collate utf8mb4_bin;
+
+    -- DO NOT REMOVE, required for properly handle exceptions within transactions!
+    DECLARE exit handler for sqlexception
+    BEGIN
+        -- ERROR
+        ROLLBACK;
+        RESIGNAL;
+    END;
+
+    create temporary table if not exists tig_pubsub_removed_items (
+        id_sha1 char(40) not null,
+        id varchar(1024) charset utf8mb4 collate utf8mb4_bin not null
+    );
+    delete from tig_pubsub_removed_items;
+
+    START TRANSACTION;
+    -- ids of items are passed as JSON array of strings
+    set _count = JSON_LENGTH(_items_ids);
+    while _idx < _count do
+        set _item_id = JSON_UNQUOTE(JSON_EXTRACT(_items_ids, CONCAT('$[', _idx, ']')));
+        insert into tig_pubsub_removed_items (id_sha1, id)
+            select i.id_sha1, i.id
+                from tig_pubsub_items i
+                where i.node_id = _node_id and i.id_sha1 = SHA1(_item_id) and i.id = _item_id;
+        set _idx = _idx + 1;
+    end while;
+    update tig_pubsub_mam m
+        join tig_pubsub_removed_items r on m.item_id_sha1 = r.id_sha1 and m.item_id = r.id
+        set m.data = null
+        where m.node_id = _node_id;
+    delete i
+        from tig_pubsub_items i
+        join tig_pubsub_removed_items r on i.id_sha1 = r.id_sha1 and i.id = r.id
+        where i.node_id = _node_id;
+    COMMIT;
+    select r.id from tig_pubsub_removed_items r;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubQueryItemsPage(_nodes_ids text, _since timestamp(6), _to timestamp(6), _order int, _limit int,
+    _node_id bigint, _item_id varchar(1024) charset utf8mb4 collate utf8mb4_bin, _backward int)
+begin
+    set @since = _since;
+    set @to = _to;
+    set @limit = _limit;
+    set @node_id = _node_id;
+    set @item_id = _item_id;
+    set @key_ts = null;
+
+	set @ts = 'creation_date';
+	if _order = 2 then
+	    set @ts = 'update_date';
+	end if;
+	set @cmp = '>';
+	set @dir = 'asc';
+	if _backward = 1 then
+	    set @cmp = '<';
+	    set @dir = 'desc';
+	end if;
+
+    if _node_id is not null then
+        select case when _order = 2 then pi.update_date else pi.creation_date end into @key_ts
+            from tig_pubsub_items pi
+            where pi.node_id = _node_id and pi.id_sha1 = SHA1(_item_id) and pi.id = _item_id;
+    end if;
+
+	set @query = CONCAT('select pn.name, pi.node_id, pi.id, TigPubSubOrderedToUuid(pi.uuid), pi.data
+        from tig_pubsub_items pi
+            inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id
+        where
+            pi.node_id in (', _nodes_ids, ')
+            and (? is null or pi.', @ts, ' >= ?)
+            and (? is null or pi.', @ts, ' <= ?)
+            and (? is null or pi.', @ts, ' ', @cmp, ' ? or (pi.', @ts, ' = ? and (pi.node_id ', @cmp, ' ?
+                or (pi.node_id = ? and pi.id ', @cmp, ' ?))))
+        order by pi.', @ts, ' ', @dir, ', pi.node_id ', @dir, ', pi.id ', @dir, '
+        limit ?');
+
+    prepare stmt from @query;
+	execute stmt using @since, @since, @to, @to, @node_id, @key_ts, @key_ts, @node_id, @node_id, @item_id, @limit;
+	deallocate prepare stmt;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubMamQueryItemsPage(_node_id bigint, _since timestamp(6), _to timestamp(6), _after_id varchar(36),
+    _before_id varchar(36), _key varchar(36), _backward int, _limit int, _count int)
+begin
+    declare _after_ts datetime(6);
+    declare _before_ts datetime(6);
+    declare _key_ts datetime(6);
+    declare _after binary(16);
+    declare _before binary(16);
+    declare _key_uuid binary(16);
+    declare _position bigint;
+    declare _total bigint;
+
+    if _after_id is not null then
+        set _after = TigPubSubUuidToOrdered(_after_id);
+        select pm.ts into _after_ts from tig_pubsub_mam pm where pm.node_id = _node_id and pm.uuid = _after;
+    end if;
+    if _before_id is not null then
+        set _before = TigPubSubUuidToOrdered(_before_id);
+        select pm.ts into _before_ts from tig_pubsub_mam pm where pm.node_id = _node_id and pm.uuid = _before;
+    end if;
+    if _key is not null then
+        set _key_uuid = TigPubSubUuidToOrdered(_key);
+        select pm.ts into _key_ts from tig_pubsub_mam pm where pm.node_id = _node_id and pm.uuid = _key_uuid;
+    end if;
+
+    -- no result set is returned if any of referenced items does not exist
+    if (_after_id is null or _after_ts is not null) and (_before_id is null or _before_ts is not null)
+        and (_key is null or _key_ts is not null) then
+        if _key is not null then
+            select count(1) into _position
+                from tig_pubsub_mam pm
+                where
+                    pm.node_id = _node_id
+                    and (_since is null or pm.ts >= _since)
+                    and (_to is null or pm.ts <= _to)
+                    and (_after_ts is null or pm.ts > _after_ts or (pm.ts = _after_ts and pm.uuid > _after))
+                    and (_before_ts is null or pm.ts < _before_ts or (pm.ts = _before_ts and pm.uuid < _before))
+                    and (pm.ts < _key_ts or (pm.ts = _key_ts and pm.uuid < _key_uuid));
+        end if;
+        if _count = 1 then
+            select count(1) into _total
+                from tig_pubsub_mam pm
+                where
+                    pm.node_id = _node_id
+                    and (_since is null or pm.ts >= _since)
+                    and (_to is null or pm.ts <= _to)
+                    and (_after_ts is null or pm.ts > _after_ts or (pm.ts = _after_ts and pm.uuid > _after))
+                    and (_before_ts is null or pm.ts < _before_ts or (pm.ts = _before_ts and pm.uuid < _before));
+        end if;
+
+        if _backward = 1 then
+            select TigPubSubOrderedToUuid(pm.uuid), pm.ts, pm.data, _position, _total
+                from tig_pubsub_mam pm
+                where
+                    pm.node_id = _node_id
+                    and (_since is null or pm.ts >= _since)
+                    and (_to is null or pm.ts <= _to)
+                    and (_after_ts is null or pm.ts > _after_ts or (pm.ts = _after_ts and pm.uuid > _after))
+                    and (_before_ts is null or pm.ts < _before_ts or (pm.ts = _before_ts and pm.uuid < _before))
+                    and (_key_ts is null or pm.ts < _key_ts or (pm.ts = _key_ts and pm.uuid < _key_uuid))
+                order by pm.ts desc, pm.uuid desc
+                limit _limit;
+        else
+            select TigPubSubOrderedToUuid(pm.uuid), pm.ts, pm.data, _position, _total
+                from tig_pubsub_mam pm
+                where
+                    pm.node_id = _node_id
+                    and (_since is null or pm.ts >= _since)
+                    and (_to is null or pm.ts <= _to)
+                    and (_after_ts is null or pm.ts > _after_ts or (pm.ts = _after_ts and pm.uuid > _after))
+                    and (_before_ts is null or pm.ts < _before_ts or (pm.ts = _before_ts and pm.uuid < _before))
+                    and (_key_ts is null or pm.ts > _key_ts or (pm.ts = _key_ts and pm.uuid > _key_uuid))
+                order by pm.ts asc, pm.uuid asc
+                limit _limit;
+        end if;
+    end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubUpsertItem(_node_id bigint, _item_id varchar(1024) charset utf8mb4 collate utf8mb4_bin, _publisher varchar(2049),
+	_publisher_id bigint, _item_data mediumtext charset utf8mb4, _ts timestamp(6), _uuid varchar(36))
+begin
+	if _publisher_id is null then
+		call TigPubSubEnsureJid(_publisher, _publisher_id);
+	end if;
+
+	insert into tig_pubsub_items (node_id, id_sha1, id, creation_date, update_date, publisher_id, data, uuid)
+		values (_node_id, SHA1(_item_id), _item_id, _ts, _ts, _publisher_id, _item_data, TigPubSubUuidToOrdered(_uuid))
+		on duplicate key update publisher_id = _publisher_id, data = _item_data, update_date = _ts, uuid = TigPubSubUuidToOrdered(_uuid);
+
+	select _publisher_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodeAffiliation(_node_id bigint, _jid varchar(2049))
+begin
+	select pa.affiliation
+		from tig_pubsub_affiliations pa
+		inner join tig_pubsub_jids pj on pj.jid_id = pa.jid_id
+		where pa.node_id = _node_id and pj.jid_sha1 = SHA1(LOWER(_jid));
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodeSubscription(_node_id bigint, _jid varchar(2049))
+begin
+	select ps.subscription, ps.subscription_id
+		from tig_pubsub_subscriptions ps
+		inner join tig_pubsub_jids pj on pj.jid_id = ps.jid_id
+		where ps.node_id = _node_id and pj.jid_sha1 = SHA1(LOWER(_jid));
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodeMeta(_service_jid varchar(2049), _node_name varchar(1024) charset utf8mb4 collate utf8mb4_bin)
+begin
+    select n.node_id, n.configuration, cj.jid, n.creation_date, n.`version`
+    from tig_pubsub_nodes n
+        inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id
+        inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id
+        where sj.service_jid_sha1 = SHA1(LOWER(_service_jid)) and n.name_sha1 = SHA1(_node_name)
+            and n.name = _node_name;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubIncrementNodeVersion(_node_id bigint)
+begin
+	update tig_pubsub_nodes set `version` = `version` + 1 where node_id = _node_id;
+	select `version` from tig_pubsub_nodes where node_id = _node_id;
+end //
+-- QUERY END:
+
+delimiter ;
@@ -17,6 +17,15 @@
 --
 
 
+-- QUERY START:
+do $$
+begin
+if not exists (select 1 from information_schema.columns where table_catalog = current_database() and table_schema = 'public' and table_name = 'tig_pubsub_nodes' and column_name = 'version') then
+    alter table tig_pubsub_nodes add column version bigint not null default 0;
+end if;
+end$$;
+-- QUERY END:
+
 -- QUERY START:
 create or replace function TigPubSubMamUpdateItem(bigint, varchar(36), text) returns void as $$
 declare
@@ -31,4 +40,317 @@ begin
         and uuid = uuid(_uuid);
 end;
 $$ LANGUAGE 'plpgsql';
--- QUERY END:
\ No newline at end of file
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubTrimItems(bigint, int, int) returns table (id varchar(1024)) as $$
+declare
+    _node_id alias for $1;
+    _max_items alias for $2;
+    _order alias for $3;
+begin
+    return query with removed as (
+        delete from tig_pubsub_items i
+        where i.node_id = _node_id
+            and i.id in (
+                select t.id from tig_pubsub_items t
+                where t.node_id = _node_id
+                order by case when _order = 1 then t.creation_date else t.update_date end desc
+                offset _max_items
+            )
+        returning i.id
+    ), mam as (
+        update tig_pubsub_mam m set data = null
+        from removed r
+        where m.node_id = _node_id and m.item_id = r.id
+    )
+    select r.id from removed r;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubPurgeItems(bigint) returns table (id varchar(1024)) as $$
+declare
+    _node_id alias for $1;
+begin
+    return query with removed as (
+        delete from tig_pubsub_items i
+        where i.node_id = _node_id
+        returning i.id
+    ), mam as (
+        update tig_pubsub_mam m set data = null
+        from removed r
+        where m.node_id = _node_id and m.item_id = r.id
+    )
+    select r.id from removed r;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubDeleteItems(bigint, varchar(1024)[]) returns table (id varchar(1024)) as $$
+declare
+    _node_id alias for $1;
+    _items_ids alias for $2;
+begin
+    return query with removed as (
+        delete from tig_pubsub_items i
+        where i.node_id = _node_id
+            and i.id = any(_items_ids)
+        returning i.id
+    ), mam as (
+        update tig_pubsub_mam m set data = null
+        from removed r
+        where m.node_id = _node_id and m.item_id = r.id
+    )
+    select r.id from removed r;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('tig_pubsub_items_node_id_creation_date')) is null) then
+    create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date );
+end if;
+if exists (select 1 where (select to_regclass('tig_pubsub_items_node_id_update_date')) is null) then
+    create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubQueryItemsPage(_nodes_ids bigint[], _since timestamp with time zone, _to timestamp with time zone, _order int, _limit int, _node_id bigint, _item_id varchar(1024), _backward int) returns table (
+    node_name varchar(1024),
+    node_id bigint,
+    item_id varchar(1024),
+    uuid varchar(36),
+    payload text
+) as $$
+declare
+    _key_ts timestamp with time zone;
+begin
+    if _node_id is not null then
+        select case when _order = 2 then i.update_date else i.creation_date end into _key_ts
+            from tig_pubsub_items i
+            where i.node_id = _node_id and i.id = _item_id;
+        if _key_ts is null then
+            return;
+        end if;
+    end if;
+
+    if _order = 2 then
+        if _backward = 1 then
+            return query select pn.name, pi.node_id, pi.id, cast(pi.uuid::text as varchar(36)) as uuid, pi.data
+            from tig_pubsub_items pi
+                inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id
+            where
+                pi.node_id = any(_nodes_ids)
+                and (_since is null or pi.update_date >= _since)
+                and (_to is null or pi.update_date <= _to)
+                and (_node_id is null or (pi.update_date, pi.node_id, pi.id) < (_key_ts, _node_id, _item_id))
+            order by pi.update_date desc, pi.node_id desc, pi.id desc
+            limit _limit;
+        else
+            return query select pn.name, pi.node_id, pi.id, cast(pi.uuid::text as varchar(36)) as uuid, pi.data
+            from tig_pubsub_items pi
+                inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id
+            where
+                pi.node_id = any(_nodes_ids)
+                and (_since is null or pi.update_date >= _since)
+                and (_to is null or pi.update_date <= _to)
+                and (_node_id is null or (pi.update_date, pi.node_id, pi.id) > (_key_ts, _node_id, _item_id))
+            order by pi.update_date asc, pi.node_id asc, pi.id asc
+            limit _limit;
+        end if;
+    else
+        if _backward = 1 then
+            return query select pn.name, pi.node_id, pi.id, cast(pi.uuid::text as varchar(36)) as uuid, pi.data
+            from tig_pubsub_items pi
+                inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id
+            where
+                pi.node_id = any(_nodes_ids)
+                and (_since is null or pi.creation_date >= _since)
+                and (_to is null or pi.creation_date <= _to)
+                and (_node_id is null or (pi.creation_date, pi.node_id, pi.id) < (_key_ts, _node_id, _item_id))
+            order by pi.creation_date desc, pi.node_id desc, pi.id desc
+            limit _limit;
+        else
+            return query select pn.name, pi.node_id, pi.id, cast(pi.uuid::text as varchar(36)) as uuid, pi.data
+            from tig_pubsub_items pi
+                inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id
+            where
+                pi.node_id = any(_nodes_ids)
+                and (_since is null or pi.creation_date >= _since)
+                and (_to is null or pi.creation_date <= _to)
+                and (_node_id is null or (pi.creation_date, pi.node_id, pi.id) > (_key_ts, _node_id, _item_id))
+            order by pi.creation_date asc, pi.node_id asc, pi.id asc
+            limit _limit;
+        end if;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('tig_pubsub_mam_node_id_ts')) is null) then
+    create index tig_pubsub_mam_node_id_ts on tig_pubsub_mam ( node_id, ts, uuid );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubMamQueryItemsPage(_node_id bigint, _since timestamp with time zone, _to timestamp with time zone, _after_id varchar(36), _before_id varchar(36), _key varchar(36), _backward int, _limit int, _count int) returns table (
+    uuid varchar(36),
+    ts timestamp with time zone,
+    payload text,
+    "position" bigint,
+    "count" bigint
+) as $$
+declare
+    _after_ts timestamp with time zone;
+    _before_ts timestamp with time zone;
+    _key_ts timestamp with time zone;
+    _position bigint;
+    _total bigint;
+begin
+    if _after_id is not null then
+        select pm.ts into _after_ts from tig_pubsub_mam pm where pm.node_id = _node_id and pm.uuid = uuid(_after_id);
+        if _after_ts is null then
+            return;
+        end if;
+    end if;
+    if _before_id is not null then
+        select pm.ts into _before_ts from tig_pubsub_mam pm where pm.node_id = _node_id and pm.uuid = uuid(_before_id);
+        if _before_ts is null then
+            return;
+        end if;
+    end if;
+    if _key is not null then
+        select pm.ts into _key_ts from tig_pubsub_mam pm where pm.node_id = _node_id and pm.uuid = uuid(_key);
+        if _key_ts is null then
+            return;
+        end if;
+        select count(1) into _position
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = _node_id
+                and (_since is null or pm.ts >= _since)
+                and (_to is null or pm.ts <= _to)
+                and (_after_ts is null or (pm.ts, pm.uuid) > (_after_ts, uuid(_after_id)))
+                and (_before_ts is null or (pm.ts, pm.uuid) < (_before_ts, uuid(_before_id)))
+                and (pm.ts, pm.uuid) < (_key_ts, uuid(_key));
+    end if;
+    if _count = 1 then
+        select count(1) into _total
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = _node_id
+                and (_since is null or pm.ts >= _since)
+                and (_to is null or pm.ts <= _to)
+                and (_after_ts is null or (pm.ts, pm.uuid) > (_after_ts, uuid(_after_id)))
+                and (_before_ts is null or (pm.ts, pm.uuid) < (_before_ts, uuid(_before_id)));
+    end if;
+
+    if _backward = 1 then
+        return query select pm.uuid::varchar(36), pm.ts, pm.data, _position, _total
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = _node_id
+                and (_since is null or pm.ts >= _since)
+                and (_to is null or pm.ts <= _to)
+                and (_after_ts is null or (pm.ts, pm.uuid) > (_after_ts, uuid(_after_id)))
+                and (_before_ts is null or (pm.ts, pm.uuid) < (_before_ts, uuid(_before_id)))
+                and (_key_ts is null or (pm.ts, pm.uuid) < (_key_ts, uuid(_key)))
+            order by pm.ts desc, pm.uuid desc
+            limit _limit;
+    else
+        return query select pm.uuid::varchar(36), pm.ts, pm.data, _position, _total
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = _node_id
+                and (_since is null or pm.ts >= _since)
+                and (_to is null or pm.ts <= _to)
+                and (_after_ts is null or (pm.ts, pm.uuid) > (_after_ts, uuid(_after_id)))
+                and (_before_ts is null or (pm.ts, pm.uuid) < (_before_ts, uuid(_before_id)))
+                and (_key_ts is null or (pm.ts, pm.uuid) > (_key_ts, uuid(_key)))
+            order by pm.ts asc, pm.uuid asc
+            limit _limit;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubUpsertItem(bigint, varchar(1024), varchar(2049), bigint, text, timestamp with time zone, varchar(36)) returns bigint as $$
+declare
+	_node_id alias for $1;
+	_item_id alias for $2;
+	_publisher alias for $3;
+	_item_data alias for $5;
+	_ts alias for $6;
+	_uuid alias for $7;
+	_publisher_id bigint := $4;
+begin
+	if _publisher_id is null then
+		select TigPubSubEnsureJid(_publisher) into _publisher_id;
+	end if;
+	insert into tig_pubsub_items (node_id, id, creation_date, update_date, publisher_id, data, uuid)
+		values (_node_id, _item_id, _ts, _ts, _publisher_id, _item_data, uuid(_uuid))
+		on conflict (node_id, id) do update
+			set update_date = excluded.update_date, data = excluded.data, uuid = excluded.uuid;
+	return _publisher_id;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetNodeAffiliation(bigint,varchar(2049)) returns table (affiliation varchar(20)) as $$
+	select pa.affiliation
+		from tig_pubsub_affiliations pa
+		inner join tig_pubsub_jids pj on pj.jid_id = pa.jid_id
+		where pa.node_id = $1 and lower(pj.jid) = lower($2)
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetNodeSubscription(bigint,varchar(2049)) returns table (subscription varchar(20),subscription_id varchar(40)) as $$
+	select ps.subscription, ps.subscription_id
+		from tig_pubsub_subscriptions ps
+		inner join tig_pubsub_jids pj on pj.jid_id = ps.jid_id
+		where ps.node_id = $1 and lower(pj.jid) = lower($2)
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+drop function if exists TigPubSubGetNodeMeta(varchar(2049), varchar(1024));
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetNodeMeta(_service_jid varchar(2049), _node_name varchar(1024)) returns table (
+    node_id bigint,
+    configuration text,
+    creator varchar(2049),
+    creation_date timestamp with time zone,
+    version bigint
+) as $$
+begin
+    return query select n.node_id, n.configuration, cj.jid, n.creation_date, n.version
+        from tig_pubsub_nodes n
+            inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id
+            inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id
+            where lower(sj.service_jid) = lower(_service_jid) and n.name = _node_name;
+end ;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubIncrementNodeVersion(bigint) returns bigint as $$
+	update tig_pubsub_nodes set version = version + 1 where node_id = $1
+		returning version
+$$ LANGUAGE SQL;
+-- QUERY END:
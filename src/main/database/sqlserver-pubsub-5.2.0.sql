@@ -16,6 +16,12 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+-- QUERY START:
+IF NOT EXISTS (SELECT 1 FROM sys.columns WHERE name = 'version' AND object_id = object_id('dbo.tig_pubsub_nodes'))
+    ALTER TABLE [tig_pubsub_nodes] ADD [version] [bigint] not null default 0;
+-- QUERY END:
+GO
+
 -- QUERY START:
 IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubMamUpdateItem')
 	DROP PROCEDURE TigPubSubMamUpdateItem
@@ -37,4 +43,392 @@ begin
         and uuid = CONVERT(uniqueidentifier,@_uuid);
 end
 -- QUERY END:
-GO
\ No newline at end of file
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubTrimItems')
+	DROP PROCEDURE TigPubSubTrimItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubTrimItems
+	@_node_id bigint,
+	@_max_items int,
+	@_order int
+AS
+begin
+    SET NOCOUNT ON;
+    declare @_removed table (id nvarchar(1024));
+    with ranked as (
+        select id, row_number() over (order by case when @_order = 1 then creation_date else update_date end desc) as row_num
+        from tig_pubsub_items
+        where node_id = @_node_id
+    )
+    delete from ranked
+        output deleted.id into @_removed
+        where row_num > @_max_items;
+    update tig_pubsub_mam set data = null
+        where node_id = @_node_id and item_id in (select id from @_removed);
+    if exists (select 1 from @_removed)
+        select id from @_removed;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubPurgeItems')
+	DROP PROCEDURE TigPubSubPurgeItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubPurgeItems
+	@_node_id bigint
+AS
+begin
+    SET NOCOUNT ON;
+    declare @_removed table (id nvarchar(1024));
+    delete from tig_pubsub_items
+        output deleted.id into @_removed
+        where node_id = @_node_id;
+    update tig_pubsub_mam set data = null
+        where node_id = @_node_id and item_id in (select id from @_removed);
+    if exists (select 1 from @_removed)
+        select id from @_removed;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubDeleteItems')
+	DROP PROCEDURE TigPubSubDeleteItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubDeleteItems
+	@_node_id bigint,
+	@_items_ids nvarchar(max)
+AS
+begin
+    SET NOCOUNT ON;
+    declare @_removed table (id nvarchar(1024));
+    -- ids of items are passed as JSON array of strings
+    delete i
+        output deleted.id into @_removed
+        from tig_pubsub_items i
+            inner join openjson(@_items_ids) j on i.id_index = CAST(j.value as NVARCHAR(255)) and i.id = j.value
+        where i.node_id = @_node_id;
+    update tig_pubsub_mam set data = null
+        where node_id = @_node_id and item_id in (select id from @_removed);
+    if exists (select 1 from @_removed)
+        select id from @_removed;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_pubsub_items') AND NAME ='IX_tig_pubsub_items_node_id_creation_date')
+	CREATE INDEX IX_tig_pubsub_items_node_id_creation_date ON [dbo].[tig_pubsub_items](node_id, creation_date);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_pubsub_items') AND NAME ='IX_tig_pubsub_items_node_id_update_date')
+	CREATE INDEX IX_tig_pubsub_items_node_id_update_date ON [dbo].[tig_pubsub_items](node_id, update_date);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubQueryItemsPage')
+	DROP PROCEDURE TigPubSubQueryItemsPage
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubQueryItemsPage
+	@_nodes_ids nvarchar(max),
+	@_since datetime,
+	@_to datetime,
+	@_order int,
+	@_limit int,
+	@_node_id bigint,
+	@_item_id nvarchar(1024),
+	@_backward int
+AS
+begin
+    SET NOCOUNT ON;
+	declare
+	    @_ts nvarchar(20),
+	    @_cmp nvarchar(1),
+	    @_dir nvarchar(4),
+	    @_key_ts datetime,
+		@params_def nvarchar(max),
+		@query_sql nvarchar(max);
+
+    set @_ts = N'creation_date';
+    if @_order = 2
+        begin
+        set @_ts = N'update_date';
+        end
+    set @_cmp = N'>';
+    set @_dir = N'asc';
+    if @_backward = 1
+        begin
+        set @_cmp = N'<';
+        set @_dir = N'desc';
+        end
+
+    if @_node_id is not null
+        begin
+        select @_key_ts = case when @_order = 2 then update_date else creation_date end
+            from tig_pubsub_items
+            where node_id = @_node_id and id_index = CAST(@_item_id as NVARCHAR(255)) and id = @_item_id;
+        if @_key_ts is null
+            return;
+        end
+
+	set @params_def = N'@_since datetime, @_to datetime, @_limit int, @_node_id bigint, @_item_id nvarchar(1024), @_key_ts datetime';
+
+	set @query_sql = N'select top (@_limit) pn.name, pi.node_id, pi.id, pi.uuid, pi.data
+        from tig_pubsub_items pi
+            inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id
+        where
+            pi.node_id in (' + @_nodes_ids + ')
+            and (@_since is null or pi.' + @_ts + ' >= @_since)
+            and (@_to is null or pi.' + @_ts + ' <= @_to)
+            and (@_node_id is null or pi.' + @_ts + ' ' + @_cmp + ' @_key_ts or (pi.' + @_ts + ' = @_key_ts
+                and (pi.node_id ' + @_cmp + ' @_node_id or (pi.node_id = @_node_id and pi.id ' + @_cmp + ' @_item_id))))
+        order by pi.' + @_ts + ' ' + @_dir + ', pi.node_id ' + @_dir + ', pi.id ' + @_dir;
+
+	execute sp_executesql @query_sql, @params_def, @_since=@_since, @_to=@_to, @_limit=@_limit, @_node_id=@_node_id,
+	    @_item_id=@_item_id, @_key_ts=@_key_ts;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_pubsub_mam') AND NAME ='IX_tig_pubsub_mam_node_id_ts')
+	CREATE INDEX IX_tig_pubsub_mam_node_id_ts ON [dbo].[tig_pubsub_mam](node_id, ts, uuid);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubMamQueryItemsPage')
+	DROP PROCEDURE TigPubSubMamQueryItemsPage
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubMamQueryItemsPage
+	@_node_id bigint,
+	@_since datetime,
+	@_to datetime,
+	@_after_id nvarchar(36),
+	@_before_id nvarchar(36),
+	@_key nvarchar(36),
+	@_backward int,
+	@_limit int,
+	@_count int
+AS
+begin
+    SET NOCOUNT ON;
+	declare
+	    @_after uniqueidentifier,
+	    @_before uniqueidentifier,
+	    @_key_uuid uniqueidentifier,
+	    @_after_ts datetime,
+	    @_before_ts datetime,
+	    @_key_ts datetime,
+	    @_position bigint,
+	    @_total bigint;
+
+    if @_after_id is not null
+        begin
+        set @_after = convert(uniqueidentifier, @_after_id);
+        select @_after_ts = ts from tig_pubsub_mam where node_id = @_node_id and uuid = @_after;
+        if @_after_ts is null
+            return;
+        end
+    if @_before_id is not null
+        begin
+        set @_before = convert(uniqueidentifier, @_before_id);
+        select @_before_ts = ts from tig_pubsub_mam where node_id = @_node_id and uuid = @_before;
+        if @_before_ts is null
+            return;
+        end
+    if @_key is not null
+        begin
+        set @_key_uuid = convert(uniqueidentifier, @_key);
+        select @_key_ts = ts from tig_pubsub_mam where node_id = @_node_id and uuid = @_key_uuid;
+        if @_key_ts is null
+            return;
+        select @_position = count(1)
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = @_node_id
+                and (@_since is null or pm.ts >= @_since)
+                and (@_to is null or pm.ts <= @_to)
+                and (@_after_ts is null or pm.ts > @_after_ts or (pm.ts = @_after_ts and pm.uuid > @_after))
+                and (@_before_ts is null or pm.ts < @_before_ts or (pm.ts = @_before_ts and pm.uuid < @_before))
+                and (pm.ts < @_key_ts or (pm.ts = @_key_ts and pm.uuid < @_key_uuid));
+        end
+    if @_count = 1
+        begin
+        select @_total = count(1)
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = @_node_id
+                and (@_since is null or pm.ts >= @_since)
+                and (@_to is null or pm.ts <= @_to)
+                and (@_after_ts is null or pm.ts > @_after_ts or (pm.ts = @_after_ts and pm.uuid > @_after))
+                and (@_before_ts is null or pm.ts < @_before_ts or (pm.ts = @_before_ts and pm.uuid < @_before));
+        end
+
+    if @_backward = 1
+        begin
+        select top (@_limit) convert(nvarchar(36), pm.uuid), pm.ts, pm.data, @_position, @_total
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = @_node_id
+                and (@_since is null or pm.ts >= @_since)
+                and (@_to is null or pm.ts <= @_to)
+                and (@_after_ts is null or pm.ts > @_after_ts or (pm.ts = @_after_ts and pm.uuid > @_after))
+                and (@_before_ts is null or pm.ts < @_before_ts or (pm.ts = @_before_ts and pm.uuid < @_before))
+                and (@_key_ts is null or pm.ts < @_key_ts or (pm.ts = @_key_ts and pm.uuid < @_key_uuid))
+            order by pm.ts desc, pm.uuid desc;
+        end
+    else
+        begin
+        select top (@_limit) convert(nvarchar(36), pm.uuid), pm.ts, pm.data, @_position, @_total
+            from tig_pubsub_mam pm
+            where
+                pm.node_id = @_node_id
+                and (@_since is null or pm.ts >= @_since)
+                and (@_to is null or pm.ts <= @_to)
+                and (@_after_ts is null or pm.ts > @_after_ts or (pm.ts = @_after_ts and pm.uuid > @_after))
+                and (@_before_ts is null or pm.ts < @_before_ts or (pm.ts = @_before_ts and pm.uuid < @_before))
+                and (@_key_ts is null or pm.ts > @_key_ts or (pm.ts = @_key_ts and pm.uuid > @_key_uuid))
+            order by pm.ts asc, pm.uuid asc;
+        end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubUpsertItem')
+	DROP PROCEDURE TigPubSubUpsertItem
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubUpsertItem
+	@_node_id bigint,
+	@_item_id nvarchar(1024),
+	@_publisher nvarchar(2049),
+	@_publisher_id bigint,
+	@_item_data ntext,
+	@_ts datetime,
+	@_uuid nvarchar(36)
+AS
+begin
+    SET NOCOUNT ON;
+
+	if @_publisher_id is null
+		exec TigPubSubEnsureJid @_jid=@_publisher, @_jid_id=@_publisher_id output;
+
+	-- holdlock is required to make merge atomic in case of concurrent writes of the same item
+	merge tig_pubsub_items with (holdlock) as i
+		using (select @_node_id as node_id, HASHBYTES('SHA1',@_item_id) as id_sha1) as s
+		on i.node_id = s.node_id and i.id_sha1 = s.id_sha1
+	when matched then
+		update set publisher_id = @_publisher_id, data = @_item_data, update_date = @_ts, uuid = CONVERT(uniqueidentifier, @_uuid)
+	when not matched then
+		insert (node_id, id, id_sha1, creation_date, update_date, publisher_id, data, uuid)
+		values (@_node_id, @_item_id, s.id_sha1, @_ts, @_ts, @_publisher_id, @_item_data, CONVERT(uniqueidentifier, @_uuid));
+
+	select @_publisher_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetNodeAffiliation')
+	DROP PROCEDURE TigPubSubGetNodeAffiliation
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetNodeAffiliation
+	@_node_id bigint,
+	@_jid nvarchar(2049)
+AS
+begin
+	select pa.affiliation
+		from tig_pubsub_affiliations pa
+		inner join tig_pubsub_jids pj on pj.jid_id = pa.jid_id
+		where pa.node_id = @_node_id and pj.jid_sha1 = HASHBYTES('SHA1',LOWER(@_jid));
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetNodeSubscription')
+	DROP PROCEDURE TigPubSubGetNodeSubscription
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetNodeSubscription
+	@_node_id bigint,
+	@_jid nvarchar(2049)
+AS
+begin
+	select ps.subscription, ps.subscription_id
+		from tig_pubsub_subscriptions ps
+		inner join tig_pubsub_jids pj on pj.jid_id = ps.jid_id
+		where ps.node_id = @_node_id and pj.jid_sha1 = HASHBYTES('SHA1',LOWER(@_jid));
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetNodeMeta')
+	DROP PROCEDURE TigPubSubGetNodeMeta
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetNodeMeta
+    @_service_jid nvarchar(2049),
+	@_node_name nvarchar(1024)
+AS
+begin
+    select n.node_id, n.configuration, cj.jid, n.creation_date, n.version
+    from tig_pubsub_nodes n
+        inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id
+        inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id
+        where sj.service_jid_sha1 = HASHBYTES('SHA1', LOWER(@_service_jid)) and n.name_sha1 = HASHBYTES('SHA1', @_node_name)
+            and n.name = @_node_name;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubIncrementNodeVersion')
+	DROP PROCEDURE TigPubSubIncrementNodeVersion
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubIncrementNodeVersion
+	@_node_id bigint
+AS
+begin
+	update tig_pubsub_nodes set version = version + 1
+		output inserted.version
+		where node_id = @_node_id;
+end
+-- QUERY END:
+GO
@@ -30,7 +30,6 @@ import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.JID;
 
 import java.time.Duration;
-import java.util.Comparator;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -45,7 +44,7 @@ public class Ghostbuster extends ScheduledTask {
 	@ConfigField(desc = "Time after which presence is considered stale and ping should be send")
 	private Duration staleTime = Duration.ofHours(1);
 	@ConfigField(desc = "Limit of pings send in a single batch")
-	private int batchSize = 1000;
+	private int batchSize = 20;
 
 	@Inject(bean = "service")
 	private PubSubComponent pubSubComponent;
@@ -53,18 +52,19 @@ public class Ghostbuster extends ScheduledTask {
 	private PresenceCollectorRepository presenceCollectorRepository;
 
 	public Ghostbuster() {
-		super(Duration.ofMinutes(10), Duration.ofMinutes(5));
+		// small batches are sent often, so pings are spread evenly over time
+		super(Duration.ofSeconds(10), Duration.ofSeconds(10));
 	}
 
 	@Override
 	public void run() {
 		try {
 			long border = System.currentTimeMillis() - staleTime.toMillis();
-			presenceCollectorRepository.expiredUserResourceEntriesStream(border)
-					.filter(userResourceEntry -> shouldPing(userResourceEntry.getJid()))
-					.sorted(Comparator.comparing(PresenceCollectorRepository.UserResourceEntry::getLastSeen))
-					.limit(batchSize)
-					.forEach(this::ping);
+			// resources which should not be pinged are left in the index, as their last seen time is not changed
+			for (PresenceCollectorRepository.UserResourceEntry entry : presenceCollectorRepository.pollExpiredUserResourceEntries(
+					border, batchSize, entry -> shouldPing(entry.getJid()))) {
+				ping(entry);
+			}
 		} catch (Throwable e) {
 			log.log(Level.WARNING, e, () -> "Problem on executing ghostbuster");
 		}
@@ -0,0 +1,206 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub;
+
+import tigase.pubsub.utils.IntegerOrMax;
+import tigase.xmpp.StanzaType;
+
+/**
+ * Immutable view of a node configuration with all values parsed to their types.
+ *
+ * Getters of <code>AbstractNodeConfig</code> parse values stored in a <code>Form</code> on each call and cached
+ * configuration may only be accessed by cloning it. Snapshot is created once, when configuration of a cached node is
+ * loaded or changed, and may be shared by all threads without any copying.
+ *
+ * Arrays returned by this class are shared and must not be modified.
+ */
+public final class NodeConfigSnapshot {
+
+	private static final String[] EMPTY = new String[0];
+
+	private final AccessModel accessModel;
+	private final boolean allowToViewSubscribers;
+	private final String bodyXslt;
+	private final String bodyXsltEmbedded;
+	private final String collection;
+	private final CollectionItemsOrdering collectionItemsOrdering;
+	private final boolean deliverPayloads;
+	private final boolean deliverPresenceBased;
+	private final String[] domains;
+	private final IntegerOrMax maxItems;
+	private final String nodeName;
+	private final NodeType nodeType;
+	private final boolean notifyConfig;
+	private final StanzaType notificationType;
+	private final boolean persistItem;
+	private final boolean presenceExpired;
+	private final PublisherModel publisherModel;
+	private final String[] rosterGroupsAllowed;
+	private final SendLastPublishedItem sendLastPublishedItem;
+	private final boolean tigaseNotifyChangeSubscriptionAffiliationState;
+
+	public static NodeConfigSnapshot of(AbstractNodeConfig config) {
+		return config == null ? null : new NodeConfigSnapshot(config);
+	}
+
+	private static <E extends Enum<E>> E valueOf(Class<E> cls, String value, E defValue) {
+		if (value == null) {
+			return defValue;
+		}
+		try {
+			return Enum.valueOf(cls, value);
+		} catch (IllegalArgumentException ex) {
+			return defValue;
+		}
+	}
+
+	private NodeConfigSnapshot(AbstractNodeConfig config) {
+		this.nodeName = config.getNodeName();
+		this.accessModel = valueOf(AccessModel.class, config.getForm().getAsString("pubsub#access_model"), null);
+		this.nodeType = valueOf(NodeType.class, config.getForm().getAsString("pubsub#node_type"), null);
+		this.notificationType = valueOf(StanzaType.class, config.getForm().getAsString("pubsub#notification_type"),
+										StanzaType.headline);
+		this.publisherModel = config.getPublisherModel();
+		this.sendLastPublishedItem = config.getSendLastPublishedItem();
+		this.collectionItemsOrdering = config.getCollectionItemsOrdering();
+		this.collection = config.getCollection();
+		this.domains = config.getDomains();
+		String[] groups = config.getRosterGroupsAllowed();
+		this.rosterGroupsAllowed = groups == null ? EMPTY : groups;
+		this.bodyXslt = config.getBodyXslt();
+		this.bodyXsltEmbedded = config.getBodyXsltEmbedded();
+		this.allowToViewSubscribers = isTrue(config.getForm().getAsBoolean(AbstractNodeConfig.TIGASE + "allow_view_subscribers"));
+		this.deliverPayloads = isTrue(config.getForm().getAsBoolean("pubsub#deliver_payloads"));
+		this.deliverPresenceBased = isTrue(config.getForm().getAsBoolean("pubsub#presence_based_delivery"));
+		this.notifyConfig = isTrue(config.getForm().getAsBoolean("pubsub#notify_config"));
+		this.presenceExpired = config.isPresenceExpired();
+		this.tigaseNotifyChangeSubscriptionAffiliationState = isTrue(
+				config.getForm().getAsBoolean(AbstractNodeConfig.PUBSUB + "notify_sub_aff_state"));
+		if (config instanceof LeafNodeConfig) {
+			this.maxItems = ((LeafNodeConfig) config).getMaxItems();
+			this.persistItem = ((LeafNodeConfig) config).isPersistItem();
+		} else {
+			this.maxItems = null;
+			this.persistItem = false;
+		}
+	}
+
+	private static boolean isTrue(Boolean value) {
+		return value != null && value;
+	}
+
+	public String getBodyXslt() {
+		return bodyXslt;
+	}
+
+	public String getBodyXsltEmbedded() {
+		return bodyXsltEmbedded;
+	}
+
+	public String getCollection() {
+		return collection;
+	}
+
+	public CollectionItemsOrdering getCollectionItemsOrdering() {
+		return collectionItemsOrdering;
+	}
+
+	public String[] getDomains() {
+		return domains;
+	}
+
+	/**
+	 * Returns maximal number of items of a leaf node or <code>null</code> for collection nodes.
+	 */
+	public IntegerOrMax getMaxItems() {
+		return maxItems;
+	}
+
+	public AccessModel getNodeAccessModel() {
+		return accessModel;
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	public NodeType getNodeType() {
+		return nodeType;
+	}
+
+	public StanzaType getNotificationType() {
+		return notificationType;
+	}
+
+	public PublisherModel getPublisherModel() {
+		return publisherModel;
+	}
+
+	/**
+	 * Returns allowed roster groups (empty array if not set).
+	 */
+	public String[] getRosterGroupsAllowed() {
+		return rosterGroupsAllowed;
+	}
+
+	public SendLastPublishedItem getSendLastPublishedItem() {
+		return sendLastPublishedItem;
+	}
+
+	public boolean isAllowToViewSubscribers() {
+		return allowToViewSubscribers;
+	}
+
+	public boolean isCollection() {
+		return nodeType == NodeType.collection;
+	}
+
+	public boolean isDeliver_payloads() {
+		return deliverPayloads;
+	}
+
+	public boolean isDeliverPresenceBased() {
+		return deliverPresenceBased;
+	}
+
+	public boolean isLeaf() {
+		return maxItems != null;
+	}
+
+	public boolean isNotify_config() {
+		return notifyConfig;
+	}
+
+	public boolean isPersistItem() {
+		return persistItem;
+	}
+
+	public boolean isPresenceExpired() {
+		return presenceExpired;
+	}
+
+	public boolean isTigaseNotifyChangeSubscriptionAffiliationState() {
+		return tigaseNotifyChangeSubscriptionAffiliationState;
+	}
+
+	@Override
+	public String toString() {
+		return "NodeConfigSnapshot{nodeName=" + nodeName + ", nodeType=" + nodeType + ", accessModel=" + accessModel +
+				", publisherModel=" + publisherModel + ", collection=" + collection + "}";
+	}
+}
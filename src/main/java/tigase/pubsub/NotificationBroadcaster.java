@@ -21,15 +21,38 @@ import tigase.component.PacketWriter;
 import tigase.component.exceptions.RepositoryException;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.pubsub.utils.PubSubLogic;
 import tigase.pubsub.utils.executors.Executor;
 import tigase.server.Packet;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class responsible for delivery of notifications to subscribers of a node.
+ *
+ * Notification is prepared only once for all recipients. Each recipient receives a shallow copy of the notification
+ * root element (only <code>to</code> attribute differs) which shares its children with other recipients, so children
+ * of the notification must not be modified after it was passed for broadcasting. Recipients are passed to the publish
+ * executor in batches, each executed by a single task.
+ */
 @Bean(name = "notificationBroadcaster", parent = PubSubComponent.class, active = true)
-public class NotificationBroadcaster {
+public class NotificationBroadcaster implements StatisticHolder {
+
+    private static final Logger log = Logger.getLogger(NotificationBroadcaster.class.getCanonicalName());
+
+    private static final com.sun.management.ThreadMXBean threadMXBean = initThreadMXBean();
 
     @Inject
     private PacketWriter packetWriter;
@@ -37,16 +60,78 @@ public class NotificationBroadcaster {
     private PubSubLogic pubSubLogic;
     @Inject(bean = "publishExecutor")
     private Executor publishExecutor;
-    
+
+    @ConfigField(desc = "Number of recipients of a notification handled by a single task", alias = "batch-size")
+    private int batchSize = 100;
+
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder notifications = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
     public void broadcastNotification(Executor.Priority priority, BareJID serviceJID, String nodeName, Element message)
             throws RepositoryException {
+        long allocatedBefore = currentThreadAllocatedBytes();
         JID senderJid = prepareSender(serviceJID, message.getAttributeStaticStr("from"));
+        Notification notification = new Notification(message, senderJid);
+        // notifications for the same node should be delivered in order of publication
+        int hash = 31 * serviceJID.hashCode() + nodeName.hashCode();
+        int batchSize = Math.max(1, this.batchSize);
+        List<JID> batch = new ArrayList<>(batchSize);
         pubSubLogic.subscribersOfNotifications(serviceJID, nodeName).filter(this::shouldBroadcast).forEach(subscriberJid -> {
-            publishExecutor.submit(Executor.Priority.normal, () -> {
-                Element clone = message.clone();
-                packetWriter.write(Packet.packetInstance(clone, senderJid, subscriberJid));
-            });
+            batch.add(subscriberJid);
+            if (batch.size() >= batchSize) {
+                submit(hash, notification, batch.toArray(new JID[batch.size()]));
+                batch.clear();
+            }
         });
+        if (!batch.isEmpty()) {
+            submit(hash, notification, batch.toArray(new JID[batch.size()]));
+        }
+        notifications.increment();
+        countAllocatedBytes(allocatedBefore);
+    }
+
+    @Override
+    public void everyHour() {
+    }
+
+    @Override
+    public void everyMinute() {
+    }
+
+    @Override
+    public void everySecond() {
+    }
+
+    @Override
+    public void getStatistics(String compName, StatisticsList list) {
+        long delivered = this.delivered.sum();
+        list.add(compName, "notifications/broadcasted", notifications.sum(), Level.FINE);
+        list.add(compName, "notifications/delivered", delivered, Level.FINE);
+        list.add(compName, "notifications/batches", batches.sum(), Level.FINER);
+        if (threadMXBean != null) {
+            long allocated = allocatedBytes.sum();
+            list.add(compName, "notifications/allocated bytes", allocated, Level.FINER);
+            list.add(compName, "notifications/allocated bytes per delivered notification",
+                     delivered == 0 ? 0 : allocated / delivered, Level.FINE);
+        }
+    }
+
+    @Override
+    public void setStatisticsPrefix(String prefix) {
+    }
+
+    @Override
+    public void statisticExecutedIn(long executionTime) {
     }
 
     protected boolean shouldBroadcast(JID jid) {
@@ -61,4 +146,94 @@ public class NotificationBroadcaster {
         }
     }
 
+    private void submit(int hash, Notification notification, JID[] recipients) {
+        batches.increment();
+        // delivery of notifications is always queued with normal priority, whatever priority of the publication is
+        publishExecutor.submit(Executor.Priority.normal, hash, () -> deliver(notification, recipients),
+                               recipients.length);
+    }
+
+    private void deliver(Notification notification, JID[] recipients) {
+        long allocatedBefore = currentThreadAllocatedBytes();
+        int count = 0;
+        for (JID recipient : recipients) {
+            try {
+                packetWriter.write(Packet.packetInstance(notification.newEnvelope(), notification.senderJid, recipient));
+                count++;
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "Could not deliver notification to " + recipient, ex);
+            }
+        }
+        delivered.add(count);
+        countAllocatedBytes(allocatedBefore);
+    }
+
+    private void countAllocatedBytes(long allocatedBefore) {
+        if (allocatedBefore >= 0) {
+            long allocatedAfter = currentThreadAllocatedBytes();
+            if (allocatedAfter >= allocatedBefore) {
+                allocatedBytes.add(allocatedAfter - allocatedBefore);
+            }
+        }
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        if (threadMXBean == null) {
+            return -1;
+        }
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean initThreadMXBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+                if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                    return sunBean;
+                }
+            }
+        } catch (Throwable ex) {
+            log.log(Level.FINEST, "Measurement of allocated memory is not available", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Notification prepared once for all recipients.
+     */
+    private static class Notification {
+
+        private final String name;
+        private final String[] attrNames;
+        private final String[] attrValues;
+        private final Element[] children;
+        private final JID senderJid;
+
+        Notification(Element message, JID senderJid) {
+            this.name = message.getName();
+            this.senderJid = senderJid;
+            Map<String, String> attributes = message.getAttributes();
+            if (attributes == null || attributes.isEmpty()) {
+                this.attrNames = null;
+                this.attrValues = null;
+            } else {
+                this.attrNames = new String[attributes.size()];
+                this.attrValues = new String[attributes.size()];
+                int i = 0;
+                for (Map.Entry<String, String> e : attributes.entrySet()) {
+                    attrNames[i] = e.getKey();
+                    attrValues[i] = e.getValue();
+                    i++;
+                }
+            }
+            List<Element> children = message.getChildren();
+            this.children = (children == null || children.isEmpty()) ? null : children.toArray(new Element[children.size()]);
+        }
+
+        Element newEnvelope() {
+            return new Element(name, children, attrNames, attrValues);
+        }
+    }
+
 }
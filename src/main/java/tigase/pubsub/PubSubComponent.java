@@ -34,6 +34,7 @@ import tigase.kernel.core.Kernel;
 import tigase.pubsub.modules.XsltTool;
 import tigase.pubsub.modules.commands.DefaultConfigCommand;
 import tigase.pubsub.repository.IPubSubRepository;
+import tigase.pubsub.utils.executors.Executor;
 import tigase.server.DisableDisco;
 import tigase.server.Packet;
 import tigase.stats.StatisticHolder;
@@ -73,6 +74,8 @@ public class PubSubComponent
 	private IPubSubRepository pubsubRepository;
 	@Inject
 	private PacketHashCodeGenerator packetHashCodeGenerator;
+	@Inject(bean = "publishExecutor")
+	private Executor publishExecutor;
 
 	// ~--- methods
 	// --------------------------------------------------------------
@@ -87,6 +90,9 @@ public class PubSubComponent
 		if (pubsubRepository instanceof StatisticHolder) {
 			((StatisticHolder) pubsubRepository).everyHour();
 		}
+		if (publishExecutor instanceof StatisticHolder) {
+			((StatisticHolder) publishExecutor).everyHour();
+		}
 	}
 
 	@Override
@@ -95,6 +101,9 @@ public class PubSubComponent
 		if (pubsubRepository instanceof StatisticHolder) {
 			((StatisticHolder) pubsubRepository).everyMinute();
 		}
+		if (publishExecutor instanceof StatisticHolder) {
+			((StatisticHolder) publishExecutor).everyMinute();
+		}
 	}
 
 	@Override
@@ -103,6 +112,9 @@ public class PubSubComponent
 		if (pubsubRepository instanceof StatisticHolder) {
 			((StatisticHolder) pubsubRepository).everySecond();
 		}
+		if (publishExecutor instanceof StatisticHolder) {
+			((StatisticHolder) publishExecutor).everySecond();
+		}
 	}
 
 	@Override
@@ -133,6 +145,17 @@ public class PubSubComponent
 		if (pubsubRepository instanceof StatisticHolder) {
 			((StatisticHolder) pubsubRepository).getStatistics(getName(), list);
 		}
+		NotificationBroadcaster notificationBroadcaster = kernel.getInstance(NotificationBroadcaster.class);
+		if (notificationBroadcaster != null) {
+			notificationBroadcaster.getStatistics(getName(), list);
+		}
+		XsltTool xsltTool = kernel.getInstance(XsltTool.class);
+		if (xsltTool != null) {
+			xsltTool.getStatistics(getName(), list);
+		}
+		if (publishExecutor instanceof StatisticHolder) {
+			((StatisticHolder) publishExecutor).getStatistics(getName(), list);
+		}
 	}
 
 	@Override
@@ -19,22 +19,40 @@ package tigase.pubsub.cluster;
 
 import tigase.xmpp.jid.JID;
 
-import java.security.SecureRandom;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Map of PubSub nodes to cluster nodes responsible for them.
+ *
+ * New owners are selected using consistent hashing (see <code>ConsistentHashRing</code>), so each PubSub node is
+ * handled (and cached) by a single cluster node and change of cluster members moves only a small part of PubSub nodes.
+ * Number of PubSub nodes assigned to each cluster node is updated on each assignment, so checking load of cluster nodes
+ * does not require scanning of all PubSub nodes.
+ */
 public class ClusterNodeMap {
 
 	private final Set<JID> clusterNodes;
-	private final Map<String, NodeInfo> nodesMap = new HashMap<String, NodeInfo>();
-	private final Random random = new SecureRandom();
+	private final ConcurrentHashMap<String, AtomicInteger> load = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, NodeInfo> nodesMap = new ConcurrentHashMap<>();
+	private final ConsistentHashRing ring;
 
 	public ClusterNodeMap(Set<JID> cluster_nodes) {
+		this(cluster_nodes, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+	}
+
+	public ClusterNodeMap(Set<JID> cluster_nodes, int virtualNodes) {
 		this.clusterNodes = cluster_nodes;
+		this.ring = new ConsistentHashRing(virtualNodes);
+		for (JID n : cluster_nodes) {
+			ring.addMember(n.toString());
+		}
 	}
 
 	public void addPubSubNode(final String nodeName) {
-		nodesMap.put(nodeName, new NodeInfo());
+		assign(null, nodeName);
 	}
 
 	public void addPubSubNode(final String[] nodeNames) {
@@ -45,13 +63,39 @@ public class ClusterNodeMap {
 		}
 	}
 
-	public void assign(final String clusterNodeId, final String pubSubNodeName) {
-		NodeInfo i = this.nodesMap.get(pubSubNodeName);
-		if (i == null) {
-			i = new NodeInfo();
-			this.nodesMap.put(pubSubNodeName, i);
-		}
+	public synchronized void assign(final String clusterNodeId, final String pubSubNodeName) {
+		NodeInfo i = this.nodesMap.computeIfAbsent(pubSubNodeName, name -> new NodeInfo());
+		changeLoad(i.clusterNodeId, -1);
 		i.clusterNodeId = clusterNodeId;
+		changeLoad(clusterNodeId, 1);
+	}
+
+	/**
+	 * Adds cluster node to the ring and moves to it PubSub nodes for which it is a new owner.
+	 *
+	 * @return names of PubSub nodes which changed owner
+	 */
+	public synchronized Set<String> clusterNodeConnected(JID clusterNode) {
+		clusterNodes.add(clusterNode);
+		if (!ring.addMember(clusterNode.toString())) {
+			return Collections.emptySet();
+		}
+		return reassign(clusterNode.toString());
+	}
+
+	/**
+	 * Removes cluster node from the ring and moves PubSub nodes assigned to it to their new owners.
+	 *
+	 * @return names of PubSub nodes which changed owner
+	 */
+	public synchronized Set<String> clusterNodeDisconnected(JID clusterNode) {
+		clusterNodes.remove(clusterNode);
+		if (!ring.removeMember(clusterNode.toString())) {
+			return Collections.emptySet();
+		}
+		Set<String> moved = reassign(clusterNode.toString());
+		load.remove(clusterNode.toString());
+		return moved;
 	}
 
 	public String getClusterNodeId(final String pubsubNodeName) {
@@ -65,57 +109,51 @@ public class ClusterNodeMap {
 
 	public Map<String, Integer> getClusterNodesLoad() {
 		final Map<String, Integer> nodeLoad = new HashMap<String, Integer>();
-		// init
 		for (JID n : this.clusterNodes) {
-			nodeLoad.put(n.toString(), new Integer(0));
-		}
-
-		// counting
-		for (Entry<String, NodeInfo> entry : this.nodesMap.entrySet()) {
-			if (entry.getValue().clusterNodeId == null) {
-				continue;
-			}
-			Integer a = nodeLoad.get(entry.getValue().clusterNodeId);
-			if (a != null) {
-				a++;
-				nodeLoad.put(entry.getValue().clusterNodeId, a);
-			}
+			AtomicInteger count = load.get(n.toString());
+			nodeLoad.put(n.toString(), count == null ? 0 : count.get());
 		}
 		return nodeLoad;
 	}
 
 	/**
-	 * Stupid name, but important method. This meathod realize Load-Balancing
+	 * Returns cluster node which should handle PubSub node with passed name.
 	 *
-	 * @param nodeName name of the cluster node
+	 * @param nodeName name of the PubSub node
 	 *
-	 * @return Name of (usual) less loaded cluster node
+	 * @return name of the cluster node owning PubSub node
 	 */
 	public String getNewOwnerOfNode(final String nodeName) {
-		// calculating current node load
-		final Map<String, Integer> nodeLoad = getClusterNodesLoad();
-
-		Integer minCount = null;
-		for (Integer i : nodeLoad.values()) {
-			minCount = minCount == null || minCount > i ? i : minCount;
-		}
-
-		List<String> shortList = new ArrayList<String>();
+		return ring.getOwner(nodeName);
+	}
 
-		for (Entry<String, Integer> entry : nodeLoad.entrySet()) {
-			if (entry.getValue().equals(minCount)) {
-				shortList.add(entry.getKey());
+	private Set<String> reassign(String changedClusterNodeId) {
+		Set<String> moved = new HashSet<>();
+		for (Entry<String, NodeInfo> entry : nodesMap.entrySet()) {
+			String currentOwner = entry.getValue().clusterNodeId;
+			if (currentOwner == null) {
+				continue;
+			}
+			String newOwner = ring.getOwner(entry.getKey());
+			// only nodes taken over by or released by changed cluster node are moved
+			if (!currentOwner.equals(newOwner) &&
+					(changedClusterNodeId.equals(currentOwner) || changedClusterNodeId.equals(newOwner))) {
+				assign(newOwner, entry.getKey());
+				moved.add(entry.getKey());
 			}
 		}
+		return moved;
+	}
 
-		int r = this.random.nextInt(shortList.size());
-
-		return shortList.get(r);
+	private void changeLoad(String clusterNodeId, int delta) {
+		if (clusterNodeId != null) {
+			load.computeIfAbsent(clusterNodeId, id -> new AtomicInteger()).addAndGet(delta);
+		}
 	}
 
-	private class NodeInfo {
+	private static class NodeInfo {
 
-		private String clusterNodeId;
+		private volatile String clusterNodeId;
 	}
 
 }
@@ -0,0 +1,153 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Assigns keys (ie. names of PubSub nodes) to cluster nodes using consistent hashing.
+ *
+ * Each cluster node is placed on the ring at a number of points (virtual nodes) and a key belongs to the cluster node
+ * owning the first point following hash of the key. When a cluster node joins or leaves the cluster, only keys from
+ * ranges taken over (or released) by this node change their owner, which is about <code>1/n</code> of all keys, so
+ * caches of other cluster nodes stay valid.
+ *
+ * Ring is replaced on each change of members, so lookups do not require any locking.
+ */
+public class ConsistentHashRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private final int virtualNodes;
+	private volatile Ring ring = new Ring(new long[0], new String[0], Collections.emptySet());
+
+	public ConsistentHashRing() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	public ConsistentHashRing(int virtualNodes) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+	}
+
+	public synchronized boolean addMember(String member) {
+		if (ring.members.contains(member)) {
+			return false;
+		}
+		Set<String> members = new HashSet<>(ring.members);
+		members.add(member);
+		ring = build(members);
+		return true;
+	}
+
+	public synchronized boolean removeMember(String member) {
+		if (!ring.members.contains(member)) {
+			return false;
+		}
+		Set<String> members = new HashSet<>(ring.members);
+		members.remove(member);
+		ring = build(members);
+		return true;
+	}
+
+	public Set<String> getMembers() {
+		return ring.members;
+	}
+
+	/**
+	 * Returns cluster node owning passed key or <code>null</code> if there are no members.
+	 */
+	public String getOwner(String key) {
+		Ring ring = this.ring;
+		if (ring.points.length == 0) {
+			return null;
+		}
+		int idx = Arrays.binarySearch(ring.points, hash(key));
+		if (idx < 0) {
+			idx = -idx - 1;
+			if (idx == ring.points.length) {
+				idx = 0;
+			}
+		}
+		return ring.owners[idx];
+	}
+
+	public boolean isOwner(String member, String key) {
+		return member.equals(getOwner(key));
+	}
+
+	private Ring build(Set<String> members) {
+		// sorting members makes ring independent of the order of joining
+		String[] sortedMembers = members.toArray(new String[members.size()]);
+		Arrays.sort(sortedMembers);
+		long[] points = new long[sortedMembers.length * virtualNodes];
+		String[] owners = new String[points.length];
+		int i = 0;
+		for (String member : sortedMembers) {
+			for (int v = 0; v < virtualNodes; v++) {
+				points[i] = hash(member + "#" + v);
+				owners[i] = member;
+				i++;
+			}
+		}
+		// sorting points together with their owners
+		Integer[] order = new Integer[points.length];
+		for (int j = 0; j < order.length; j++) {
+			order[j] = j;
+		}
+		Arrays.sort(order, Comparator.comparingLong((Integer j) -> points[j]).thenComparing(j -> owners[j]));
+		long[] sortedPoints = new long[points.length];
+		String[] sortedOwners = new String[points.length];
+		for (int j = 0; j < order.length; j++) {
+			sortedPoints[j] = points[order[j]];
+			sortedOwners[j] = owners[order[j]];
+		}
+		return new Ring(sortedPoints, sortedOwners, Collections.unmodifiableSet(members));
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of UTF-8 bytes of a string, mixed with finalizer of MurmurHash3 for better distribution of
+	 * similar strings.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static class Ring {
+
+		private final Set<String> members;
+		private final String[] owners;
+		private final long[] points;
+
+		Ring(long[] points, String[] owners, Set<String> members) {
+			this.points = points;
+			this.owners = owners;
+			this.members = members;
+		}
+	}
+}
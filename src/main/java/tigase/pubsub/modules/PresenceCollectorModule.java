@@ -107,7 +107,7 @@ public class PresenceCollectorModule
 
 	public List<JID> getAllAvailableJidsWithFeature(final BareJID serviceJid, final String feature) {
 		Set<String> nodesWithFeature = PresenceCapabilitiesManager.getNodesWithFeature(feature);
-		return presenceByService.getAllAvailableJids(serviceJid, nodesWithFeature::contains)
+		return presenceByService.getAllAvailableJidsWithCapsNodes(serviceJid, nodesWithFeature)
 				.collect(Collectors.toList());
 	}
 
@@ -175,6 +175,7 @@ public class PresenceCollectorModule
 			}
 		} else if (StanzaType.subscribe == type) {
 			log.finest("Contact " + jid + " wants to subscribe PubSub");
+			fireRosterChangedEvent(toJid.getBareJID(), jid.getBareJID());
 
 			Packet presence = preparePresence(packet, StanzaType.subscribed);
 
@@ -187,6 +188,7 @@ public class PresenceCollectorModule
 			}
 		} else if (StanzaType.unsubscribe == type || StanzaType.unsubscribed == type) {
 			log.finest("Contact " + jid + " wants to unsubscribe PubSub");
+			fireRosterChangedEvent(toJid.getBareJID(), jid.getBareJID());
 
 			Packet presence = preparePresence(packet, StanzaType.unsubscribed);
 
@@ -224,6 +226,10 @@ public class PresenceCollectorModule
 		eventBus.fire(new PresenceChangeEvent(config.getComponentName(), packet));
 	}
 
+	private void fireRosterChangedEvent(BareJID serviceJid, BareJID buddyJid) {
+		eventBus.fire(new RosterChangedEvent(config.getComponentName(), serviceJid, buddyJid));
+	}
+
 	private Packet preparePresence(final Packet presence, StanzaType type) {
 		JID to = presence.getTo();
 		JID from = presence.getStanzaFrom();
@@ -264,6 +270,24 @@ public class PresenceCollectorModule
 
 	}
 
+	/**
+	 * Event fired when subscription presence was exchanged between service and a contact, so rosters of both of them
+	 * might have changed.
+	 */
+	public static class RosterChangedEvent {
+
+		public final BareJID buddyJid;
+		public final String componentName;
+		public final BareJID serviceJid;
+
+		public RosterChangedEvent(String componentName, BareJID serviceJid, BareJID buddyJid) {
+			this.componentName = componentName;
+			this.serviceJid = serviceJid;
+			this.buddyJid = buddyJid;
+		}
+
+	}
+
 	public static class PresenceChangeEvent {
 
 		public final Packet packet;
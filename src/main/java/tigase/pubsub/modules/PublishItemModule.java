@@ -24,6 +24,7 @@ import tigase.db.util.SchemaManager;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.HandleEvent;
 import tigase.form.Field;
+import tigase.form.Form;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
@@ -42,6 +43,7 @@ import tigase.server.Packet;
 import tigase.util.datetime.TimestampHelper;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
+import tigase.xml.XMLNodeIfc;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
@@ -121,6 +123,11 @@ public class PublishItemModule
 
 	public void doPublishItems(BareJID serviceJID, String nodeName, LeafNodeConfig leafNodeConfig, String publisher,
 							   List<Element> itemsToSend) throws RepositoryException, PubSubException {
+		doPublishItems(serviceJID, nodeName, NodeConfigSnapshot.of(leafNodeConfig), publisher, itemsToSend);
+	}
+
+	public void doPublishItems(BareJID serviceJID, String nodeName, NodeConfigSnapshot leafNodeConfig, String publisher,
+							   List<Element> itemsToSend) throws RepositoryException, PubSubException {
 		String uuid = null;
 		if (leafNodeConfig.isPersistItem()) {
 			if (pubSubLogic.isMAMEnabled(serviceJID, nodeName)) {
@@ -176,13 +183,15 @@ public class PublishItemModule
 	}
 
 	private void generateNotifications(BareJID serviceJID, String nodeName, Element payload, String itemId, String expireAt, String uuid, boolean persistInMAM) throws RepositoryException {
+		// body is the same for notifications sent to subscribers of the node and of its collections
+		List<Element> body = pubSubLogic.prepareNotificationBody(serviceJID, nodeName, payload);
 		for (SchemaManager.Pair<String, StanzaType> pair : getCollectionsForNotification(serviceJID, nodeName)) {
 			Map<String, String> headers = null;
 			if (pair.getKey() != null) {
 				headers = new HashMap<>();
 				headers.put("Collection", pair.getKey());
 			}
-			Element message = pubSubLogic.prepareNotificationMessage(JID.jidInstance(serviceJID), uuid == null ? String.valueOf(++counter) : uuid, uuid, nodeName, payload, expireAt, headers, pair.getValue());
+			Element message = pubSubLogic.prepareNotificationMessage(JID.jidInstance(serviceJID), uuid == null ? String.valueOf(++counter) : uuid, uuid, nodeName, payload, expireAt, headers, pair.getValue(), body);
 
 			// JUST AN IDEA: MAM2 should work only for leaf nodes... (full query of subtrees is complicated and makes it impossible to satisfy constraints!
 			// MAM cannot work with batch publication of items and this should be forbidden (bad-request)
@@ -203,6 +212,10 @@ public class PublishItemModule
 	}
 
 	public void sendNotification(BareJID serviceJID, String nodeName, Element item, String uuid, Map<String,String> headers, JID recipient, StanzaType stanzaType) {
+		sendNotification(serviceJID, nodeName, (XMLNodeIfc) item, uuid, headers, recipient, stanzaType);
+	}
+
+	public void sendNotification(BareJID serviceJID, String nodeName, XMLNodeIfc item, String uuid, Map<String,String> headers, JID recipient, StanzaType stanzaType) {
 		final Element items = new Element("items", new String[]{"node"}, new String[]{nodeName});
 		items.addChild(item);
 		
@@ -248,17 +261,15 @@ public class PublishItemModule
 
 	private List<SchemaManager.Pair<String,StanzaType>> getCollectionsForNotification(final BareJID serviceJid, final String nodeName) throws RepositoryException {
 		ArrayList<SchemaManager.Pair<String,StanzaType>> result = new ArrayList<>();
-		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJid, nodeName);
-		String cn = nodeConfig.getCollection();
+		NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(serviceJid, nodeName);
 
 		result.add(new SchemaManager.Pair(null, nodeConfig.getNotificationType()));
 
-		while ((cn != null) && !"".equals(cn)) {
-
-			AbstractNodeConfig nc = getRepository().getNodeConfig(serviceJid, cn);
-			result.add(new SchemaManager.Pair(cn, nc.getNotificationType()));
-
-			cn = nc.getCollection();
+		for (String cn : getRepository().getNodeAncestors(serviceJid, nodeName)) {
+			NodeConfigSnapshot nc = getRepository().getNodeConfigSnapshot(serviceJid, cn);
+			if (nc != null) {
+				result.add(new SchemaManager.Pair(cn, nc.getNotificationType()));
+			}
 		}
 
 		return result;
@@ -336,7 +347,7 @@ public class PublishItemModule
 
 
 	public List<String> publishItems(BareJID toJid, String nodeName, JID publisher, List<Element> itemsToPublish, Element publishOptions) throws RepositoryException, PubSubException {
-		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(toJid, nodeName);
+		NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(toJid, nodeName);
 
 		if (nodeConfig == null) {
 			if ((!pubSubLogic.isServiceJidPEP(toJid)) || !config.isPepPeristent()) {
@@ -344,7 +355,8 @@ public class PublishItemModule
 			} else {
 				// this is PubSub service for particular user - we should
 				// autocreate node
-				nodeConfig = createPepNode(toJid, nodeName, publisher.getBareJID(), publishOptions);
+				nodeConfig = NodeConfigSnapshot.of(
+						createPepNode(toJid, nodeName, publisher.getBareJID(), publishOptions));
 			}
 		} else {
 			if (nodeConfig.getNodeType() == NodeType.collection) {
@@ -354,6 +366,8 @@ public class PublishItemModule
 		}
 		
 		if (publishOptions != null) {
+			// preconditions are compared with fields of the form, so full configuration is needed
+			Form nodeConfigForm = getRepository().getNodeConfig(toJid, nodeName).getForm();
 			if (publishOptions.findChild(
 					el -> el.getName() == "field" && "FORM_TYPE" == el.getAttributeStaticStr("var") &&
 							"http://jabber.org/protocol/pubsub#publish-option".equals(
@@ -364,7 +378,7 @@ public class PublishItemModule
 						continue;
 					}
 
-					Field f = nodeConfig.getForm().get(key);
+					Field f = nodeConfigForm.get(key);
 					if (f == null) {
 						throw new PubSubException(Authorization.CONFLICT,
 												  PubSubErrorCondition.PRECONDITION_NOT_MET);
@@ -417,13 +431,12 @@ public class PublishItemModule
 			}
 		}
 
-		LeafNodeConfig leafNodeConfig = (LeafNodeConfig) nodeConfig;
 		if (pubSubLogic.isMAMEnabled(toJid, nodeName) && itemsToPublish.size() > 1) {
 			throw new PubSubException(Authorization.NOT_ALLOWED, "Bulk publication not allowed");
 		}
 
 		List<String> itemIds = null;
-		if (leafNodeConfig.isPersistItem()) {
+		if (nodeConfig.isPersistItem()) {
 			itemIds = new ArrayList<>();
 			for (Element item : itemsToPublish) {
 				String id = pubSubLogic.validateItemId(toJid, nodeName, item.getAttributeStaticStr("id"));
@@ -435,13 +448,18 @@ public class PublishItemModule
 			}
 		}
 		
-		doPublishItems(toJid, nodeName, leafNodeConfig, publisher.toString(), itemsToPublish);
+		doPublishItems(toJid, nodeName, nodeConfig, publisher.toString(), itemsToPublish);
 
 		return itemIds;
 	}
 
 	public void publishLastItem(BareJID serviceJid, AbstractNodeConfig nodeConfig, JID destinationJID)
 			throws RepositoryException {
+		publishLastItem(serviceJid, NodeConfigSnapshot.of(nodeConfig), destinationJID);
+	}
+
+	public void publishLastItem(BareJID serviceJid, NodeConfigSnapshot nodeConfig, JID destinationJID)
+			throws RepositoryException {
 		try {
 			pubSubLogic.checkPermission(serviceJid, nodeConfig.getNodeName(), destinationJID, PubSubLogic.Action.retrieveItems);
 		} catch (Exception ex) {
@@ -450,18 +468,16 @@ public class PublishItemModule
 
 		IItems nodeItems = this.getRepository().getNodeItems(serviceJid, nodeConfig.getNodeName());
 		if (nodeItems != null) {
-			String[] ids = nodeItems.getItemsIds(nodeConfig.getCollectionItemsOrdering());
-
-			if (ids != null && ids.length > 0) {
-				String lastID = ids[ids.length - 1];
-				IItems.IItem item = nodeItems.getItem(lastID);
-				if (item != null && item.getItem() != null) {
-					sendNotification(serviceJid, nodeConfig.getNodeName(), item.getItem(), item.getUUID(), null, destinationJID, nodeConfig.getNotificationType());
-				} else {
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST, "There is no payload for item with id '" + lastID + "' at '" + nodeConfig.getNodeName() +
-								"' for '" + serviceJid + "'");
-					}
+			IItems.IItem item = nodeItems.getLastItem(nodeConfig.getCollectionItemsOrdering());
+			// payload needs to be parsed only if it will be transformed to the body of the notification
+			boolean hasBodyXslt = nodeConfig.getBodyXslt() != null || nodeConfig.getBodyXsltEmbedded() != null;
+			XMLNodeIfc payload = item == null ? null : (hasBodyXslt ? item.getItem() : item.getItemNode());
+			if (payload != null) {
+				sendNotification(serviceJid, nodeConfig.getNodeName(), payload, item.getUUID(), null, destinationJID, nodeConfig.getNotificationType());
+			} else if (item != null) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "There is no payload for item with id '" + item.getId() + "' at '" + nodeConfig.getNodeName() +
+							"' for '" + serviceJid + "'");
 				}
 			}
 		}
@@ -469,17 +485,7 @@ public class PublishItemModule
 	
 	public void trimItems(final BareJID serviceJid, final String nodeName, final Integer maxItems, CollectionItemsOrdering collectionItemsOrdering) throws RepositoryException {
 		IItems nodeItems = getRepository().getNodeItems(serviceJid, nodeName);
-		final String[] ids = nodeItems.getItemsIds(collectionItemsOrdering);
-
-		if ((ids == null) || (ids.length <= maxItems)) {
-			return;
-		}
-		
-		for (int i = 0; i < (ids.length - maxItems); i++) {
-			String id = ids[i];
-
-			nodeItems.deleteItem(id);
-		}
+		nodeItems.trimItems(maxItems, collectionItemsOrdering);
 	}
 
 	@Override
@@ -554,11 +560,11 @@ public class PublishItemModule
 	}
 
 	protected void publishLastItem(BareJID serviceJid, String nodeName, JID buddyJid) throws RepositoryException {
-		AbstractNodeConfig nodeConfig = repository.getNodeConfig(serviceJid, nodeName);
+		NodeConfigSnapshot nodeConfig = repository.getNodeConfigSnapshot(serviceJid, nodeName);
 		if (nodeConfig != null && nodeConfig.getSendLastPublishedItem() == SendLastPublishedItem.on_sub_and_presence) {
-			if (nodeConfig instanceof LeafNodeConfig) {
+			if (nodeConfig.isLeaf()) {
 				publishLastItem(serviceJid, nodeConfig, buddyJid);
-			} else if (nodeConfig instanceof CollectionNodeConfig) {
+			} else if (nodeConfig.isCollection()) {
 				String[] childNodes = repository.getChildNodes(serviceJid, nodeConfig.getNodeName());
 				if (childNodes != null) {
 					for (String childNode : childNodes) {
@@ -614,7 +620,7 @@ public class PublishItemModule
 						continue;
 					}
 					String nodeName = e.getKey();
-					AbstractNodeConfig nodeConfig = repository.getNodeConfig(serviceJid, nodeName);
+					NodeConfigSnapshot nodeConfig = repository.getNodeConfigSnapshot(serviceJid, nodeName);
 					if (nodeConfig.getSendLastPublishedItem() != SendLastPublishedItem.on_sub_and_presence) {
 						continue;
 					}
@@ -87,18 +87,13 @@ public class PurgeItemsModule
 			Packet result = packet.okResult((Element) null, 0);
 
 			final IItems nodeItems = this.getRepository().getNodeItems(toJid, nodeName);
-			String[] itemsToDelete = nodeItems.getItemsIds(CollectionItemsOrdering.byUpdateDate);
 
 			publishModule.generateNodeNotifications(packet.getStanzaTo().getBareJID(), nodeName,
 													new Element("purge", new String[]{"node"}, new String[]{nodeName}),
 													null, false);
 
 			log.log(Level.CONFIG, "Purging node " + nodeName);
-			if (itemsToDelete != null) {
-				for (String id : itemsToDelete) {
-					nodeItems.deleteItem(id);
-				}
-			}
+			nodeItems.purgeItems();
 
 			packetWriter.write(result);
 		} catch (PubSubException e1) {
@@ -34,7 +34,10 @@ import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 
 /**
@@ -130,12 +133,11 @@ public class RetractItemModule
 		if (nodeItems != null) {
 			List<Element> itemsToSend = new ArrayList<>(itemsToDelete.size());
 			try {
+				Set<String> removed = new HashSet<>(
+						Arrays.asList(nodeItems.deleteItems(itemsToDelete.toArray(new String[itemsToDelete.size()]))));
 				for (String id : itemsToDelete) {
-					IItems.IItem item = nodeItems.getItem(id);
-
-					if (item != null) {
-						nodeItems.deleteItem(id);
-
+					// only items which existed are removed, notify about them in requested order
+					if (removed.remove(id)) {
 						Element notification = new Element("retract", new String[]{"id"}, new String[]{id});
 
 						eventBus.fire(new RetractItemModule.ItemRetractedEvent(config.getComponentName(), toJid, nodeName, notification));
@@ -29,6 +29,7 @@ import tigase.pubsub.utils.PubSubLogic;
 import tigase.server.Packet;
 import tigase.util.datetime.TimestampHelper;
 import tigase.xml.Element;
+import tigase.xml.XMLNodeIfc;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
@@ -85,8 +86,9 @@ public class RetrieveItemsModule
 				IItems nodeItems = getRepository().getNodeItems(toJid, nodeName);
 				for (String id : requestedId) {
 					IItems.IItem item = nodeItems.getItem(id);
-					if (item != null && item.getItem() != null) {
-						ritems.addChild(item.getItem());
+					XMLNodeIfc payload = item == null ? null : item.getItemNode();
+					if (payload != null) {
+						ritems.addChild(payload);
 					}
 				}
 				rpubsub.addChild(ritems);
@@ -122,7 +124,7 @@ public class RetrieveItemsModule
 						.forEach((rnodeName, rnodeItems) -> {
 							final Element ritems = new Element("items", new String[]{"node"}, new String[]{rnodeName});
 							for (IItems.IItem ritem : rnodeItems) {
-								ritems.addChild(ritem.getItem());
+								ritems.addChild(ritem.getItemNode());
 							}
 							rpubsub.addChild(ritems);
 						});
@@ -17,72 +17,248 @@
  */
 package tigase.pubsub.modules;
 
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.PubSubComponent;
-import tigase.xml.DomBuilderHandler;
+import tigase.pubsub.utils.SegmentedLRUCache;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
-import tigase.xml.SimpleParser;
-import tigase.xml.SingletonFactory;
+import tigase.xml.XMLUtils;
+import tigase.xmpp.jid.BareJID;
 
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.stream.StreamSource;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 
+/**
+ * Generates body of notifications from items using XSLT configured for a node (embedded in node configuration or
+ * available at URL).
+ *
+ * Compiled templates are cached per node together with configuration of node for which they were compiled, so they
+ * are compiled again (and XSLT is fetched from URL again) only after configuration of the node is changed. Each thread
+ * reuses its own <code>Transformer</code> created from cached templates. Result of transformation is built directly
+ * as Tigase XML elements.
+ */
 @Bean(name = "xslTransformer", parent = PubSubComponent.class, active = true)
 public class XsltTool {
 
-	private final SimpleParser parser = SingletonFactory.getParserInstance();
-
+	private final LongAdder compilations = new LongAdder();
+	private final LongAdder transformations = new LongAdder();
+	private SegmentedLRUCache<TemplatesKey, CompiledXslt> templatesCache;
+	@ConfigField(desc = "Maximal number of compiled XSLT templates kept in cache", alias = "templates-cache-size")
+	private int templatesCacheSize = 1000;
 	private TransformerFactory tFactory = TransformerFactory.newInstance();
 
 	public XsltTool() {
+		templatesCache = new SegmentedLRUCache<>(templatesCacheSize);
+	}
 
+	public void setTemplatesCacheSize(int templatesCacheSize) {
+		this.templatesCacheSize = templatesCacheSize;
+		templatesCache.setMaxSize(templatesCacheSize);
 	}
 
 	public List<Element> transform(final Element item, AbstractNodeConfig nodeConfig)
 			throws TransformerException, IOException {
+		Templates templates = compile(nodeConfig.getBodyXslt(), nodeConfig.getBodyXsltEmbedded());
+		if (templates == null) {
+			return null;
+		}
+		return transform(item, templates.newTransformer());
+	}
+
+	/**
+	 * Transforms item using XSLT of a node of a service with compiled templates cached until configuration of the node
+	 * changes.
+	 */
+	public List<Element> transform(final BareJID serviceJid, final Element item, NodeConfigSnapshot nodeConfig)
+			throws TransformerException, IOException {
+		TemplatesKey key = new TemplatesKey(serviceJid, nodeConfig.getNodeName());
+		CompiledXslt compiled = templatesCache.get(key);
+		if (compiled == null || compiled.nodeConfig != nodeConfig) {
+			// configuration of the node was changed, so XSLT could be changed as well
+			compiled = new CompiledXslt(nodeConfig,
+										compile(nodeConfig.getBodyXslt(), nodeConfig.getBodyXsltEmbedded()));
+			templatesCache.put(key, compiled);
+		}
+		if (compiled.templates == null) {
+			return null;
+		}
+		Transformer transformer = compiled.transformers.get();
+		if (transformer == null) {
+			transformer = compiled.templates.newTransformer();
+			compiled.transformers.set(transformer);
+		}
+		return transform(item, transformer);
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "xslt/cached templates", templatesCache.size(), Level.FINEST);
+		list.add(compName, "xslt/compiled templates", compilations.sum(), Level.FINEST);
+		list.add(compName, "xslt/transformations", transformations.sum(), Level.FINEST);
+	}
+
+	private Templates compile(final String bodyXsltUrl, final String bodyXsltEmbedded)
+			throws TransformerException, IOException {
 		Source xsltSource;
-		final String bodyXsltUrl = nodeConfig.getBodyXslt();
-		final String bodyXsltEmbedded = nodeConfig.getBodyXsltEmbedded();
+		InputStream in = null;
 		if (bodyXsltEmbedded != null && bodyXsltEmbedded.length() > 1) {
-			Reader reader = new StringReader(bodyXsltEmbedded);
-			xsltSource = new StreamSource(reader);
+			xsltSource = new StreamSource(new StringReader(bodyXsltEmbedded));
 		} else if (bodyXsltUrl != null && bodyXsltUrl.length() > 1) {
 			URL x = new URL(bodyXsltUrl);
-			xsltSource = new StreamSource(x.openStream());
+			in = x.openStream();
+			xsltSource = new StreamSource(in, bodyXsltUrl);
 		} else {
 			return null;
 		}
-		return transform(item, xsltSource);
+		try {
+			compilations.increment();
+			// TransformerFactory is not guaranteed to be thread-safe
+			synchronized (tFactory) {
+				return tFactory.newTemplates(xsltSource);
+			}
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
 	}
 
-	private List<Element> transform(final Element item, Source xslt) throws TransformerException {
-		Transformer transformer = tFactory.newTransformer(xslt);
-		Reader reader = new StringReader(item.toString());
+	private List<Element> transform(final Element item, Transformer transformer) throws TransformerException {
+		transformations.increment();
+		ElementBuilder builder = new ElementBuilder();
+		try {
+			transformer.transform(new StreamSource(new StringReader(item.toString())), new SAXResult(builder));
+		} finally {
+			transformer.reset();
+		}
+		return builder.getElements();
+	}
 
-		StringWriter writer = new StringWriter();
-		transformer.transform(new StreamSource(reader), new StreamResult(writer));
-		char[] data = writer.toString().toCharArray();
+	private static class TemplatesKey {
 
-		DomBuilderHandler domHandler = new DomBuilderHandler();
-		parser.parse(domHandler, data, 0, data.length);
-		Queue<Element> q = domHandler.getParsedElements();
+		private final String nodeName;
+		private final BareJID serviceJid;
+
+		TemplatesKey(BareJID serviceJid, String nodeName) {
+			this.serviceJid = serviceJid;
+			this.nodeName = nodeName;
+		}
 
-		ArrayList<Element> result = new ArrayList<Element>();
-		result.addAll(q);
-		return result;
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof TemplatesKey)) {
+				return false;
+			}
+			TemplatesKey that = (TemplatesKey) o;
+			return Objects.equals(serviceJid, that.serviceJid) && Objects.equals(nodeName, that.nodeName);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(serviceJid, nodeName);
+		}
 	}
 
+	private static class CompiledXslt {
+
+		private final NodeConfigSnapshot nodeConfig;
+		private final Templates templates;
+		private final ThreadLocal<Transformer> transformers = new ThreadLocal<>();
+
+		CompiledXslt(NodeConfigSnapshot nodeConfig, Templates templates) {
+			this.nodeConfig = nodeConfig;
+			this.templates = templates;
+		}
+	}
+
+	/**
+	 * Builds Tigase XML elements from SAX events emitted by the transformer.
+	 */
+	private static class ElementBuilder
+			extends DefaultHandler {
+
+		private final ArrayDeque<Element> stack = new ArrayDeque<>();
+		private final ArrayList<Element> elements = new ArrayList<>();
+		private final ArrayList<String[]> prefixes = new ArrayList<>();
+		private final StringBuilder text = new StringBuilder();
+
+		List<Element> getElements() {
+			return elements;
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) {
+			prefixes.add(new String[]{prefix, uri});
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			flushText();
+			Element element = new Element(qName);
+			for (String[] prefix : prefixes) {
+				if (prefix[0].isEmpty()) {
+					element.setXMLNS(prefix[1]);
+				} else {
+					element.setAttribute("xmlns:" + prefix[0], XMLUtils.escape(prefix[1]));
+				}
+			}
+			prefixes.clear();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				String name = attributes.getQName(i);
+				if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+					continue;
+				}
+				element.setAttribute(name, XMLUtils.escape(attributes.getValue(i)));
+			}
+			Element parent = stack.peek();
+			if (parent == null) {
+				elements.add(element);
+			} else {
+				parent.addChild(element);
+			}
+			stack.push(element);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			flushText();
+			stack.pop();
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			// text of a node may be passed in many chunks
+			text.append(ch, start, length);
+		}
+
+		private void flushText() {
+			Element current = stack.peek();
+			if (current != null && text.length() > 0) {
+				current.addCData(XMLUtils.escape(text.toString()));
+			}
+			text.setLength(0);
+		}
+	}
 }
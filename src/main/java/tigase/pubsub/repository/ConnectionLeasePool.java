@@ -0,0 +1,192 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Pool of leases of database connections used by <code>PubSubDAOJDBC</code>.
+ *
+ * Each lease represents a single connection of <code>DataRepository</code> (selected by hash code of the lease) with
+ * all prepared statements of this connection. Lease is taken for the duration of a single call of a DAO method (which
+ * may execute many statements), so no other thread using the same pool executes statements on this connection at the
+ * same time. If there is no free connection, caller waits for one but not longer than the configured timeout.
+ *
+ * Pool keeps statistics of time spent waiting for a connection and of the time for which each connection was leased.
+ */
+public class ConnectionLeasePool {
+
+	private final LinkedBlockingDeque<Lease> available = new LinkedBlockingDeque<>();
+	private final Lease[] leases;
+
+	private final LongAdder taken = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+	private final LongAdder waitTime = new LongAdder();
+
+	private long lastStatisticsTime = System.nanoTime();
+
+	public ConnectionLeasePool(int size) {
+		leases = new Lease[Math.max(1, size)];
+		for (int i = 0; i < leases.length; i++) {
+			leases[i] = new Lease(this, i);
+			available.offer(leases[i]);
+		}
+	}
+
+	public int size() {
+		return leases.length;
+	}
+
+	public int availableCount() {
+		return available.size();
+	}
+
+	/**
+	 * Takes lease of a connection waiting for it if necessary.
+	 *
+	 * @param timeout maximal time to wait (in milliseconds)
+	 *
+	 * @return lease of a connection
+	 *
+	 * @throws RepositoryException if no connection was available before timeout
+	 */
+	public Lease take(long timeout) throws RepositoryException {
+		long start = System.nanoTime();
+		Lease lease = available.poll();
+		if (lease == null) {
+			try {
+				lease = available.poll(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RepositoryException("Interrupted while waiting for a database connection", ex);
+			}
+			if (lease == null) {
+				timeouts.increment();
+				throw new RepositoryException(
+						"Timeout while waiting for a database connection, all " + leases.length + " connections are in use");
+			}
+		}
+		long now = System.nanoTime();
+		long wait = now - start;
+		waitTime.add(wait);
+		maxWaitTime.accumulateAndGet(wait, Math::max);
+		taken.increment();
+		lease.taken(now);
+		return lease;
+	}
+
+	/**
+	 * Returns lease to the pool. Lease must be released exactly once by the thread which has taken it.
+	 */
+	public void release(Lease lease) {
+		if (lease != null && lease.pool == this && lease.released(System.nanoTime())) {
+			available.offerFirst(lease);
+		}
+	}
+
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+		long takenCount = taken.sum();
+		long now = System.nanoTime();
+		long period;
+		synchronized (this) {
+			period = now - lastStatisticsTime;
+			lastStatisticsTime = now;
+		}
+		list.add(compName, prefix + "/connections", leases.length, Level.FINE);
+		list.add(compName, prefix + "/connections in use", leases.length - available.size(), Level.FINE);
+		list.add(compName, prefix + "/leases", takenCount, Level.FINE);
+		list.add(compName, prefix + "/lease timeouts", timeouts.sum(), Level.FINE);
+		list.add(compName, prefix + "/average wait time [ms]",
+				 takenCount == 0 ? 0 : ((float) waitTime.sum()) / takenCount / 1000000, Level.FINE);
+		list.add(compName, prefix + "/max wait time [ms]", ((float) maxWaitTime.getAndSet(0)) / 1000000,
+				 Level.FINE);
+		for (Lease lease : leases) {
+			String connPrefix = prefix + "/connection-" + lease.index;
+			long busy = lease.busyTimeSinceLastCheck(now);
+			list.add(compName, connPrefix + "/leases", lease.leasesCount.get(), Level.FINER);
+			list.add(compName, connPrefix + "/utilisation [%]", period <= 0 ? 0 : (100.0f * busy) / period,
+					 Level.FINER);
+		}
+	}
+
+	/**
+	 * Lease of a single connection. Hash code of the lease is used to select connection from
+	 * <code>DataRepository</code>.
+	 */
+	public static class Lease {
+
+		private final int index;
+		private final ConnectionLeasePool pool;
+		private final AtomicLong leasesCount = new AtomicLong();
+		private final AtomicLong busyTime = new AtomicLong();
+		private long busyTimeReported = 0;
+		private volatile long takenAt = -1;
+
+		private Lease(ConnectionLeasePool pool, int index) {
+			this.pool = pool;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode() {
+			return index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return this == obj;
+		}
+
+		private void taken(long now) {
+			leasesCount.incrementAndGet();
+			takenAt = now;
+		}
+
+		private synchronized boolean released(long now) {
+			long takenAt = this.takenAt;
+			if (takenAt < 0) {
+				return false;
+			}
+			this.takenAt = -1;
+			busyTime.addAndGet(now - takenAt);
+			return true;
+		}
+
+		private synchronized long busyTimeSinceLastCheck(long now) {
+			long busy = busyTime.get();
+			long takenAt = this.takenAt;
+			if (takenAt >= 0) {
+				// include time of the current lease
+				busy += now - takenAt;
+				busyTime.addAndGet(now - takenAt);
+				this.takenAt = now;
+			}
+			long result = busy - busyTimeReported;
+			busyTimeReported = busy;
+			return result;
+		}
+	}
+}
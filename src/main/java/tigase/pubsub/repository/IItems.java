@@ -20,11 +20,16 @@ package tigase.pubsub.repository;
 import tigase.component.exceptions.RepositoryException;
 import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.exceptions.PubSubException;
+import tigase.xml.CData;
 import tigase.xml.Element;
+import tigase.xml.XMLNodeIfc;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Function;
 
 public interface IItems {
 
@@ -40,6 +45,55 @@ public interface IItems {
 
 	public abstract List<ItemMeta> getItemsMeta() throws RepositoryException;
 
+	/**
+	 * Removes items with passed ids.
+	 *
+	 * @return ids of items which existed and were removed
+	 */
+	default String[] deleteItems(String[] ids) throws RepositoryException {
+		List<String> removed = new ArrayList<>(ids.length);
+		for (String id : ids) {
+			if (getItem(id) != null) {
+				deleteItem(id);
+				removed.add(id);
+			}
+		}
+		return removed.toArray(new String[removed.size()]);
+	}
+
+	/**
+	 * Removes all items of the node.
+	 *
+	 * @return ids of removed items
+	 */
+	default String[] purgeItems() throws RepositoryException {
+		String[] ids = getItemsIds(CollectionItemsOrdering.byUpdateDate);
+		if (ids == null) {
+			return new String[0];
+		}
+		for (String id : ids) {
+			deleteItem(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Removes items of the node, keeping only <code>maxItems</code> newest items in the passed order.
+	 *
+	 * @return ids of removed items
+	 */
+	default String[] trimItems(int maxItems, CollectionItemsOrdering order) throws RepositoryException {
+		String[] ids = getItemsIds(order);
+		if (ids == null || ids.length <= maxItems) {
+			return new String[0];
+		}
+		String[] removed = Arrays.copyOf(ids, ids.length - maxItems);
+		for (String id : removed) {
+			deleteItem(id);
+		}
+		return removed;
+	}
+
 	public abstract void writeItem(String id, String publisher, Element item, String uuid)
 			throws RepositoryException, PubSubException;
 
@@ -57,6 +111,14 @@ public interface IItems {
 
 		Element getItem();
 
+		/**
+		 * Returns payload of the item in a form which may be added to the outgoing stanza. It may be a stored, not
+		 * parsed payload, so it should not be inspected or modified.
+		 */
+		default XMLNodeIfc getItemNode() {
+			return getItem();
+		}
+
 	}
 
 	public static class ItemBase {
@@ -103,6 +165,60 @@ public interface IItems {
 
 	}
 
+	/**
+	 * Item with payload in a serialized form, as it was loaded from the repository. Payload is parsed on the first
+	 * call to <code>getItem()</code>, so items which are only sent to the client are never parsed.
+	 */
+	public static class RawItem extends ItemBase implements IItem {
+
+		private final String data;
+		private final Function<String, Element> parser;
+		private volatile Element item;
+
+		public RawItem(String node, String id, String uuid, String data, Function<String, Element> parser) {
+			super(node, id, uuid);
+			this.data = data;
+			this.parser = parser;
+		}
+
+		@Override
+		public Element getItem() {
+			Element item = this.item;
+			if (item == null && data != null) {
+				synchronized (this) {
+					item = this.item;
+					if (item == null) {
+						item = parser.apply(data);
+						this.item = item;
+					}
+				}
+			}
+			return item;
+		}
+
+		@Override
+		public XMLNodeIfc getItemNode() {
+			Element item = this.item;
+			if (item != null) {
+				// it was parsed, so it might have been modified
+				return item;
+			}
+			return data == null ? null : new CData(data);
+		}
+
+		public boolean isParsed() {
+			return item != null;
+		}
+
+		/**
+		 * Returns new instance of the item sharing serialized payload with this instance.
+		 */
+		public RawItem copy() {
+			return new RawItem(getNode(), getId(), getUUID(), data, parser);
+		}
+
+	}
+
 	public static class ItemMeta extends ItemBase {
 
 		private final Date creationDate;
@@ -130,6 +246,12 @@ public interface IItems {
 
 		void itemDeleted(BareJID serviceJID, String node, String id);
 
+		default void itemsDeleted(BareJID serviceJID, String node, String[] ids) {
+			for (String id : ids) {
+				itemDeleted(serviceJID, node, id);
+			}
+		}
+
 		boolean validateItem(BareJID serviceJID, String node, String id, String publisher, Element item) throws
 																										 PubSubException;
 
@@ -18,6 +18,7 @@
 package tigase.pubsub.repository;
 
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.xmpp.jid.BareJID;
 
 import java.util.Date;
@@ -31,8 +32,20 @@ public interface INodeMeta<T> {
 
 	AbstractNodeConfig getNodeConfig();
 
+	default NodeConfigSnapshot getNodeConfigSnapshot() {
+		return NodeConfigSnapshot.of(getNodeConfig());
+	}
+
 	Date getCreationTime();
 
 	BareJID getCreator();
 
+	/**
+	 * Returns version of the node stored in the database, which is increased on every versioned write of the node
+	 * changes. Returns <code>0</code> if versions are not supported by the repository.
+	 */
+	default long getVersion() {
+		return 0;
+	}
+
 }
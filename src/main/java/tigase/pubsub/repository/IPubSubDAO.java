@@ -25,16 +25,20 @@ import tigase.db.DataSourceAware;
 import tigase.pubsub.AbstractNodeConfig;
 import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.Subscription;
 import tigase.pubsub.modules.mam.PubSubQuery;
 import tigase.pubsub.modules.mam.Query;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.impl.roster.RosterElement;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.mam.MAMRepository;
 import tigase.xmpp.rsm.RSM;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -61,6 +65,12 @@ public interface IPubSubDAO<T, S extends DataSource, Q extends PubSubQuery>
 	
 	void destroy();
 
+	/**
+	 * Adds statistics of this DAO (ie. usage of database connections) to the list.
+	 */
+	default void getStatistics(String compName, StatisticsList list) {
+	}
+
 	List<BareJID> getServices(BareJID domain, Boolean isPublic) throws RepositoryException;
 
 	String[] getAllNodesList(BareJID serviceJid) throws RepositoryException;
@@ -78,6 +88,16 @@ public interface IPubSubDAO<T, S extends DataSource, Q extends PubSubQuery>
 	List<IItems.ItemMeta> getItemsMeta(BareJID serviceJid, T nodeId, String nodeName) throws RepositoryException;
 
 	Map<BareJID, UsersAffiliation> getNodeAffiliations(BareJID serviceJid, T nodeId) throws RepositoryException;
+
+	/**
+	 * Returns affiliation of a single JID to a node (or <code>null</code> if there is no affiliation) without loading
+	 * all affiliations of the node.
+	 */
+	default UsersAffiliation getNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, BareJID jid)
+			throws RepositoryException {
+		Map<String, UsersAffiliation> affiliations = getUserAffiliations(serviceJid, jid);
+		return affiliations == null ? null : affiliations.get(nodeName);
+	}
 	
 	INodeMeta<T> getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException;
 
@@ -87,6 +107,16 @@ public interface IPubSubDAO<T, S extends DataSource, Q extends PubSubQuery>
 
 	Map<BareJID, UsersSubscription> getNodeSubscriptions(BareJID serviceJid, T nodeId) throws RepositoryException;
 
+	/**
+	 * Returns subscription of a single JID to a node (or <code>null</code> if JID is not subscribed) without loading
+	 * all subscriptions of the node.
+	 */
+	default UsersSubscription getNodeSubscription(BareJID serviceJid, T nodeId, String nodeName, BareJID jid)
+			throws RepositoryException {
+		Map<String, UsersSubscription> subscriptions = getUserSubscriptions(serviceJid, jid);
+		return subscriptions == null ? null : subscriptions.get(nodeName);
+	}
+
 	Map<String, UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID jid) throws RepositoryException;
 
 	Map<BareJID, RosterElement> getUserRoster(BareJID owner) throws RepositoryException;
@@ -107,9 +137,66 @@ public interface IPubSubDAO<T, S extends DataSource, Q extends PubSubQuery>
 		return newQuery();
 	}
 
+	/**
+	 * Removes items with passed ids from the node.
+	 * <br/>
+	 * Default implementation checks and removes each item separately.
+	 *
+	 * @return ids of items which existed and were removed
+	 */
+	default String[] deleteItems(BareJID serviceJid, T nodeId, String[] ids) throws RepositoryException {
+		List<String> removed = new ArrayList<>(ids.length);
+		for (String id : ids) {
+			if (getItem(serviceJid, nodeId, id) != null) {
+				deleteItem(serviceJid, nodeId, id);
+				removed.add(id);
+			}
+		}
+		return removed.toArray(new String[removed.size()]);
+	}
+
+	/**
+	 * Removes all items of the node.
+	 * <br/>
+	 * Default implementation removes each item separately.
+	 *
+	 * @return ids of removed items
+	 */
+	default String[] purgeItems(BareJID serviceJid, T nodeId) throws RepositoryException {
+		String[] ids = getItemsIds(serviceJid, nodeId, CollectionItemsOrdering.byUpdateDate);
+		if (ids == null) {
+			return new String[0];
+		}
+		for (String id : ids) {
+			deleteItem(serviceJid, nodeId, id);
+		}
+		return ids;
+	}
+
 	void queryItems(Q query, T nodeId, MAMRepository.ItemHandler<Q, MAMRepository.Item> itemHandler)
 			throws RepositoryException, ComponentException;
 	
+	/**
+	 * Removes items of the node, keeping only <code>maxItems</code> newest items in the passed order.
+	 * <br/>
+	 * Default implementation retrieves ids of all items and removes each surplus item separately.
+	 *
+	 * @return ids of removed items
+	 */
+	default String[] trimItems(BareJID serviceJid, T nodeId, int maxItems, CollectionItemsOrdering order)
+			throws RepositoryException {
+		String[] ids = getItemsIds(serviceJid, nodeId, order);
+		if (ids == null || ids.length <= maxItems) {
+			return new String[0];
+		}
+		String[] removed = Arrays.copyOf(ids, ids.length - maxItems);
+		for (String id : removed) {
+			deleteItem(serviceJid, nodeId, id);
+		}
+		return removed;
+	}
+
+	
 	void removeNodeSubscription(BareJID serviceJid, T nodeId, BareJID jid) throws RepositoryException;
 
 	void updateNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, UsersAffiliation userAffiliation)
@@ -121,6 +208,45 @@ public interface IPubSubDAO<T, S extends DataSource, Q extends PubSubQuery>
 	void updateNodeSubscription(BareJID serviceJid, T nodeId, String nodeName, UsersSubscription userSubscription)
 			throws RepositoryException;
 
+	/**
+	 * Increases version of the node stored in the database and returns the new version. Returns <code>0</code> if
+	 * versions of nodes are not supported.
+	 */
+	default long incrementNodeVersion(BareJID serviceJid, T nodeId) throws RepositoryException {
+		return 0;
+	}
+
+	/**
+	 * Writes changes of configuration, affiliations and subscriptions of many nodes of a single service.
+	 * Subscriptions set to <code>none</code> are removed. Version of nodes with versioned changes is increased
+	 * before their changes are written and set in passed <code>NodeChanges</code>. Changes are not written
+	 * atomically.
+	 * <br/>
+	 * Default implementation writes each change separately.
+	 */
+	default void updateNodesChanges(BareJID serviceJid, List<NodeChanges<T>> changes) throws RepositoryException {
+		for (NodeChanges<T> nodeChanges : changes) {
+			if (nodeChanges.isVersioned()) {
+				nodeChanges.setVersion(incrementNodeVersion(serviceJid, nodeChanges.getNodeId()));
+			}
+			if (nodeChanges.getConfig() != null) {
+				updateNodeConfig(serviceJid, nodeChanges.getNodeId(), nodeChanges.getConfig(),
+								 nodeChanges.getCollectionId());
+			}
+			for (UsersAffiliation affiliation : nodeChanges.getAffiliations()) {
+				updateNodeAffiliation(serviceJid, nodeChanges.getNodeId(), nodeChanges.getNodeName(), affiliation);
+			}
+			for (UsersSubscription subscription : nodeChanges.getSubscriptions()) {
+				if (subscription.getSubscription() == Subscription.none) {
+					removeNodeSubscription(serviceJid, nodeChanges.getNodeId(), subscription.getJid());
+				} else {
+					updateNodeSubscription(serviceJid, nodeChanges.getNodeId(), nodeChanges.getNodeName(),
+										   subscription);
+				}
+			}
+		}
+	}
+
 	void writeItem(BareJID serviceJid, T nodeId, long timeInMilis, final String id, final String publisher,
 				   final Element item, final String uuid) throws RepositoryException;
 
@@ -20,6 +20,7 @@ package tigase.pubsub.repository;
 import tigase.component.exceptions.ComponentException;
 import tigase.component.exceptions.RepositoryException;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.exceptions.PubSubException;
 import tigase.pubsub.modules.mam.PubSubQuery;
@@ -32,10 +33,7 @@ import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMRepository;
 import tigase.xmpp.rsm.RSM;
 
-import java.util.Date;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Interface description
@@ -65,6 +63,32 @@ public interface IPubSubRepository
 
 	AbstractNodeConfig getNodeConfig(BareJID serviceJid, String nodeName) throws RepositoryException;
 
+	/**
+	 * Returns immutable configuration of a node, which should be used instead of
+	 * <code>getNodeConfig(BareJID, String)</code> if configuration is not going to be modified.
+	 */
+	default NodeConfigSnapshot getNodeConfigSnapshot(BareJID serviceJid, String nodeName) throws RepositoryException {
+		return NodeConfigSnapshot.of(getNodeConfig(serviceJid, nodeName));
+	}
+
+	/**
+	 * Returns names of collections containing a node, starting with its parent and ending with a root collection.
+	 */
+	default String[] getNodeAncestors(BareJID serviceJid, String nodeName) throws RepositoryException {
+		List<String> ancestors = new ArrayList<>();
+		NodeConfigSnapshot nodeConfig = getNodeConfigSnapshot(serviceJid, nodeName);
+		String collection = nodeConfig == null ? null : nodeConfig.getCollection();
+		while (collection != null && !collection.isEmpty() && !ancestors.contains(collection)) {
+			nodeConfig = getNodeConfigSnapshot(serviceJid, collection);
+			if (nodeConfig == null) {
+				break;
+			}
+			ancestors.add(collection);
+			collection = nodeConfig.getCollection();
+		}
+		return ancestors.toArray(new String[0]);
+	}
+
 	IItems getNodeItems(BareJID serviceJid, String nodeName) throws RepositoryException;
 	
 	List<IItems.IItem> getNodeItems(BareJID serviceJid, String nodeName, JID requester, Date after, Date before, RSM rsm)
@@ -74,6 +98,14 @@ public interface IPubSubRepository
 
 	ISubscriptions getNodeSubscriptions(BareJID serviceJid, String nodeName) throws RepositoryException;
 
+	/**
+	 * Returns JIDs of subscribers of a node which should receive notifications (subscribed and not outcast) or
+	 * <code>null</code> if repository does not keep index of them.
+	 */
+	default Collection<JID> getActiveSubscribers(BareJID serviceJid, String nodeName) throws RepositoryException {
+		return null;
+	}
+
 	long getNodesCount(BareJID serviceJid) throws RepositoryException;
 
 	IPubSubDAO getPubSubDAO();
@@ -84,6 +116,28 @@ public interface IPubSubRepository
 		
 	Map<BareJID, RosterElement> getUserRoster(BareJID owner) throws RepositoryException;
 
+	/**
+	 * Returns JIDs from the roster of the user which belong to the provided roster group.
+	 */
+	default Set<BareJID> getUserRosterGroup(BareJID owner, String group) throws RepositoryException {
+		Set<BareJID> result = new HashSet<>();
+		for (Map.Entry<BareJID, RosterElement> e : getUserRoster(owner).entrySet()) {
+			String[] groups = e.getValue().getGroups();
+			if (groups != null && Arrays.asList(groups).contains(group)) {
+				result.add(e.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns roster of the user read from the user repository, bypassing (and not updating) a cache. Used by access
+	 * checks, so that access is never granted based on an outdated copy of the roster.
+	 */
+	default Map<BareJID, RosterElement> readUserRoster(BareJID owner) throws RepositoryException {
+		return getUserRoster(owner);
+	}
+
 	Map<String, UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid) throws RepositoryException;
 
 	void init();
@@ -117,6 +171,12 @@ public interface IPubSubRepository
 
 	}
 
+	interface RepositoryLookup<K, V> {
+
+		V get(K key) throws RepositoryException;
+
+	}
+
 	interface IListener extends IItems.IListnener {
 
 		void serviceRemoved(BareJID serviceJID);
@@ -0,0 +1,150 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository;
+
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Changes of configuration, affiliations and subscriptions of a single node waiting to be written to the database.
+ *
+ * Only the latest change for each JID is kept. Added affiliations and subscriptions are copied, so later
+ * modifications of cached instances do not affect changes waiting for write. If changes are versioned, version of the
+ * node is increased when they are written and the new version is available from {@link #getVersion()}.
+ */
+public class NodeChanges<T> {
+
+	private final Map<BareJID, UsersAffiliation> affiliations = new LinkedHashMap<>();
+	private final T nodeId;
+	private final String nodeName;
+	private final Map<BareJID, UsersSubscription> subscriptions = new LinkedHashMap<>();
+	private T collectionId;
+	private String config;
+	private int failures = 0;
+	private long version = 0;
+	private boolean versioned = false;
+
+	public NodeChanges(T nodeId, String nodeName) {
+		this.nodeId = nodeId;
+		this.nodeName = nodeName;
+	}
+
+	public T getNodeId() {
+		return nodeId;
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	/**
+	 * Returns serialized configuration of the node or <code>null</code> if it was not changed.
+	 */
+	public String getConfig() {
+		return config;
+	}
+
+	public T getCollectionId() {
+		return collectionId;
+	}
+
+	public void configChanged(String config, T collectionId) {
+		this.config = config;
+		this.collectionId = collectionId;
+	}
+
+	public Collection<UsersAffiliation> getAffiliations() {
+		return affiliations.values();
+	}
+
+	public Collection<UsersSubscription> getSubscriptions() {
+		return subscriptions.values();
+	}
+
+	public void affiliationChanged(UsersAffiliation affiliation) {
+		affiliations.put(affiliation.getJid(), new UsersAffiliation(affiliation.getJid(), affiliation.getAffiliation()));
+	}
+
+	public void subscriptionChanged(UsersSubscription subscription) {
+		subscriptions.put(subscription.getJid(),
+						  new UsersSubscription(subscription.getJid(), subscription.getSubid(),
+												subscription.getSubscription()));
+	}
+
+	public boolean isVersioned() {
+		return versioned;
+	}
+
+	public void setVersioned(boolean versioned) {
+		this.versioned = versioned;
+	}
+
+	/**
+	 * Returns version of the node after changes were written or <code>0</code> if changes are not versioned or
+	 * versions are not supported by the repository.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Adds changes from older instance, which were not overridden by changes in this instance.
+	 */
+	public void mergeOlder(NodeChanges<T> older) {
+		if (config == null && older.config != null) {
+			config = older.config;
+			collectionId = older.collectionId;
+		}
+		for (Map.Entry<BareJID, UsersAffiliation> e : older.affiliations.entrySet()) {
+			affiliations.putIfAbsent(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<BareJID, UsersSubscription> e : older.subscriptions.entrySet()) {
+			subscriptions.putIfAbsent(e.getKey(), e.getValue());
+		}
+		failures = Math.max(failures, older.failures);
+		versioned |= older.versioned;
+	}
+
+	public int failed() {
+		return ++failures;
+	}
+
+	public boolean isEmpty() {
+		return config == null && affiliations.isEmpty() && subscriptions.isEmpty();
+	}
+
+	public int size() {
+		return (config == null ? 0 : 1) + affiliations.size() + subscriptions.size();
+	}
+
+	@Override
+	public String toString() {
+		return "NodeChanges{nodeId=" + nodeId + ", nodeName=" + nodeName + ", configChanged=" + (config != null) +
+				", affiliations=" + affiliations.values() + ", subscriptions=" + subscriptions.values() + ", version=" +
+				version + "}";
+	}
+}
@@ -25,12 +25,16 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -42,6 +46,11 @@ import java.util.stream.Stream;
 public class PresenceCollectorRepository {
 	
 	protected final ConcurrentMap<BareJID, ServiceEntry> entriesByService = new ConcurrentHashMap<>();
+	// available resources of all services ordered by the time when they were seen for the last time
+	protected final ConcurrentSkipListSet<UserResourceEntry> entriesByLastSeen = new ConcurrentSkipListSet<>(
+			Comparator.comparingLong(UserResourceEntry::getLastSeen).thenComparingLong(entry -> entry.sequence));
+	private final AtomicLong entriesSequence = new AtomicLong();
+	private static final UserResourceEntry[] NO_ENTRIES = new UserResourceEntry[0];
 
 	@ConfigField(desc = "Maximum amount of last available user resources kept in cache")
 	private int maximumNoOfResources = 20;
@@ -74,6 +83,18 @@ public class PresenceCollectorRepository {
 		return resultStream.map(UserResourceEntry::getJid);
 	}
 
+	/**
+	 * Returns available resources which announced one of passed caps nodes using index of resources by caps node,
+	 * so there is no need to check all available resources of the service.
+	 */
+	public Stream<JID> getAllAvailableJidsWithCapsNodes(final BareJID serviceJid, final Set<String> capsNodes) {
+		ServiceEntry entriesByUser = entriesByService.get(serviceJid);
+		if (entriesByUser == null || capsNodes.isEmpty()) {
+			return Stream.empty();
+		}
+		return entriesByUser.userResourceEntriesWithCapsNodes(capsNodes).map(UserResourceEntry::getJid);
+	}
+
 	public List<JID> getAllAvailableResources(final BareJID serviceJid, final BareJID bareJid) {
 		ServiceEntry entriesByUser = entriesByService.get(serviceJid);
 		if (entriesByUser == null) {
@@ -132,14 +153,53 @@ public class PresenceCollectorRepository {
 				.flatMap(UserEntry::userResourceEntriesStream);
 	}
 
+	/**
+	 * Returns resources not seen since passed timestamp, starting from the oldest one. Resources removed by
+	 * <code>pollExpiredUserResourceEntries()</code> and not marked as seen since then are not returned.
+	 */
 	public Stream<UserResourceEntry> expiredUserResourceEntriesStream(long expirationTimestamp) {
-		return userResourceEntryStream().filter(
-				userResourceEntry -> userResourceEntry.isOlderThan(expirationTimestamp));
+		List<UserResourceEntry> result = new ArrayList<>();
+		for (UserResourceEntry entry : entriesByLastSeen) {
+			if (!entry.isOlderThan(expirationTimestamp)) {
+				break;
+			}
+			result.add(entry);
+		}
+		return result.stream();
+	}
+
+	/**
+	 * Removes up to <code>limit</code> of the oldest resources not seen since passed timestamp from the index of
+	 * resources by last seen time and returns them. Resources stay available, but will not be returned again until
+	 * they are marked as seen (which puts them back to the index), so each of them is checked only once.
+	 */
+	public List<UserResourceEntry> pollExpiredUserResourceEntries(long expirationTimestamp, int limit) {
+		return pollExpiredUserResourceEntries(expirationTimestamp, limit, entry -> true);
+	}
+
+	/**
+	 * Works as <code>pollExpiredUserResourceEntries(long, int)</code>, but resources not matching the filter are
+	 * skipped and left in the index with their last seen time unchanged.
+	 */
+	public List<UserResourceEntry> pollExpiredUserResourceEntries(long expirationTimestamp, int limit,
+																  Predicate<UserResourceEntry> filter) {
+		List<UserResourceEntry> result = new ArrayList<>(Math.min(limit, 100));
+		for (UserResourceEntry entry : entriesByLastSeen) {
+			if (result.size() >= limit || !entry.isOlderThan(expirationTimestamp)) {
+				break;
+			}
+			if (filter.test(entry) && entriesByLastSeen.remove(entry)) {
+				result.add(entry);
+			}
+		}
+		return result;
 	}
 
 	public class ServiceEntry {
 		private final BareJID serviceJid;
 		private final ConcurrentHashMap<BareJID, UserEntry> usersEntries = new ConcurrentHashMap<>();
+		// available resources by caps node, maintained by UserEntry
+		private final ConcurrentHashMap<String, Set<UserResourceEntry>> entriesByCaps = new ConcurrentHashMap<>();
 
 		public ServiceEntry(BareJID serviceJid) {
 			this.serviceJid = serviceJid;
@@ -150,8 +210,8 @@ public class PresenceCollectorRepository {
 		}
 
 		public String add(JID jid, String caps) {
-			return synchronizeOnUserJID(jid.getBareJID(), () -> usersEntries.computeIfAbsent(jid.getBareJID(), k -> new UserEntry(serviceJid, k))
-					.add(jid.getResource(), caps));
+			return synchronizeOnUserJID(jid.getBareJID(), () -> usersEntries.computeIfAbsent(jid.getBareJID(), k -> new UserEntry(this, k))
+					.add(jid, caps));
 		}
 
 		public boolean remove(JID jid) {
@@ -162,7 +222,8 @@ public class PresenceCollectorRepository {
 				}
 				if (jid.getResource() == null) {
 					boolean result = !entries.isEmpty();
-					usersEntries.clear();
+					usersEntries.remove(jid.getBareJID());
+					entries.clear();
 					return result;
 				} else {
 					boolean result = entries.remove(jid.getResource());
@@ -186,6 +247,32 @@ public class PresenceCollectorRepository {
 			return usersEntries.values().stream();
 		}
 
+		public Stream<UserResourceEntry> userResourceEntriesWithCapsNodes(Set<String> capsNodes) {
+			// set of caps nodes with a feature may be bigger than the number of caps nodes in use
+			if (capsNodes.size() > entriesByCaps.size()) {
+				return entriesByCaps.entrySet()
+						.stream()
+						.filter(e -> capsNodes.contains(e.getKey()))
+						.flatMap(e -> e.getValue().stream());
+			}
+			return capsNodes.stream().map(entriesByCaps::get).filter(entries -> entries != null).flatMap(Set::stream);
+		}
+
+		protected void entryAdded(UserResourceEntry entry) {
+			if (entry.caps != null) {
+				entriesByCaps.computeIfAbsent(entry.caps, caps -> ConcurrentHashMap.newKeySet()).add(entry);
+			}
+		}
+
+		protected void entryRemoved(UserResourceEntry entry) {
+			if (entry.caps != null) {
+				entriesByCaps.computeIfPresent(entry.caps, (caps, entries) -> {
+					entries.remove(entry);
+					return entries.isEmpty() ? null : entries;
+				});
+			}
+		}
+
 		protected <T> T synchronizeOnUserJID(BareJID jid, Supplier<T> run) {
 			synchronized (JID_LOCKS[Math.abs(jid.hashCode()) % JID_LOCKS.length]) {
 				return run.get();
@@ -196,11 +283,20 @@ public class PresenceCollectorRepository {
 	public class UserEntry {
 
 		private final BareJID serviceJid;
+		private final ServiceEntry serviceEntry;
 		private final BareJID jid;
-		private final CopyOnWriteArrayList<UserResourceEntry> entries = new CopyOnWriteArrayList<>();
+		// replaced on every change (under lock), so it may be read without locking
+		private volatile UserResourceEntry[] entries = NO_ENTRIES;
 
 		public UserEntry(BareJID serviceJid, BareJID jid)  {
 			this.serviceJid = serviceJid;
+			this.serviceEntry = null;
+			this.jid = jid;
+		}
+
+		public UserEntry(ServiceEntry serviceEntry, BareJID jid)  {
+			this.serviceJid = serviceEntry.getServiceJid();
+			this.serviceEntry = serviceEntry;
 			this.jid = jid;
 		}
 
@@ -212,43 +308,92 @@ public class PresenceCollectorRepository {
 			return serviceJid;
 		}
 
-		public synchronized String add(String resource, String caps) {
+		public String add(String resource, String caps) {
+			return add(JID.jidInstanceNS(jid, resource), caps);
+		}
+
+		public synchronized String add(JID resourceJid, String caps) {
+			String resource = resourceJid.getResource();
 			String oldCaps = null;
-			for (int i=0; i<entries.size(); i++) {
-				UserResourceEntry e = entries.get(i);
+			UserResourceEntry[] entries = this.entries;
+			for (int i=0; i<entries.length; i++) {
+				UserResourceEntry e = entries[i];
 				if (e.matches(resource)) {
-					oldCaps = entries.remove(i).caps;
+					oldCaps = e.caps;
+					entries = without(entries, i);
+					entryRemoved(e);
 					break;
 				}
 			}
 			// limit number of kept last available resources
-			while (entries.size() >= maximumNoOfResources) {
-				// we are doing this in a synchronized block, so we are adding only one resource at once
-				entries.remove(0);
+			int removed = Math.max(0, entries.length - maximumNoOfResources + 1);
+			for (int i=0; i<removed; i++) {
+				entryRemoved(entries[i]);
+			}
+			// JID is reused only if it shares bare JID with other resources of the user
+			UserResourceEntry entry = resourceJid.getBareJID() == jid
+									  ? new UserResourceEntry(this, resourceJid, caps == null ? null : caps.intern())
+									  : new UserResourceEntry(this, resource, caps == null ? null : caps.intern());
+			UserResourceEntry[] newEntries = Arrays.copyOfRange(entries, removed, entries.length + 1);
+			newEntries[newEntries.length - 1] = entry;
+			this.entries = newEntries;
+			entriesByLastSeen.add(entry);
+			if (serviceEntry != null) {
+				serviceEntry.entryAdded(entry);
 			}
-			entries.add(new UserResourceEntry(this, resource, caps == null ? null : caps.intern()));
 			return oldCaps;
 		}
 
 		public synchronized boolean remove(String resource) {
-			for (int i=0; i<entries.size(); i++) {
-				if (entries.get(i).getResource().equals(resource)) {
-					entries.remove(i);
+			UserResourceEntry[] entries = this.entries;
+			for (int i=0; i<entries.length; i++) {
+				if (entries[i].getResource().equals(resource)) {
+					this.entries = without(entries, i);
+					entryRemoved(entries[i]);
 					return true;
 				}
 			}
 			return false;
 		}
 
+		public synchronized void clear() {
+			UserResourceEntry[] entries = this.entries;
+			this.entries = NO_ENTRIES;
+			for (UserResourceEntry entry : entries) {
+				entryRemoved(entry);
+			}
+		}
+
 		public synchronized void markAsSeen(UserResourceEntry entry) {
-			remove(entry.resource);
-			entries.add(entry);
+			UserResourceEntry[] entries = this.entries;
+			int idx = indexOf(entries, entry);
+			// entry could be removed or replaced by a new presence in the meantime
+			if (idx < 0) {
+				return;
+			}
+			// position in the index depends on last seen time, so entry needs to be removed before it is changed
+			entriesByLastSeen.remove(entry);
+			entry.lastSeen = System.currentTimeMillis();
+			entry.sequence = entriesSequence.incrementAndGet();
+			UserResourceEntry[] newEntries = without(entries, idx);
+			newEntries = Arrays.copyOf(newEntries, newEntries.length + 1);
+			newEntries[newEntries.length - 1] = entry;
+			this.entries = newEntries;
+			entriesByLastSeen.add(entry);
+		}
+
+		private void entryRemoved(UserResourceEntry entry) {
+			entriesByLastSeen.remove(entry);
+			if (serviceEntry != null) {
+				serviceEntry.entryRemoved(entry);
+			}
 		}
 
 		public List<String> getResources() {
-			List<String> result = new ArrayList<>(entries.size());
+			UserResourceEntry[] entries = this.entries;
+			List<String> result = new ArrayList<>(entries.length);
 			for (UserResourceEntry e : entries) {
-				result.add(e.resource);
+				result.add(e.getResource());
 			}
 			return result;
 		}
@@ -265,31 +410,56 @@ public class PresenceCollectorRepository {
 		}
 
 		public Stream<UserResourceEntry> getEntriesOlderThen(long timestamp) {
-			return entries.stream().filter(e -> e.isOlderThan(timestamp));
+			return userResourceEntriesStream().filter(e -> e.isOlderThan(timestamp));
 		}
 
 		public boolean isEmpty() {
-			return entries.isEmpty();
+			return entries.length == 0;
 		}
 
 		public int size() {
-			return entries.size();
+			return entries.length;
 		}
 
 		public Stream<UserResourceEntry> userResourceEntriesStream() {
-			return entries.stream();
+			return Arrays.stream(entries);
+		}
+
+		private int indexOf(UserResourceEntry[] entries, UserResourceEntry entry) {
+			for (int i=0; i<entries.length; i++) {
+				if (entries[i] == entry) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private UserResourceEntry[] without(UserResourceEntry[] entries, int idx) {
+			if (entries.length == 1) {
+				return NO_ENTRIES;
+			}
+			UserResourceEntry[] result = new UserResourceEntry[entries.length - 1];
+			System.arraycopy(entries, 0, result, 0, idx);
+			System.arraycopy(entries, idx + 1, result, idx, entries.length - idx - 1);
+			return result;
 		}
 	}
 
 	public class UserResourceEntry {
 		private final UserEntry entries;
-		private final String resource;
+		// resource is kept only as a part of JID, which is created once and reused for each notification
+		private final JID jid;
 		private final String caps;
-		private long lastSeen = System.currentTimeMillis();
+		private volatile long lastSeen = System.currentTimeMillis();
+		private volatile long sequence = entriesSequence.incrementAndGet();
 
 		public UserResourceEntry(UserEntry entries, String resource, String caps) {
+			this(entries, JID.jidInstanceNS(entries.getJid(), resource), caps);
+		}
+
+		protected UserResourceEntry(UserEntry entries, JID jid, String caps) {
 			this.entries = entries;
-			this.resource = resource;
+			this.jid = jid;
 			this.caps = caps;
 		}
 
@@ -298,11 +468,11 @@ public class PresenceCollectorRepository {
 		}
 
 		public JID getJid() {
-			return JID.jidInstanceNS(entries.getJid(), resource);
+			return jid;
 		}
 
 		public String getResource() {
-			return resource;
+			return jid.getResource();
 		}
 
 		public boolean containsCapsNode(Predicate<String> predicate) {
@@ -319,9 +489,9 @@ public class PresenceCollectorRepository {
 
 		protected boolean matches(String resource) {
 			if (resource == null) {
-				return this.resource == null;
+				return jid.getResource() == null;
 			} else {
-				return resource.equals(this.resource);
+				return resource.equals(jid.getResource());
 			}
 		}
 
@@ -330,7 +500,6 @@ public class PresenceCollectorRepository {
 		}
 
 		public void markAsSeen() {
-			lastSeen = System.currentTimeMillis();
 			entries.markAsSeen(this);
 		}
 	}
@@ -29,20 +29,22 @@ import tigase.pubsub.modules.mam.ExtendedQueryImpl;
 import tigase.pubsub.repository.stateless.NodeMeta;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.pubsub.utils.Cache;
+import tigase.pubsub.utils.SegmentedLRUCache;
+import tigase.stats.StatisticsList;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMRepository;
-import tigase.xmpp.mam.util.MAMUtil;
-import tigase.xmpp.mam.util.Range;
 import tigase.xmpp.rsm.RSM;
 
 import java.sql.*;
 import java.util.Date;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.logging.Level;
 
 @Repository.Meta(supportedUris = {"jdbc:[^:]+:.*"})
@@ -58,9 +60,13 @@ public class PubSubDAOJDBC
 	private static final String GET_SERVICES_QUERY = "{ call TigPubSubGetServices(?,?) }";
 	private static final String GET_NODE_ID_QUERY = "{ call TigPubSubGetNodeId(?, ?) }";
 	private static final String GET_NODE_META_QUERY = "{ call TigPubSubGetNodeMeta(?, ?) }";
+	private static final String INCREMENT_NODE_VERSION_QUERY = "{ call TigPubSubIncrementNodeVersion(?) }";
 	private static final String GET_ITEM_QUERY = "{ call TigPubSubGetItem(?, ?) }";
-	private static final String WRITE_ITEM_QUERY = "{ call TigPubSubWriteItem(?, ?, ?, ?, ?, ?) }";
+	private static final String UPSERT_ITEM_QUERY = "{ call TigPubSubUpsertItem(?, ?, ?, ?, ?, ?, ?) }";
 	private static final String DELETE_ITEM_QUERY = "{ call TigPubSubDeleteItem(?, ?) }";
+	private static final String TRIM_ITEMS_QUERY = "{ call TigPubSubTrimItems(?, ?, ?) }";
+	private static final String PURGE_ITEMS_QUERY = "{ call TigPubSubPurgeItems(?) }";
+	private static final String DELETE_ITEMS_QUERY = "{ call TigPubSubDeleteItems(?, ?) }";
 	private static final String GET_NODE_ITEM_IDS_QUERY = "{ call TigPubSubGetNodeItemsIds(?,?) }";
 	private static final String GET_NODE_ITEM_IDS_SINCE_QUERY = "{ call TigPubSubGetNodeItemsIdsSince(?,?,?) }";
 	private static final String GET_NODE_ITEMS_META_QUERY = "{ call TigPubSubGetNodeItemsMeta(?) }";
@@ -72,6 +78,8 @@ public class PubSubDAOJDBC
 	private static final String SET_NODE_AFFILIATION_QUERY = "{ call TigPubSubSetNodeAffiliation(?, ?, ?) }";
 	private static final String GET_NODE_AFFILIATIONS_QUERY = "{ call TigPubSubGetNodeAffiliations(?) }";
 	private static final String GET_NODE_SUBSCRIPTIONS_QUERY = "{ call TigPubSubGetNodeSubscriptions(?) }";
+	private static final String GET_NODE_AFFILIATION_QUERY = "{ call TigPubSubGetNodeAffiliation(?, ?) }";
+	private static final String GET_NODE_SUBSCRIPTION_QUERY = "{ call TigPubSubGetNodeSubscription(?, ?) }";
 	private static final String SET_NODE_SUBSCRIPTION_QUERY = "{ call TigPubSubSetNodeSubscription(?, ?, ?, ?) }";
 	private static final String DELETE_NODE_SUBSCRIPTIONS_QUERY = "{ call TigPubSubDeleteNodeSubscription(?, ?) }";
 	private static final String GET_USER_AFFILIATIONS_QUERY = "{ call TigPubSubGetUserAffiliations(?, ?) }";
@@ -80,6 +88,7 @@ public class PubSubDAOJDBC
 	private static final String COUNT_NODES_ITEMS_QUERY = "{ call TigPubSubQueryItemsCount(?,?,?,?) }";
 	private static final String GET_NODES_ITEMS_QUERY = "{ call TigPubSubQueryItems(?,?,?,?,?,?) }";
 	private static final String GET_NODES_ITEMS_POSITION_QUERY = "{ call TigPubSubQueryItemPosition(?,?,?,?,?,?) }";
+	private static final String GET_NODES_ITEMS_PAGE_QUERY = "{ call TigPubSubQueryItemsPage(?,?,?,?,?,?,?,?) }";
 
 	private DataRepository data_repo;
 	@ConfigField(desc = "Add entry to MAM repository", alias = "mam-add-item-query")
@@ -92,18 +101,40 @@ public class PubSubDAOJDBC
 	private String mamQueryItems = "{ call TigPubSubMamQueryItems(?,?,?,?,?) }";
 	@ConfigField(desc = "Count number of items from repository", alias = "mam-query-items-count-query")
 	private String mamQueryItemsCount = "{ call TigPubSubMamQueryItemsCount(?,?,?) }";
+	@ConfigField(desc = "Retrieve page of items from repository", alias = "mam-query-items-page-query")
+	private String mamQueryItemsPage = "{ call TigPubSubMamQueryItemsPage(?,?,?,?,?,?,?,?,?) }";
 	@ConfigField(desc = "Update entry in MAM repository", alias = "mam-update-item-query")
 	private String mamUpdateItem = "{ call TigPubSubMamUpdateItem(?,?,?) }";
-	private LinkedBlockingDeque<HashCode> pool_hashCodes = new LinkedBlockingDeque<>();
+	@ConfigField(desc = "Time for which number of items in MAM of a node is cached (in ms)", alias = "mam-items-count-cache-time")
+	private long mamItemsCountCacheTime = 60000;
+	private final Cache<Long, MAMItemsCount> mamItemsCounts = new SegmentedLRUCache<>(10000);
+	@ConfigField(desc = "Maximal time to wait for a free database connection (in ms)", alias = "connection-lease-timeout")
+	private long connectionLeaseTimeout = 30000;
+	@ConfigField(desc = "Count items matching query for items of a collection node", alias = "collection-items-count")
+	private boolean collectionItemsCount = true;
+	@ConfigField(desc = "Time for which number of items matching query for items of a collection node is cached (in ms)", alias = "collection-items-count-cache-time")
+	private long collectionItemsCountCacheTime = 10000;
+	private final Cache<CollectionItemsCountKey, CollectionItemsCount> collectionItemsCounts = new SegmentedLRUCache<>(
+			1000);
+	@ConfigField(desc = "Maximal number of ids of publishers JIDs kept in cache", alias = "jids-ids-cache-size")
+	private int jidsIdsCacheSize = 10000;
+	// rows of tig_pubsub_jids are never removed, so cached ids do not need to be invalidated
+	private final Cache<String, Long> jidsIds = new SegmentedLRUCache<>(jidsIdsCacheSize);
+	private ConnectionLeasePool connectionPool;
 
 	public PubSubDAOJDBC() {
 	}
 
+	public void setJidsIdsCacheSize(int jidsIdsCacheSize) {
+		this.jidsIdsCacheSize = jidsIdsCacheSize;
+		jidsIds.setMaxSize(jidsIdsCacheSize);
+	}
+
 	@Override
 	public Long createNode(BareJID serviceJid, String nodeName, BareJID ownerJid, AbstractNodeConfig nodeConfig,
 						   NodeType nodeType, Long collectionId, boolean autocreateService) throws RepositoryException {
 		Long nodeId = null;
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			String serializedNodeConfig = null;
@@ -168,7 +199,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "creating service: serviceJid: {0}, component: {1}, public: {2}",
 					new Object[]{serviceJID, serviceJID.getDomain(), isPublic});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			hash = takeDao();
 			PreparedStatement createServiceStmt = data_repo.getPreparedStatement(hash.hashCode(), CREATE_SERVICE_QUERY);
@@ -190,38 +221,22 @@ public class PubSubDAOJDBC
 
 	@Override
 	public MAMRepository.Item getMAMItem(BareJID ownerJid, Long nodeId, String stableId) throws RepositoryException {
+		ConnectionLeasePool.Lease hash = takeDao();
 		try {
-			PreparedStatement st = data_repo.getPreparedStatement(ownerJid, mamQueryItem);
-			synchronized (st) {
-				ResultSet rs = null;
-				try {
-					st.setLong(1, nodeId);
-					st.setString(2, stableId);
-
-					rs = st.executeQuery();
-
-					if (rs.next()) {
-						String itemUuid = rs.getString(1);
-						Timestamp ts = data_repo.getTimestamp(rs, 2);
-						Element itemEl = itemDataToElement(rs.getString(3));
-
-						return new MAMItem(itemUuid, ts, itemEl);
-					}
-					return null;
-				} finally {
-					data_repo.release(null, rs);
-				}
-			}
+			return getMAMItem(hash, nodeId, stableId);
 		} catch (SQLException ex) {
 			throw new RepositoryException("Failed to get item from MAM", ex);
+		} finally {
+			offerDao(hash);
 		}
 	}
 
 	@Override
 	public void updateMAMItem(BareJID ownerJid, Long nodeId, String stableId, Element message)
 			throws RepositoryException {
+		ConnectionLeasePool.Lease hash = takeDao();
 		try {
-			PreparedStatement st = data_repo.getPreparedStatement(ownerJid, mamUpdateItem);
+			PreparedStatement st = data_repo.getPreparedStatement(hash.hashCode(), mamUpdateItem);
 			synchronized (st) {
 				st.setLong(1, nodeId);
 				st.setString(2, stableId);
@@ -231,14 +246,16 @@ public class PubSubDAOJDBC
 			}
 		} catch (SQLException ex) {
 			throw new RepositoryException("Failed to update item in MAM", ex);
+		} finally {
+			offerDao(hash);
 		}
 	}
 
 	@Override
 	public List<BareJID> getServices(BareJID domain, Boolean isPublic) throws RepositoryException {
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
-			ResultSet rs;
+			ResultSet rs = null;
 			hash = takeDao();
 			PreparedStatement getServicesStmt = data_repo.getPreparedStatement(hash.hashCode(), GET_SERVICES_QUERY);
 			synchronized (getServicesStmt) {
@@ -257,9 +274,7 @@ public class PubSubDAOJDBC
 					}
 					return results;
 				} finally {
-					if (hash != null) {
-						offerDao(hash);
-					}
+					release(null, rs);
 				}
 			}
 		} catch (SQLException e) {
@@ -277,7 +292,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "deleting Item: serviceJid: {0}, nodeId: {1}, id: {2}",
 					new Object[]{serviceJid, nodeId, id});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			hash = takeDao();
 			PreparedStatement delete_item_sp = data_repo.getPreparedStatement(hash.hashCode(), DELETE_ITEM_QUERY);
@@ -295,12 +310,85 @@ public class PubSubDAOJDBC
 		}
 	}
 
+	@Override
+	public String[] trimItems(BareJID serviceJid, Long nodeId, int maxItems, CollectionItemsOrdering order)
+			throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "trimming items: serviceJid: {0}, nodeId: {1}, maxItems: {2}, order: {3}",
+					new Object[]{serviceJid, nodeId, maxItems, order});
+		}
+		ConnectionLeasePool.Lease hash = null;
+		try {
+			hash = takeDao();
+			PreparedStatement trim_items_sp = data_repo.getPreparedStatement(hash.hashCode(), TRIM_ITEMS_QUERY);
+			synchronized (trim_items_sp) {
+				trim_items_sp.setLong(1, nodeId);
+				trim_items_sp.setInt(2, maxItems);
+				trim_items_sp.setInt(3, order.value());
+				return readRemovedItemsIds(trim_items_sp);
+			}
+		} catch (SQLException e) {
+			throw new RepositoryException("Items trimming error", e);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
+	@Override
+	public String[] purgeItems(BareJID serviceJid, Long nodeId) throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "purging items: serviceJid: {0}, nodeId: {1}", new Object[]{serviceJid, nodeId});
+		}
+		ConnectionLeasePool.Lease hash = null;
+		try {
+			hash = takeDao();
+			PreparedStatement purge_items_sp = data_repo.getPreparedStatement(hash.hashCode(), PURGE_ITEMS_QUERY);
+			synchronized (purge_items_sp) {
+				purge_items_sp.setLong(1, nodeId);
+				return readRemovedItemsIds(purge_items_sp);
+			}
+		} catch (SQLException e) {
+			throw new RepositoryException("Items purging error", e);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
+	@Override
+	public String[] deleteItems(BareJID serviceJid, Long nodeId, String[] ids) throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "deleting items: serviceJid: {0}, nodeId: {1}, ids: {2}",
+					new Object[]{serviceJid, nodeId, Arrays.toString(ids)});
+		}
+		if (ids.length == 0) {
+			return ids;
+		}
+		ConnectionLeasePool.Lease hash = null;
+		try {
+			hash = takeDao();
+			PreparedStatement delete_items_sp = data_repo.getPreparedStatement(hash.hashCode(), DELETE_ITEMS_QUERY);
+			synchronized (delete_items_sp) {
+				delete_items_sp.setLong(1, nodeId);
+				if (data_repo.getDatabaseType() == DataRepository.dbTypes.postgresql) {
+					delete_items_sp.setArray(2, delete_items_sp.getConnection().createArrayOf("varchar", ids));
+				} else {
+					delete_items_sp.setString(2, idsToJsonArray(ids));
+				}
+				return readRemovedItemsIds(delete_items_sp);
+			}
+		} catch (SQLException e) {
+			throw new RepositoryException("Items deleting error", e);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
 	@Override
 	public void deleteNode(BareJID serviceJid, Long nodeId) throws RepositoryException {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "deleting Node: serviceJid: {0}, nodeId: {1}", new Object[]{serviceJid, nodeId});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			hash = takeDao();
 			PreparedStatement remove_node_sp = data_repo.getPreparedStatement(hash.hashCode(), REMOVE_NODE_QUERY);
@@ -308,6 +396,7 @@ public class PubSubDAOJDBC
 				remove_node_sp.setLong(1, nodeId);
 				remove_node_sp.execute();
 			}
+			mamItemsCounts.remove(nodeId);
 		} catch (SQLException e) {
 			throw new RepositoryException("Node deleting error", e);
 		} finally {
@@ -320,7 +409,7 @@ public class PubSubDAOJDBC
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "get all nodes list: serviceJid: {0}", new Object[]{serviceJid});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -356,7 +445,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "Getting string from item: serviceJid: {0}, nodeId: {1}",
 					new Object[]{serviceJid, nodeId});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -367,10 +456,10 @@ public class PubSubDAOJDBC
 					get_item_sp.setString(2, id);
 					rs = get_item_sp.executeQuery();
 					if (rs.next()) {
-						Element item = itemDataToElement(rs.getString(1));
+						String data = rs.getString(1);
 						String node = rs.getString(2);
 						String uuid = rs.getString(3);
-						return new IItems.Item(node, id, uuid, item);
+						return new IItems.RawItem(node, id, uuid, data, this::itemDataToElement);
 					}
 					return null;
 				} finally {
@@ -390,7 +479,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "getting items IDs: serviceJid: {0}, nodeId: {1}", new Object[]{serviceJid, nodeId});
 		}
 		if (null != nodeId) {
-			HashCode hash = null;
+			ConnectionLeasePool.Lease hash = null;
 			try {
 				ResultSet rs = null;
 				hash = takeDao();
@@ -426,7 +515,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "Getting items since: serviceJid: {0}, nodeId: {1}, since: {2}",
 					new Object[]{serviceJid, nodeId, since});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			Timestamp sinceTs = new Timestamp(since.getTime());
@@ -458,8 +547,158 @@ public class PubSubDAOJDBC
 	@Override
 	public List<IItems.IItem> getItems(BareJID serviceJid, List<Long> nodesIds, Date afterDate, Date beforeDate, RSM rsm, CollectionItemsOrdering ordering)
 			throws RepositoryException {
+		Integer index = rsm.getIndex();
+		if (index != null && index > 0) {
+			// position of the page was requested explicitly, so we need to use offset
+			return getItemsByOffset(nodesIds, afterDate, beforeDate, rsm, ordering);
+		}
+
+		final String ids = nodesIdsToString(nodesIds);
+		final boolean backward = rsm.getAfter() == null && (rsm.getBefore() != null || rsm.hasBefore());
+		final String rsmId = backward ? rsm.getBefore() : rsm.getAfter();
+		final boolean hasKey = rsmId != null && !rsmId.isEmpty();
+
+		ConnectionLeasePool.Lease hash = takeDao();
+		try {
+			Integer count = collectionItemsCount
+							? countItems(hash, ids, nodesIds, afterDate, beforeDate, ordering)
+							: null;
+
+			PreparedStatement st = data_repo.getPreparedStatement(hash.hashCode(), GET_NODES_ITEMS_PAGE_QUERY);
+			List<IItems.IItem> results = new ArrayList<>();
+			synchronized (st) {
+				ResultSet rs = null;
+				try {
+					int i = 1;
+					if (data_repo.getDatabaseType() == DataRepository.dbTypes.postgresql) {
+						st.setArray(i++, st.getConnection().createArrayOf("bigint", nodesIds.toArray()));
+					} else {
+						st.setString(i++, ids);
+					}
+					data_repo.setTimestamp(st, i++, afterDate == null ? null : new Timestamp(afterDate.getTime()));
+					data_repo.setTimestamp(st, i++,
+										   beforeDate == null ? null : new Timestamp(beforeDate.getTime()));
+					st.setInt(i++, ordering.value());
+					st.setInt(i++, rsm.getMax());
+					if (hasKey) {
+						st.setLong(i++, IItemsItem.getNodeIdFromRsmId(rsmId));
+						st.setString(i++, IItemsItem.getItemIdFromRsmId(rsmId));
+					} else {
+						st.setNull(i++, Types.BIGINT);
+						st.setNull(i++, Types.VARCHAR);
+					}
+					st.setInt(i++, backward ? 1 : 0);
+
+					// procedure does not return any result set if item used as a key does not exist
+					if (st.execute()) {
+						rs = st.getResultSet();
+						while (rs.next()) {
+							String node = rs.getString(1);
+							long nodeId = rs.getLong(2);
+							String itemId = rs.getString(3);
+							String itemUuid = rs.getString(4);
+							String data = rs.getString(5);
+
+							results.add(new IItemsItem(node, nodeId, itemId, itemUuid, data, this::itemDataToElement));
+						}
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+			if (backward) {
+				Collections.reverse(results);
+			}
+
+			// position of the page is known without counting preceding items only for the first and the last page
+			Integer firstIndex = null;
+			if (!hasKey) {
+				firstIndex = backward ? (count == null ? null : Math.max(0, count - results.size())) : 0;
+			}
+			if (firstIndex != null) {
+				rsm.setIndex(firstIndex);
+			}
+			if (count == null) {
+				// count is optional, so we are reporting a lower bound of a number of items
+				count = (firstIndex == null ? 0 : firstIndex) + results.size() + (results.size() < rsm.getMax() ? 0 : 1);
+			}
+			rsm.setCount(count);
+			if (results.size() > 0) {
+				rsm.setLast(((IItemsItem) results.get(results.size() - 1)).getRsmId());
+				rsm.setFirst(((IItemsItem) results.get(0)).getRsmId());
+			}
+			return results;
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Cound not retrieve items", ex);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
+	private Integer countItems(ConnectionLeasePool.Lease hash, String ids, List<Long> nodesIds, Date afterDate,
+							   Date beforeDate, CollectionItemsOrdering ordering) throws SQLException {
+		CollectionItemsCountKey key = new CollectionItemsCountKey(nodesIds, afterDate, beforeDate, ordering);
+		long now = System.currentTimeMillis();
+		CollectionItemsCount cached = collectionItemsCounts.get(key);
+		if (cached != null && cached.validUntil > now) {
+			return cached.count;
+		}
+
 		int count = 0;
+		PreparedStatement st = data_repo.getPreparedStatement(hash.hashCode(), COUNT_NODES_ITEMS_QUERY);
+		synchronized (st) {
+			ResultSet rs = null;
+			try {
+				int i = 1;
+				st.setString(i++, ids);
+				data_repo.setTimestamp(st, i++, afterDate == null ? null : new Timestamp(afterDate.getTime()));
+				data_repo.setTimestamp(st, i++, beforeDate == null ? null : new Timestamp(beforeDate.getTime()));
+				st.setInt(i++, ordering.value());
+				rs = st.executeQuery();
+				if (rs.next()) {
+					count = rs.getInt(1);
+				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+		if (collectionItemsCountCacheTime > 0) {
+			collectionItemsCounts.put(key, new CollectionItemsCount(count, now + collectionItemsCountCacheTime));
+		}
+		return count;
+	}
 
+	// ids of items may contain any characters, so they are passed as JSON array of strings
+	private static String idsToJsonArray(String[] ids) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < ids.length; i++) {
+			if (i != 0) {
+				sb.append(',');
+			}
+			sb.append('"');
+			String id = ids[i];
+			for (int j = 0; j < id.length(); j++) {
+				char c = id.charAt(j);
+				switch (c) {
+					case '"':
+					case '\\':
+						sb.append('\\').append(c);
+						break;
+					default:
+						if (c < 0x20) {
+							sb.append(String.format("\\u%04x", (int) c));
+						} else {
+							sb.append(c);
+						}
+						break;
+				}
+			}
+			sb.append('"');
+		}
+		return sb.append(']').toString();
+	}
+
+	private static String nodesIdsToString(List<Long> nodesIds) {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < nodesIds.size(); i++) {
 			if (i != 0) {
@@ -467,14 +706,21 @@ public class PubSubDAOJDBC
 			}
 			sb.append(nodesIds.get(i).longValue());
 		}
-		String ids = sb.toString();
+		return sb.toString();
+	}
+
+	private List<IItems.IItem> getItemsByOffset(List<Long> nodesIds, Date afterDate, Date beforeDate, RSM rsm,
+												CollectionItemsOrdering ordering) throws RepositoryException {
+		int count = 0;
+
+		String ids = nodesIdsToString(nodesIds);
 		
 		Integer after = null;
 		Integer before = null;
 
-
+		ConnectionLeasePool.Lease hash = takeDao();
 		try {
-			PreparedStatement st = data_repo.getPreparedStatement(ids.hashCode(), COUNT_NODES_ITEMS_QUERY);
+			PreparedStatement st = data_repo.getPreparedStatement(hash.hashCode(), COUNT_NODES_ITEMS_QUERY);
 			synchronized (st) {
 				ResultSet rs = null;
 				try {
@@ -493,7 +739,7 @@ public class PubSubDAOJDBC
 			}
 
 			if (rsm.getAfter() != null) {
-				st = data_repo.getPreparedStatement(ids.hashCode(), GET_NODES_ITEMS_POSITION_QUERY);
+				st = data_repo.getPreparedStatement(hash.hashCode(), GET_NODES_ITEMS_POSITION_QUERY);
 				synchronized (st) {
 					ResultSet rs = null;
 					try {
@@ -516,7 +762,7 @@ public class PubSubDAOJDBC
 			}
 
 			if (rsm.getBefore() != null) {
-				st = data_repo.getPreparedStatement(ids.hashCode(), GET_NODES_ITEMS_POSITION_QUERY);
+				st = data_repo.getPreparedStatement(hash.hashCode(), GET_NODES_ITEMS_POSITION_QUERY);
 				synchronized (st) {
 					ResultSet rs = null;
 					try {
@@ -540,7 +786,7 @@ public class PubSubDAOJDBC
 			
 			calculateOffsetAndPosition(rsm, count, before, after);
 
-			st = data_repo.getPreparedStatement(ids.hashCode(), GET_NODES_ITEMS_QUERY);
+			st = data_repo.getPreparedStatement(hash.hashCode(), GET_NODES_ITEMS_QUERY);
 
 			List<IItems.IItem> results = new ArrayList<>();
 			synchronized (st) {
@@ -562,9 +808,9 @@ public class PubSubDAOJDBC
 						long nodeId = rs.getLong(2);
 						String itemId = rs.getString(3);
 						String itemUuid = rs.getString(4);
-						Element itemEl = itemDataToElement(rs.getString(5));
+						String data = rs.getString(5);
 
-						results.add(new IItemsItem(node, nodeId, itemId, itemUuid, itemEl));
+						results.add(new IItemsItem(node, nodeId, itemId, itemUuid, data, this::itemDataToElement));
 					}
 				} finally {
 					data_repo.release(null, rs);
@@ -577,15 +823,18 @@ public class PubSubDAOJDBC
 			return results;
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Cound not retrieve items", ex);
+		} finally {
+			offerDao(hash);
 		}
 	}
 
-	private static class IItemsItem extends IItems.Item {
+	private static class IItemsItem extends IItems.RawItem {
 
 		private final long nodeId;
 
-		public IItemsItem(String node, long nodeId, String id, String uuid, Element item) {
-			super(node, id, uuid, item);
+		public IItemsItem(String node, long nodeId, String id, String uuid, String data,
+						  Function<String, Element> parser) {
+			super(node, id, uuid, data, parser);
 			this.nodeId = nodeId;
 		}
 
@@ -602,7 +851,7 @@ public class PubSubDAOJDBC
 			if (idx <= 0) {
 				return 0;
 			}
-			return Long.parseLong(rsmId.substring(0, idx-1));
+			return Long.parseLong(rsmId.substring(0, idx));
 		}
 
 		public static String getItemIdFromRsmId(String rsmId) {
@@ -614,6 +863,69 @@ public class PubSubDAOJDBC
 		}
 	}
 
+	private static final class MAMItemsCount {
+
+		private final AtomicInteger count;
+		private final long validUntil;
+
+		MAMItemsCount(int count, long validUntil) {
+			this.count = new AtomicInteger(count);
+			this.validUntil = validUntil;
+		}
+
+		int get() {
+			return count.get();
+		}
+
+		void increment() {
+			count.incrementAndGet();
+		}
+	}
+
+	private static final class CollectionItemsCountKey {
+
+		private final List<Long> nodesIds;
+		private final Date after;
+		private final Date before;
+		private final CollectionItemsOrdering ordering;
+
+		CollectionItemsCountKey(List<Long> nodesIds, Date after, Date before, CollectionItemsOrdering ordering) {
+			this.nodesIds = new ArrayList<>(nodesIds);
+			this.after = after;
+			this.before = before;
+			this.ordering = ordering;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof CollectionItemsCountKey)) {
+				return false;
+			}
+			CollectionItemsCountKey that = (CollectionItemsCountKey) o;
+			return nodesIds.equals(that.nodesIds) && Objects.equals(after, that.after) &&
+					Objects.equals(before, that.before) && ordering == that.ordering;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(nodesIds, after, before, ordering);
+		}
+	}
+
+	private static final class CollectionItemsCount {
+
+		private final int count;
+		private final long validUntil;
+
+		CollectionItemsCount(int count, long validUntil) {
+			this.count = count;
+			this.validUntil = validUntil;
+		}
+	}
+
 	@Override
 	public List<IItems.ItemMeta> getItemsMeta(BareJID serviceJid, Long nodeId, String nodeName)
 			throws RepositoryException {
@@ -621,7 +933,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "Getting items meta: serviceJid: {0}, nodeId: {1}, nodeName: {2}",
 					new Object[]{serviceJid, nodeId, nodeName});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -657,7 +969,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "Getting node affiliation: serviceJid: {0}, nodeId: {1}",
 					new Object[]{serviceJid, nodeId});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -691,7 +1003,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "Getting Node ID: serviceJid: {0}, nodeName: {1}",
 					new Object[]{serviceJid, nodeName});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -728,7 +1040,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "Getting Node ID: serviceJid: {0}, nodeName: {1}",
 					new Object[]{serviceJid, nodeName});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -743,10 +1055,11 @@ public class PubSubDAOJDBC
 						final String configStr = rs.getString(2);
 						final String creator = rs.getString(3);
 						final Date creationTime = data_repo.getTimestamp(rs, 4);
+						final long version = rs.getLong(5);
 						final NodeMeta<Long> nodeMeta = new NodeMeta(nodeId, parseConfig(nodeName, configStr),
 																	 creator != null
 																	 ? BareJID.bareJIDInstance(creator)
-																	 : null, creationTime);
+																	 : null, creationTime, version);
 
 						if (log.isLoggable(Level.FINEST)) {
 							log.log(Level.FINEST,
@@ -773,7 +1086,7 @@ public class PubSubDAOJDBC
 			log.log(Level.FINEST, "Getting nodes list: serviceJid: {0}, nodeName: {1}",
 					new Object[]{serviceJid, nodeName});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -820,7 +1133,7 @@ public class PubSubDAOJDBC
 
 	@Override
 	public long getNodesCount(BareJID serviceJid) throws RepositoryException {
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -847,13 +1160,80 @@ public class PubSubDAOJDBC
 		}
 	}
 
+	@Override
+	public UsersAffiliation getNodeAffiliation(BareJID serviceJid, Long nodeId, String nodeName, BareJID jid)
+			throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Getting node affiliation: serviceJid: {0}, nodeId: {1}, jid: {2}",
+					new Object[]{serviceJid, nodeId, jid});
+		}
+		ConnectionLeasePool.Lease hash = null;
+		try {
+			ResultSet rs = null;
+			hash = takeDao();
+			PreparedStatement get_node_affiliation_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																					   GET_NODE_AFFILIATION_QUERY);
+			synchronized (get_node_affiliation_sp) {
+				try {
+					get_node_affiliation_sp.setLong(1, nodeId);
+					get_node_affiliation_sp.setString(2, jid.toString());
+					rs = get_node_affiliation_sp.executeQuery();
+					if (rs.next()) {
+						return new UsersAffiliation(jid, Affiliation.valueOf(rs.getString(1)));
+					}
+					return null;
+				} finally {
+					release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			throw new RepositoryException("Node affiliation reading error", e);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
+	@Override
+	public UsersSubscription getNodeSubscription(BareJID serviceJid, Long nodeId, String nodeName, BareJID jid)
+			throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Getting node subscription: serviceJid: {0}, nodeId: {1}, jid: {2}",
+					new Object[]{serviceJid, nodeId, jid});
+		}
+		ConnectionLeasePool.Lease hash = null;
+		try {
+			ResultSet rs = null;
+			hash = takeDao();
+			PreparedStatement get_node_subscription_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																						GET_NODE_SUBSCRIPTION_QUERY);
+			synchronized (get_node_subscription_sp) {
+				try {
+					get_node_subscription_sp.setLong(1, nodeId);
+					get_node_subscription_sp.setString(2, jid.toString());
+					rs = get_node_subscription_sp.executeQuery();
+					if (rs.next()) {
+						Subscription subscr = Subscription.valueOf(rs.getString(1));
+						return new UsersSubscription(jid, rs.getString(2), subscr);
+					}
+					return null;
+				} finally {
+					release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			throw new RepositoryException("Node subscription reading error", e);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
 	@Override
 	public Map<BareJID, UsersSubscription> getNodeSubscriptions(BareJID serviceJid, Long nodeId) throws RepositoryException {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Getting node subscriptions: serviceJid: {0}, nodeId: {1}",
 					new Object[]{serviceJid, nodeId});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -888,7 +1268,7 @@ public class PubSubDAOJDBC
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Getting user affiliation: serviceJid: {0}, jid: {1}", new Object[]{serviceJid, jid});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			Map<String, UsersAffiliation> result = new HashMap<String, UsersAffiliation>();
@@ -923,7 +1303,7 @@ public class PubSubDAOJDBC
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Getting user subs: serviceJid: {0}, jid: {1}", new Object[]{serviceJid, jid});
 		}
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -955,7 +1335,7 @@ public class PubSubDAOJDBC
 
 	@Override
 	public void addMAMItem(BareJID serviceJid, Long nodeId, String uuid, Element message, String itemId) throws RepositoryException {
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			hash = takeDao();
 			PreparedStatement write_item_sp = data_repo.getPreparedStatement(hash.hashCode(), mamAddItem);
@@ -972,6 +1352,10 @@ public class PubSubDAOJDBC
 					release(null, rs);
 				}
 			}
+			MAMItemsCount count = mamItemsCounts.get(nodeId);
+			if (count != null) {
+				count.increment();
+			}
 		} catch (SQLException e) {
 			throw new RepositoryException("Item writing error", e);
 		} finally {
@@ -989,11 +1373,12 @@ public class PubSubDAOJDBC
 	public void queryItems(ExtendedQueryImpl query, Long nodeId,
 						   MAMRepository.ItemHandler<ExtendedQueryImpl, IPubSubRepository.Item> itemHandler)
 			throws RepositoryException, ComponentException {
+		ConnectionLeasePool.Lease hash = takeDao();
 		try {
 			if (!query.getIds().isEmpty()) {
 				ArrayDeque<MAMRepository.Item> items = new ArrayDeque<>();
 				for (String id : query.getIds()) {
-					MAMRepository.Item item = getMAMItem(query, nodeId, id);
+					MAMRepository.Item item = getMAMItem(hash, nodeId, id);
 					if (item == null) {
 						throw new ComponentException(Authorization.ITEM_NOT_FOUND,
 													 "Item with ID '" + id + "' does not exist.");
@@ -1004,55 +1389,142 @@ public class PubSubDAOJDBC
 					itemHandler.itemFound(query, item);
 				}
 			} else {
-				Integer count = countMAMItems(query, nodeId);
-				if (count == null) {
-					count = 0;
-				}
+				queryItemsPage(hash, query, nodeId, itemHandler);
+			}
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Cound not retrieve items", ex);
+		} finally {
+			offerDao(hash);
+		}
+	}
 
-				Range range = MAMUtil.rangeFromPositions(getMAMItemPosition(query, nodeId, query.getAfterId()),
-														 getMAMItemPosition(query, nodeId, query.getBeforeId()));
-				Integer after = getMAMItemPosition(query, nodeId, query.getRsm().getAfter());
-				Integer before = getMAMItemPosition(query, nodeId, query.getRsm().getBefore());
+	/**
+	 * Retrieves page of items from MAM with a single call to the database. Items referenced by MAM and RSM ids are
+	 * located by the procedure itself, which also returns position of the RSM key in the results. Number of items in
+	 * MAM of a node is kept in memory (and updated on <code>addMAMItem()</code>), so it is counted by the database
+	 * only if query filters items or it is not cached.
+	 */
+	private void queryItemsPage(ConnectionLeasePool.Lease hash, ExtendedQueryImpl query, Long nodeId,
+								MAMRepository.ItemHandler<ExtendedQueryImpl, IPubSubRepository.Item> itemHandler)
+			throws SQLException, ComponentException {
+		RSM rsm = query.getRsm();
+		boolean filtered = query.getStart() != null || query.getEnd() != null || query.getAfterId() != null ||
+				query.getBeforeId() != null;
+		boolean backward = rsm.getAfter() == null && (rsm.getBefore() != null || rsm.hasBefore());
+		String key = backward ? rsm.getBefore() : rsm.getAfter();
+		if (key != null && key.isEmpty()) {
+			key = null;
+		}
+
+		long now = System.currentTimeMillis();
+		MAMItemsCount nodeCount = filtered ? null : mamItemsCounts.get(nodeId);
+		if (nodeCount != null && nodeCount.validUntil <= now) {
+			nodeCount = null;
+		}
+
+		List<MAMItem> items = new ArrayList<>();
+		Long position = null;
+		Long total = null;
+		PreparedStatement st = data_repo.getPreparedStatement(hash.hashCode(), mamQueryItemsPage);
+		synchronized (st) {
+			ResultSet rs = null;
+			try {
+				int i = setStatementParamsForMAM(st, query, nodeId);
+				setStringOrNull(st, i++, query.getAfterId());
+				setStringOrNull(st, i++, query.getBeforeId());
+				setStringOrNull(st, i++, key);
+				st.setInt(i++, backward ? 1 : 0);
+				// one additional item is retrieved to check if this is the last page in the direction of the query
+				st.setInt(i++, rsm.getMax() + 1);
+				st.setInt(i++, nodeCount == null ? 1 : 0);
+
+				// procedure may not return any result set if any of referenced items does not exist
+				if (st.execute()) {
+					rs = st.getResultSet();
+					while (rs.next()) {
+						String itemUuid = rs.getString(1);
+						Timestamp ts = data_repo.getTimestamp(rs, 2);
+						Element itemEl = itemDataToElement(rs.getString(3));
+						long value = rs.getLong(4);
+						position = rs.wasNull() ? null : value;
+						value = rs.getLong(5);
+						total = rs.wasNull() ? null : value;
+
+						items.add(new MAMItem(itemUuid, ts, itemEl));
+					}
+				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
 
-				MAMUtil.calculateOffsetAndPosition(query.getRsm(), count, before, after, range);
+		if (items.isEmpty()) {
+			for (String id : new String[]{query.getAfterId(), query.getBeforeId(), key}) {
+				if (id != null && getMAMItem(hash, nodeId, id) == null) {
+					throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Not found item with uuid = " + id);
+				}
+			}
+		}
 
-				int limit = Math.min(range.size(), query.getRsm().getMax());
+		boolean complete = items.size() <= rsm.getMax();
+		if (!complete) {
+			items.remove(items.size() - 1);
+		}
+		if (backward) {
+			Collections.reverse(items);
+		}
 
-				// there is no point to execute query if limit is estimated to be 0
-				if (limit > 0) {
-					PreparedStatement st = data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
-																		  mamQueryItems);
+		Integer count = null;
+		if (total != null) {
+			count = total.intValue();
+			if (!filtered && mamItemsCountCacheTime > 0) {
+				mamItemsCounts.put(nodeId, new MAMItemsCount(count, now + mamItemsCountCacheTime));
+			}
+		} else if (nodeCount != null) {
+			count = nodeCount.get();
+		} else if (key == null) {
+			// there are no items matching the query
+			count = 0;
+		}
 
-					synchronized (st) {
-						ResultSet rs = null;
-						try {
-							int i = setStatementParamsForMAM(st, query, nodeId);
-							st.setInt(i++, limit);
-							st.setInt(i++, range.getLowerBound() + query.getRsm().getIndex());
+		Integer index = null;
+		if (key == null) {
+			index = backward ? (count == null ? null : Math.max(0, count - items.size())) : 0;
+		} else if (position != null) {
+			index = (int) (backward ? position - items.size() : position + 1);
+		} else if (backward) {
+			index = 0;
+		}
 
-							rs = st.executeQuery();
+		if (index != null) {
+			rsm.setIndex(index);
+		}
+		if (count == null && index != null && complete && !backward) {
+			count = index + items.size();
+		}
+		if (count != null) {
+			rsm.setCount(count);
+		}
+		if (!items.isEmpty()) {
+			rsm.setFirst(items.get(0).getId());
+			rsm.setLast(items.get(items.size() - 1).getId());
+		}
 
-							while (rs.next()) {
-								String itemUuid = rs.getString(1);
-								Timestamp ts = data_repo.getTimestamp(rs, 2);
-								Element itemEl = itemDataToElement(rs.getString(3));
+		for (MAMItem item : items) {
+			itemHandler.itemFound(query, item);
+		}
+	}
 
-								itemHandler.itemFound(query, new MAMItem(itemUuid, ts, itemEl));
-							}
-						} finally {
-							data_repo.release(null, rs);
-						}
-					}
-				}
-			}
-		} catch (SQLException ex) {
-			throw new TigaseDBException("Cound not retrieve items", ex);
+	private static void setStringOrNull(PreparedStatement st, int idx, String value) throws SQLException {
+		if (value == null) {
+			st.setNull(idx, Types.VARCHAR);
+		} else {
+			st.setString(idx, value);
 		}
 	}
 
-	private MAMItem getMAMItem(ExtendedQueryImpl query, Long nodeId, String stableId) throws SQLException {
-		PreparedStatement st = data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
-															  mamQueryItem);
+	private MAMItem getMAMItem(ConnectionLeasePool.Lease hash, Long nodeId, String stableId) throws SQLException {
+		PreparedStatement st = data_repo.getPreparedStatement(hash.hashCode(), mamQueryItem);
 		synchronized (st) {
 			ResultSet rs = null;
 			try {
@@ -1077,7 +1549,7 @@ public class PubSubDAOJDBC
 	
 	@Override
 	public void removeNodeSubscription(BareJID serviceJid, Long nodeId, BareJID jid) throws RepositoryException {
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			hash = takeDao();
 			PreparedStatement delete_node_subscriptions_sp = data_repo.getPreparedStatement(hash.hashCode(),
@@ -1096,7 +1568,7 @@ public class PubSubDAOJDBC
 
 	@Override
 	public void deleteService(BareJID serviceJid) throws RepositoryException {
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			hash = takeDao();
 			PreparedStatement remove_service_sp = data_repo.getPreparedStatement(hash.hashCode(), REMOVE_SERVICE_QUERY);
@@ -1118,7 +1590,7 @@ public class PubSubDAOJDBC
 			log.finest("Updating node affiliation[1]: " + nodeName + " / " + affiliation);
 		}
 
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -1152,10 +1624,27 @@ public class PubSubDAOJDBC
 
 	}
 
+	@Override
+	public long incrementNodeVersion(BareJID serviceJid, Long nodeId) throws RepositoryException {
+		ConnectionLeasePool.Lease hash = null;
+		try {
+			hash = takeDao();
+			PreparedStatement increment_node_version_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																						 INCREMENT_NODE_VERSION_QUERY);
+			synchronized (increment_node_version_sp) {
+				return incrementNodeVersion(increment_node_version_sp, nodeId);
+			}
+		} catch (SQLException e) {
+			throw new RepositoryException("Node version writing error", e);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
 	@Override
 	public void updateNodeConfig(final BareJID serviceJid, final Long nodeId, final String serializedData,
 								 final Long collectionId) throws RepositoryException {
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			hash = takeDao();
 			ResultSet rs = null;
@@ -1196,7 +1685,7 @@ public class PubSubDAOJDBC
 			log.finest("Updating node subscriptions[1]: " + nodeName + " / " + subscription);
 		}
 
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			ResultSet rs = null;
 			hash = takeDao();
@@ -1231,10 +1720,135 @@ public class PubSubDAOJDBC
 
 	}
 
+	/**
+	 * Writes all changes using single connection, executing changes of the same kind one after another (for SQL Server
+	 * as a single JDBC batch). Versions of nodes are increased before their changes are written.
+	 *
+	 * Changes are not written within a transaction, as the connection is shared with other repositories using the same
+	 * data source, so each statement is guarded only by its monitor (as in other methods) and writes are not atomic.
+	 */
+	@Override
+	public void updateNodesChanges(BareJID serviceJid, List<NodeChanges<Long>> changes) throws RepositoryException {
+		if (changes.isEmpty()) {
+			return;
+		}
+		final boolean batches;
+		switch (data_repo.getDatabaseType()) {
+			case sqlserver:
+			case jtds:
+				batches = true;
+				break;
+			default:
+				// procedures declare result sets, which are not allowed in batches
+				batches = false;
+				break;
+		}
+
+		ConnectionLeasePool.Lease hash = takeDao();
+		try {
+			PreparedStatement increment_node_version_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																						 INCREMENT_NODE_VERSION_QUERY);
+			synchronized (increment_node_version_sp) {
+				for (NodeChanges<Long> nodeChanges : changes) {
+					if (nodeChanges.isVersioned()) {
+						nodeChanges.setVersion(incrementNodeVersion(increment_node_version_sp, nodeChanges.getNodeId()));
+					}
+				}
+			}
+
+			PreparedStatement set_node_configuration_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																						 SET_NODE_CONFIGURATION_QUERY);
+			synchronized (set_node_configuration_sp) {
+				try {
+					for (NodeChanges<Long> nodeChanges : changes) {
+						if (nodeChanges.getConfig() == null) {
+							continue;
+						}
+						set_node_configuration_sp.setLong(1, nodeChanges.getNodeId());
+						set_node_configuration_sp.setString(2, nodeChanges.getConfig());
+						if (nodeChanges.getCollectionId() == null) {
+							set_node_configuration_sp.setNull(3, java.sql.Types.BIGINT);
+						} else {
+							set_node_configuration_sp.setLong(3, nodeChanges.getCollectionId());
+						}
+						executeOrAddBatch(set_node_configuration_sp, batches);
+					}
+					executeBatch(set_node_configuration_sp, batches);
+				} finally {
+					clearBatch(set_node_configuration_sp, batches);
+				}
+			}
+
+			PreparedStatement set_node_affiliations_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																						SET_NODE_AFFILIATION_QUERY);
+			synchronized (set_node_affiliations_sp) {
+				try {
+					for (NodeChanges<Long> nodeChanges : changes) {
+						for (UsersAffiliation affiliation : nodeChanges.getAffiliations()) {
+							set_node_affiliations_sp.setLong(1, nodeChanges.getNodeId());
+							set_node_affiliations_sp.setString(2, affiliation.getJid().toString());
+							set_node_affiliations_sp.setString(3, affiliation.getAffiliation().name());
+							executeOrAddBatch(set_node_affiliations_sp, batches);
+						}
+					}
+					executeBatch(set_node_affiliations_sp, batches);
+				} finally {
+					clearBatch(set_node_affiliations_sp, batches);
+				}
+			}
+
+			PreparedStatement set_node_subscriptions_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																						 SET_NODE_SUBSCRIPTION_QUERY);
+			synchronized (set_node_subscriptions_sp) {
+				try {
+					for (NodeChanges<Long> nodeChanges : changes) {
+						for (UsersSubscription subscription : nodeChanges.getSubscriptions()) {
+							if (subscription.getSubscription() == Subscription.none) {
+								continue;
+							}
+							set_node_subscriptions_sp.setLong(1, nodeChanges.getNodeId());
+							set_node_subscriptions_sp.setString(2, subscription.getJid().toString());
+							set_node_subscriptions_sp.setString(3, subscription.getSubscription().name());
+							set_node_subscriptions_sp.setString(4, subscription.getSubid());
+							executeOrAddBatch(set_node_subscriptions_sp, batches);
+						}
+					}
+					executeBatch(set_node_subscriptions_sp, batches);
+				} finally {
+					clearBatch(set_node_subscriptions_sp, batches);
+				}
+			}
+
+			PreparedStatement delete_node_subscriptions_sp = data_repo.getPreparedStatement(hash.hashCode(),
+																							DELETE_NODE_SUBSCRIPTIONS_QUERY);
+			synchronized (delete_node_subscriptions_sp) {
+				try {
+					for (NodeChanges<Long> nodeChanges : changes) {
+						for (UsersSubscription subscription : nodeChanges.getSubscriptions()) {
+							if (subscription.getSubscription() != Subscription.none) {
+								continue;
+							}
+							delete_node_subscriptions_sp.setLong(1, nodeChanges.getNodeId());
+							delete_node_subscriptions_sp.setString(2, subscription.getJid().toString());
+							executeOrAddBatch(delete_node_subscriptions_sp, batches);
+						}
+					}
+					executeBatch(delete_node_subscriptions_sp, batches);
+				} finally {
+					clearBatch(delete_node_subscriptions_sp, batches);
+				}
+			}
+		} catch (SQLException e) {
+			throw new RepositoryException("Node changes writing error", e);
+		} finally {
+			offerDao(hash);
+		}
+	}
+
 	@Override
 	public void writeItem(final BareJID serviceJid, final Long nodeId, long timeInMilis, final String id,
 						  final String publisher, final Element item, final String uuid) throws RepositoryException {
-		HashCode hash = null;
+		ConnectionLeasePool.Lease hash = null;
 		try {
 			String publisherValue = publisher;
 			if (publisher != null && data_repo.getDatabaseType() == DataRepository.dbTypes.mysql) {
@@ -1244,18 +1858,36 @@ public class PubSubDAOJDBC
 					publisherValue = JID.jidInstanceNS(jid.getBareJID(), resource).toString();
 				}
 			}
+			Long publisherId = publisherValue == null ? null : jidsIds.get(publisherValue);
 			hash = takeDao();
-			PreparedStatement write_item_sp = data_repo.getPreparedStatement(hash.hashCode(), WRITE_ITEM_QUERY);
+			PreparedStatement upsert_item_sp = data_repo.getPreparedStatement(hash.hashCode(), UPSERT_ITEM_QUERY);
 			ResultSet rs = null;
-			synchronized (write_item_sp) {
+			synchronized (upsert_item_sp) {
 				try {
-					write_item_sp.setLong(1, nodeId);
-					write_item_sp.setString(2, id);
-					write_item_sp.setString(3, publisherValue);
-					write_item_sp.setString(4, item.toString());
-					data_repo.setTimestamp(write_item_sp, 5, new Timestamp(System.currentTimeMillis()));
-					write_item_sp.setString(6, uuid);
-					write_item_sp.execute();
+					upsert_item_sp.setLong(1, nodeId);
+					upsert_item_sp.setString(2, id);
+					upsert_item_sp.setString(3, publisherValue);
+					if (publisherId == null) {
+						upsert_item_sp.setNull(4, Types.BIGINT);
+					} else {
+						upsert_item_sp.setLong(4, publisherId);
+					}
+					upsert_item_sp.setString(5, item.toString());
+					data_repo.setTimestamp(upsert_item_sp, 6, new Timestamp(System.currentTimeMillis()));
+					upsert_item_sp.setString(7, uuid);
+					rs = upsert_item_sp.executeQuery();
+					if (publisherId == null && publisherValue != null && rs.next()) {
+						long jidId = rs.getLong(1);
+						if (!rs.wasNull()) {
+							jidsIds.put(publisherValue, jidId);
+						}
+					}
+				} catch (SQLException ex) {
+					if (publisherId != null) {
+						// cached id may be no longer valid, ie. if database was restored from a backup
+						jidsIds.remove(publisherValue);
+					}
+					throw ex;
 				} finally {
 					release(null, rs);
 				}
@@ -1274,16 +1906,31 @@ public class PubSubDAOJDBC
 			new RuntimeException("Failed to initialize access to SQL database for PubSubDAOJDBC", ex);
 		}
 		this.data_repo = dataSource;
-		int poolSize = dataSource.getPoolSize();
-		for (int i = 0; i < poolSize; i++) {
-			pool_hashCodes.offer(new HashCode(dataSource, i));
+		this.connectionPool = new ConnectionLeasePool(dataSource.getPoolSize());
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		ConnectionLeasePool connectionPool = this.connectionPool;
+		if (connectionPool != null) {
+			connectionPool.getStatistics(compName, "dao/" + getStatisticsName(), list);
+		}
+	}
+
+	private String getStatisticsName() {
+		// resource URI may contain credentials in parameters, so only part identifying database is used
+		String uri = data_repo.getResourceUri();
+		int idx = uri.indexOf('?');
+		if (idx < 0) {
+			idx = uri.indexOf(';');
 		}
+		return idx < 0 ? uri : uri.substring(0, idx);
 	}
 	
-	protected Integer countMAMItems(ExtendedQueryImpl query, Long nodeId) throws TigaseDBException {
+	protected Integer countMAMItems(ConnectionLeasePool.Lease hash, ExtendedQueryImpl query, Long nodeId)
+			throws TigaseDBException {
 		try {
-			PreparedStatement st = this.data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
-																	   mamQueryItemsCount);
+			PreparedStatement st = this.data_repo.getPreparedStatement(hash.hashCode(), mamQueryItemsCount);
 			synchronized (st) {
 				ResultSet rs = null;
 				try {
@@ -1305,15 +1952,14 @@ public class PubSubDAOJDBC
 		}
 	}
 
-	protected Integer getMAMItemPosition(ExtendedQueryImpl query, Long nodeId, String itemUuid)
-			throws RepositoryException, ComponentException {
+	protected Integer getMAMItemPosition(ConnectionLeasePool.Lease hash, ExtendedQueryImpl query, Long nodeId,
+										 String itemUuid) throws RepositoryException, ComponentException {
 		if (itemUuid == null) {
 			return null;
 		}
 
 		try {
-			PreparedStatement st = this.data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
-																	   mamQueryItemPosition);
+			PreparedStatement st = this.data_repo.getPreparedStatement(hash.hashCode(), mamQueryItemPosition);
 			synchronized (st) {
 				ResultSet rs = null;
 				try {
@@ -1346,18 +1992,39 @@ public class PubSubDAOJDBC
 		return i;
 	}
 
-	protected HashCode takeDao() {
+	/**
+	 * Takes lease of a database connection (with its prepared statements) for the duration of a single call.
+	 * Lease has to be returned using <code>offerDao()</code>.
+	 */
+	protected ConnectionLeasePool.Lease takeDao() throws RepositoryException {
 		try {
-			return pool_hashCodes.take();
-		} catch (InterruptedException ex) {
-			log.log(Level.WARNING, "Couldn't obtain PubSub DAO from the pool", ex);
+			return connectionPool.take(connectionLeaseTimeout);
+		} catch (RepositoryException ex) {
+			log.log(Level.WARNING, "Couldn't obtain database connection from the pool", ex);
+			throw ex;
 		}
-		return null;
 	}
 
-	protected void offerDao(HashCode hash) {
-		if (hash != null && hash.canOffer()) {
-			pool_hashCodes.offer(hash);
+	protected void offerDao(ConnectionLeasePool.Lease hash) {
+		if (hash != null) {
+			connectionPool.release(hash);
+		}
+	}
+
+	// procedures removing items return result set with ids of removed items only if any item was removed
+	private String[] readRemovedItemsIds(PreparedStatement st) throws SQLException {
+		ResultSet rs = null;
+		try {
+			List<String> ids = new ArrayList<>();
+			if (st.execute()) {
+				rs = st.getResultSet();
+				while (rs.next()) {
+					ids.add(rs.getString(1));
+				}
+			}
+			return ids.toArray(new String[ids.size()]);
+		} finally {
+			release(null, rs);
 		}
 	}
 
@@ -1377,9 +2044,13 @@ public class PubSubDAOJDBC
 		data_repo.initPreparedStatement(GET_SERVICES_QUERY, GET_SERVICES_QUERY);
 		data_repo.initPreparedStatement(GET_NODE_ID_QUERY, GET_NODE_ID_QUERY);
 		data_repo.initPreparedStatement(GET_NODE_META_QUERY, GET_NODE_META_QUERY);
+		data_repo.initPreparedStatement(INCREMENT_NODE_VERSION_QUERY, INCREMENT_NODE_VERSION_QUERY);
 		data_repo.initPreparedStatement(GET_ITEM_QUERY, GET_ITEM_QUERY);
-		data_repo.initPreparedStatement(WRITE_ITEM_QUERY, WRITE_ITEM_QUERY);
+		data_repo.initPreparedStatement(UPSERT_ITEM_QUERY, UPSERT_ITEM_QUERY);
 		data_repo.initPreparedStatement(DELETE_ITEM_QUERY, DELETE_ITEM_QUERY);
+		data_repo.initPreparedStatement(TRIM_ITEMS_QUERY, TRIM_ITEMS_QUERY);
+		data_repo.initPreparedStatement(PURGE_ITEMS_QUERY, PURGE_ITEMS_QUERY);
+		data_repo.initPreparedStatement(DELETE_ITEMS_QUERY, DELETE_ITEMS_QUERY);
 		data_repo.initPreparedStatement(GET_NODE_ITEM_IDS_QUERY, GET_NODE_ITEM_IDS_QUERY);
 		data_repo.initPreparedStatement(GET_NODE_ITEM_IDS_SINCE_QUERY, GET_NODE_ITEM_IDS_SINCE_QUERY);
 		data_repo.initPreparedStatement(GET_NODE_ITEMS_META_QUERY, GET_NODE_ITEMS_META_QUERY);
@@ -1391,6 +2062,8 @@ public class PubSubDAOJDBC
 		data_repo.initPreparedStatement(SET_NODE_AFFILIATION_QUERY, SET_NODE_AFFILIATION_QUERY);
 		data_repo.initPreparedStatement(GET_NODE_AFFILIATIONS_QUERY, GET_NODE_AFFILIATIONS_QUERY);
 		data_repo.initPreparedStatement(GET_NODE_SUBSCRIPTIONS_QUERY, GET_NODE_SUBSCRIPTIONS_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_AFFILIATION_QUERY, GET_NODE_AFFILIATION_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_SUBSCRIPTION_QUERY, GET_NODE_SUBSCRIPTION_QUERY);
 		data_repo.initPreparedStatement(SET_NODE_SUBSCRIPTION_QUERY, SET_NODE_SUBSCRIPTION_QUERY);
 		data_repo.initPreparedStatement(DELETE_NODE_SUBSCRIPTIONS_QUERY, DELETE_NODE_SUBSCRIPTIONS_QUERY);
 		data_repo.initPreparedStatement(GET_USER_AFFILIATIONS_QUERY, GET_USER_AFFILIATIONS_QUERY);
@@ -1399,6 +2072,7 @@ public class PubSubDAOJDBC
 		data_repo.initPreparedStatement(COUNT_NODES_ITEMS_QUERY, COUNT_NODES_ITEMS_QUERY);
 		data_repo.initPreparedStatement(GET_NODES_ITEMS_QUERY, GET_NODES_ITEMS_QUERY);
 		data_repo.initPreparedStatement(GET_NODES_ITEMS_POSITION_QUERY, GET_NODES_ITEMS_POSITION_QUERY);
+		data_repo.initPreparedStatement(GET_NODES_ITEMS_PAGE_QUERY, GET_NODES_ITEMS_PAGE_QUERY);
 
 		data_repo.initPreparedStatement(mamAddItem, mamAddItem);
 		data_repo.initPreparedStatement(mamUpdateItem,mamUpdateItem);
@@ -1406,6 +2080,40 @@ public class PubSubDAOJDBC
 		data_repo.initPreparedStatement(mamQueryItems, mamQueryItems);
 		data_repo.initPreparedStatement(mamQueryItemPosition, mamQueryItemPosition);
 		data_repo.initPreparedStatement(mamQueryItemsCount, mamQueryItemsCount);
+		data_repo.initPreparedStatement(mamQueryItemsPage, mamQueryItemsPage);
+	}
+
+	private long incrementNodeVersion(PreparedStatement stmt, Long nodeId) throws SQLException {
+		ResultSet rs = null;
+		try {
+			stmt.setLong(1, nodeId);
+			rs = stmt.executeQuery();
+			return rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			release(null, rs);
+		}
+	}
+
+	private void executeOrAddBatch(PreparedStatement stmt, boolean batch) throws SQLException {
+		if (batch) {
+			stmt.addBatch();
+		} else if (data_repo.getDatabaseType() == DataRepository.dbTypes.mysql) {
+			release(null, stmt.executeQuery());
+		} else {
+			stmt.execute();
+		}
+	}
+
+	private void executeBatch(PreparedStatement stmt, boolean batch) throws SQLException {
+		if (batch) {
+			stmt.executeBatch();
+		}
+	}
+
+	private void clearBatch(PreparedStatement stmt, boolean batch) throws SQLException {
+		if (batch) {
+			stmt.clearBatch();
+		}
 	}
 
 	private void release(Statement stmt, ResultSet rs) {
@@ -1422,24 +2130,4 @@ public class PubSubDAOJDBC
 			}
 		}
 	}
-
-	private class HashCode {
-
-		private final int hash;
-		private final int repoHash;
-
-		public HashCode(DataRepository dataRepository, int connNo) {
-			hash = connNo;
-			repoHash = dataRepository.hashCode();
-		}
-
-		@Override
-		public int hashCode() {
-			return hash;
-		}
-
-		public boolean canOffer() {
-			return PubSubDAOJDBC.this.data_repo.hashCode() == repoHash;
-		}
-	}
 }
@@ -34,6 +34,7 @@ import tigase.pubsub.modules.mam.Query;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.server.BasicComponent;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.impl.roster.RosterElement;
 import tigase.xmpp.jid.BareJID;
@@ -159,6 +160,52 @@ public class PubSubDAOPool<T, S extends DataSource, Q extends PubSubQuery>
 		}
 	}
 
+	@Override
+	public String[] trimItems(BareJID serviceJid, T nodeId, int maxItems, CollectionItemsOrdering order)
+			throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		if (dao != null) {
+			try {
+				return dao.trimItems(serviceJid, nodeId, maxItems, order);
+			} finally {
+				offerDao(serviceJid, dao);
+			}
+		} else {
+			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+			return new String[0];
+		}
+	}
+
+	@Override
+	public String[] deleteItems(BareJID serviceJid, T nodeId, String[] ids) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		if (dao != null) {
+			try {
+				return dao.deleteItems(serviceJid, nodeId, ids);
+			} finally {
+				offerDao(serviceJid, dao);
+			}
+		} else {
+			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+			return new String[0];
+		}
+	}
+
+	@Override
+	public String[] purgeItems(BareJID serviceJid, T nodeId) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		if (dao != null) {
+			try {
+				return dao.purgeItems(serviceJid, nodeId);
+			} finally {
+				offerDao(serviceJid, dao);
+			}
+		} else {
+			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+			return new String[0];
+		}
+	}
+
 	@Override
 	public void deleteNode(BareJID serviceJid, T nodeId) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
@@ -181,6 +228,12 @@ public class PubSubDAOPool<T, S extends DataSource, Q extends PubSubQuery>
 		destroyed = true;
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		repositoriesStream().forEach(dao -> dao.getStatistics(compName, list));
+	}
+
 	@Override
 	public String[] getAllNodesList(BareJID serviceJid) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
@@ -369,6 +422,38 @@ public class PubSubDAOPool<T, S extends DataSource, Q extends PubSubQuery>
 		return null;
 	}
 
+	@Override
+	public UsersAffiliation getNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, BareJID jid)
+			throws RepositoryException {
+		IPubSubDAO<T, DataSource, Q> dao = takeDao(serviceJid);
+		if (dao != null) {
+			try {
+				return dao.getNodeAffiliation(serviceJid, nodeId, nodeName, jid);
+			} finally {
+				offerDao(serviceJid, dao);
+			}
+		} else {
+			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		}
+		return null;
+	}
+
+	@Override
+	public UsersSubscription getNodeSubscription(BareJID serviceJid, T nodeId, String nodeName, BareJID jid)
+			throws RepositoryException {
+		IPubSubDAO<T, DataSource, Q> dao = takeDao(serviceJid);
+		if (dao != null) {
+			try {
+				return dao.getNodeSubscription(serviceJid, nodeId, nodeName, jid);
+			} finally {
+				offerDao(serviceJid, dao);
+			}
+		} else {
+			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		}
+		return null;
+	}
+
 	@Override
 	public Map<String, UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID jid)
 			throws RepositoryException {
@@ -488,6 +573,21 @@ public class PubSubDAOPool<T, S extends DataSource, Q extends PubSubQuery>
 		return getRepository(serviceJid.getDomain());
 	}
 
+	@Override
+	public long incrementNodeVersion(BareJID serviceJid, T nodeId) throws RepositoryException {
+		IPubSubDAO<T, DataSource, Q> dao = takeDao(serviceJid);
+		if (dao != null) {
+			try {
+				return dao.incrementNodeVersion(serviceJid, nodeId);
+			} finally {
+				offerDao(serviceJid, dao);
+			}
+		} else {
+			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		}
+		return 0;
+	}
+
 	@Override
 	public void updateNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, UsersAffiliation affiliation)
 			throws RepositoryException {
@@ -533,6 +633,20 @@ public class PubSubDAOPool<T, S extends DataSource, Q extends PubSubQuery>
 		}
 	}
 
+	@Override
+	public void updateNodesChanges(BareJID serviceJid, List<NodeChanges<T>> changes) throws RepositoryException {
+		IPubSubDAO<T, S, Q> dao = takeDao(serviceJid);
+		if (dao != null) {
+			try {
+				dao.updateNodesChanges(serviceJid, changes);
+			} finally {
+				offerDao(serviceJid, dao);
+			}
+		} else {
+			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		}
+	}
+
 	@Override
 	public void writeItem(final BareJID serviceJid, T nodeId, long timeInMilis, final String id, final String publisher,
 						  final Element item, final String uuid) throws RepositoryException {
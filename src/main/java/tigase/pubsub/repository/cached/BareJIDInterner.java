@@ -0,0 +1,54 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.xmpp.jid.BareJID;
+
+/**
+ * Best-effort interner of <code>BareJID</code> instances kept by cached nodes.
+ *
+ * Subscriptions of the same user to many nodes are loaded from the database as separate (but equal) instances, so
+ * they are replaced with an instance recently seen by the interner. Interner is a fixed size, direct mapped table, so
+ * it does not keep any per-entry state and it never retains more than its size of instances.
+ */
+final class BareJIDInterner {
+
+	private static final int SIZE = 1 << 16;
+	private static final BareJID[] jids = new BareJID[SIZE];
+
+	static BareJID intern(BareJID jid) {
+		if (jid == null) {
+			return null;
+		}
+		int idx = spread(jid.hashCode()) & (SIZE - 1);
+		// BareJID is immutable, so racy reads and writes of the table are safe
+		BareJID interned = jids[idx];
+		if (interned != null && interned.equals(jid)) {
+			return interned;
+		}
+		jids[idx] = jid;
+		return jid;
+	}
+
+	static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private BareJIDInterner() {
+	}
+}
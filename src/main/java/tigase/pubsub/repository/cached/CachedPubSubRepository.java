@@ -20,13 +20,17 @@ package tigase.pubsub.repository.cached;
 import tigase.component.exceptions.ComponentException;
 import tigase.component.exceptions.RepositoryException;
 import tigase.db.DataSource;
+import tigase.eventbus.EventBus;
+import tigase.eventbus.HandleEvent;
 import tigase.form.Form;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.pubsub.*;
 import tigase.pubsub.exceptions.PubSubException;
+import tigase.pubsub.modules.PresenceCollectorModule;
 import tigase.pubsub.modules.ext.presence.PresenceNodeSubscriptions;
 import tigase.pubsub.modules.ext.presence.PresenceNotifierModule;
 import tigase.pubsub.modules.ext.presence.PresencePerNodeExtension;
@@ -36,6 +40,7 @@ import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.pubsub.utils.Cache;
 import tigase.pubsub.utils.LRUCacheWithFuture;
+import tigase.pubsub.utils.SegmentedLRUCache;
 import tigase.pubsub.utils.PubSubLogic;
 import tigase.stats.Counter;
 import tigase.stats.StatisticHolder;
@@ -52,6 +57,7 @@ import tigase.xmpp.rsm.RSM;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -65,9 +71,11 @@ import java.util.stream.Collectors;
  */
 @Bean(name = "repository", parent = PubSubComponent.class, active = true)
 public class CachedPubSubRepository<T>
-		implements IPubSubRepository, IExtenedMAMPubSubRepository, StatisticHolder, Initializable, IItems.IListnener {
+		implements IPubSubRepository, IExtenedMAMPubSubRepository, StatisticHolder, Initializable, UnregisterAware,
+			   IItems.IListnener {
 	
 	private final ConcurrentHashMap<BareJID, RootCollectionSet> rootCollection = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<BareJID, CollectionTree> collectionTrees = new ConcurrentHashMap<>();
 	@Inject
 	protected IPubSubConfig config;
 	@Inject
@@ -79,6 +87,41 @@ public class CachedPubSubRepository<T>
 	private StatisticHolder cacheStats;
 	@ConfigField(desc = "Delayed load of root nodes collections", alias = "delayed-root-collection-loading")
 	private boolean delayedRootCollectionLoading = false;
+	@ConfigField(desc = "Type of cache used for caching nodes", alias = "nodes-cache-type")
+	private NodesCacheType nodesCacheType = NodesCacheType.lru;
+	@ConfigField(desc = "Number of segments of nodes cache (only for segmented cache)", alias = "nodes-cache-segments")
+	private int nodesCacheSegments = SegmentedLRUCache.defaultSegmentsCount();
+	@ConfigField(desc = "Number of most recent items of a node kept in cache", alias = "node-items-cache-size")
+	private int nodeItemsCacheSize = 1;
+	@ConfigField(desc = "Maximal number of items of a node for which ids of items are kept in cache", alias = "node-items-ids-cache-limit")
+	private int nodeItemsIdsCacheLimit = 1000;
+	@ConfigField(desc = "Write changes of affiliations and subscriptions asynchronously in batches", alias = "write-behind")
+	private boolean writeBehind = false;
+	@ConfigField(desc = "Interval between writes of queued changes of affiliations and subscriptions (in ms)", alias = "write-behind-flush-interval")
+	private long writeBehindFlushInterval = 100;
+	@ConfigField(desc = "Number of queued changes of affiliations and subscriptions triggering immediate write", alias = "write-behind-flush-size")
+	private int writeBehindFlushSize = 1000;
+	@ConfigField(desc = "Maximal number of queued changes of affiliations and subscriptions, above which changes are written synchronously", alias = "write-behind-max-queue-size")
+	private int writeBehindMaxQueueSize = 100000;
+	@ConfigField(desc = "Maximal number of cached rosters of users (0 disables cache)", alias = "roster-cache-size")
+	private int rosterCacheSize = 1000;
+	@ConfigField(desc = "Time after which cached roster of a user is reloaded (in ms)", alias = "roster-cache-time")
+	private long rosterCacheTime = 60000;
+	@ConfigField(desc = "Interval between sending of updates of cached nodes to other cluster nodes (in ms)", alias = "cache-updates-flush-interval")
+	private long cacheUpdatesFlushInterval = 50;
+	@ConfigField(desc = "Number of waiting updates of cached nodes triggering immediate sending to other cluster nodes", alias = "cache-updates-flush-size")
+	private int cacheUpdatesFlushSize = 500;
+	@ConfigField(desc = "Load subscriptions and affiliations of a cached node on demand", alias = "lazy-node-loading")
+	private boolean lazyNodeLoading = true;
+	private RosterCache rosterCache;
+	private WriteBehindQueue<T> writeBehindQueue;
+	private NodeCacheUpdatesBroadcaster cacheUpdatesBroadcaster;
+	private final LongAdder cacheUpdatesReceived = new LongAdder();
+	private final LongAdder cacheUpdatesConflicts = new LongAdder();
+	private final LongAdder subscribersIndexRebuilds = new LongAdder();
+	private final LongAdder lazyAffiliationsLoads = new LongAdder();
+	private final LongAdder lazySubscriptionsLoads = new LongAdder();
+	private final LongAdder lazyPointLookups = new LongAdder();
 	private long nodes_added = 0;
 	@Inject(nullAllowed = true)
 	private PresenceNotifierModule presenceNotifierModule;
@@ -94,9 +137,15 @@ public class CachedPubSubRepository<T>
 	@Inject(nullAllowed = true)
 	private IListener listener;
 
+	@Inject(nullAllowed = true)
+	private EventBus eventBus;
+
 	@Inject(nullAllowed = true)
 	private NodeAffiliationProvider<T> nodeAffiliationProvider;
 
+	@Inject(nullAllowed = true)
+	private NodeCacheUpdatesChannel nodeCacheUpdatesChannel;
+
 	public CachedPubSubRepository() {
 
 	}
@@ -144,13 +193,18 @@ public class CachedPubSubRepository<T>
 
 		IAffiliationsCached nodeAffiliations = newNodeAffiliations(serviceJid, nodeName, nodeId, ()-> null);
 		ISubscriptionsCached nodeSubscriptions = newNodeSubscriptions(serviceJid, nodeName, nodeId, ()-> null);
-		IItems nodeItems = new Items(nodeId, serviceJid, nodeName, dao, this);
+		IItems nodeItems = newNodeItems(serviceJid, nodeName, nodeId);
 		
-		Node node = new Node(nodeId, serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, nodeItems, ownerJid, new Date());
+		Node node = new Node(nodeId, serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, nodeItems, ownerJid,
+							 new Date(), subscribersIndexRebuilds);
 
 		NodeKey key = createKey(serviceJid, nodeName);
 		this.nodes.putIfAbsent(key, node);
 
+		CollectionTree collectionTree = collectionTrees.get(serviceJid);
+		if (collectionTree != null) {
+			collectionTree.nodeCreated(nodeName, collection, !(nodeConfig instanceof LeafNodeConfig));
+		}
 		if (collection != null && !collection.equals("")) {
 			nodeCollectionChanged(serviceJid, nodeName, null, collection);
 		}
@@ -166,6 +220,8 @@ public class CachedPubSubRepository<T>
 		++nodes_added;
 		nodesCount.incrementAndGet();
 		writingTime += (end - start);
+
+		sendCacheUpdate(NodeCacheUpdate.nodeCreated(serviceJid, nodeName, collection));
 	}
 
 	@Override
@@ -186,19 +242,44 @@ public class CachedPubSubRepository<T>
 			throw new RepositoryException("Node does not exists!");
 		}
 
+		if (writeBehindQueue != null) {
+			writeBehindQueue.discard(key::equals);
+		}
 		this.dao.deleteNode(serviceJid, node.getNodeId());
 
 		node.setDeleted(true);
 
 		this.nodes.remove(key);
 		nodesCount.decrementAndGet();
+		CollectionTree collectionTree = collectionTrees.get(serviceJid);
+		if (collectionTree != null) {
+			collectionTree.nodeRemoved(nodeName);
+		}
+
+		sendCacheUpdate(NodeCacheUpdate.nodeRemoved(serviceJid, nodeName, node.getNodeConfigSnapshot().getCollection()));
 	}
 	
 	@Override
-	public void destroy() {
+	public void beforeUnregister() {
+		destroy();
+	}
 
-		// No resources have been allocated by the init, but some resources
-		// have been allocated in the contructor....
+	@Override
+	public void destroy() {
+		if (eventBus != null) {
+			eventBus.unregisterAll(this);
+		}
+		// queued changes need to be written before repository is dropped
+		WriteBehindQueue<T> queue = writeBehindQueue;
+		writeBehindQueue = null;
+		if (queue != null) {
+			queue.stop();
+		}
+		NodeCacheUpdatesBroadcaster broadcaster = cacheUpdatesBroadcaster;
+		cacheUpdatesBroadcaster = null;
+		if (broadcaster != null) {
+			broadcaster.stop();
+		}
 	}
 
 	@Override
@@ -232,16 +313,31 @@ public class CachedPubSubRepository<T>
 		if (config != null) {
 			Node node = getNodeFromCache(serviceJID, nodeName);
 			if (node != null) {
-				synchronized (node) {
-					node.getNodeConfig().copyFromForm(config);
-				}
+				node.configCopyFromForm(config);
 			}
+			nodeMovedRemotely(serviceJID, nodeName, config);
 		} else {
 			nodes.remove(new NodeKey(serviceJID, nodeName));
+			// collection of the node might have been changed as well
+			CollectionTree collectionTree = collectionTrees.get(serviceJID);
+			if (collectionTree != null) {
+				try {
+					collectionTree.nodeInvalidated(nodeName);
+				} catch (RepositoryException ex) {
+					log.log(Level.WARNING, "failed to reload collection of node " + nodeName + " of service " +
+							serviceJID, ex);
+				}
+			}
 		}
 	}
 
 	public String[] getChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException {
+		CollectionTree collectionTree = getCollectionTree(serviceJid);
+		if (collectionTree != null) {
+			String[] children = collectionTree.getChildren(nodeName);
+			return children == null ? new String[0] : children;
+		}
+
 		Node node = this.getNode(serviceJid, nodeName);
 		if (node == null) {
 			return new String[0];
@@ -278,6 +374,21 @@ public class CachedPubSubRepository<T>
 		}
 	}
 
+	@Override
+	public NodeConfigSnapshot getNodeConfigSnapshot(BareJID serviceJid, String nodeName) throws RepositoryException {
+		Node node = getNode(serviceJid, nodeName);
+		return (node == null) ? null : node.getNodeConfigSnapshot();
+	}
+
+	@Override
+	public String[] getNodeAncestors(BareJID serviceJid, String nodeName) throws RepositoryException {
+		CollectionTree collectionTree = getCollectionTree(serviceJid);
+		if (collectionTree == null) {
+			return IExtenedMAMPubSubRepository.super.getNodeAncestors(serviceJid, nodeName);
+		}
+		return collectionTree.getAncestors(nodeName);
+	}
+
 	@Override
 	public INodeMeta getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException {
 		return getNode(serviceJid, nodeName);
@@ -299,7 +410,7 @@ public class CachedPubSubRepository<T>
 			throws ComponentException, RepositoryException {
 		List<Node<T>> nodes = getNodeAndSubnodes(serviceJid, nodeName,
 												 node -> hasAccessPermission(node, requester, PubSubLogic.Action.retrieveItems),
-												 node -> (node.getNodeConfig() instanceof LeafNodeConfig));
+												 node -> node.getNodeConfigSnapshot().isLeaf());
 
 		if (nodes.isEmpty()) {
 			rsm.setIndex(0);
@@ -308,7 +419,7 @@ public class CachedPubSubRepository<T>
 		}
 
 		List<T> nodeIds = nodes.stream().map(node -> node.getNodeId()).collect(Collectors.toList());
-		return dao.getItems(serviceJid, nodeIds, after, before, rsm, getNode(serviceJid, nodeName).getNodeConfig().getCollectionItemsOrdering());
+		return dao.getItems(serviceJid, nodeIds, after, before, rsm, getNode(serviceJid, nodeName).getNodeConfigSnapshot().getCollectionItemsOrdering());
 	}
 
 	@Override
@@ -334,6 +445,21 @@ public class CachedPubSubRepository<T>
 		}
 	}
 
+	@Override
+	public Collection<JID> getActiveSubscribers(BareJID serviceJid, String nodeName) throws RepositoryException {
+		if (presenceNotifierModule != null && presenceNotifierModule.getPresencePerNodeExtension() != null) {
+			// subscriptions based on presence per node are not indexed
+			return null;
+		}
+		Node<T> node = getNode(serviceJid, nodeName);
+		try {
+			return (node == null) ? null : node.getSubscribersIndex().getActiveSubscribers();
+		} catch (LazyLoadingException ex) {
+			// subscriptions of the node could not be loaded to rebuild the index
+			throw ex.getCause();
+		}
+	}
+
 	@Override
 	public long getNodesCount(BareJID serviceJID) throws RepositoryException {
 		if (serviceJID != null) {
@@ -386,8 +512,10 @@ public class CachedPubSubRepository<T>
 		long subscriptionsCount = 0;
 		long affiliationsCount = 0;
 		
-		affiliationsCount += nodes.values().map(Node::getNodeAffiliations).mapToInt(IAffiliations::size).sum();
-		subscriptionsCount += nodes.values().map(Node::getNodeSubscriptions).mapToInt(ISubscriptions::size).sum();
+		// only affiliations and subscriptions kept in memory are counted, so statistics do not trigger loading of them
+		affiliationsCount += nodes.values().map(Node::getNodeAffiliations).mapToInt(IAffiliationsCached::cachedSize).sum();
+		subscriptionsCount += nodes.values().map(Node::getNodeSubscriptions).mapToInt(ISubscriptionsCached::cachedSize).sum();
+		long subscribersIndexSize = nodes.values().map(Node::getSubscribersIndex).mapToInt(NodeSubscribersIndex::size).sum();
 
 		if (updateSubscriptionsCalled > 0) {
 			stats.add(name, "Update subscriptions calls", updateSubscriptionsCalled, Level.FINE);
@@ -407,6 +535,14 @@ public class CachedPubSubRepository<T>
 			stats.add(name, "Affiliations count (in cache)", affiliationsCount, Level.FINEST);
 		}
 
+		stats.add(name, "Subscribers index size (in cache)", subscribersIndexSize, Level.FINE);
+		stats.add(name, "Subscribers index rebuilds", subscribersIndexRebuilds.sum(), Level.FINE);
+		if (lazyNodeLoading) {
+			stats.add(name, "Affiliations of nodes loaded on demand", lazyAffiliationsLoads.sum(), Level.FINE);
+			stats.add(name, "Subscriptions of nodes loaded on demand", lazySubscriptionsLoads.sum(), Level.FINE);
+			stats.add(name, "Point lookups of affiliations and subscriptions", lazyPointLookups.sum(), Level.FINE);
+		}
+
 		if (repo_writes > 0) {
 			stats.add(name, "Repository writes", repo_writes, Level.FINE);
 		} else {
@@ -438,6 +574,20 @@ public class CachedPubSubRepository<T>
 
 		cacheStats.getStatistics(name, stats);
 
+		if (rosterCache != null) {
+			rosterCache.getStatistics(name, stats);
+		}
+
+		if (writeBehindQueue != null) {
+			writeBehindQueue.getStatistics(name, stats);
+		}
+
+		if (cacheUpdatesBroadcaster != null) {
+			cacheUpdatesBroadcaster.getStatistics(name, stats);
+			stats.add(name, "cache-updates/received updates", cacheUpdatesReceived.sum(), Level.FINE);
+			stats.add(name, "cache-updates/evicted on conflict", cacheUpdatesConflicts.sum(), Level.FINE);
+		}
+
 		for (StatisticHolder holder : this.stats.values()) {
 			holder.getStatistics(name, stats);
 		}
@@ -452,17 +602,48 @@ public class CachedPubSubRepository<T>
 				return results;
 			}
 		}
+		flushWriteBehindQueue();
 		return this.dao.getUserAffiliations(serviceJid, jid);
 	}
 
 	@Override
 	public Map<BareJID, RosterElement> getUserRoster(BareJID owner) throws RepositoryException {
+		RosterCache rosterCache = this.rosterCache;
+		if (rosterCache == null) {
+			return this.dao.getUserRoster(owner);
+		}
+		return rosterCache.getRoster(owner, () -> this.dao.getUserRoster(owner)).getRoster();
+	}
+
+	@Override
+	public Set<BareJID> getUserRosterGroup(BareJID owner, String group) throws RepositoryException {
+		RosterCache rosterCache = this.rosterCache;
+		if (rosterCache == null) {
+			return IExtenedMAMPubSubRepository.super.getUserRosterGroup(owner, group);
+		}
+		return rosterCache.getRoster(owner, () -> this.dao.getUserRoster(owner)).getGroup(group);
+	}
+
+	@Override
+	public Map<BareJID, RosterElement> readUserRoster(BareJID owner) throws RepositoryException {
 		return this.dao.getUserRoster(owner);
 	}
 
+	@HandleEvent
+	public void onRosterChanged(PresenceCollectorModule.RosterChangedEvent event) {
+		RosterCache rosterCache = this.rosterCache;
+		if (rosterCache == null || !event.componentName.equals(config.getComponentName())) {
+			return;
+		}
+		// subscription state is changed on both sides
+		rosterCache.invalidate(event.serviceJid);
+		rosterCache.invalidate(event.buddyJid);
+	}
+
 	@Override
 	public Map<String, UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid)
 			throws RepositoryException {
+		flushWriteBehindQueue();
 		return this.dao.getUserSubscriptions(serviceJid, userJid);
 	}
 
@@ -475,17 +656,39 @@ public class CachedPubSubRepository<T>
 	public void initialize() {
 		Integer maxCacheSize = config.getMaxCacheSize();
 
-		Cache<NodeKey, Node> cache = new LRUCacheWithFuture<>(maxCacheSize);
+		Cache<NodeKey, Node> cache = newNodesCache(maxCacheSize);
 		cacheStats = cache;
 		nodes = cache;
 
 		// Runtime.getRuntime().addShutdownHook(makeLazyWriteThread(true));
 		log.config(
-				"Initializing Cached Repository with cache size = " + ((maxCacheSize == null) ? "OFF" : maxCacheSize));
+				"Initializing Cached Repository with cache size = " + ((maxCacheSize == null) ? "OFF" : maxCacheSize) +
+						", cache type = " + nodesCacheType);
 
 		this.stats = new ConcurrentHashMap<String, StatisticHolder>();
 		stats.put("getNodeItems", new StatisticHolderImpl("db/getNodeItems requests"));
 
+		if (writeBehind) {
+			writeBehindQueue = new WriteBehindQueue<>(dao, writeBehindFlushInterval, writeBehindFlushSize,
+													  writeBehindMaxQueueSize,
+													  nodeCacheUpdatesChannel == null ? null : this::changesWritten);
+			writeBehindQueue.start();
+		}
+
+		if (rosterCacheSize > 0) {
+			rosterCache = new RosterCache(rosterCacheSize, rosterCacheTime);
+		}
+
+		if (nodeCacheUpdatesChannel != null) {
+			cacheUpdatesBroadcaster = new NodeCacheUpdatesBroadcaster(nodeCacheUpdatesChannel,
+																	  cacheUpdatesFlushInterval,
+																	  cacheUpdatesFlushSize);
+			cacheUpdatesBroadcaster.start();
+		}
+		if (eventBus != null) {
+			eventBus.registerAll(this);
+		}
+
 		// Thread.dumpStack();
 
 	}
@@ -498,7 +701,7 @@ public class CachedPubSubRepository<T>
 		JID requester = query.getQuestionerJID();
 
 		Node<T> node = getNode(serviceJid, query.getPubsubNode());
-		if (node != null && !(node.getNodeConfig() instanceof LeafNodeConfig)) {
+		if (node != null && !node.getNodeConfigSnapshot().isLeaf()) {
 			throw new PubSubException(Authorization.FEATURE_NOT_IMPLEMENTED);
 		}
 		pubSubLogic.checkPermission(serviceJid, query.getPubsubNode(), requester, PubSubLogic.Action.retrieveItems);
@@ -540,7 +743,7 @@ public class CachedPubSubRepository<T>
 		Node node = getNode(serviceJid, nodeName);
 
 		if (node != null) {
-			String oldCollection = node.getNodeConfig().getCollection();
+			String oldCollection = node.getNodeConfigSnapshot().getCollection();
 			synchronized (node) {
 				node.configCopyFrom(nodeConfig);
 			}
@@ -602,8 +805,13 @@ public class CachedPubSubRepository<T>
 
 	@Override
 	public void deleteService(BareJID userJid) throws RepositoryException {
+		flushWriteBehindQueue();
 		dao.deleteService(userJid);
+		if (rosterCache != null) {
+			rosterCache.invalidate(userJid);
+		}
 		serviceRemoved(userJid);
+		sendCacheUpdate(NodeCacheUpdate.serviceRemoved(userJid));
 	}
 
 	@Override
@@ -655,6 +863,7 @@ public class CachedPubSubRepository<T>
 		if (listener != null) {
 			listener.itemWritten(serviceJID, node, id, publisher, item, uuid);
 		}
+		sendItemsChanged(serviceJID, node);
 	}
 
 	@Override
@@ -662,6 +871,24 @@ public class CachedPubSubRepository<T>
 		if (listener != null) {
 			listener.itemDeleted(serviceJID, node, id);
 		}
+		sendItemsChanged(serviceJID, node);
+	}
+
+	@Override
+	public void itemsDeleted(BareJID serviceJID, String node, String[] ids) {
+		if (listener != null) {
+			listener.itemsDeleted(serviceJID, node, ids);
+		}
+		sendItemsChanged(serviceJID, node);
+	}
+
+	protected Cache<NodeKey, Node> newNodesCache(Integer maxCacheSize) {
+		switch (nodesCacheType) {
+			case segmented:
+				return new LRUCacheWithFuture<>(new SegmentedLRUCache<>(maxCacheSize, nodesCacheSegments));
+			default:
+				return new LRUCacheWithFuture<>(maxCacheSize);
+		}
 	}
 
 	protected NodeKey createKey(BareJID serviceJid, String nodeName) {
@@ -689,6 +916,8 @@ public class CachedPubSubRepository<T>
 	}
 
 	protected Node loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+		// node could be evicted from cache before its changes were written
+		flushWriteBehindQueue(serviceJid, nodeName);
 		INodeMeta<T> nodeMeta = this.dao.getNodeMeta(serviceJid, nodeName);
 		if (nodeMeta == null) {
 			if (log.isLoggable(Level.FINEST)) {
@@ -708,13 +937,22 @@ public class CachedPubSubRepository<T>
 			return null;
 		}
 
-		IAffiliationsCached nodeAffiliations = newNodeAffiliations(serviceJid, nodeName, nodeMeta.getNodeId(), ()-> this.dao.getNodeAffiliations(serviceJid, nodeMeta.getNodeId()));
-		ISubscriptionsCached nodeSubscriptions = newNodeSubscriptions(serviceJid, nodeName, nodeMeta.getNodeId(), ()-> this.dao.getNodeSubscriptions(serviceJid, nodeMeta.getNodeId()));
-		Items nodeItems = new Items(nodeMeta.getNodeId(), serviceJid, nodeName, dao, this);
+		// affiliations and subscriptions may be loaded later, so changes waiting for write need to be written first
+		final T nodeId = nodeMeta.getNodeId();
+		IAffiliationsCached nodeAffiliations = newNodeAffiliations(serviceJid, nodeName, nodeId, () -> {
+			flushWriteBehindQueue(serviceJid, nodeName);
+			return this.dao.getNodeAffiliations(serviceJid, nodeId);
+		}, jid -> this.dao.getNodeAffiliation(serviceJid, nodeId, nodeName, jid));
+		ISubscriptionsCached nodeSubscriptions = newNodeSubscriptions(serviceJid, nodeName, nodeId, () -> {
+			flushWriteBehindQueue(serviceJid, nodeName);
+			return this.dao.getNodeSubscriptions(serviceJid, nodeId);
+		}, jid -> this.dao.getNodeSubscription(serviceJid, nodeId, nodeName, jid));
+		IItems nodeItems = newNodeItems(serviceJid, nodeName, nodeMeta.getNodeId());
 
 
 		Node node = new Node(nodeMeta.getNodeId(), serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions,
-						nodeItems, nodeMeta.getCreator(), nodeMeta.getCreationTime());
+						nodeItems, nodeMeta.getCreator(), nodeMeta.getCreationTime(), subscribersIndexRebuilds);
+		node.setVersion(nodeMeta.getVersion());
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST,
 					"Getting node[2], serviceJid: {0}, nodeName: {1}, node: {2}, nodeAffiliations {3}, nodeSubscriptions: {4}",
@@ -725,24 +963,78 @@ public class CachedPubSubRepository<T>
 	}
 
 	protected IAffiliationsCached newNodeAffiliations(BareJID serviceJid, String nodeName, T nodeId, RepositorySupplier<Map<BareJID, UsersAffiliation>> affiliationSupplier) throws RepositoryException {
+		return newNodeAffiliations(serviceJid, nodeName, nodeId, affiliationSupplier, null);
+	}
+
+	/**
+	 * Creates affiliations of a node. If <code>affiliationLookup</code> is provided and lazy loading is enabled,
+	 * affiliations are loaded on demand.
+	 */
+	protected IAffiliationsCached newNodeAffiliations(BareJID serviceJid, String nodeName, T nodeId,
+													  RepositorySupplier<Map<BareJID, UsersAffiliation>> affiliationSupplier,
+													  RepositoryLookup<BareJID, UsersAffiliation> affiliationLookup)
+			throws RepositoryException {
 		if (nodeAffiliationProvider != null) {
 			IAffiliationsCached affiliationsCached = nodeAffiliationProvider.newNodeAffiliations(serviceJid, nodeName, nodeId, affiliationSupplier);
 			if (affiliationsCached != null) {
 				return affiliationsCached;
 			}
 		}
+		if (lazyNodeLoading && affiliationLookup != null) {
+			return new LazyNodeAffiliations(affiliationSupplier, affiliationLookup, lazyAffiliationsLoads,
+											lazyPointLookups);
+		}
 		return new NodeAffiliations(affiliationSupplier.get());
 	}
 
 	protected ISubscriptionsCached newNodeSubscriptions(BareJID serviceJid, String nodeName, T nodeId, RepositorySupplier<Map<BareJID, UsersSubscription>> subscriptionsSupplier) throws RepositoryException {
+		return newNodeSubscriptions(serviceJid, nodeName, nodeId, subscriptionsSupplier, null);
+	}
+
+	/**
+	 * Creates subscriptions of a node. If <code>subscriptionLookup</code> is provided and lazy loading is enabled,
+	 * subscriptions are loaded on demand.
+	 */
+	protected ISubscriptionsCached newNodeSubscriptions(BareJID serviceJid, String nodeName, T nodeId,
+														RepositorySupplier<Map<BareJID, UsersSubscription>> subscriptionsSupplier,
+														RepositoryLookup<BareJID, UsersSubscription> subscriptionLookup)
+			throws RepositoryException {
+		if (lazyNodeLoading && subscriptionLookup != null) {
+			return new LazyNodeSubscriptions(subscriptionsSupplier, subscriptionLookup, lazySubscriptionsLoads,
+											 lazyPointLookups);
+		}
 		return new NodeSubscriptions(subscriptionsSupplier.get());
 	}
 
+	protected IItems newNodeItems(BareJID serviceJid, String nodeName, T nodeId) {
+		ItemsCache itemsCache = null;
+		if (nodeItemsCacheSize > 0 || nodeItemsIdsCacheLimit > 0) {
+			itemsCache = new ItemsCache(nodeItemsCacheSize, nodeItemsIdsCacheLimit);
+		}
+		return new Items(nodeId, serviceJid, nodeName, dao, this, itemsCache);
+	}
+
 	protected Node getNodeFromCache(BareJID serviceJid, String nodeName) {
 		NodeKey key = createKey(serviceJid, nodeName);
 		return this.nodes.get(key);
 	}
 
+	/**
+	 * Returns index of collections hierarchy of a service or <code>null</code> if it is not kept for this service
+	 * (PEP services).
+	 */
+	protected CollectionTree getCollectionTree(BareJID serviceJid) {
+		if (pubSubLogic.isServiceJidPEP(serviceJid)) {
+			return null;
+		}
+		CollectionTree collectionTree = collectionTrees.get(serviceJid);
+		if (collectionTree == null) {
+			collectionTree = collectionTrees.computeIfAbsent(serviceJid, jid -> new CollectionTree(
+					name -> getNodeConfigSnapshot(jid, name), name -> dao.getChildNodes(jid, name)));
+		}
+		return collectionTree;
+	}
+
 	protected RootCollectionSetIfc getRootCollectionSet(BareJID serviceJid) throws RepositoryException {
 		RootCollectionSet rootCollection = this.rootCollection.get(serviceJid);
 		if (log.isLoggable(Level.FINEST)) {
@@ -789,8 +1081,7 @@ public class CachedPubSubRepository<T>
 		if (filter != null && filter.test(node)) {
 			result.add(node);
 		}
-		AbstractNodeConfig nodeConfig = node.getNodeConfig();
-		if (nodeConfig instanceof CollectionNodeConfig) {
+		if (!node.getNodeConfigSnapshot().isLeaf()) {
 			String[] childNodes = getChildNodes(serviceJid, nodeName);
 			if (childNodes != null) {
 				for (String child : childNodes) {
@@ -823,6 +1114,7 @@ public class CachedPubSubRepository<T>
 		}
 		if (!pubSubLogic.isServiceJidPEP(userJid)) {
 			rootCollection.remove(userJid);
+			collectionTrees.remove(userJid);
 		}
 		boolean isPEP = pubSubLogic.isServiceJidPEP(userJid);
 		NodeKey[] keys = this.nodes.keySet().toArray(new NodeKey[0]);
@@ -834,10 +1126,10 @@ public class CachedPubSubRepository<T>
 				if (node != null) {
 					ISubscriptionsCached nodeSubscriptions = node.getNodeSubscriptions();
 					nodeSubscriptions.changeSubscription(userJid, Subscription.none);
-					nodeSubscriptions.merge();
+					node.subscriptionsMerge();
 					IAffiliationsCached nodeAffiliations = node.getNodeAffiliations();
 					nodeAffiliations.changeAffiliation(userJid, Affiliation.none);
-					nodeAffiliations.merge();
+					node.affiliationsMerge();
 				}
 			}
 		}
@@ -845,6 +1137,10 @@ public class CachedPubSubRepository<T>
 
 	protected void nodeCollectionChanged(BareJID serviceJid, String nodeName, String oldCollection,
 										 String newCollection) {
+		CollectionTree collectionTree = collectionTrees.get(serviceJid);
+		if (collectionTree != null) {
+			collectionTree.nodeMoved(nodeName, newCollection);
+		}
 		if (oldCollection != null && !"".equals(oldCollection)) {
 			Node colNode = getNodeFromCache(serviceJid, oldCollection);
 			if (colNode != null) {
@@ -864,6 +1160,9 @@ public class CachedPubSubRepository<T>
 
 		++repo_writes;
 
+		NodeCacheUpdate cacheUpdate = null;
+		NodeChanges<T> versionedChanges = null;
+
 		// Prevent node modifications while it is being written to DB
 		// From 3.0.0 this should not be needed as we keep changes to the
 		// node per thread
@@ -877,8 +1176,19 @@ public class CachedPubSubRepository<T>
 				log.log(Level.FINEST, "Saving node: {0}", new Object[]{node});
 			}
 
+			if (cacheUpdatesBroadcaster != null) {
+				// changes are written together with increased version of the node, which is sent with them to other
+				// cluster nodes, so they may apply changes in order in which they were stored
+				cacheUpdate = NodeCacheUpdate.nodeChanged(node.getServiceJid(), node.getName());
+				versionedChanges = new NodeChanges<>(node.getNodeId(), node.getName());
+				versionedChanges.setVersioned(true);
+			}
+
+			boolean configChanged = false;
+			boolean affiliationsChanged = false;
+			boolean subscriptionsChanged = false;
 			if (node.configNeedsWriting()) {
-				String collection = node.getNodeConfig().getCollection();
+				String collection = node.getNodeConfigSnapshot().getCollection();
 				T collectionId = null;
 				if (collection != null && !collection.equals("")) {
 					Node<T> collectionNode = getNode(node.getServiceJid(), collection);
@@ -887,18 +1197,52 @@ public class CachedPubSubRepository<T>
 					}
 					collectionId = collectionNode.getNodeId();
 				}
-				dao.updateNodeConfig(node.getServiceJid(), node.getNodeId(),
-									 node.getNodeConfig().getFormElement().toString(), collectionId);
-				node.configSaved();
+				Element configForm = node.getNodeConfig().getFormElement();
+				if (versionedChanges != null) {
+					versionedChanges.configChanged(configForm.toString(), collectionId);
+					cacheUpdate.configChanged(configForm);
+					configChanged = true;
+				} else {
+					dao.updateNodeConfig(node.getServiceJid(), node.getNodeId(), configForm.toString(),
+										 collectionId);
+					node.configSaved();
+				}
+			}
+
+			if (writeBehindQueue != null && (node.affiliationsNeedsWriting() || node.subscriptionsNeedsWriting())) {
+				Collection<UsersAffiliation> changedAffiliations = node.affiliationsNeedsWriting()
+																   ? node.getNodeAffiliations().getChanged().values()
+																   : null;
+				Collection<UsersSubscription> changedSubscriptions = node.subscriptionsNeedsWriting()
+																	 ? node.getNodeSubscriptions().getChanged().values()
+																	 : null;
+				// changes are sent to other cluster nodes after they are written
+				writeBehindQueue.add(createKey(node.getServiceJid(), node.getName()), node.getNodeId(),
+									 changedAffiliations, changedSubscriptions);
+				if (changedAffiliations != null) {
+					node.affiliationsSaved();
+				}
+				if (changedSubscriptions != null) {
+					node.subscriptionsSaved();
+				}
 			}
 
 			if (node.affiliationsNeedsWriting()) {
 				Map<BareJID, UsersAffiliation> changedAffiliations = node.getNodeAffiliations().getChanged();
 				for (Map.Entry<BareJID, UsersAffiliation> entry : changedAffiliations.entrySet()) {
-					dao.updateNodeAffiliation(node.getServiceJid(), node.getNodeId(), node.getName(),
-											  entry.getValue());
+					if (versionedChanges != null) {
+						versionedChanges.affiliationChanged(entry.getValue());
+						cacheUpdate.affiliationChanged(entry.getValue());
+					} else {
+						dao.updateNodeAffiliation(node.getServiceJid(), node.getNodeId(), node.getName(),
+												  entry.getValue());
+					}
+				}
+				if (versionedChanges != null) {
+					affiliationsChanged = true;
+				} else {
+					node.affiliationsSaved();
 				}
-				node.affiliationsSaved();
 			}
 
 			if (node.subscriptionsNeedsWriting()) {
@@ -920,14 +1264,36 @@ public class CachedPubSubRepository<T>
 				Map<BareJID, UsersSubscription> changedSubscriptions = node.getNodeSubscriptions().getChanged();
 				for (Map.Entry<BareJID, UsersSubscription> entry : changedSubscriptions.entrySet()) {
 					UsersSubscription subscription = entry.getValue();
-					if (subscription.getSubscription() == Subscription.none) {
+					if (versionedChanges != null) {
+						versionedChanges.subscriptionChanged(subscription);
+						cacheUpdate.subscriptionChanged(subscription);
+					} else if (subscription.getSubscription() == Subscription.none) {
 						dao.removeNodeSubscription(node.getServiceJid(), node.getNodeId(), subscription.getJid());
 					} else {
 						dao.updateNodeSubscription(node.getServiceJid(), node.getNodeId(), node.getName(),
 												   subscription);
 					}
 				}
-				node.subscriptionsSaved();
+				if (versionedChanges != null) {
+					subscriptionsChanged = true;
+				} else {
+					node.subscriptionsSaved();
+				}
+			}
+
+			if (versionedChanges != null && (configChanged || affiliationsChanged || subscriptionsChanged)) {
+				if (!versionedChanges.isEmpty()) {
+					dao.updateNodesChanges(node.getServiceJid(), Collections.singletonList(versionedChanges));
+				}
+				if (configChanged) {
+					node.configSaved();
+				}
+				if (affiliationsChanged) {
+					node.affiliationsSaved();
+				}
+				if (subscriptionsChanged) {
+					node.subscriptionsSaved();
+				}
 			}
 		} catch (Exception e) {
 			log.log(Level.WARNING, "Problem saving pubsub data: ", e);
@@ -943,6 +1309,10 @@ public class CachedPubSubRepository<T>
 			throw new RepositoryException("Problem saving pubsub data", e);
 		}
 
+		if (cacheUpdate != null && !cacheUpdate.isEmpty()) {
+			nodeChangesWritten(cacheUpdate, versionedChanges.getVersion());
+		}
+
 		// If the node still needs writing to the database put
 		// it back to the collection
 		if (node.needsWriting()) {
@@ -964,6 +1334,240 @@ public class CachedPubSubRepository<T>
 		writingTime += (end - start);
 	}
 
+	protected void flushWriteBehindQueue() {
+		WriteBehindQueue<T> queue = writeBehindQueue;
+		if (queue != null) {
+			queue.flush();
+		}
+	}
+
+	protected void flushWriteBehindQueue(BareJID serviceJid, String nodeName) throws RepositoryException {
+		WriteBehindQueue<T> queue = writeBehindQueue;
+		if (queue != null) {
+			queue.flush(createKey(serviceJid, nodeName));
+		}
+	}
+
+	/**
+	 * Sends changes of the node stored in the database together with the given version of the node to other cluster
+	 * nodes. If cached node is not at the preceding version, changes stored by other cluster node were not applied to
+	 * it yet, so it is removed from cache and will be reloaded from the database.
+	 */
+	protected void nodeChangesWritten(NodeCacheUpdate update, long version) {
+		update.setVersion(version);
+		Node<T> node = getNodeFromCache(update.getServiceJid(), update.getNode());
+		if (node != null && version > 0 && !node.updateVersion(version - 1, version)) {
+			cacheUpdatesConflicts.increment();
+			this.nodes.remove(createKey(update.getServiceJid(), update.getNode()), node);
+		}
+		sendCacheUpdate(update);
+	}
+
+	/**
+	 * Applies updates of nodes made on other cluster node to cached nodes. Updates of nodes which are not cached are
+	 * ignored, except of changes of their collections, which are recorded in collections hierarchy. Changes are applied only in order of versions of the node stored with them, so node which misses
+	 * changes with preceding versions or has changes not written yet is removed from cache and will be reloaded from
+	 * the database.
+	 */
+	public void nodeCacheUpdatesReceived(Collection<NodeCacheUpdate> updates) {
+		for (NodeCacheUpdate update : updates) {
+			cacheUpdatesReceived.increment();
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Applying update of cached node: {0}", new Object[]{update});
+			}
+			switch (update.getType()) {
+				case serviceRemoved:
+					serviceRemoved(update.getServiceJid());
+					break;
+				case created:
+					if (update.isReplaced()) {
+						nodeRemovedRemotely(update.getServiceJid(), update.getNode(), update.getReplacedCollection());
+					}
+					nodeCreatedRemotely(update.getServiceJid(), update.getNode(), update.getCollection());
+					break;
+				case removed:
+					nodeRemovedRemotely(update.getServiceJid(), update.getNode(), update.getCollection());
+					break;
+				case changed:
+					nodeChangedRemotely(update);
+					break;
+			}
+		}
+	}
+
+	protected void flushCacheUpdates() {
+		NodeCacheUpdatesBroadcaster broadcaster = cacheUpdatesBroadcaster;
+		if (broadcaster != null) {
+			broadcaster.flush();
+		}
+	}
+
+	protected void sendCacheUpdate(NodeCacheUpdate update) {
+		NodeCacheUpdatesBroadcaster broadcaster = cacheUpdatesBroadcaster;
+		if (broadcaster != null) {
+			broadcaster.add(update);
+		}
+	}
+
+	private void sendItemsChanged(BareJID serviceJid, String nodeName) {
+		if (cacheUpdatesBroadcaster != null) {
+			NodeCacheUpdate update = NodeCacheUpdate.nodeChanged(serviceJid, nodeName);
+			update.itemsChanged();
+			sendCacheUpdate(update);
+		}
+	}
+
+	private void nodeCreatedRemotely(BareJID serviceJid, String nodeName, String collection) {
+		nodesCount.incrementAndGet();
+		CollectionTree collectionTree = collectionTrees.get(serviceJid);
+		if (collectionTree != null) {
+			collectionTree.nodeCreated(nodeName, collection, null);
+		}
+		if (collection != null) {
+			nodeCollectionChanged(serviceJid, nodeName, null, collection);
+		} else {
+			rootCollectionChanged(serviceJid, nodeName, true);
+		}
+	}
+
+	private void nodeRemovedRemotely(BareJID serviceJid, String nodeName, String collection) {
+		Node node = this.nodes.remove(createKey(serviceJid, nodeName));
+		if (node != null) {
+			node.setDeleted(true);
+			collection = node.getNodeConfigSnapshot().getCollection();
+		}
+		if (writeBehindQueue != null) {
+			writeBehindQueue.discard(createKey(serviceJid, nodeName)::equals);
+		}
+		nodesCount.decrementAndGet();
+		if (collection != null && !collection.isEmpty()) {
+			nodeCollectionChanged(serviceJid, nodeName, collection, null);
+		} else {
+			rootCollectionChanged(serviceJid, nodeName, false);
+		}
+		CollectionTree collectionTree = collectionTrees.get(serviceJid);
+		if (collectionTree != null) {
+			collectionTree.nodeRemoved(nodeName);
+		}
+	}
+
+	private void nodeChangedRemotely(NodeCacheUpdate update) {
+		Node<T> node = getNodeFromCache(update.getServiceJid(), update.getNode());
+		if (node == null) {
+			if (update.getConfig() != null) {
+				nodeMovedRemotely(update.getServiceJid(), update.getNode(), new Form(update.getConfig()));
+			}
+			return;
+		}
+		if (update.isItemsChanged() && node.getNodeItems() instanceof Items) {
+			ItemsCache itemsCache = ((Items) node.getNodeItems()).getItemsCache();
+			if (itemsCache != null) {
+				itemsCache.invalidate();
+			}
+		}
+		if (!update.hasVersionedChanges()) {
+			return;
+		}
+		NodeKey key = createKey(update.getServiceJid(), update.getNode());
+		synchronized (node) {
+			long version = node.getVersion();
+			if (update.getVersion() > 0 && update.getVersion() <= version) {
+				// changes were already loaded from the database, but collections hierarchy may not contain them
+				if (update.getConfig() != null) {
+					nodeMovedRemotely(update.getServiceJid(), update.getNode(), new Form(update.getConfig()));
+				}
+				return;
+			}
+			WriteBehindQueue<T> queue = writeBehindQueue;
+			if (update.getVersion() == 0 || update.getFirstVersion() > version + 1 ||
+					(queue != null && queue.hasChanges(key)) || !node.updateVersion(version, update.getVersion())) {
+				// changes with preceding versions were not received yet or changes made on this cluster node were not
+				// written yet, so changes cannot be applied in order
+				cacheUpdatesConflicts.increment();
+				this.nodes.remove(key, node);
+				if (update.getConfig() != null) {
+					nodeMovedRemotely(update.getServiceJid(), update.getNode(), new Form(update.getConfig()));
+				}
+				return;
+			}
+			if (update.getConfig() != null) {
+				String oldCollection = node.getNodeConfigSnapshot().getCollection();
+				node.configCopyFromForm(new Form(update.getConfig()));
+				String newCollection = node.getNodeConfigSnapshot().getCollection();
+				if (!Objects.equals(emptyToNull(oldCollection), emptyToNull(newCollection))) {
+					nodeCollectionChanged(update.getServiceJid(), update.getNode(), oldCollection, newCollection);
+					if (emptyToNull(oldCollection) == null) {
+						rootCollectionChanged(update.getServiceJid(), update.getNode(), false);
+					} else if (emptyToNull(newCollection) == null) {
+						rootCollectionChanged(update.getServiceJid(), update.getNode(), true);
+					}
+				}
+			}
+			if (!update.getAffiliations().isEmpty()) {
+				IAffiliationsCached nodeAffiliations = node.getNodeAffiliations();
+				for (UsersAffiliation affiliation : update.getAffiliations()) {
+					nodeAffiliations.changeAffiliation(affiliation.getJid(), affiliation.getAffiliation());
+				}
+				node.affiliationsMerge();
+			}
+			if (!update.getSubscriptions().isEmpty()) {
+				ISubscriptionsCached nodeSubscriptions = node.getNodeSubscriptions();
+				for (UsersSubscription subscription : update.getSubscriptions()) {
+					nodeSubscriptions.changeSubscription(subscription);
+				}
+				node.subscriptionsMerge();
+			}
+		}
+	}
+
+	/**
+	 * Records collection of a node, which is not cached, from its configuration changed on other cluster node, as
+	 * collections hierarchy is kept also for nodes evicted from cache.
+	 */
+	private void nodeMovedRemotely(BareJID serviceJid, String nodeName, Form config) {
+		if (config.get("pubsub#collection") == null) {
+			// collection was not changed
+			return;
+		}
+		String collection = emptyToNull(config.getAsString("pubsub#collection"));
+		nodeCollectionChanged(serviceJid, nodeName, null, collection);
+		rootCollectionChanged(serviceJid, nodeName, collection == null);
+	}
+
+	private void changesWritten(NodeKey key, NodeChanges<T> changes) {
+		NodeCacheUpdate update = NodeCacheUpdate.nodeChanged(key.serviceJid, key.node);
+		changes.getAffiliations().forEach(update::affiliationChanged);
+		changes.getSubscriptions().forEach(update::subscriptionChanged);
+		nodeChangesWritten(update, changes.getVersion());
+	}
+
+	private void rootCollectionChanged(BareJID serviceJid, String nodeName, boolean added) {
+		RootCollectionSet rootCollectionSet = this.rootCollection.get(serviceJid);
+		if (rootCollectionSet == null) {
+			return;
+		}
+		if (added) {
+			rootCollectionSet.add(nodeName);
+		} else {
+			rootCollectionSet.remove(nodeName);
+		}
+	}
+
+	private static String emptyToNull(String value) {
+		return (value == null || value.isEmpty()) ? null : value;
+	}
+
+	public enum NodesCacheType {
+		/**
+		 * LRU cache guarded by a single lock
+		 */
+		lru,
+		/**
+		 * Segmented cache with lock-free reads and eviction done per segment
+		 */
+		segmented
+	}
+
 	public static class NodeKey {
 
 		public final String node;
@@ -1211,4 +1815,14 @@ public class CachedPubSubRepository<T>
 		IAffiliationsCached newNodeAffiliations(BareJID serviceJid, String nodeName, T nodeId, RepositorySupplier<Map<BareJID, UsersAffiliation>> affiliationSupplier) throws RepositoryException;
 	}
 
+	/**
+	 * Transport of updates of cached nodes between cluster nodes. Implementation should deliver each batch to
+	 * <code>nodeCacheUpdatesReceived()</code> of repositories on all other cluster nodes, in order in which batches
+	 * were sent.
+	 */
+	public interface NodeCacheUpdatesChannel {
+
+		void send(List<NodeCacheUpdate> updates);
+	}
+
 }
@@ -0,0 +1,296 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.pubsub.NodeConfigSnapshot;
+import tigase.pubsub.repository.IPubSubRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the collections hierarchy of nodes of a single service.
+ *
+ * Index is filled on demand: parent and type of a node are recorded when they are needed for the first time and list
+ * of children of a collection is recorded when it is loaded from the database. Recorded data is kept after a node is
+ * evicted from cache and it is updated when nodes are created, removed or moved to other collections, so finding
+ * ancestors and children of a node is done in memory (without loading and copying configurations of nodes).
+ * Ancestors of a node are computed on first use and dropped when any node is removed or moved.
+ *
+ * Data is loaded without holding the lock of the index and each change of the index increases its version, which is
+ * used to discard loaded data if index was modified while it was being loaded.
+ */
+public class CollectionTree {
+
+	private static final String[] EMPTY = new String[0];
+
+	private final IPubSubRepository.RepositoryLookup<String, String[]> childrenLookup;
+	private final IPubSubRepository.RepositoryLookup<String, NodeConfigSnapshot> configLookup;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private long version = 0;
+
+	public CollectionTree(IPubSubRepository.RepositoryLookup<String, NodeConfigSnapshot> configLookup,
+						  IPubSubRepository.RepositoryLookup<String, String[]> childrenLookup) {
+		this.configLookup = configLookup;
+		this.childrenLookup = childrenLookup;
+	}
+
+	/**
+	 * Returns names of collections containing a node, starting with its parent and ending with a root collection.
+	 */
+	public String[] getAncestors(String nodeName) throws RepositoryException {
+		Entry entry = entries.get(nodeName);
+		String[] ancestors = entry == null ? null : entry.ancestors;
+		if (ancestors != null) {
+			return ancestors;
+		}
+		while (true) {
+			String unknown;
+			long version;
+			synchronized (this) {
+				version = this.version;
+				List<String> result = new ArrayList<>();
+				unknown = nodeName;
+				Entry current = entries.get(nodeName);
+				while (current != null && current.parent != null && !result.contains(current.parent)) {
+					result.add(current.parent);
+					unknown = current.parent;
+					current = entries.get(current.parent);
+				}
+				if (current != null) {
+					ancestors = result.toArray(EMPTY);
+					entries.get(nodeName).ancestors = ancestors;
+					return ancestors;
+				}
+			}
+			if (!load(unknown, version)) {
+				// parent does not exist, so node is treated as a root collection
+				return unknown.equals(nodeName) ? EMPTY : partialAncestors(nodeName, unknown);
+			}
+		}
+	}
+
+	/**
+	 * Returns names of children of a node or <code>null</code> if node does not exist.
+	 */
+	public String[] getChildren(String nodeName) throws RepositoryException {
+		while (true) {
+			Entry entry = entries.get(nodeName);
+			if (entry != null) {
+				if (entry.children != null) {
+					return entry.children.clone();
+				}
+				if (entry.type == Entry.LEAF) {
+					return EMPTY;
+				}
+			}
+			long version;
+			synchronized (this) {
+				version = this.version;
+			}
+			if (entry == null || entry.type == Entry.UNKNOWN) {
+				if (!load(nodeName, version)) {
+					return null;
+				}
+				continue;
+			}
+			String[] children = childrenLookup.get(nodeName);
+			synchronized (this) {
+				if (this.version == version && entries.get(nodeName) == entry) {
+					entry.children = children == null ? EMPTY : children.clone();
+					for (String child : entry.children) {
+						entries.computeIfAbsent(child, name -> new Entry(nodeName, Entry.UNKNOWN));
+					}
+				}
+			}
+			return children == null ? EMPTY : children.clone();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Records created node (also if node was created on other cluster node and its type is not known).
+	 */
+	public synchronized void nodeCreated(String nodeName, String collection, Boolean isCollection) {
+		version++;
+		collection = emptyToNull(collection);
+		byte type = isCollection == null ? Entry.UNKNOWN : isCollection ? Entry.COLLECTION : Entry.LEAF;
+		Entry entry = entries.get(nodeName);
+		if (entry != null && entry.parent != null && !entry.parent.equals(collection)) {
+			removeChild(entries.get(entry.parent), nodeName);
+			clearAncestors();
+		}
+		entries.put(nodeName, new Entry(collection, type));
+		if (collection != null) {
+			addChild(entries.get(collection), nodeName);
+		}
+	}
+
+	/**
+	 * Records move of a node to other collection (or to the root collection if <code>collection</code> is empty).
+	 */
+	public synchronized void nodeMoved(String nodeName, String collection) {
+		collection = emptyToNull(collection);
+		Entry entry = entries.get(nodeName);
+		if (entry != null && Objects.equals(entry.parent, collection)) {
+			return;
+		}
+		version++;
+		if (entry == null) {
+			// previous parent is not known, so node is removed from all known lists of children
+			for (Entry e : entries.values()) {
+				removeChild(e, nodeName);
+			}
+			entries.put(nodeName, new Entry(collection, Entry.UNKNOWN));
+		} else {
+			if (entry.parent != null) {
+				removeChild(entries.get(entry.parent), nodeName);
+			}
+			entry.parent = collection;
+		}
+		if (collection != null) {
+			addChild(entries.get(collection), nodeName);
+		}
+		clearAncestors();
+	}
+
+	/**
+	 * Reloads parent and type of a node, which was changed in a way which is not known (ie. on other cluster node).
+	 * Node is removed from all known lists of children and added to the list of children of the loaded parent.
+	 */
+	public void nodeInvalidated(String nodeName) throws RepositoryException {
+		synchronized (this) {
+			version++;
+			entries.remove(nodeName);
+			for (Entry e : entries.values()) {
+				removeChild(e, nodeName);
+			}
+			clearAncestors();
+		}
+		while (true) {
+			long version;
+			synchronized (this) {
+				if (entries.containsKey(nodeName)) {
+					return;
+				}
+				version = this.version;
+			}
+			if (!load(nodeName, version)) {
+				return;
+			}
+		}
+	}
+
+	public synchronized void nodeRemoved(String nodeName) {
+		version++;
+		Entry entry = entries.remove(nodeName);
+		if (entry != null && entry.parent != null) {
+			removeChild(entries.get(entry.parent), nodeName);
+		}
+		// children which were not moved to other collection before are not known anymore
+		entries.values().removeIf(e -> nodeName.equals(e.parent));
+		clearAncestors();
+	}
+
+	private static String emptyToNull(String value) {
+		return (value == null || value.isEmpty()) ? null : value;
+	}
+
+	private static void addChild(Entry parent, String child) {
+		if (parent != null && parent.children != null && !Arrays.asList(parent.children).contains(child)) {
+			String[] children = Arrays.copyOf(parent.children, parent.children.length + 1);
+			children[children.length - 1] = child;
+			parent.children = children;
+		}
+	}
+
+	private static void removeChild(Entry parent, String child) {
+		if (parent != null && parent.children != null && Arrays.asList(parent.children).contains(child)) {
+			parent.children = Arrays.stream(parent.children).filter(name -> !name.equals(child)).toArray(String[]::new);
+		}
+	}
+
+	private void clearAncestors() {
+		for (Entry entry : entries.values()) {
+			entry.ancestors = null;
+		}
+	}
+
+	/**
+	 * Loads parent and type of a node. Returns <code>false</code> if node does not exist.
+	 */
+	private boolean load(String nodeName, long version) throws RepositoryException {
+		NodeConfigSnapshot config = configLookup.get(nodeName);
+		if (config == null) {
+			return false;
+		}
+		synchronized (this) {
+			Entry entry = entries.get(nodeName);
+			if (this.version != version) {
+				// index was changed in the meantime, so loaded data may be outdated
+				return true;
+			}
+			byte type = config.isLeaf() ? Entry.LEAF : Entry.COLLECTION;
+			if (entry == null) {
+				String parent = emptyToNull(config.getCollection());
+				entries.put(nodeName, new Entry(parent, type));
+				if (parent != null) {
+					addChild(entries.get(parent), nodeName);
+				}
+			} else {
+				entry.type = type;
+			}
+			return true;
+		}
+	}
+
+	private synchronized String[] partialAncestors(String nodeName, String missing) {
+		List<String> result = new ArrayList<>();
+		Entry current = entries.get(nodeName);
+		while (current != null && current.parent != null && !current.parent.equals(missing) &&
+				!result.contains(current.parent)) {
+			result.add(current.parent);
+			current = entries.get(current.parent);
+		}
+		return result.toArray(EMPTY);
+	}
+
+	private static class Entry {
+
+		private static final byte COLLECTION = 2;
+		private static final byte LEAF = 1;
+		private static final byte UNKNOWN = 0;
+
+		private volatile String[] ancestors;
+		private volatile String[] children;
+		private volatile String parent;
+		private volatile byte type;
+
+		private Entry(String parent, byte type) {
+			this.parent = parent;
+			this.type = type;
+		}
+	}
+}
@@ -33,4 +33,12 @@ public interface IAffiliationsCached extends IAffiliations {
 
 	void merge();
 
+	/**
+	 * Returns number of affiliations kept in memory, which may be lower than <code>size()</code> if affiliations are
+	 * loaded on demand.
+	 */
+	default int cachedSize() {
+		return size();
+	}
+
 }
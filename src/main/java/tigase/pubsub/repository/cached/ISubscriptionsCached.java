@@ -17,11 +17,13 @@
  */
 package tigase.pubsub.repository.cached;
 
+import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.ISubscriptions;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.jid.BareJID;
 
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 public interface ISubscriptionsCached extends ISubscriptions {
 
@@ -35,4 +37,20 @@ public interface ISubscriptionsCached extends ISubscriptions {
 
 	void resetChangedFlag();
 
+	/**
+	 * Returns number of subscriptions kept in memory, which may be lower than <code>size()</code> if subscriptions
+	 * are loaded on demand.
+	 */
+	default int cachedSize() {
+		return size();
+	}
+
+	/**
+	 * Calls consumer with JID and subscription of each subscription which should be used for publishing of
+	 * notifications.
+	 */
+	default void forEachSubscription(BiConsumer<BareJID, Subscription> consumer) {
+		getSubscriptionsForPublish().forEach(s -> consumer.accept(s.getJid(), s.getSubscription()));
+	}
+
 }
@@ -26,6 +26,7 @@ import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
@@ -46,7 +47,14 @@ public class Items<T>
 
 	private final IListnener itemsListener;
 
+	private final ItemsCache itemsCache;
+
 	public Items(T nodeId, BareJID serviceJid, String nodeName, IPubSubDAO dao, IListnener listnener) {
+		this(nodeId, serviceJid, nodeName, dao, listnener, null);
+	}
+
+	public Items(T nodeId, BareJID serviceJid, String nodeName, IPubSubDAO dao, IListnener listnener,
+				 ItemsCache itemsCache) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Constructing Items, serviceJid: {0}, nodeName: {1}, nodeId: {2}, dao: {3}",
 					new Object[]{serviceJid, nodeName, nodeId, dao});
@@ -56,6 +64,7 @@ public class Items<T>
 		this.nodeName = nodeName;
 		this.serviceJid = serviceJid;
 		this.itemsListener = listnener;
+		this.itemsCache = itemsCache;
 	}
 
 	@Override
@@ -65,6 +74,9 @@ public class Items<T>
 					new Object[]{serviceJid, id, nodeId, dao});
 		}
 		this.dao.deleteItem(serviceJid, nodeId, id);
+		if (itemsCache != null) {
+			itemsCache.itemDeleted(id);
+		}
 		itemsListener.itemDeleted(serviceJid, nodeName, id);
 	}
 
@@ -74,7 +86,16 @@ public class Items<T>
 			log.log(Level.FINEST, "getItem, serviceJid: {0}, id: {1}, nodeId: {2}, dao: {3}",
 					new Object[]{serviceJid, id, nodeId, dao});
 		}
-		return this.dao.getItem(serviceJid, nodeId, id);
+		if (itemsCache == null) {
+			return this.dao.getItem(serviceJid, nodeId, id);
+		}
+		IItem item = itemsCache.getItem(id);
+		if (item == null) {
+			long version = itemsCache.getVersion();
+			item = this.dao.getItem(serviceJid, nodeId, id);
+			itemsCache.itemLoaded(item, version);
+		}
+		return item;
 	}
 	
 	@Override
@@ -83,7 +104,16 @@ public class Items<T>
 			log.log(Level.FINEST, "getItemsIds, serviceJid: {0}, nodeId: {1}, dao: {2}, order: {3}",
 					new Object[]{serviceJid, nodeId, dao, order});
 		}
-		return this.dao.getItemsIds(serviceJid, nodeId, order);
+		if (itemsCache == null) {
+			return this.dao.getItemsIds(serviceJid, nodeId, order);
+		}
+		String[] ids = itemsCache.getItemsIds(order);
+		if (ids == null) {
+			long version = itemsCache.getVersion();
+			ids = this.dao.getItemsIds(serviceJid, nodeId, order);
+			itemsCache.itemsIdsLoaded(order, ids, version);
+		}
+		return ids;
 	}
 
 	@Override
@@ -106,6 +136,12 @@ public class Items<T>
 
 	@Override
 	public IItem getLastItem(CollectionItemsOrdering order) throws RepositoryException {
+		if (itemsCache != null) {
+			String lastId = itemsCache.getLastItemId(order);
+			if (lastId != null) {
+				return getItem(lastId);
+			}
+		}
 		String[] itemIds = this.getItemsIds(order);
 		if (itemIds != null && itemIds.length > 0) {
 			return getItem(itemIds[itemIds.length - 1]);
@@ -113,6 +149,61 @@ public class Items<T>
 		return null;
 	}
 	
+	@Override
+	public String[] deleteItems(String[] ids) throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "deleteItems, serviceJid: {0}, nodeId: {1}, dao: {2}, ids: {3}",
+					new Object[]{serviceJid, nodeId, dao, Arrays.toString(ids)});
+		}
+		String[] removed = this.dao.deleteItems(serviceJid, nodeId, ids);
+		if (removed.length > 0) {
+			if (itemsCache != null) {
+				itemsCache.itemsDeleted(removed);
+			}
+			itemsListener.itemsDeleted(serviceJid, nodeName, removed);
+		}
+		return removed;
+	}
+
+	@Override
+	public String[] purgeItems() throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "purgeItems, serviceJid: {0}, nodeId: {1}, dao: {2}",
+					new Object[]{serviceJid, nodeId, dao});
+		}
+		String[] ids = this.dao.purgeItems(serviceJid, nodeId);
+		if (itemsCache != null) {
+			itemsCache.itemsPurged();
+		}
+		if (ids.length > 0) {
+			itemsListener.itemsDeleted(serviceJid, nodeName, ids);
+		}
+		return ids;
+	}
+
+	@Override
+	public String[] trimItems(int maxItems, CollectionItemsOrdering order) throws RepositoryException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "trimItems, serviceJid: {0}, nodeId: {1}, dao: {2}, maxItems: {3}, order: {4}",
+					new Object[]{serviceJid, nodeId, dao, maxItems, order});
+		}
+		if (itemsCache != null) {
+			// if ids are cached we know if there is anything to remove without accessing the database
+			String[] ids = itemsCache.getItemsIds(order);
+			if (ids != null && ids.length <= maxItems) {
+				return new String[0];
+			}
+		}
+		String[] ids = this.dao.trimItems(serviceJid, nodeId, maxItems, order);
+		if (ids.length > 0) {
+			if (itemsCache != null) {
+				itemsCache.itemsDeleted(ids);
+			}
+			itemsListener.itemsDeleted(serviceJid, nodeName, ids);
+		}
+		return ids;
+	}
+
 	@Override
 	public void writeItem(String id, String publisher, Element item, String uuid)
 			throws RepositoryException, PubSubException {
@@ -122,10 +213,17 @@ public class Items<T>
 						"writeItem, serviceJid: {0}, nodeId: {1}, dao: {2}, id: {3}, publisher: {4}, item: {5}", new Object[]{serviceJid, nodeId, dao, id, publisher, item});
 			}
 			this.dao.writeItem(serviceJid, nodeId, System.currentTimeMillis(), id, publisher, item, uuid);
+			if (itemsCache != null) {
+				itemsCache.itemWritten(new IItems.Item(nodeName, id, uuid, item));
+			}
 			itemsListener.itemWritten(serviceJid, nodeName, id, publisher, item, uuid);
 		} else {
 			throw new PubSubException(Authorization.FORBIDDEN, "Provided item did not pass validation");
 		}
 	}
 
+	public ItemsCache getItemsCache() {
+		return itemsCache;
+	}
+
 }
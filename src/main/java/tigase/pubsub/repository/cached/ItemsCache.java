@@ -0,0 +1,215 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.CollectionItemsOrdering;
+import tigase.pubsub.repository.IItems;
+import tigase.xml.Element;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Bounded, in-memory cache of items of a single cached node.
+ *
+ * Cache keeps ordered lists of item ids (separately for each <code>CollectionItemsOrdering</code>, loaded on first
+ * use) and payloads of the most recently written or read items. It is updated by <code>Items</code> after each
+ * successful write or removal of an item in the database, so it is able to answer requests for the last item or for
+ * an item with a particular id without accessing the database.
+ *
+ * If node contains more items than the configured limit of ids, list of ids for this node is not cached and requests
+ * are passed to the database. Id of the last item in each order is tracked separately, so it is known even for such
+ * nodes once list of ids was loaded. Each change of the cache increases its version, which is used to discard results
+ * loaded from the database if cache was modified while they were being loaded.
+ */
+public class ItemsCache {
+
+	private final EnumMap<CollectionItemsOrdering, LinkedHashSet<String>> ids = new EnumMap<>(
+			CollectionItemsOrdering.class);
+	private final LinkedHashMap<String, IItems.IItem> items = new LinkedHashMap<>();
+	private final EnumMap<CollectionItemsOrdering, String> lastIds = new EnumMap<>(CollectionItemsOrdering.class);
+	private final int maxIds;
+	private final int maxItems;
+	private long version = 0;
+
+	public ItemsCache(int maxItems, int maxIds) {
+		this.maxItems = maxItems;
+		this.maxIds = maxIds;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized String[] getItemsIds(CollectionItemsOrdering order) {
+		LinkedHashSet<String> orderedIds = ids.get(order);
+		if (orderedIds == null) {
+			return null;
+		}
+		return orderedIds.toArray(new String[orderedIds.size()]);
+	}
+
+	/**
+	 * Returns id of the last item in provided order or <code>null</code> if there are no items or id of the last item
+	 * is not known.
+	 */
+	public synchronized String getLastItemId(CollectionItemsOrdering order) {
+		return lastIds.get(order);
+	}
+
+	public synchronized void itemsIdsLoaded(CollectionItemsOrdering order, String[] loadedIds, long version) {
+		if (this.version != version || loadedIds == null) {
+			return;
+		}
+		if (loadedIds.length > 0) {
+			lastIds.put(order, loadedIds[loadedIds.length - 1]);
+		} else {
+			lastIds.remove(order);
+		}
+		if (loadedIds.length > maxIds) {
+			return;
+		}
+		LinkedHashSet<String> orderedIds = new LinkedHashSet<>(loadedIds.length * 2);
+		for (String id : loadedIds) {
+			orderedIds.add(id);
+		}
+		ids.put(order, orderedIds);
+	}
+
+	public synchronized IItems.IItem getItem(String id) {
+		IItems.IItem item = items.get(id);
+		return item == null ? null : copy(item);
+	}
+
+	public synchronized void itemLoaded(IItems.IItem item, long version) {
+		if (this.version != version || item == null || maxItems <= 0) {
+			return;
+		}
+		putItem(copy(item));
+	}
+
+	public synchronized void itemWritten(IItems.IItem item) {
+		version++;
+		String id = item.getId();
+		for (CollectionItemsOrdering order : CollectionItemsOrdering.values()) {
+			LinkedHashSet<String> orderedIds = ids.get(order);
+			switch (order) {
+				case byUpdateDate:
+					if (orderedIds != null) {
+						orderedIds.remove(id);
+						orderedIds.add(id);
+					}
+					lastIds.put(order, id);
+					break;
+				default:
+					// creation date of existing item is not changed, so position of the item is known only if
+					// we know whether it existed before
+					if (orderedIds != null) {
+						if (orderedIds.add(id)) {
+							lastIds.put(order, id);
+						}
+					} else if (!id.equals(lastIds.get(order)) && !items.containsKey(id)) {
+						lastIds.remove(order);
+					}
+					break;
+			}
+		}
+		ids.values().removeIf(orderedIds -> orderedIds.size() > maxIds);
+		if (maxItems > 0) {
+			putItem(copy(item));
+		}
+	}
+
+	public synchronized void itemDeleted(String id) {
+		itemsDeleted(new String[]{id});
+	}
+
+	public synchronized void itemsDeleted(String[] deletedIds) {
+		version++;
+		for (LinkedHashSet<String> orderedIds : ids.values()) {
+			for (String id : deletedIds) {
+				orderedIds.remove(id);
+			}
+		}
+		for (String id : deletedIds) {
+			items.remove(id);
+		}
+		for (CollectionItemsOrdering order : CollectionItemsOrdering.values()) {
+			LinkedHashSet<String> orderedIds = ids.get(order);
+			if (orderedIds != null) {
+				String last = null;
+				// LinkedHashSet does not provide access to its tail, but list is limited by maxIds
+				for (String id : orderedIds) {
+					last = id;
+				}
+				if (last == null) {
+					lastIds.remove(order);
+				} else {
+					lastIds.put(order, last);
+				}
+			} else if (Arrays.asList(deletedIds).contains(lastIds.get(order))) {
+				lastIds.remove(order);
+			}
+		}
+	}
+
+	/**
+	 * Marks node as empty, so lists of ids in all orders are known (and empty) after all items were removed.
+	 */
+	public synchronized void itemsPurged() {
+		version++;
+		items.clear();
+		lastIds.clear();
+		for (CollectionItemsOrdering order : CollectionItemsOrdering.values()) {
+			ids.put(order, new LinkedHashSet<>());
+		}
+	}
+
+	public synchronized void invalidate() {
+		version++;
+		ids.clear();
+		items.clear();
+		lastIds.clear();
+	}
+
+	public synchronized int size() {
+		return items.size();
+	}
+
+	private void putItem(IItems.IItem item) {
+		items.remove(item.getId());
+		items.put(item.getId(), item);
+		Iterator<String> it = items.keySet().iterator();
+		while (items.size() > maxItems && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static IItems.IItem copy(IItems.IItem item) {
+		if (item instanceof IItems.RawItem && !((IItems.RawItem) item).isParsed()) {
+			// serialized payload is immutable, so there is no need to parse it
+			return ((IItems.RawItem) item).copy();
+		}
+		Element payload = item.getItem();
+		return new IItems.Item(item.getNode(), item.getId(), item.getUUID(), payload == null ? null : payload.clone());
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.component.exceptions.RepositoryException;
+
+/**
+ * Thrown when data of a cached node, which is loaded on demand, could not be loaded from the repository within a
+ * method which cannot throw <code>RepositoryException</code>. Cause of this exception is always the
+ * <code>RepositoryException</code> reported by the repository.
+ */
+public class LazyLoadingException
+		extends RuntimeException {
+
+	public LazyLoadingException(RepositoryException cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	@Override
+	public synchronized RepositoryException getCause() {
+		return (RepositoryException) super.getCause();
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.repository.IPubSubRepository;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Affiliations of a cached node which are loaded from the database on demand.
+ *
+ * Works in the same way as <code>LazyNodeSubscriptions</code>: affiliation of a single JID is loaded with a point
+ * lookup (ie. to check permissions of a sender) and all affiliations are loaded only when they are required as a
+ * whole. Failed point lookup falls back to loading of all affiliations.
+ */
+public class LazyNodeAffiliations
+		extends NodeAffiliations {
+
+	private static final Logger log = Logger.getLogger(LazyNodeAffiliations.class.getName());
+
+	private final Set<BareJID> absent = ConcurrentHashMap.newKeySet();
+	private final LongAdder fullLoads;
+	private final IPubSubRepository.RepositorySupplier<Map<BareJID, UsersAffiliation>> loader;
+	private final IPubSubRepository.RepositoryLookup<BareJID, UsersAffiliation> lookup;
+	// changes merged before all affiliations were loaded, guarded by this
+	private final Map<BareJID, UsersAffiliation> mergedBeforeLoad = new HashMap<>();
+	private final LongAdder pointLookups;
+	private volatile boolean loaded = false;
+
+	public LazyNodeAffiliations(IPubSubRepository.RepositorySupplier<Map<BareJID, UsersAffiliation>> loader,
+								IPubSubRepository.RepositoryLookup<BareJID, UsersAffiliation> lookup,
+								LongAdder fullLoads, LongAdder pointLookups) {
+		this.loader = loader;
+		this.lookup = lookup;
+		this.fullLoads = fullLoads;
+		this.pointLookups = pointLookups;
+	}
+
+	@Override
+	public int cachedSize() {
+		return affs.size();
+	}
+
+	@Override
+	public NodeAffiliations clone() throws CloneNotSupportedException {
+		ensureLoaded();
+		return super.clone();
+	}
+
+	@Override
+	public UsersAffiliation[] getAffiliations() {
+		ensureLoaded();
+		return super.getAffiliations();
+	}
+
+	@Override
+	public Map<BareJID, UsersAffiliation> getAffiliationsMap() {
+		ensureLoaded();
+		return super.getAffiliationsMap();
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	@Override
+	public void merge() {
+		synchronized (this) {
+			if (!loaded) {
+				for (Map.Entry<BareJID, UsersAffiliation> entry : getChanged().entrySet()) {
+					mergedBeforeLoad.put(entry.getKey(), entry.getValue());
+					if (entry.getValue().getAffiliation() == Affiliation.none) {
+						absent.add(entry.getKey());
+					} else {
+						absent.remove(entry.getKey());
+					}
+				}
+			}
+			super.merge();
+		}
+	}
+
+	@Override
+	public int size() {
+		ensureLoaded();
+		return super.size();
+	}
+
+	@Override
+	public String toString() {
+		return "LazyNodeAffiliations: loaded=" + loaded + ", " + affs;
+	}
+
+	@Override
+	protected UsersAffiliation getResident(BareJID bareJid) {
+		UsersAffiliation affiliation = affs.get(bareJid);
+		if (affiliation != null || loaded || absent.contains(bareJid)) {
+			return affiliation;
+		}
+
+		UsersAffiliation loadedAffiliation;
+		try {
+			loadedAffiliation = lookup.get(bareJid);
+		} catch (RepositoryException ex) {
+			log.log(Level.WARNING, "Could not load affiliation of " + bareJid + ", loading all affiliations", ex);
+			ensureLoaded();
+			return affs.get(bareJid);
+		}
+		pointLookups.increment();
+
+		synchronized (this) {
+			affiliation = affs.get(bareJid);
+			if (affiliation != null || loaded || absent.contains(bareJid)) {
+				// affiliation was loaded or changed in the meantime
+				return affiliation;
+			}
+			if (loadedAffiliation == null || loadedAffiliation.getAffiliation() == Affiliation.none) {
+				absent.add(bareJid);
+				return null;
+			}
+			affs.put(bareJid, loadedAffiliation);
+			return loadedAffiliation;
+		}
+	}
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		Map<BareJID, UsersAffiliation> all;
+		try {
+			all = loader.get();
+		} catch (RepositoryException ex) {
+			throw new LazyLoadingException(ex);
+		}
+		synchronized (this) {
+			if (loaded) {
+				return;
+			}
+			if (all != null) {
+				affs.putAll(all);
+				affs.keySet().retainAll(all.keySet());
+			} else {
+				affs.clear();
+			}
+			for (UsersAffiliation affiliation : mergedBeforeLoad.values()) {
+				if (affiliation.getAffiliation() == Affiliation.none) {
+					affs.remove(affiliation.getJid());
+				} else {
+					affs.put(affiliation.getJid(), affiliation);
+				}
+			}
+			mergedBeforeLoad.clear();
+			absent.clear();
+			loaded = true;
+			fullLoads.increment();
+		}
+	}
+}
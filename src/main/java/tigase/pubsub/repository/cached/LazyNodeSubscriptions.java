@@ -0,0 +1,187 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.IPubSubRepository;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Subscriptions of a cached node which are loaded from the database on demand.
+ *
+ * Subscription of a single JID is loaded with a point lookup and kept in memory (also if JID is not subscribed) until
+ * the node is evicted from cache. All subscriptions are loaded only when they are required as a whole (ie. to list
+ * subscriptions or to find recipients of notifications), so checking subscription of a sender does not require
+ * loading of all subscribers of a popular node.
+ *
+ * Merged changes are kept in memory before all subscriptions are loaded, so a point lookup or a full load finishing
+ * after a concurrent change was merged will not replace it with the value loaded from the database. Data is loaded
+ * outside of the lock of this instance, so a slow database does not block threads using already loaded subscriptions.
+ *
+ * If a point lookup fails, all subscriptions are loaded instead. If loading of all subscriptions fails,
+ * <code>LazyNodeSubscriptions</code> throws <code>LazyLoadingException</code> and loading is retried on next use.
+ */
+public class LazyNodeSubscriptions
+		extends NodeSubscriptions {
+
+	private static final Logger log = Logger.getLogger(LazyNodeSubscriptions.class.getName());
+
+	private final Set<BareJID> absent = ConcurrentHashMap.newKeySet();
+	private final LongAdder fullLoads;
+	private final IPubSubRepository.RepositorySupplier<Map<BareJID, UsersSubscription>> loader;
+	private final IPubSubRepository.RepositoryLookup<BareJID, UsersSubscription> lookup;
+	// changes merged before all subscriptions were loaded, guarded by this
+	private final Map<BareJID, UsersSubscription> mergedBeforeLoad = new HashMap<>();
+	private final LongAdder pointLookups;
+	private volatile boolean loaded = false;
+
+	public LazyNodeSubscriptions(IPubSubRepository.RepositorySupplier<Map<BareJID, UsersSubscription>> loader,
+								 IPubSubRepository.RepositoryLookup<BareJID, UsersSubscription> lookup,
+								 LongAdder fullLoads, LongAdder pointLookups) {
+		this.loader = loader;
+		this.lookup = lookup;
+		this.fullLoads = fullLoads;
+		this.pointLookups = pointLookups;
+	}
+
+	@Override
+	public void forEachSubscription(BiConsumer<BareJID, Subscription> consumer) {
+		ensureLoaded();
+		super.forEachSubscription(consumer);
+	}
+
+	@Override
+	public Stream<UsersSubscription> getSubscriptions() {
+		ensureLoaded();
+		return super.getSubscriptions();
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	@Override
+	public void merge() {
+		synchronized (this) {
+			if (!loaded) {
+				for (Map.Entry<BareJID, UsersSubscription> entry : getChanged().entrySet()) {
+					mergedBeforeLoad.put(entry.getKey(), entry.getValue());
+					if (entry.getValue().getSubscription() == Subscription.none) {
+						absent.add(entry.getKey());
+					} else {
+						absent.remove(entry.getKey());
+					}
+				}
+			}
+			super.merge();
+		}
+	}
+
+	@Override
+	public int size() {
+		ensureLoaded();
+		return super.size();
+	}
+
+	@Override
+	public String toString() {
+		return "LazyNodeSubscriptions: loaded=" + loaded + ", " + store;
+	}
+
+	@Override
+	protected UsersSubscription getResident(BareJID bareJid) {
+		loadResident(bareJid);
+		return super.getResident(bareJid);
+	}
+
+	@Override
+	protected Subscription getResidentSubscription(BareJID bareJid) {
+		loadResident(bareJid);
+		return super.getResidentSubscription(bareJid);
+	}
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		Map<BareJID, UsersSubscription> all;
+		try {
+			all = loader.get();
+		} catch (RepositoryException ex) {
+			throw new LazyLoadingException(ex);
+		}
+		synchronized (this) {
+			if (loaded) {
+				return;
+			}
+			store.replaceWith(all == null ? Collections.emptyList() : all.values());
+			for (UsersSubscription subscription : mergedBeforeLoad.values()) {
+				if (subscription.getSubscription() == Subscription.none) {
+					store.remove(subscription.getJid());
+				} else {
+					store.put(subscription);
+				}
+			}
+			mergedBeforeLoad.clear();
+			absent.clear();
+			loaded = true;
+			fullLoads.increment();
+		}
+	}
+
+	private void loadResident(BareJID bareJid) {
+		if (loaded || absent.contains(bareJid) || store.contains(bareJid)) {
+			return;
+		}
+
+		UsersSubscription loadedSubscription;
+		try {
+			loadedSubscription = lookup.get(bareJid);
+		} catch (RepositoryException ex) {
+			log.log(Level.WARNING, "Could not load subscription of " + bareJid + ", loading all subscriptions", ex);
+			ensureLoaded();
+			return;
+		}
+		pointLookups.increment();
+
+		synchronized (this) {
+			if (loaded || absent.contains(bareJid) || store.contains(bareJid)) {
+				// subscription was loaded or changed in the meantime
+				return;
+			}
+			if (loadedSubscription == null) {
+				absent.add(bareJid);
+			} else {
+				store.put(loadedSubscription);
+			}
+		}
+	}
+}
@@ -17,14 +17,19 @@
  */
 package tigase.pubsub.repository.cached;
 
+import tigase.form.Form;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.repository.IItems;
 import tigase.pubsub.repository.INodeMeta;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,9 +49,14 @@ public class Node<T>
 	// private Long nodeAffiliationsChangeTimestamp;
 
 	private AbstractNodeConfig nodeConfig;
+	// replaced on every change of nodeConfig
+	private volatile NodeConfigSnapshot nodeConfigSnapshot;
 	private final T nodeId;
 	private ISubscriptionsCached nodeSubscriptions;
 	private IItems nodeItems;
+	private final NodeSubscribersIndex subscribersIndex;
+	// version of the node stored in the database, which includes all changes applied to this instance
+	private final AtomicLong version = new AtomicLong();
 
 	// private Long nodeConfigChangeTimestamp;
 
@@ -57,6 +67,13 @@ public class Node<T>
 
 	public Node(T nodeId, BareJID serviceJid, AbstractNodeConfig nodeConfig, IAffiliationsCached nodeAffiliations,
 				ISubscriptionsCached nodeSubscriptions, IItems nodeItems, BareJID creator, Date creationTime) {
+		this(nodeId, serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, nodeItems, creator, creationTime,
+			 new LongAdder());
+	}
+
+	public Node(T nodeId, BareJID serviceJid, AbstractNodeConfig nodeConfig, IAffiliationsCached nodeAffiliations,
+				ISubscriptionsCached nodeSubscriptions, IItems nodeItems, BareJID creator, Date creationTime,
+				LongAdder subscribersIndexRebuilds) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST,
 					"Constructing Node, serviceJid: {0}, nodeConfig: {1}, nodeId: {2}, nodeAffiliations: {3}, nodeSubscriptions: {4}",
@@ -66,16 +83,21 @@ public class Node<T>
 		this.nodeId = nodeId;
 		this.serviceJid = serviceJid;
 		this.nodeConfig = nodeConfig;
+		this.nodeConfigSnapshot = NodeConfigSnapshot.of(nodeConfig);
 		this.nodeAffiliations = nodeAffiliations;
 		this.nodeSubscriptions = nodeSubscriptions;
 		this.name = nodeConfig.getNodeName();
 		this.creator = creator;
 		this.creationTime = creationTime;
 		this.nodeItems = nodeItems;
+		this.subscribersIndex = new NodeSubscribersIndex(nodeAffiliations, nodeSubscriptions,
+														 subscribersIndexRebuilds);
 	}
 
 	protected void affiliationsMerge() {
+		List<BareJID> changed = new ArrayList<>(nodeAffiliations.getChanged().keySet());
 		nodeAffiliations.merge();
+		subscribersIndex.update(changed);
 	}
 
 	protected boolean affiliationsNeedsWriting() {
@@ -90,10 +112,21 @@ public class Node<T>
 	public void configCopyFrom(AbstractNodeConfig nodeConfig) {
 		synchronized (this) {
 			this.nodeConfig.copyFrom(nodeConfig);
+			this.nodeConfigSnapshot = NodeConfigSnapshot.of(this.nodeConfig);
 			conNeedsWriting = true;
 		}
 	}
 
+	/**
+	 * Applies changes of configuration which are already stored in the database (ie. made by other cluster node).
+	 */
+	public void configCopyFromForm(Form form) {
+		synchronized (this) {
+			this.nodeConfig.copyFromForm(form);
+			this.nodeConfigSnapshot = NodeConfigSnapshot.of(this.nodeConfig);
+		}
+	}
+
 	public boolean configNeedsWriting() {
 		return conNeedsWriting;
 	}
@@ -144,6 +177,11 @@ public class Node<T>
 		return nodeConfig;
 	}
 
+	@Override
+	public NodeConfigSnapshot getNodeConfigSnapshot() {
+		return nodeConfigSnapshot;
+	}
+
 	// public Long getNodeConfigChangeTimestamp() {
 	// return nodeConfigChangeTimestamp;
 	// }
@@ -160,10 +198,31 @@ public class Node<T>
 		return nodeSubscriptions;
 	}
 
+	public NodeSubscribersIndex getSubscribersIndex() {
+		return subscribersIndex;
+	}
+
 	public BareJID getServiceJid() {
 		return serviceJid;
 	}
 
+	public long getVersion() {
+		return version.get();
+	}
+
+	protected void setVersion(long version) {
+		this.version.set(version);
+	}
+
+	/**
+	 * Changes version of the node from <code>expectedVersion</code> to <code>newVersion</code>. Returns
+	 * <code>false</code> if node is at a different version, which means that changes of the node with versions
+	 * between were not applied to this instance.
+	 */
+	protected boolean updateVersion(long expectedVersion, long newVersion) {
+		return version.compareAndSet(expectedVersion, newVersion);
+	}
+
 	public boolean isDeleted() {
 		return deleted;
 	}
@@ -195,10 +254,14 @@ public class Node<T>
 	public void resetChanges() {
 		nodeAffiliations.resetChangedFlag();
 		nodeSubscriptions.resetChangedFlag();
+		// index could be built including changes which were just discarded
+		subscribersIndex.invalidate();
 	}
 
 	public void subscriptionsMerge() {
+		List<BareJID> changed = new ArrayList<>(nodeSubscriptions.getChanged().keySet());
 		nodeSubscriptions.merge();
+		subscribersIndex.update(changed);
 	}
 
 	// public void setNodeAffiliationsChangeTimestamp() {
@@ -113,7 +113,7 @@ public class NodeAffiliations
 		Map<BareJID, UsersAffiliation> changedAffs = changedAffs();
 		UsersAffiliation us = changedAffs.get(bareJid);
 		if (us == null) {
-			us = affs.get(bareJid);
+			us = getResident(bareJid);
 			if (us != null) {
 				try {
 					return us.clone();
@@ -126,6 +126,13 @@ public class NodeAffiliations
 		return us;
 	}
 
+	/**
+	 * Returns affiliation kept in memory (without changes which are not merged yet).
+	 */
+	protected UsersAffiliation getResident(BareJID bareJid) {
+		return affs.get(bareJid);
+	}
+
 	private Map<BareJID, UsersAffiliation> changedAffs() {
 		Map<BareJID, UsersAffiliation> changedAffs = this.changedAffs.get();
 
@@ -0,0 +1,371 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Change of a cached node made on one cluster node, which needs to be applied to (or evict the node from) caches of
+ * <code>CachedPubSubRepository</code> on other cluster nodes.
+ *
+ * Changes of configuration, affiliations and subscriptions are sent after they are stored in the database, as deltas
+ * together with the range of versions of the node stored with them. Changes of items only invalidate cached items of
+ * the node. Updates of the same node waiting to be sent are merged if their versions are consecutive, so only the
+ * latest state of each JID and of the configuration is sent.
+ */
+public class NodeCacheUpdate {
+
+	public static final String ELEM_NAME = "node-update";
+
+	public enum Type {
+		/**
+		 * Configuration, affiliations, subscriptions or items of the node were changed
+		 */
+		changed,
+		/**
+		 * Node was created
+		 */
+		created,
+		/**
+		 * Node was removed
+		 */
+		removed,
+		/**
+		 * All nodes of the service were removed
+		 */
+		serviceRemoved
+	}
+
+	private final BareJID serviceJid;
+	private final String node;
+	private Type type;
+	// collection of the node for created and removed nodes
+	private String collection;
+	// collection of the node removed before node with the same name was created
+	private String replacedCollection;
+	private boolean replaced = false;
+	// versions of the node stored with the first and the last of merged changes
+	private long firstVersion = 0;
+	private long version = 0;
+	private Element config;
+	private Map<BareJID, UsersAffiliation> affiliations;
+	private Map<BareJID, UsersSubscription> subscriptions;
+	private boolean itemsChanged = false;
+
+	public static NodeCacheUpdate nodeChanged(BareJID serviceJid, String node) {
+		return new NodeCacheUpdate(Type.changed, serviceJid, node, null);
+	}
+
+	public static NodeCacheUpdate nodeCreated(BareJID serviceJid, String node, String collection) {
+		return new NodeCacheUpdate(Type.created, serviceJid, node, collection);
+	}
+
+	public static NodeCacheUpdate nodeRemoved(BareJID serviceJid, String node, String collection) {
+		return new NodeCacheUpdate(Type.removed, serviceJid, node, collection);
+	}
+
+	public static NodeCacheUpdate serviceRemoved(BareJID serviceJid) {
+		return new NodeCacheUpdate(Type.serviceRemoved, serviceJid, null, null);
+	}
+
+	public static NodeCacheUpdate fromElement(Element elem) {
+		Type type = Type.valueOf(elem.getAttributeStaticStr("type"));
+		BareJID serviceJid = BareJID.bareJIDInstanceNS(elem.getAttributeStaticStr("service"));
+		NodeCacheUpdate update = new NodeCacheUpdate(type, serviceJid, elem.getAttributeStaticStr("node"),
+													 elem.getAttributeStaticStr("collection"));
+		String version = elem.getAttributeStaticStr("version");
+		if (version != null) {
+			update.version = Long.parseLong(version);
+			String firstVersion = elem.getAttributeStaticStr("first-version");
+			update.firstVersion = firstVersion == null ? update.version : Long.parseLong(firstVersion);
+		}
+		update.itemsChanged = "true".equals(elem.getAttributeStaticStr("items"));
+		if (elem.getAttributeStaticStr("replaced") != null) {
+			update.replaced = true;
+			update.replacedCollection = emptyToNull(elem.getAttributeStaticStr("replaced"));
+		}
+		List<Element> children = elem.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				switch (child.getName()) {
+					case "x":
+						update.config = child.clone();
+						break;
+					case "affiliation":
+						update.affiliationChanged(
+								new UsersAffiliation(BareJID.bareJIDInstanceNS(child.getAttributeStaticStr("jid")),
+													 Affiliation.valueOf(child.getAttributeStaticStr("affiliation"))));
+						break;
+					case "subscription":
+						update.subscriptionChanged(
+								new UsersSubscription(BareJID.bareJIDInstanceNS(child.getAttributeStaticStr("jid")),
+													  child.getAttributeStaticStr("subid"), Subscription.valueOf(
+										child.getAttributeStaticStr("subscription"))));
+						break;
+					default:
+						break;
+				}
+			}
+		}
+		return update;
+	}
+
+	private static String emptyToNull(String value) {
+		return (value == null || value.isEmpty()) ? null : value;
+	}
+
+	private NodeCacheUpdate(Type type, BareJID serviceJid, String node, String collection) {
+		this.type = type;
+		this.serviceJid = serviceJid;
+		this.node = node;
+		this.collection = emptyToNull(collection);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public BareJID getServiceJid() {
+		return serviceJid;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public String getCollection() {
+		return collection;
+	}
+
+	/**
+	 * Returns <code>true</code> if node with the same name was removed before this node was created, so any cached
+	 * node with this name is stale.
+	 */
+	public boolean isReplaced() {
+		return replaced;
+	}
+
+	public String getReplacedCollection() {
+		return replacedCollection;
+	}
+
+	/**
+	 * Returns version of the node stored with the first of merged changes.
+	 */
+	public long getFirstVersion() {
+		return firstVersion;
+	}
+
+	/**
+	 * Returns version of the node stored with the last of merged changes or <code>0</code> if version is not known.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Sets version of the node stored with changes of this update.
+	 */
+	public void setVersion(long version) {
+		this.firstVersion = version;
+		this.version = version;
+	}
+
+	public Element getConfig() {
+		return config;
+	}
+
+	public void configChanged(Element config) {
+		this.config = config;
+	}
+
+	public Collection<UsersAffiliation> getAffiliations() {
+		return affiliations == null ? Collections.emptyList() : affiliations.values();
+	}
+
+	public void affiliationChanged(UsersAffiliation affiliation) {
+		if (affiliations == null) {
+			affiliations = new LinkedHashMap<>();
+		}
+		// cached instances are modified in place, so we need a copy
+		affiliations.put(affiliation.getJid(), new UsersAffiliation(affiliation.getJid(), affiliation.getAffiliation()));
+	}
+
+	public Collection<UsersSubscription> getSubscriptions() {
+		return subscriptions == null ? Collections.emptyList() : subscriptions.values();
+	}
+
+	public void subscriptionChanged(UsersSubscription subscription) {
+		if (subscriptions == null) {
+			subscriptions = new LinkedHashMap<>();
+		}
+		subscriptions.put(subscription.getJid(),
+						  new UsersSubscription(subscription.getJid(), subscription.getSubid(),
+												subscription.getSubscription()));
+	}
+
+	public boolean isItemsChanged() {
+		return itemsChanged;
+	}
+
+	public void itemsChanged() {
+		this.itemsChanged = true;
+	}
+
+	/**
+	 * Returns <code>true</code> if update contains changes of configuration, affiliations or subscriptions, which
+	 * are versioned.
+	 */
+	public boolean hasVersionedChanges() {
+		return config != null || affiliations != null || subscriptions != null;
+	}
+
+	public boolean isEmpty() {
+		return type == Type.changed && !itemsChanged && !hasVersionedChanges();
+	}
+
+	public CachedPubSubRepository.NodeKey getKey() {
+		return new CachedPubSubRepository.NodeKey(serviceJid, node);
+	}
+
+	/**
+	 * Returns <code>true</code> if newer update of the same node can be merged into this one. Versioned changes can
+	 * be merged only if there were no changes of the node stored between them (ie. by other cluster node), as
+	 * receivers could not apply such changes in order.
+	 */
+	public boolean canMerge(NodeCacheUpdate newer) {
+		if (type != Type.changed || newer.type != Type.changed || !hasVersionedChanges() ||
+				!newer.hasVersionedChanges() || version == 0 || newer.firstVersion == 0) {
+			return true;
+		}
+		return newer.firstVersion == version + 1;
+	}
+
+	/**
+	 * Merges newer update of the same node into this one and returns resulting update.
+	 */
+	public NodeCacheUpdate merge(NodeCacheUpdate newer) {
+		switch (newer.type) {
+			case created:
+				if (type == Type.removed || replaced) {
+					// node cached by receivers is stale
+					newer.replaced = true;
+					newer.replacedCollection = type == Type.removed ? collection : replacedCollection;
+				}
+				return newer;
+			case removed:
+			case serviceRemoved:
+				return newer;
+			default:
+				break;
+		}
+		if (type == Type.created || type == Type.removed) {
+			// receivers do not have newly created node in cache, while removed node cannot be changed
+			return this;
+		}
+		if (newer.hasVersionedChanges()) {
+			if (!hasVersionedChanges()) {
+				firstVersion = newer.firstVersion;
+				version = newer.version;
+			} else if (version == 0 || newer.version == 0) {
+				// changes cannot be ordered, so receivers will reload the node
+				firstVersion = 0;
+				version = 0;
+			} else {
+				version = newer.version;
+			}
+		}
+		if (newer.config != null) {
+			config = newer.config;
+		}
+		if (newer.affiliations != null) {
+			if (affiliations == null) {
+				affiliations = newer.affiliations;
+			} else {
+				affiliations.putAll(newer.affiliations);
+			}
+		}
+		if (newer.subscriptions != null) {
+			if (subscriptions == null) {
+				subscriptions = newer.subscriptions;
+			} else {
+				subscriptions.putAll(newer.subscriptions);
+			}
+		}
+		itemsChanged |= newer.itemsChanged;
+		return this;
+	}
+
+	public Element toElement() {
+		Element elem = new Element(ELEM_NAME, new String[]{"type", "service"},
+								   new String[]{type.name(), serviceJid.toString()});
+		if (node != null) {
+			elem.setAttribute("node", node);
+		}
+		if (collection != null) {
+			elem.setAttribute("collection", collection);
+		}
+		if (replaced) {
+			elem.setAttribute("replaced", replacedCollection == null ? "" : replacedCollection);
+		}
+		if (version > 0) {
+			elem.setAttribute("version", String.valueOf(version));
+			if (firstVersion != version) {
+				elem.setAttribute("first-version", String.valueOf(firstVersion));
+			}
+		}
+		if (itemsChanged) {
+			elem.setAttribute("items", "true");
+		}
+		if (config != null) {
+			elem.addChild(config.clone());
+		}
+		for (UsersAffiliation affiliation : getAffiliations()) {
+			elem.addChild(new Element("affiliation", new String[]{"jid", "affiliation"},
+									  new String[]{affiliation.getJid().toString(),
+												   affiliation.getAffiliation().name()}));
+		}
+		for (UsersSubscription subscription : getSubscriptions()) {
+			Element subElem = new Element("subscription", new String[]{"jid", "subscription"},
+										  new String[]{subscription.getJid().toString(),
+													   subscription.getSubscription().name()});
+			if (subscription.getSubid() != null) {
+				subElem.setAttribute("subid", subscription.getSubid());
+			}
+			elem.addChild(subElem);
+		}
+		return elem;
+	}
+
+	@Override
+	public String toString() {
+		return "NodeCacheUpdate[type = " + type + ", serviceJid = " + serviceJid + ", node = " + node +
+				", versions = " + firstVersion + ".." + version + "]";
+	}
+}
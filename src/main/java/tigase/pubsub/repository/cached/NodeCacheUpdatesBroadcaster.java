@@ -0,0 +1,216 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of updates of cached nodes, which are sent to other cluster nodes in batches.
+ *
+ * Updates are merged per node (only the latest state of configuration and of each affiliation and subscription is
+ * sent) if their versions are consecutive, otherwise older update is sent separately before the newer one. Updates
+ * are passed to <code>NodeCacheUpdatesChannel</code> by a separate thread every <code>flushInterval</code>
+ * milliseconds or as soon as number of waiting updates reaches <code>flushSize</code>. Removals of services are sent
+ * before updates of nodes, as updates of nodes of removed service which were made before its removal are dropped.
+ *
+ * Updates which could not be sent are not retried, as the channel is responsible for delivery of the batch.
+ */
+public class NodeCacheUpdatesBroadcaster
+		implements Runnable {
+
+	private static final Logger log = Logger.getLogger(NodeCacheUpdatesBroadcaster.class.getCanonicalName());
+
+	private final CachedPubSubRepository.NodeCacheUpdatesChannel channel;
+	private final long flushInterval;
+	private final int flushSize;
+	// only one flush may be executed at once, so updates are sent in order in which they were made
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	// guarded by this
+	private LinkedHashMap<CachedPubSubRepository.NodeKey, NodeCacheUpdate> pending = new LinkedHashMap<>();
+	// updates which could not be merged with newer updates of the same node
+	private List<NodeCacheUpdate> unmerged = new ArrayList<>();
+	private LinkedHashSet<BareJID> removedServices = new LinkedHashSet<>();
+	private boolean stopped = false;
+	private Thread thread;
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder merged = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+
+	public NodeCacheUpdatesBroadcaster(CachedPubSubRepository.NodeCacheUpdatesChannel channel, long flushInterval,
+									   int flushSize) {
+		this.channel = channel;
+		this.flushInterval = Math.max(1, flushInterval);
+		this.flushSize = Math.max(1, flushSize);
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		stopped = false;
+		thread = new Thread(this, "pubsub-cache-updates");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops sending thread and sends all waiting updates.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			stopped = true;
+			thread = this.thread;
+			this.thread = null;
+			notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join(flushInterval + 10000);
+			} catch (InterruptedException ex) {
+				log.log(Level.FINEST, "interrupted while waiting for cache updates thread to finish");
+			}
+		}
+		flush();
+	}
+
+	public void add(NodeCacheUpdate update) {
+		if (update.isEmpty()) {
+			return;
+		}
+		int size;
+		synchronized (this) {
+			if (update.getType() == NodeCacheUpdate.Type.serviceRemoved) {
+				int before = pending.size() + unmerged.size();
+				pending.keySet().removeIf(key -> key.serviceJid.equals(update.getServiceJid()));
+				unmerged.removeIf(older -> older.getServiceJid().equals(update.getServiceJid()));
+				merged.add(before - pending.size() - unmerged.size());
+				removedServices.add(update.getServiceJid());
+			} else {
+				CachedPubSubRepository.NodeKey key = update.getKey();
+				// removed and added again, so updates are sent in order of their last change
+				NodeCacheUpdate older = pending.remove(key);
+				if (older != null && older.canMerge(update)) {
+					merged.increment();
+					pending.put(key, older.merge(update));
+				} else {
+					if (older != null) {
+						unmerged.add(older);
+					}
+					pending.put(key, update);
+				}
+			}
+			size = pending.size() + unmerged.size() + removedServices.size();
+			if (size >= flushSize) {
+				notifyAll();
+			}
+		}
+		if (size >= flushSize * 10 || stoppedOrNotStarted()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends all waiting updates.
+	 */
+	public void flush() {
+		flushLock.lock();
+		try {
+			List<NodeCacheUpdate> toSend;
+			synchronized (this) {
+				if (pending.isEmpty() && unmerged.isEmpty() && removedServices.isEmpty()) {
+					return;
+				}
+				toSend = new ArrayList<>(removedServices.size() + unmerged.size() + pending.size());
+				for (BareJID serviceJid : removedServices) {
+					toSend.add(NodeCacheUpdate.serviceRemoved(serviceJid));
+				}
+				toSend.addAll(unmerged);
+				toSend.addAll(pending.values());
+				pending = new LinkedHashMap<>();
+				unmerged = new ArrayList<>();
+				removedServices = new LinkedHashSet<>();
+			}
+			try {
+				channel.send(toSend);
+				batches.increment();
+				sent.add(toSend.size());
+			} catch (RuntimeException ex) {
+				failures.increment();
+				log.log(Level.WARNING, "failed to send " + toSend.size() + " updates of cached nodes", ex);
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	public synchronized int size() {
+		return pending.size() + unmerged.size() + removedServices.size();
+	}
+
+	public void getStatistics(String name, StatisticsList list) {
+		long batches = this.batches.sum();
+		list.add(name, "cache-updates/queue size", size(), Level.FINE);
+		list.add(name, "cache-updates/sent batches", batches, Level.FINE);
+		list.add(name, "cache-updates/sent updates", sent.sum(), Level.FINE);
+		list.add(name, "cache-updates/merged updates", merged.sum(), Level.FINE);
+		list.add(name, "cache-updates/failed batches", failures.sum(), Level.FINE);
+		list.add(name, "cache-updates/average batch size", batches == 0 ? 0 : ((float) sent.sum()) / batches,
+				 Level.FINE);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				if (stopped) {
+					return;
+				}
+				if (size() < flushSize) {
+					try {
+						wait(flushInterval);
+					} catch (InterruptedException ex) {
+						// nothing to do..
+					}
+				}
+				if (stopped) {
+					return;
+				}
+			}
+			try {
+				flush();
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "failed to send updates of cached nodes", ex);
+			}
+		}
+	}
+
+	private synchronized boolean stoppedOrNotStarted() {
+		return thread == null;
+	}
+}
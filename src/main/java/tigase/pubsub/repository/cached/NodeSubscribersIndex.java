@@ -0,0 +1,119 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Index of subscribers of a cached node which should receive notifications (subscribed and not outcast).
+ *
+ * Index is built on first use and later it is updated only for JIDs which affiliations or subscriptions were changed
+ * (after changes are merged), so finding recipients of a notification does not require checking of all subscriptions
+ * and affiliations of the node. Returned collection is a live view of the index.
+ */
+public class NodeSubscribersIndex {
+
+	private final IAffiliationsCached affiliations;
+	private final LongAdder rebuilds;
+	private final ISubscriptionsCached subscriptions;
+	private volatile ConcurrentHashMap<BareJID, JID> active;
+
+	public NodeSubscribersIndex(IAffiliationsCached affiliations, ISubscriptionsCached subscriptions,
+								LongAdder rebuilds) {
+		this.affiliations = affiliations;
+		this.subscriptions = subscriptions;
+		this.rebuilds = rebuilds;
+	}
+
+	public Collection<JID> getActiveSubscribers() {
+		ConcurrentHashMap<BareJID, JID> active = this.active;
+		if (active == null) {
+			active = rebuild();
+		}
+		return active.values();
+	}
+
+	/**
+	 * Drops index, so it will be rebuilt on next use (ie. after changes were discarded).
+	 */
+	public void invalidate() {
+		this.active = null;
+	}
+
+	public int size() {
+		ConcurrentHashMap<BareJID, JID> active = this.active;
+		return active == null ? 0 : active.size();
+	}
+
+	/**
+	 * Updates index for JIDs which affiliations or subscriptions were changed. Needs to be called after changes were
+	 * merged.
+	 */
+	public synchronized void update(Collection<BareJID> jids) {
+		ConcurrentHashMap<BareJID, JID> active = this.active;
+		if (active == null) {
+			return;
+		}
+		for (BareJID jid : jids) {
+			if (isActive(jid)) {
+				active.computeIfAbsent(jid, JID::jidInstance);
+			} else {
+				active.remove(jid);
+			}
+		}
+	}
+
+	private boolean isActive(BareJID jid) {
+		return subscriptions.getSubscription(jid) == Subscription.subscribed &&
+				affiliations.getSubscriberAffiliation(jid).getAffiliation() != Affiliation.outcast;
+	}
+
+	private synchronized ConcurrentHashMap<BareJID, JID> rebuild() {
+		ConcurrentHashMap<BareJID, JID> active = this.active;
+		if (active != null) {
+			return active;
+		}
+		rebuilds.increment();
+		// outcasts are collected first, so affiliations loaded on demand are loaded at once and not for each subscriber
+		Set<BareJID> outcasts = new HashSet<>();
+		for (UsersAffiliation affiliation : affiliations.getAffiliations()) {
+			if (affiliation.getAffiliation() == Affiliation.outcast) {
+				outcasts.add(affiliation.getJid());
+			}
+		}
+		outcasts.removeIf(jid -> affiliations.getSubscriberAffiliation(jid).getAffiliation() != Affiliation.outcast);
+		ConcurrentHashMap<BareJID, JID> subscribed = new ConcurrentHashMap<>();
+		subscriptions.forEachSubscription((jid, subscription) -> {
+			if (subscription == Subscription.subscribed && !outcasts.contains(jid)) {
+				subscribed.put(jid, JID.jidInstance(jid));
+			}
+		});
+		this.active = subscribed;
+		return subscribed;
+	}
+}
@@ -23,22 +23,34 @@ import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.jid.BareJID;
 
 import java.util.*;
-import java.util.logging.Level;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
+/**
+ * Subscriptions of a cached node.
+ *
+ * Merged subscriptions are kept in a compact <code>SubscriptionsStore</code>. Changes which are not merged yet are kept
+ * in a change log of a thread which made them (created on first change and dropped when changes are merged or
+ * discarded), so they are visible only to this thread until they are stored in the database. Change logs of threads
+ * which terminated before their changes were merged or discarded are dropped when a new change log is created.
+ */
 public class NodeSubscriptions
 		extends tigase.pubsub.repository.NodeSubscriptions implements ISubscriptionsCached {
 
 	protected final static Logger log = Logger.getLogger(NodeSubscriptions.class.getName());
 
-	protected final ThreadLocal<Map<BareJID, UsersSubscription>> changedSubs = new ThreadLocal<Map<BareJID, UsersSubscription>>();
+	protected final SubscriptionsStore store = new SubscriptionsStore();
+	private final ConcurrentHashMap<Thread, Map<BareJID, UsersSubscription>> changeLogs = new ConcurrentHashMap<>(2);
 
 	public NodeSubscriptions() {
 	}
 
 	public NodeSubscriptions(Map<BareJID, UsersSubscription> subscriptions) {
-		super(subscriptions);
+		if (subscriptions != null) {
+			store.putAll(subscriptions.values());
+		}
 	}
 
 	@Override
@@ -46,95 +58,164 @@ public class NodeSubscriptions
 		final String subid = Utils.createUID(bareJid);
 		UsersSubscription s = new UsersSubscription(bareJid, subid, subscription);
 
-		changedSubs().put(bareJid, s);
+		changeLog(true).put(bareJid, s);
 
 		return subid;
 	}
 
+	@Override
+	public int cachedSize() {
+		return store.size();
+	}
+
 	@Override
 	public void changeSubscription(BareJID bareJid, Subscription subscription) {
-		UsersSubscription s = subs.get(bareJid);
+		UsersSubscription s = get(bareJid);
 
 		if (s != null) {
-			s.setSubscription(subscription);
-
-			changedSubs().put(s.getJid(), s);
+			changeLog(true).put(s.getJid(), new UsersSubscription(s.getJid(), s.getSubid(), subscription));
 		}
 	}
 
 	@Override
 	public void changeSubscription(UsersSubscription subscription) {
-		changedSubs().put(subscription.getJid(), subscription);
+		changeLog(true).put(subscription.getJid(), subscription);
+	}
+
+	@Override
+	public void forEachSubscription(BiConsumer<BareJID, Subscription> consumer) {
+		Map<BareJID, UsersSubscription> changeLog = changeLog(false);
+		if (changeLog == null) {
+			store.forEach(consumer);
+		} else {
+			store.forEach((jid, subscription) -> {
+				if (!changeLog.containsKey(jid)) {
+					consumer.accept(jid, subscription);
+				}
+			});
+			for (UsersSubscription s : changeLog.values()) {
+				consumer.accept(s.getJid(), s.getSubscription());
+			}
+		}
 	}
 
 	@Override
 	public Map<BareJID, UsersSubscription> getChanged() {
-		return Collections.unmodifiableMap(changedSubs());
+		Map<BareJID, UsersSubscription> changeLog = changeLog(false);
+		return changeLog == null ? Collections.emptyMap() : Collections.unmodifiableMap(changeLog);
 	}
 
 	@Override
-	public Stream<UsersSubscription> getSubscriptions() {
-		final Set<UsersSubscription> result = new HashSet<UsersSubscription>();
+	public Subscription getSubscription(BareJID bareJid) {
+		Map<BareJID, UsersSubscription> changeLog = changeLog(false);
+		UsersSubscription s = changeLog == null ? null : changeLog.get(bareJid);
+		if (s != null) {
+			return s.getSubscription();
+		}
 
-		result.addAll(this.subs.values());
+		Subscription subscription = getResidentSubscription(bareJid);
+		return subscription == null ? Subscription.none : subscription;
+	}
 
-		result.addAll(this.changedSubs().values());
+	@Override
+	public Stream<UsersSubscription> getSubscriptions() {
+		Map<BareJID, UsersSubscription> changeLog = changeLog(false);
+		Stream<UsersSubscription> resident = store.snapshot().stream();
+		if (changeLog == null) {
+			return resident;
+		}
 
-		return result.stream();
+		List<UsersSubscription> changed = new ArrayList<>(changeLog.values());
+		return Stream.concat(resident.filter(s -> !changeLog.containsKey(s.getJid())), changed.stream());
+	}
+
+	@Override
+	public void init(Queue<UsersSubscription> data) {
+		UsersSubscription s = null;
+		while ((s = data.poll()) != null) {
+			store.put(s);
+		}
 	}
 
 	@Override
 	public boolean isChanged() {
-		return this.changedSubs().size() > 0;
+		Map<BareJID, UsersSubscription> changeLog = changeLog(false);
+		return changeLog != null && !changeLog.isEmpty();
 	}
 
 	public void merge() {
-		Map<BareJID, UsersSubscription> changedSubs = changedSubs();
-		for (Map.Entry<BareJID, UsersSubscription> entry : changedSubs.entrySet()) {
+		Map<BareJID, UsersSubscription> changeLog = changeLogs.remove(Thread.currentThread());
+		if (changeLog == null) {
+			return;
+		}
+		for (Map.Entry<BareJID, UsersSubscription> entry : changeLog.entrySet()) {
 			if (entry.getValue().getSubscription() == Subscription.none) {
-				subs.remove(entry.getKey());
+				store.remove(entry.getKey());
 			} else {
-				subs.put(entry.getKey(), entry.getValue());
+				store.put(entry.getValue());
 			}
 		}
-		// subs.putAll(changedSubs);
-		changedSubs.clear();
 	}
 
 	@Override
 	public void resetChangedFlag() {
-		changedSubs().clear();
+		changeLogs.remove(Thread.currentThread());
 	}
 
 	@Override
-	protected UsersSubscription get(final BareJID bareJid) {
-		UsersSubscription us = null;
-
-		us = changedSubs().get(bareJid);
+	public int size() {
+		return store.size();
+	}
 
-		if (us == null) {
-			us = subs.get(bareJid);
+	@Override
+	public String toString() {
+		return "NodeSubscriptions: " + store;
+	}
 
-			if (us != null) {
-				try {
-					return us.clone();
-				} catch (Exception e) {
-					log.log(Level.WARNING, "Cloning failed, us: " + us, e);
+	@Override
+	protected UsersSubscription get(final BareJID bareJid) {
+		Map<BareJID, UsersSubscription> changeLog = changeLog(false);
+		UsersSubscription us = changeLog == null ? null : changeLog.get(bareJid);
 
-					return null;
-				}
-			}
+		if (us == null) {
+			// returned instance is created by the store, so it may be modified by the caller
+			us = getResident(bareJid);
 		}
 
 		return us;
 	}
 
-	private Map<BareJID, UsersSubscription> changedSubs() {
-		Map<BareJID, UsersSubscription> changedSubs = this.changedSubs.get();
-		if (changedSubs == null) {
-			changedSubs = new HashMap<BareJID, UsersSubscription>();
-			this.changedSubs.set(changedSubs);
+	/**
+	 * Returns subscription kept in memory (without changes which are not merged yet).
+	 */
+	protected UsersSubscription getResident(BareJID bareJid) {
+		return store.get(bareJid);
+	}
+
+	/**
+	 * Returns state of subscription kept in memory (without changes which are not merged yet) or <code>null</code>.
+	 */
+	protected Subscription getResidentSubscription(BareJID bareJid) {
+		return store.getSubscription(bareJid);
+	}
+
+	private Map<BareJID, UsersSubscription> changeLog(boolean create) {
+		Thread thread = Thread.currentThread();
+		if (!create) {
+			// most of the calls are reads done without any change, so they should not allocate anything
+			return changeLogs.isEmpty() ? null : changeLogs.get(thread);
+		}
+		Map<BareJID, UsersSubscription> changeLog = changeLogs.get(thread);
+		if (changeLog == null) {
+			// change log of a thread which terminated without merging or discarding its changes would never be removed
+			changeLogs.keySet().removeIf(t -> !t.isAlive());
+			changeLog = new HashMap<>();
+			changeLogs.put(thread, changeLog);
 		}
-		return changedSubs;
+		return changeLog;
+	}
+
+	int changeLogsCount() {
+		return changeLogs.size();
 	}
 }
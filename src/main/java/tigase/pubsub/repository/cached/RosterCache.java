@@ -0,0 +1,116 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.pubsub.repository.IPubSubRepository;
+import tigase.pubsub.utils.Cache;
+import tigase.pubsub.utils.SegmentedLRUCache;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.impl.roster.RosterElement;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Bounded cache of parsed rosters of users (owners of PEP services and nodes with <code>presence</code> or
+ * <code>roster</code> access model).
+ *
+ * Each cached roster is immutable and keeps, next to the roster itself, an index of JIDs by the roster group, so
+ * checking if JID belongs to any of allowed groups does not require iteration over the whole roster. Entries are
+ * dropped when roster of the user is changed or after configured time, as not all changes of the roster are visible
+ * to the PubSub component. For that reason cached rosters are only used to find recipients of notifications, while
+ * access checks read the roster from the user repository.
+ */
+public class RosterCache {
+
+	private final Cache<BareJID, UserRoster> rosters;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final long ttl;
+
+	public RosterCache(int maxSize, long ttl) {
+		this.rosters = new SegmentedLRUCache<>(maxSize);
+		this.ttl = ttl;
+	}
+
+	public UserRoster getRoster(BareJID owner, IPubSubRepository.RepositorySupplier<Map<BareJID, RosterElement>> supplier)
+			throws RepositoryException {
+		UserRoster roster = rosters.get(owner);
+		long now = System.currentTimeMillis();
+		if (roster != null) {
+			if (roster.validUntil >= now) {
+				hits.increment();
+				return roster;
+			}
+			rosters.remove(owner, roster);
+		}
+		misses.increment();
+		roster = new UserRoster(supplier.get(), now + ttl);
+		rosters.put(owner, roster);
+		return roster;
+	}
+
+	public void invalidate(BareJID owner) {
+		rosters.remove(owner);
+	}
+
+	public int size() {
+		return rosters.size();
+	}
+
+	public void getStatistics(String name, StatisticsList stats) {
+		stats.add(name, "Cached rosters", rosters.size(), Level.FINEST);
+		stats.add(name, "Roster cache hits", hits.sum(), Level.FINEST);
+		stats.add(name, "Roster cache misses", misses.sum(), Level.FINEST);
+	}
+
+	public static class UserRoster {
+
+		private final Map<String, Set<BareJID>> groups;
+		private final Map<BareJID, RosterElement> roster;
+		private final long validUntil;
+
+		public UserRoster(Map<BareJID, RosterElement> roster, long validUntil) {
+			this.roster = roster.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(roster));
+			this.validUntil = validUntil;
+			Map<String, Set<BareJID>> groups = new HashMap<>();
+			for (Map.Entry<BareJID, RosterElement> e : roster.entrySet()) {
+				String[] elemGroups = e.getValue().getGroups();
+				if (elemGroups == null) {
+					continue;
+				}
+				for (String group : elemGroups) {
+					groups.computeIfAbsent(group, g -> new HashSet<>()).add(e.getKey());
+				}
+			}
+			groups.replaceAll((group, jids) -> Collections.unmodifiableSet(jids));
+			this.groups = groups.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(groups);
+		}
+
+		public Map<BareJID, RosterElement> getRoster() {
+			return roster;
+		}
+
+		public Set<BareJID> getGroup(String group) {
+			return groups.getOrDefault(group, Collections.emptySet());
+		}
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.jid.BareJID;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Compact in-memory store of subscriptions of a single cached node.
+ *
+ * Subscriptions are kept in parallel arrays (not as <code>UsersSubscription</code> instances in a map): interned JIDs,
+ * ordinals of subscription states and subids encoded as 128-bit numbers (subids generated by
+ * <code>Utils.createUID()</code> are base-36 encoded numbers). Subids which cannot be encoded are kept in a side
+ * table. JIDs are looked up using an open addressing index holding positions in the arrays.
+ *
+ * Lookups of a single JID use optimistic reads and do not block, changes are done under a write lock. Iteration is
+ * done over an immutable snapshot of the arrays, which is created on first iteration after a change, so iterating
+ * over subscribers of a node does not allocate any objects.
+ */
+public class SubscriptionsStore {
+
+	private static final int INITIAL_CAPACITY = 4;
+	private static final long NULL_SUBID = -2;
+	private static final long OTHER_SUBID = -1;
+	private static final long SUBID_SIGN = 1L << 62;
+	private static final Subscription[] SUBSCRIPTIONS = Subscription.values();
+
+	private final StampedLock lock = new StampedLock();
+	// positions of entries increased by 1 (0 marks empty slot)
+	private int[] index = new int[0];
+	private BareJID[] jids = new BareJID[0];
+	private Map<BareJID, String> otherSubids = null;
+	private int size = 0;
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+	private byte[] states = new byte[0];
+	// two longs per entry: high (with sign and markers) and low bits of the subid
+	private long[] subids = new long[0];
+
+	static String decodeSubid(long high, long low) {
+		byte[] magnitude = new byte[16];
+		boolean zero = true;
+		for (int i = 0; i < 8; i++) {
+			magnitude[i] = (byte) ((high & ~SUBID_SIGN) >>> (56 - 8 * i));
+			magnitude[i + 8] = (byte) (low >>> (56 - 8 * i));
+			zero &= magnitude[i] == 0 && magnitude[i + 8] == 0;
+		}
+		if (zero) {
+			return "0";
+		}
+		return new BigInteger((high & SUBID_SIGN) != 0 ? -1 : 1, magnitude).toString(36);
+	}
+
+	/**
+	 * Returns encoded subid as an array of high and low bits or <code>null</code> if subid cannot be encoded.
+	 */
+	static long[] encodeSubid(String subid) {
+		if (subid == null) {
+			return new long[]{NULL_SUBID, 0};
+		}
+		if (subid.isEmpty() || subid.length() > 26) {
+			return null;
+		}
+		BigInteger value;
+		try {
+			value = new BigInteger(subid, 36);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		BigInteger magnitude = value.abs();
+		if (magnitude.bitLength() > 124 || !value.toString(36).equals(subid)) {
+			// only canonical representations may be decoded back to the same subid
+			return null;
+		}
+		long high = magnitude.shiftRight(64).longValue();
+		if (value.signum() < 0) {
+			high |= SUBID_SIGN;
+		}
+		return new long[]{high, magnitude.longValue()};
+	}
+
+	private static UsersSubscription entry(BareJID[] jids, byte[] states, long[] subids,
+										   Map<BareJID, String> otherSubids, int pos) {
+		String subid;
+		if (subids[pos * 2] == OTHER_SUBID) {
+			subid = otherSubids.get(jids[pos]);
+		} else if (subids[pos * 2] == NULL_SUBID) {
+			subid = null;
+		} else {
+			subid = decodeSubid(subids[pos * 2], subids[pos * 2 + 1]);
+		}
+		return new UsersSubscription(jids[pos], subid, SUBSCRIPTIONS[states[pos]]);
+	}
+
+	public boolean contains(BareJID jid) {
+		return getSubscription(jid) != null;
+	}
+
+	/**
+	 * Calls consumer for each stored subscription. Subscriptions changed during iteration may not be visible.
+	 */
+	public void forEach(BiConsumer<BareJID, Subscription> consumer) {
+		snapshot().forEach(consumer);
+	}
+
+	public UsersSubscription get(BareJID jid) {
+		long stamp = lock.readLock();
+		try {
+			int pos = position(jid);
+			return pos < 0 ? null : entry(jids, states, subids, otherSubids, pos);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns subscription of JID or <code>null</code> if there is no subscription stored for this JID.
+	 */
+	public Subscription getSubscription(BareJID jid) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			byte state = readState(jid);
+			if (lock.validate(stamp)) {
+				return state < 0 ? null : SUBSCRIPTIONS[state];
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			byte state = readState(jid);
+			return state < 0 ? null : SUBSCRIPTIONS[state];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public void put(UsersSubscription subscription) {
+		long stamp = lock.writeLock();
+		try {
+			putEntry(subscription);
+			snapshot = null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public void putAll(Collection<UsersSubscription> subscriptions) {
+		long stamp = lock.writeLock();
+		try {
+			ensureCapacity(size + subscriptions.size());
+			for (UsersSubscription subscription : subscriptions) {
+				putEntry(subscription);
+			}
+			snapshot = null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean remove(BareJID jid) {
+		long stamp = lock.writeLock();
+		try {
+			int pos = position(jid);
+			if (pos < 0) {
+				return false;
+			}
+			removeEntry(pos);
+			snapshot = null;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Replaces all stored subscriptions with provided subscriptions at once.
+	 */
+	public void replaceWith(Collection<UsersSubscription> subscriptions) {
+		long stamp = lock.writeLock();
+		try {
+			index = new int[0];
+			jids = new BareJID[0];
+			states = new byte[0];
+			subids = new long[0];
+			otherSubids = null;
+			size = 0;
+			ensureCapacity(subscriptions.size());
+			for (UsersSubscription subscription : subscriptions) {
+				putEntry(subscription);
+			}
+			snapshot = null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public void retainAll(Set<BareJID> retained) {
+		long stamp = lock.writeLock();
+		try {
+			for (int pos = size - 1; pos >= 0; pos--) {
+				if (!retained.contains(jids[pos])) {
+					removeEntry(pos);
+				}
+			}
+			snapshot = null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		long stamp = lock.tryOptimisticRead();
+		int size = this.size;
+		if (stamp != 0 && lock.validate(stamp)) {
+			return size;
+		}
+		stamp = lock.readLock();
+		try {
+			return this.size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns immutable snapshot of stored subscriptions.
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot != null) {
+			return snapshot;
+		}
+		long stamp = lock.readLock();
+		try {
+			snapshot = this.snapshot;
+			if (snapshot == null) {
+				snapshot = new Snapshot(Arrays.copyOf(jids, size), Arrays.copyOf(states, size),
+										Arrays.copyOf(subids, size * 2),
+										otherSubids == null ? null : new HashMap<>(otherSubids));
+				// snapshot is immutable, so it is not a problem if it is created by many readers at once
+				this.snapshot = snapshot;
+			}
+			return snapshot;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		forEach((jid, subscription) -> {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(jid).append('/').append(subscription);
+		});
+		return sb.append('}').toString();
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= jids.length) {
+			return;
+		}
+		int newCapacity = Math.max(INITIAL_CAPACITY, jids.length);
+		while (newCapacity < capacity) {
+			newCapacity = newCapacity * 2;
+		}
+		BareJID[] jids = Arrays.copyOf(this.jids, newCapacity);
+		int[] index = new int[newCapacity * 2];
+		int mask = index.length - 1;
+		for (int pos = 0; pos < size; pos++) {
+			int i = BareJIDInterner.spread(jids[pos].hashCode()) & mask;
+			while (index[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			index[i] = pos + 1;
+		}
+		this.states = Arrays.copyOf(states, newCapacity);
+		this.subids = Arrays.copyOf(subids, newCapacity * 2);
+		this.jids = jids;
+		this.index = index;
+	}
+
+	/**
+	 * Returns index slot containing position of JID or empty index slot where it should be placed. Needs to be called
+	 * with write lock held.
+	 */
+	private int indexSlot(BareJID jid) {
+		int mask = index.length - 1;
+		int i = BareJIDInterner.spread(jid.hashCode()) & mask;
+		while (index[i] != 0 && !jids[index[i] - 1].equals(jid)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Returns position of JID in the arrays or <code>-1</code>. May be called during optimistic read, so arrays may be
+	 * inconsistent and result needs to be validated.
+	 */
+	private int position(BareJID jid) {
+		int[] index = this.index;
+		BareJID[] jids = this.jids;
+		int mask = index.length - 1;
+		int i = BareJIDInterner.spread(jid.hashCode()) & mask;
+		for (int probes = 0; probes < index.length; probes++) {
+			int pos = index[i] - 1;
+			if (pos < 0 || pos >= jids.length) {
+				return -1;
+			}
+			BareJID stored = jids[pos];
+			if (stored != null && stored.equals(jid)) {
+				return pos;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void putEntry(UsersSubscription subscription) {
+		ensureCapacity(size + 1);
+		BareJID jid = subscription.getJid();
+		int slot = indexSlot(jid);
+		int pos = index[slot] - 1;
+		if (pos < 0) {
+			pos = size++;
+			index[slot] = pos + 1;
+			jids[pos] = BareJIDInterner.intern(jid);
+		} else if (subids[pos * 2] == OTHER_SUBID) {
+			otherSubids.remove(jid);
+		}
+		states[pos] = (byte) subscription.getSubscription().ordinal();
+		long[] subid = encodeSubid(subscription.getSubid());
+		if (subid == null) {
+			if (otherSubids == null) {
+				otherSubids = new HashMap<>();
+			}
+			otherSubids.put(jids[pos], subscription.getSubid());
+			subids[pos * 2] = OTHER_SUBID;
+			subids[pos * 2 + 1] = 0;
+		} else {
+			subids[pos * 2] = subid[0];
+			subids[pos * 2 + 1] = subid[1];
+		}
+	}
+
+	private byte readState(BareJID jid) {
+		byte[] states = this.states;
+		int pos = position(jid);
+		return pos < 0 || pos >= states.length ? -1 : states[pos];
+	}
+
+	private void removeEntry(int pos) {
+		BareJID jid = jids[pos];
+		if (subids[pos * 2] == OTHER_SUBID) {
+			otherSubids.remove(jid);
+		}
+		removeFromIndex(indexSlot(jid));
+		int last = size - 1;
+		if (pos != last) {
+			// last entry is moved in place of the removed one, so arrays stay dense
+			index[indexSlot(jids[last])] = pos + 1;
+			jids[pos] = jids[last];
+			states[pos] = states[last];
+			subids[pos * 2] = subids[last * 2];
+			subids[pos * 2 + 1] = subids[last * 2 + 1];
+		}
+		jids[last] = null;
+		size = last;
+	}
+
+	private void removeFromIndex(int slot) {
+		// backward shift deletion, so linear probing does not require tombstones
+		int mask = index.length - 1;
+		int i = slot;
+		int j = slot;
+		while (true) {
+			j = (j + 1) & mask;
+			int pos = index[j] - 1;
+			if (pos < 0) {
+				break;
+			}
+			int home = BareJIDInterner.spread(jids[pos].hashCode()) & mask;
+			boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+			if (movable) {
+				index[i] = index[j];
+				i = j;
+			}
+		}
+		index[i] = 0;
+	}
+
+	/**
+	 * Immutable copy of stored subscriptions.
+	 */
+	public static class Snapshot {
+
+		private static final Snapshot EMPTY = new Snapshot(new BareJID[0], new byte[0], new long[0], null);
+
+		private final BareJID[] jids;
+		private final Map<BareJID, String> otherSubids;
+		private final byte[] states;
+		private final long[] subids;
+
+		private Snapshot(BareJID[] jids, byte[] states, long[] subids, Map<BareJID, String> otherSubids) {
+			this.jids = jids;
+			this.states = states;
+			this.subids = subids;
+			this.otherSubids = otherSubids;
+		}
+
+		public void forEach(BiConsumer<BareJID, Subscription> consumer) {
+			for (int i = 0; i < jids.length; i++) {
+				consumer.accept(jids[i], SUBSCRIPTIONS[states[i]]);
+			}
+		}
+
+		public int size() {
+			return jids.length;
+		}
+
+		public Stream<UsersSubscription> stream() {
+			return IntStream.range(0, jids.length).mapToObj(i -> entry(jids, states, subids, otherSubids, i));
+		}
+	}
+}
@@ -0,0 +1,459 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.db.DataSource;
+import tigase.pubsub.modules.mam.PubSubQuery;
+import tigase.pubsub.repository.IPubSubDAO;
+import tigase.pubsub.repository.NodeChanges;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of changes of affiliations and subscriptions of cached nodes, which are written to the database
+ * asynchronously.
+ *
+ * Changes are coalesced per node (only the latest change for each JID is written) and are written by a separate
+ * thread every <code>flushInterval</code> milliseconds or as soon as number of waiting changes reaches
+ * <code>flushSize</code>. All changes of a single service are passed to the DAO at once, so they may be written in
+ * batches (but not atomically). If number of waiting changes exceeds ten times <code>flushSize</code>, changes are written by
+ * the thread adding them. If number of waiting changes reaches <code>maxSize</code>, new changes are not queued but
+ * written synchronously by the thread adding them (after waiting changes of the same node), so failure of the write
+ * is reported to the caller and memory used by the queue is limited while the database is not available.
+ *
+ * If write fails, changes are put back to the queue (as cached nodes already contain them) and periodic writes are
+ * postponed, with the delay doubled after each consecutive failure up to <code>MAX_RETRY_DELAY</code>. Changes are
+ * never dropped while queue is running. If changes of a node cannot be written before the node is loaded from the
+ * database, loading fails instead of returning stale data. All waiting changes are written when queue is stopped.
+ *
+ * If <code>WriteListener</code> is set, changes are versioned and the listener is notified about each node changes
+ * after they are written, in order in which they were written.
+ */
+public class WriteBehindQueue<T>
+		implements Runnable {
+
+	private static final Logger log = Logger.getLogger(WriteBehindQueue.class.getCanonicalName());
+
+	private static final int MAX_FAILURES = 3;
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	/**
+	 * Listener notified about changes of a node written to the database.
+	 */
+	public interface WriteListener<T> {
+
+		void changesWritten(CachedPubSubRepository.NodeKey key, NodeChanges<T> changes);
+
+	}
+
+	private final IPubSubDAO<T, DataSource, PubSubQuery> dao;
+	private final long flushInterval;
+	private final int flushSize;
+	private final int maxSize;
+	private final WriteListener<T> listener;
+	// only one flush may be executed at once, so changes are written in order in which they were made
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	// guarded by this
+	private LinkedHashMap<CachedPubSubRepository.NodeKey, NodeChanges<T>> pending = new LinkedHashMap<>();
+	private int pendingChanges = 0;
+	// nodes with changes being written
+	private final Set<CachedPubSubRepository.NodeKey> writing = new HashSet<>();
+	private long retryAt = 0;
+	private boolean stopped = false;
+	private Thread thread;
+
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder flushedChanges = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder flushTime = new LongAdder();
+	private final AtomicLong maxFlushTime = new AtomicLong();
+	private final LongAdder synchronousWrites = new LongAdder();
+
+	public WriteBehindQueue(IPubSubDAO<T, DataSource, PubSubQuery> dao, long flushInterval, int flushSize) {
+		this(dao, flushInterval, flushSize, null);
+	}
+
+	public WriteBehindQueue(IPubSubDAO<T, DataSource, PubSubQuery> dao, long flushInterval, int flushSize,
+							WriteListener<T> listener) {
+		this(dao, flushInterval, flushSize, Integer.MAX_VALUE, listener);
+	}
+
+	public WriteBehindQueue(IPubSubDAO<T, DataSource, PubSubQuery> dao, long flushInterval, int flushSize, int maxSize,
+							WriteListener<T> listener) {
+		this.dao = dao;
+		this.flushInterval = Math.max(1, flushInterval);
+		this.flushSize = Math.max(1, flushSize);
+		this.maxSize = Math.max(1, maxSize);
+		this.listener = listener;
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		stopped = false;
+		thread = new Thread(this, "pubsub-write-behind");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops writing thread and writes all waiting changes.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			stopped = true;
+			thread = this.thread;
+			this.thread = null;
+			notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join(flushInterval + 10000);
+			} catch (InterruptedException ex) {
+				log.log(Level.FINEST, "interrupted while waiting for write-behind thread to finish");
+			}
+		}
+		// failed changes are put back, so try a few times until all are written
+		for (int i = 0; i < MAX_FAILURES && size() > 0; i++) {
+			flush();
+		}
+		synchronized (this) {
+			if (pendingChanges > 0) {
+				log.log(Level.SEVERE, "failed to write " + pendingChanges +
+						" changes of affiliations and subscriptions before stopping: " + pending.values());
+			}
+		}
+	}
+
+	/**
+	 * Queues changes of a node or writes them synchronously if the queue is full.
+	 *
+	 * @throws RepositoryException if the queue is full and changes could not be written
+	 */
+	public void add(CachedPubSubRepository.NodeKey key, T nodeId, Collection<UsersAffiliation> affiliations,
+					Collection<UsersSubscription> subscriptions) throws RepositoryException {
+		boolean full;
+		synchronized (this) {
+			full = pendingChanges >= maxSize;
+		}
+		if (full) {
+			write(key, nodeId, affiliations, subscriptions);
+			return;
+		}
+		int size;
+		boolean retryPostponed;
+		synchronized (this) {
+			NodeChanges<T> changes = pending.get(key);
+			if (changes == null) {
+				changes = new NodeChanges<>(nodeId, key.node);
+				changes.setVersioned(listener != null);
+				pending.put(key, changes);
+			}
+			int before = changes.size();
+			if (affiliations != null) {
+				for (UsersAffiliation affiliation : affiliations) {
+					changes.affiliationChanged(affiliation);
+				}
+			}
+			if (subscriptions != null) {
+				for (UsersSubscription subscription : subscriptions) {
+					changes.subscriptionChanged(subscription);
+				}
+			}
+			pendingChanges += changes.size() - before;
+			size = pendingChanges;
+			if (size >= flushSize) {
+				notifyAll();
+			}
+			retryPostponed = retryAt > System.currentTimeMillis();
+		}
+		if ((size >= flushSize * 10 && !retryPostponed) || stoppedOrNotStarted()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Drops changes of matching nodes (ie. removed nodes) without writing them.
+	 */
+	public void discard(Predicate<CachedPubSubRepository.NodeKey> predicate) {
+		flushLock.lock();
+		try {
+			synchronized (this) {
+				Iterator<Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>>> it = pending.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>> e = it.next();
+					if (predicate.test(e.getKey())) {
+						pendingChanges -= e.getValue().size();
+						it.remove();
+					}
+				}
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all waiting changes.
+	 */
+	public void flush() {
+		flushLock.lock();
+		try {
+			LinkedHashMap<CachedPubSubRepository.NodeKey, NodeChanges<T>> toWrite;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				toWrite = pending;
+				pending = new LinkedHashMap<>();
+				pendingChanges = 0;
+				writing.addAll(toWrite.keySet());
+			}
+			try {
+				write(toWrite);
+			} finally {
+				synchronized (this) {
+					writing.clear();
+				}
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes waiting changes of a single node (ie. before node is loaded from the database).
+	 *
+	 * @throws RepositoryException if changes could not be written (they are kept in the queue)
+	 */
+	public void flush(CachedPubSubRepository.NodeKey key) throws RepositoryException {
+		flushLock.lock();
+		try {
+			NodeChanges<T> changes;
+			synchronized (this) {
+				changes = pending.remove(key);
+				if (changes == null) {
+					return;
+				}
+				pendingChanges -= changes.size();
+				writing.add(key);
+			}
+			LinkedHashMap<CachedPubSubRepository.NodeKey, NodeChanges<T>> toWrite = new LinkedHashMap<>();
+			toWrite.put(key, changes);
+			RepositoryException failure;
+			try {
+				failure = write(toWrite);
+			} finally {
+				synchronized (this) {
+					writing.clear();
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	public synchronized int size() {
+		return pendingChanges;
+	}
+
+	/**
+	 * Returns <code>true</code> if there are changes of the node waiting for write or being written.
+	 */
+	public synchronized boolean hasChanges(CachedPubSubRepository.NodeKey key) {
+		return pending.containsKey(key) || writing.contains(key);
+	}
+
+	public void getStatistics(String name, StatisticsList list) {
+		long flushes = this.flushes.sum();
+		list.add(name, "write-behind/queue size", size(), Level.FINE);
+		list.add(name, "write-behind/max queue size", maxSize, Level.FINE);
+		list.add(name, "write-behind/synchronous writes (queue full)", synchronousWrites.sum(), Level.FINE);
+		list.add(name, "write-behind/flushes", flushes, Level.FINE);
+		list.add(name, "write-behind/flushed changes", flushedChanges.sum(), Level.FINE);
+		list.add(name, "write-behind/failed flushes", failures.sum(), Level.FINE);
+		list.add(name, "write-behind/average flush time [ms]",
+				 flushes == 0 ? 0 : ((float) flushTime.sum()) / flushes, Level.FINE);
+		list.add(name, "write-behind/max flush time [ms]", maxFlushTime.getAndSet(0), Level.FINE);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				if (stopped) {
+					return;
+				}
+				long retryDelay = retryAt - System.currentTimeMillis();
+				if (pendingChanges < flushSize || retryDelay > 0) {
+					try {
+						wait(retryDelay > 0 ? retryDelay : flushInterval);
+					} catch (InterruptedException ex) {
+						// nothing to do..
+					}
+				}
+				if (stopped) {
+					return;
+				}
+				if (retryAt > System.currentTimeMillis()) {
+					continue;
+				}
+			}
+			try {
+				flush();
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "failed to write changes of affiliations and subscriptions", ex);
+			}
+		}
+	}
+
+	private synchronized boolean stoppedOrNotStarted() {
+		return thread == null;
+	}
+
+	/**
+	 * Writes changes of a node bypassing the full queue. Waiting changes of the node are written first, so changes
+	 * are written in order in which they were made.
+	 */
+	private void write(CachedPubSubRepository.NodeKey key, T nodeId, Collection<UsersAffiliation> affiliations,
+					   Collection<UsersSubscription> subscriptions) throws RepositoryException {
+		synchronousWrites.increment();
+		NodeChanges<T> changes = new NodeChanges<>(nodeId, key.node);
+		changes.setVersioned(listener != null);
+		if (affiliations != null) {
+			for (UsersAffiliation affiliation : affiliations) {
+				changes.affiliationChanged(affiliation);
+			}
+		}
+		if (subscriptions != null) {
+			for (UsersSubscription subscription : subscriptions) {
+				changes.subscriptionChanged(subscription);
+			}
+		}
+		flushLock.lock();
+		try {
+			flush(key);
+			try {
+				dao.updateNodesChanges(key.serviceJid, Collections.singletonList(changes));
+			} catch (RepositoryException ex) {
+				failures.increment();
+				throw ex;
+			}
+			if (listener != null) {
+				notifyWritten(Collections.singletonList(new AbstractMap.SimpleImmutableEntry<>(key, changes)));
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private RepositoryException write(LinkedHashMap<CachedPubSubRepository.NodeKey, NodeChanges<T>> toWrite) {
+		long start = System.currentTimeMillis();
+		Map<BareJID, List<Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>>>> perService = new LinkedHashMap<>();
+		for (Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>> e : toWrite.entrySet()) {
+			perService.computeIfAbsent(e.getKey().serviceJid, jid -> new ArrayList<>()).add(e);
+		}
+		int written = 0;
+		RepositoryException failure = null;
+		for (Map.Entry<BareJID, List<Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>>>> e : perService.entrySet()) {
+			List<NodeChanges<T>> changes = new ArrayList<>(e.getValue().size());
+			for (Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>> nodeChanges : e.getValue()) {
+				changes.add(nodeChanges.getValue());
+			}
+			try {
+				dao.updateNodesChanges(e.getKey(), changes);
+				for (NodeChanges<T> nodeChanges : changes) {
+					written += nodeChanges.size();
+				}
+				if (listener != null) {
+					notifyWritten(e.getValue());
+				}
+			} catch (RepositoryException | RuntimeException ex) {
+				failures.increment();
+				log.log(Level.WARNING, "failed to write changes of affiliations and subscriptions of service " +
+						e.getKey() + ", will retry", ex);
+				requeue(e.getValue());
+				failure = ex instanceof RepositoryException
+						  ? (RepositoryException) ex
+						  : new RepositoryException(ex.getMessage(), ex);
+			}
+		}
+		if (failure == null) {
+			synchronized (this) {
+				retryAt = 0;
+			}
+		}
+		long time = System.currentTimeMillis() - start;
+		flushes.increment();
+		flushedChanges.add(written);
+		flushTime.add(time);
+		maxFlushTime.accumulateAndGet(time, Math::max);
+		return failure;
+	}
+
+	private void notifyWritten(List<Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>>> written) {
+		for (Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>> e : written) {
+			try {
+				listener.changesWritten(e.getKey(), e.getValue());
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "failed to notify about written changes of node " + e.getKey(), ex);
+			}
+		}
+	}
+
+	private void requeue(List<Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>>> failed) {
+		synchronized (this) {
+			for (Map.Entry<CachedPubSubRepository.NodeKey, NodeChanges<T>> e : failed) {
+				NodeChanges<T> changes = e.getValue();
+				// changes are already visible in cached nodes, so they cannot be dropped
+				int failures = changes.failed();
+				if (failures == MAX_FAILURES) {
+					log.log(Level.SEVERE, "failed to write changes " + failures + " times, still retrying: " + changes);
+				}
+				long delay = Math.min(flushInterval << Math.min(failures - 1, 20), MAX_RETRY_DELAY);
+				retryAt = Math.max(retryAt, System.currentTimeMillis() + delay);
+				NodeChanges<T> newer = pending.get(e.getKey());
+				if (newer != null) {
+					pendingChanges -= newer.size();
+					newer.mergeOlder(changes);
+					pendingChanges += newer.size();
+				} else {
+					pending.put(e.getKey(), changes);
+					pendingChanges += changes.size();
+				}
+			}
+		}
+	}
+}
@@ -23,6 +23,9 @@ import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -34,6 +37,10 @@ public class StoredProcedures {
 
 	private static final Charset UTF8 = Charset.forName("UTF-8");
 
+	private static final String DUPLICATE_KEY_SQL_STATE = "23505";
+
+	private static final String TABLE_EXISTS_SQL_STATE = "X0Y32";
+
 	protected static Long getIdOfJid(Connection conn, String jid) throws SQLException {
 		if (jid == null) {
 			return null;
@@ -50,6 +57,35 @@ public class StoredProcedures {
 		return null;
 	}
 
+	// Derby does not support "delete ... returning", so ids of items to remove are collected in a temporary table of
+	// the session, which is used to remove them and then returned as a result
+	private static void clearRemovedIds(Connection conn) throws SQLException {
+		Statement st = conn.createStatement();
+		try {
+			st.execute("declare global temporary table session.tig_pubsub_removed_ids (id varchar(1024) not null)" +
+							   " on commit preserve rows not logged");
+		} catch (SQLException ex) {
+			if (!TABLE_EXISTS_SQL_STATE.equals(ex.getSQLState())) {
+				throw ex;
+			}
+			st.executeUpdate("delete from session.tig_pubsub_removed_ids");
+		} finally {
+			st.close();
+		}
+	}
+
+	private static ResultSet deleteCollectedItems(Connection conn, Long nodeId) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(
+				"delete from tig_pubsub_items where node_id = ? and id in (select r.id from session.tig_pubsub_removed_ids r)");
+		ps.setLong(1, nodeId);
+		ps.executeUpdate();
+		ps = conn.prepareStatement(
+				"update tig_pubsub_mam set data = null where node_id = ? and item_id in (select r.id from session.tig_pubsub_removed_ids r)");
+		ps.setLong(1, nodeId);
+		ps.executeUpdate();
+		return conn.prepareStatement("select id from session.tig_pubsub_removed_ids").executeQuery();
+	}
+
 	protected static String sha1OfLower(String data) throws SQLException {
 		try {
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -203,7 +239,15 @@ public class StoredProcedures {
 					Statement.RETURN_GENERATED_KEYS);
 			ps.setString(1, jid);
 			ps.setString(2, jidSha1);
-			ps.executeUpdate();
+			try {
+				ps.executeUpdate();
+			} catch (SQLException ex) {
+				if (!DUPLICATE_KEY_SQL_STATE.equals(ex.getSQLState())) {
+					throw ex;
+				}
+				// jid was inserted by concurrent write
+				return getIdOfJid(conn, jid);
+			}
 			rs = ps.getGeneratedKeys();
 			if (rs.next()) {
 				return rs.getLong(1);
@@ -363,6 +407,27 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubGetNodeAffiliation(Long nodeId, String jid, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select pa.affiliation" + " from tig_pubsub_affiliations pa" +
+							" inner join tig_pubsub_jids pj on pa.jid_id = pj.jid_id" +
+							" where pa.node_id = ? and pj.jid_sha1 = ?");
+			ps.setLong(1, nodeId);
+			ps.setString(2, sha1OfLower(jid));
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubGetNodeAffiliations(Long nodeId, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -487,7 +552,7 @@ public class StoredProcedures {
 
 		try {
 			PreparedStatement ps = conn.prepareStatement(
-					"select n.node_id, n.configuration, cj.jid, n.creation_date " + "from tig_pubsub_nodes n " +
+					"select n.node_id, n.configuration, cj.jid, n.creation_date, n.version " + "from tig_pubsub_nodes n " +
 							"inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id " +
 							"inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id " +
 							"where sj.service_jid_sha1 = ? and n.name = ?");
@@ -502,6 +567,27 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubGetNodeSubscription(Long nodeId, String jid, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select ps.subscription, ps.subscription_id" + " from tig_pubsub_subscriptions ps" +
+							" inner join tig_pubsub_jids pj on ps.jid_id = pj.jid_id" +
+							" where ps.node_id = ? and pj.jid_sha1 = ?");
+			ps.setLong(1, nodeId);
+			ps.setString(2, sha1OfLower(jid));
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubGetNodeSubscriptions(Long nodeId, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -587,6 +673,27 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubIncrementNodeVersion(Long nodeId, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"update tig_pubsub_nodes set version = version + 1 where node_id = ?");
+			ps.setLong(1, nodeId);
+			ps.executeUpdate();
+			ps = conn.prepareStatement("select version from tig_pubsub_nodes where node_id = ?");
+			ps.setLong(1, nodeId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubMamAddItem(Long nodeId, String uuid, Timestamp ts, String itemData, String itemId,
 										  ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -594,16 +701,14 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			synchronized (StoredProcedures.class) {
-				PreparedStatement ps = conn.prepareStatement(
-						"insert into tig_pubsub_mam (node_id, uuid, ts, data, item_id) VALUES (?,?,?,?,?)");
-				ps.setLong(1, nodeId);
-				ps.setString(2, uuid);
-				ps.setTimestamp(3, ts);
-				ps.setString(4, itemData);
-				ps.setString(5, itemId);
-				ps.executeUpdate();
-			}
+			PreparedStatement ps = conn.prepareStatement(
+					"insert into tig_pubsub_mam (node_id, uuid, ts, data, item_id) VALUES (?,?,?,?,?)");
+			ps.setLong(1, nodeId);
+			ps.setString(2, uuid);
+			ps.setTimestamp(3, ts);
+			ps.setString(4, itemData);
+			ps.setString(5, itemId);
+			ps.executeUpdate();
 		} catch (SQLException e) {
 			// log.log(Level.SEVERE, "SP error", e);
 			throw e;
@@ -619,14 +724,12 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			synchronized (StoredProcedures.class) {
-				PreparedStatement ps = conn.prepareStatement(
-						"update tig_pubsub_mam set data = ? where node_id = ? and uuid = ?");
-				ps.setString(1, itemData);
-				ps.setLong(2, nodeId);
-				ps.setString(3, uuid);
-				ps.executeUpdate();
-			}
+			PreparedStatement ps = conn.prepareStatement(
+					"update tig_pubsub_mam set data = ? where node_id = ? and uuid = ?");
+			ps.setString(1, itemData);
+			ps.setLong(2, nodeId);
+			ps.setString(3, uuid);
+			ps.executeUpdate();
 		} catch (SQLException e) {
 			// log.log(Level.SEVERE, "SP error", e);
 			throw e;
@@ -741,10 +844,113 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubMamQueryItemsPage(Long nodeId, Timestamp since, Timestamp to, String afterId,
+												  String beforeId, String key, Integer backward, Integer limit,
+												  Integer count, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			Timestamp afterTs = afterId == null ? null : getMamItemTimestamp(conn, nodeId, afterId);
+			Timestamp beforeTs = beforeId == null ? null : getMamItemTimestamp(conn, nodeId, beforeId);
+			Timestamp keyTs = key == null ? null : getMamItemTimestamp(conn, nodeId, key);
+			// no result set is returned if any of referenced items does not exist
+			if ((afterId != null && afterTs == null) || (beforeId != null && beforeTs == null) ||
+					(key != null && keyTs == null)) {
+				return;
+			}
+
+			List<Object> params = new ArrayList<>();
+			StringBuilder range = new StringBuilder(" where pm.node_id = ?");
+			params.add(nodeId);
+			if (since != null) {
+				range.append(" and pm.ts >= ?");
+				params.add(since);
+			}
+			if (to != null) {
+				range.append(" and pm.ts <= ?");
+				params.add(to);
+			}
+			if (afterId != null) {
+				range.append(" and (pm.ts > ? or (pm.ts = ? and pm.uuid > ?))");
+				params.addAll(Arrays.asList(afterTs, afterTs, afterId));
+			}
+			if (beforeId != null) {
+				range.append(" and (pm.ts < ? or (pm.ts = ? and pm.uuid < ?))");
+				params.addAll(Arrays.asList(beforeTs, beforeTs, beforeId));
+			}
+
+			Long position = null;
+			if (key != null) {
+				List<Object> positionParams = new ArrayList<>(params);
+				positionParams.addAll(Arrays.asList(keyTs, keyTs, key));
+				position = countMamItems(conn, range + " and (pm.ts < ? or (pm.ts = ? and pm.uuid < ?))",
+										 positionParams);
+			}
+			Long total = count == 1 ? countMamItems(conn, range.toString(), params) : null;
+
+			String cmp = backward == 1 ? "<" : ">";
+			String dir = backward == 1 ? " desc" : " asc";
+			StringBuilder query = new StringBuilder(
+					"select pm.uuid, pm.ts, pm.data, cast(? as bigint), cast(? as bigint) from tig_pubsub_mam pm");
+			query.append(range);
+			if (key != null) {
+				query.append(" and (pm.ts ")
+						.append(cmp)
+						.append(" ? or (pm.ts = ? and pm.uuid ")
+						.append(cmp)
+						.append(" ?))");
+				params.addAll(Arrays.asList(keyTs, keyTs, key));
+			}
+			query.append(" order by pm.ts").append(dir).append(", pm.uuid").append(dir).append(" fetch next ? rows only");
+			params.add(limit);
+
+			PreparedStatement st = conn.prepareStatement(query.toString());
+			int i = 1;
+			setLongOrNull(st, i++, position);
+			setLongOrNull(st, i++, total);
+			for (Object param : params) {
+				st.setObject(i++, param);
+			}
+
+			data[0] = st.executeQuery();
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static Timestamp getMamItemTimestamp(Connection conn, Long nodeId, String uuid) throws SQLException {
+		PreparedStatement st = conn.prepareStatement("select ts from tig_pubsub_mam where node_id = ? and uuid = ?");
+		st.setLong(1, nodeId);
+		st.setString(2, uuid);
+		try (ResultSet rs = st.executeQuery()) {
+			return rs.next() ? rs.getTimestamp(1) : null;
+		}
+	}
+
+	private static long countMamItems(Connection conn, String where, List<Object> params) throws SQLException {
+		PreparedStatement st = conn.prepareStatement("select count(1) from tig_pubsub_mam pm" + where);
+		for (int i = 0; i < params.size(); i++) {
+			st.setObject(i + 1, params.get(i));
+		}
+		try (ResultSet rs = st.executeQuery()) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	private static void setLongOrNull(PreparedStatement st, int idx, Long value) throws SQLException {
+		if (value == null) {
+			st.setNull(idx, Types.BIGINT);
+		} else {
+			st.setLong(idx, value);
+		}
+	}
+
 	public static void tigPubSubQueryItemPosition(String nodesIds, Timestamp since, Timestamp to,
 													 Integer order, Long nodeId, String itemId, ResultSet[] data)
 			throws SQLException {
-		String ts = order == 1 ? "update_date" : "creation_date";
+		String ts = order == 2 ? "update_date" : "creation_date";
 		String query = "select pi.node_id, pi.id, row_number() over () as position" + " from tig_pubsub_items pi" +
 				" where pi.node_id in (" + nodesIds + ")" + " and (? is null or pi." + ts + " >= ?)" +
 				" and (? is null or pi." + ts + " <= ?)" + " order by pi." +
@@ -780,7 +986,7 @@ public class StoredProcedures {
 	public static void tigPubSubQueryItems(String nodesIds, Timestamp since, Timestamp to,
 											  Integer order, Integer limit, Integer offset, ResultSet[] data)
 			throws SQLException {
-		String ts = order == 1 ? "update_date" : "creation_date";
+		String ts = order == 2 ? "update_date" : "creation_date";
 		String query = "select pn.name, pi.node_id, pi.id, pi.uuid, pi.data" + " from tig_pubsub_items pi" +
 				" inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id" + " where pi.node_id in (" + nodesIds +
 				")" + " and (? is null or pi." + ts + " >= ?)" + " and (? is null or pi." + ts + " <= ?)" +
@@ -806,9 +1012,67 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubQueryItemsPage(String nodesIds, Timestamp since, Timestamp to, Integer order,
+											  Integer limit, Long nodeId, String itemId, Integer backward,
+											  ResultSet[] data) throws SQLException {
+		String ts = order == 2 ? "update_date" : "creation_date";
+		String cmp = backward == 1 ? "<" : ">";
+		String dir = backward == 1 ? " desc" : " asc";
+		String query = "select pn.name, pi.node_id, pi.id, pi.uuid, pi.data" + " from tig_pubsub_items pi" +
+				" inner join tig_pubsub_nodes pn on pi.node_id = pn.node_id" + " where pi.node_id in (" + nodesIds +
+				")" + " and (? is null or pi." + ts + " >= ?)" +
+				" and (? is null or pi." + ts + " <= ?)" +
+				(nodeId == null
+				 ? ""
+				 : " and (pi." + ts + " " + cmp + " ? or (pi." + ts + " = ? and (pi.node_id " + cmp +
+						 " ? or (pi.node_id = ? and pi.id " + cmp + " ?))))") + " order by pi." + ts + dir +
+				", pi.node_id" + dir + ", pi.id" + dir + " fetch next ? rows only";
+
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			Timestamp keyTs = null;
+			if (nodeId != null) {
+				PreparedStatement st = conn.prepareStatement(
+						"select " + ts + " from tig_pubsub_items where node_id = ? and id = ?");
+				st.setLong(1, nodeId);
+				st.setString(2, itemId);
+				try (ResultSet rs = st.executeQuery()) {
+					if (rs.next()) {
+						keyTs = rs.getTimestamp(1);
+					}
+				}
+				if (keyTs == null) {
+					return;
+				}
+			}
+
+			PreparedStatement st = conn.prepareStatement(query);
+			int i = 1;
+			st.setTimestamp(i++, since);
+			st.setTimestamp(i++, since);
+			st.setTimestamp(i++, to);
+			st.setTimestamp(i++, to);
+			if (nodeId != null) {
+				st.setTimestamp(i++, keyTs);
+				st.setTimestamp(i++, keyTs);
+				st.setLong(i++, nodeId);
+				st.setLong(i++, nodeId);
+				st.setString(i++, itemId);
+			}
+			st.setInt(i++, limit);
+
+			data[0] = st.executeQuery();
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubQueryItemsCount(String nodesIds, Timestamp since, Timestamp to,
 												   Integer order, ResultSet[] data) throws SQLException {
-		String ts = order == 1 ? "update_date" : "creation_date";
+		String ts = order == 2 ? "update_date" : "creation_date";
 		String query = "select count(1)" + " from tig_pubsub_items pi" + " where pi.node_id in (" + nodesIds + ")" +
 				" and (? is null or pi." + ts + " >= ?)" + " and (? is null or pi." + ts + " <= ?)";
 
@@ -829,6 +1093,111 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubDeleteItems(Long nodeId, String itemsIds, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			clearRemovedIds(conn);
+			PreparedStatement ps = conn.prepareStatement("insert into session.tig_pubsub_removed_ids (id)" +
+																 " select id from tig_pubsub_items where node_id = ? and id = ?");
+			for (String id : parseIdsArray(itemsIds)) {
+				ps.setLong(1, nodeId);
+				ps.setString(2, id);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			data[0] = deleteCollectedItems(conn, nodeId);
+		} catch (SQLException e) {
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	// ids of items are passed as JSON array of strings, the same as for other databases
+	protected static List<String> parseIdsArray(String json) throws SQLException {
+		List<String> ids = new ArrayList<>();
+		if (json == null) {
+			return ids;
+		}
+		StringBuilder sb = null;
+		for (int i = 0; i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (sb == null) {
+				if (c == '"') {
+					sb = new StringBuilder();
+				}
+				continue;
+			}
+			switch (c) {
+				case '"':
+					ids.add(sb.toString());
+					sb = null;
+					break;
+				case '\\':
+					if (++i >= json.length()) {
+						throw new SQLException("Invalid array of ids: " + json);
+					}
+					c = json.charAt(i);
+					switch (c) {
+						case 'b':
+							sb.append('\b');
+							break;
+						case 'f':
+							sb.append('\f');
+							break;
+						case 'n':
+							sb.append('\n');
+							break;
+						case 'r':
+							sb.append('\r');
+							break;
+						case 't':
+							sb.append('\t');
+							break;
+						case 'u':
+							if (i + 4 >= json.length()) {
+								throw new SQLException("Invalid array of ids: " + json);
+							}
+							sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+							i += 4;
+							break;
+						default:
+							sb.append(c);
+							break;
+					}
+					break;
+				default:
+					sb.append(c);
+					break;
+			}
+		}
+		return ids;
+	}
+
+	public static void tigPubSubPurgeItems(Long nodeId, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			clearRemovedIds(conn);
+			PreparedStatement ps = conn.prepareStatement(
+					"insert into session.tig_pubsub_removed_ids (id) select id from tig_pubsub_items where node_id = ?");
+			ps.setLong(1, nodeId);
+			ps.executeUpdate();
+			data[0] = deleteCollectedItems(conn, nodeId);
+		} catch (SQLException e) {
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubRemoveNode(Long nodeId, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -1023,36 +1392,74 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubTrimItems(Long nodeId, Integer maxItems, Integer order, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			clearRemovedIds(conn);
+			PreparedStatement ps = conn.prepareStatement(order == 1
+					? "insert into session.tig_pubsub_removed_ids (id) select id from tig_pubsub_items where node_id = ? order by creation_date desc offset ? rows"
+					: "insert into session.tig_pubsub_removed_ids (id) select id from tig_pubsub_items where node_id = ? order by update_date desc offset ? rows");
+			ps.setLong(1, nodeId);
+			ps.setInt(2, maxItems);
+			ps.executeUpdate();
+			data[0] = deleteCollectedItems(conn, nodeId);
+		} catch (SQLException e) {
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubWriteItem(Long nodeId, String itemId, String publisher, String itemData, Timestamp ts, String uuid,
 										  ResultSet[] data) throws SQLException {
+		tigPubSubUpsertItem(nodeId, itemId, publisher, null, itemData, ts, uuid, data);
+	}
+
+	public static void tigPubSubUpsertItem(Long nodeId, String itemId, String publisher, Long publisherId,
+										   String itemData, Timestamp ts, String uuid, ResultSet[] data)
+			throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			synchronized (StoredProcedures.class) {
-				PreparedStatement ps = conn.prepareStatement(
-						"update tig_pubsub_items set update_date = ?, data = ?, uuid = ? " + "where node_id = ? and id = ?");
-				ps.setTimestamp(1, ts);
-				ps.setString(2, itemData);
-				ps.setString(3, uuid);
-				ps.setLong(4, nodeId);
-				ps.setString(5, itemId);
-				int updated = ps.executeUpdate();
-				if (updated == 0) {
-					long publisherId = tigPubSubEnsureJid(conn, publisher);
-					ps = conn.prepareStatement("insert into tig_pubsub_items (node_id, id, creation_date, " +
-													   "update_date, publisher_id, data, uuid) values (?, ?, ?, ?, ?, ?, ?)");
-					ps.setLong(1, nodeId);
-					ps.setString(2, itemId);
-					ps.setTimestamp(3, ts);
-					ps.setTimestamp(4, ts);
-					ps.setLong(5, publisherId);
-					ps.setString(6, itemData);
-					ps.setString(7, uuid);
+			// item is updated in place if it exists, insert of the same item by a concurrent write is detected by
+			// the primary key of the table, so there is no need to serialize writes
+			if (updateItem(conn, nodeId, itemId, itemData, ts, uuid) == 0) {
+				if (publisherId == null) {
+					publisherId = tigPubSubEnsureJid(conn, publisher);
+				}
+				PreparedStatement ps = conn.prepareStatement("insert into tig_pubsub_items (node_id, id, creation_date, " +
+																	 "update_date, publisher_id, data, uuid) values (?, ?, ?, ?, ?, ?, ?)");
+				ps.setLong(1, nodeId);
+				ps.setString(2, itemId);
+				ps.setTimestamp(3, ts);
+				ps.setTimestamp(4, ts);
+				ps.setLong(5, publisherId);
+				ps.setString(6, itemData);
+				ps.setString(7, uuid);
+				try {
 					ps.executeUpdate();
+				} catch (SQLException ex) {
+					if (!DUPLICATE_KEY_SQL_STATE.equals(ex.getSQLState())) {
+						throw ex;
+					}
+					// item was inserted by concurrent write
+					updateItem(conn, nodeId, itemId, itemData, ts, uuid);
 				}
 			}
+			PreparedStatement ps = conn.prepareStatement("values cast(? as bigint)");
+			if (publisherId == null) {
+				ps.setNull(1, Types.BIGINT);
+			} else {
+				ps.setLong(1, publisherId);
+			}
+			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
 			// log.log(Level.SEVERE, "SP error", e);
 			throw e;
@@ -1061,6 +1468,18 @@ public class StoredProcedures {
 		}
 	}
 
+	private static int updateItem(Connection conn, Long nodeId, String itemId, String itemData, Timestamp ts,
+								  String uuid) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(
+				"update tig_pubsub_items set update_date = ?, data = ?, uuid = ? " + "where node_id = ? and id = ?");
+		ps.setTimestamp(1, ts);
+		ps.setString(2, itemData);
+		ps.setString(3, uuid);
+		ps.setLong(4, nodeId);
+		ps.setString(5, itemId);
+		return ps.executeUpdate();
+	}
+
 	public static void tigPubSubCountNodes(String serviceJid, ResultSet[] data)
 			throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -79,6 +79,21 @@ class Items
 		return null;
 	}
 
+	@Override
+	public String[] deleteItems(String[] ids) throws RepositoryException {
+		return this.dao.deleteItems(serviceJid, nodeId, ids);
+	}
+
+	@Override
+	public String[] purgeItems() throws RepositoryException {
+		return this.dao.purgeItems(serviceJid, nodeId);
+	}
+
+	@Override
+	public String[] trimItems(int maxItems, CollectionItemsOrdering order) throws RepositoryException {
+		return this.dao.trimItems(serviceJid, nodeId, maxItems, order);
+	}
+
 	@Override
 	public void writeItem(String id, String publisher, Element item, String uuid) throws RepositoryException {
 		this.writeItem(id, publisher, item, uuid);
@@ -33,12 +33,18 @@ public class NodeMeta<T>
 	private final Date creationTime;
 	private final BareJID creator;
 	private final T id;
+	private final long version;
 
 	public NodeMeta(T id, AbstractNodeConfig config, BareJID creator, Date creationTime) {
+		this(id, config, creator, creationTime, 0);
+	}
+
+	public NodeMeta(T id, AbstractNodeConfig config, BareJID creator, Date creationTime, long version) {
 		this.id = id;
 		this.creationTime = creationTime;
 		this.creator = creator;
 		this.config = config;
+		this.version = version;
 	}
 
 	public AbstractNodeConfig getNodeConfig() {
@@ -59,4 +65,9 @@ public class NodeMeta<T>
 	public BareJID getCreator() {
 		return creator;
 	}
+
+	@Override
+	public long getVersion() {
+		return version;
+	}
 }
@@ -29,6 +29,7 @@ public interface Cache<K,V> extends StatisticHolder {
 	V put(K key, V value);
 	V putIfAbsent(K key, V value);
 	V remove(K key);
+	boolean remove(K key, V value);
 
 	Set<K> keySet();
 	Stream<V> values();
@@ -40,9 +40,13 @@ import tigase.xmpp.impl.roster.RosterElement;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -88,7 +92,7 @@ public class DefaultPubSubLogic
 			return;
 		}
 
-		AbstractNodeConfig nodeConfig = repository.getNodeConfig(serviceJid, nodeName);
+		NodeConfigSnapshot nodeConfig = repository.getNodeConfigSnapshot(serviceJid, nodeName);
 		if (nodeConfig == null) {
 			if (action == Action.publishItems && isServiceJidPEP(serviceJid)) {
 				// autocreation for PEP nodes is required
@@ -134,7 +138,7 @@ public class DefaultPubSubLogic
 						}
 						break;
 					case roster:
-						if (!isSenderInRosterGroup(senderJid.getBareJID(), nodeConfig, nodeAffiliations, repository.getNodeSubscriptions(serviceJid, nodeName))) {
+						if (!isSenderInRosterGroup(senderJid.getBareJID(), nodeConfig.getRosterGroupsAllowed(), nodeAffiliations, repository.getNodeSubscriptions(serviceJid, nodeName))) {
 							throw new PubSubException(Authorization.NOT_AUTHORIZED, PubSubErrorCondition.NOT_IN_ROSTER_GROUP);
 						}
 						break;
@@ -173,7 +177,7 @@ public class DefaultPubSubLogic
 						}
 						break;
 					case roster:
-						boolean allowed = isSenderInRosterGroup(senderJid.getBareJID(), nodeConfig, nodeAffiliations,
+						boolean allowed = isSenderInRosterGroup(senderJid.getBareJID(), nodeConfig.getRosterGroupsAllowed(), nodeAffiliations,
 																repository.getNodeSubscriptions(serviceJid, nodeName));
 
 						if (!allowed) {
@@ -231,6 +235,13 @@ public class DefaultPubSubLogic
 	@Override
 	public Element prepareNotificationMessage(JID from, String id, String uuid, String nodeName, Element items, String expireAt,
 											  Map<String, String> headers, StanzaType stanzaType) {
+		return prepareNotificationMessage(from, id, uuid, nodeName, items, expireAt, headers, stanzaType,
+										  prepareNotificationBody(from.getBareJID(), nodeName, items));
+	}
+
+	@Override
+	public Element prepareNotificationMessage(JID from, String id, String uuid, String nodeName, Element items, String expireAt,
+											  Map<String, String> headers, StanzaType stanzaType, List<Element> body) {
 		Element message = new Element("message", new String[]{"xmlns", "from", "id"},
 									  new String[]{Packet.CLIENT_XMLNS, from.toString(), id});
 		if (stanzaType != null && stanzaType != StanzaType.normal) {
@@ -264,16 +275,32 @@ public class DefaultPubSubLogic
 			message.addChild(headElem);
 		}
 
+		if (body != null) {
+			message.addChildren(body);
+		}
+
+		return message;
+	}
+
+	@Override
+	public List<Element> prepareNotificationBody(BareJID serviceJid, String nodeName, Element items) {
+		if (this.xslTransformer == null) {
+			return null;
+		}
+		List<Element> body = null;
 		try {
-			AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(from.getBareJID(), nodeName);
-			if ((this.xslTransformer != null) && (nodeConfig != null)) {
+			NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(serviceJid, nodeName);
+			if (nodeConfig != null) {
 				List<Element> itemsToSend = items.getChildren(el -> el.getName() == "item");
 				if (itemsToSend != null) {
 					for (Element itemToSend : itemsToSend) {
 						try {
-							List<Element> elems = this.xslTransformer.transform(itemToSend, nodeConfig);
+							List<Element> elems = this.xslTransformer.transform(serviceJid, itemToSend, nodeConfig);
 							if (elems != null) {
-								message.addChildren(elems);
+								if (body == null) {
+									body = new ArrayList<>();
+								}
+								body.addAll(elems);
 							}
 						} catch (Exception e) {
 							log.log(Level.WARNING, "Problem with generating BODY", e);
@@ -284,10 +311,7 @@ public class DefaultPubSubLogic
 		} catch (RepositoryException ex) {
 			// this should not happen and even if it can be ignored..
 		}
-
-
-
-		return message;
+		return body;
 	}
 
 	@Override
@@ -311,7 +335,7 @@ public class DefaultPubSubLogic
 				return true;
 			}
 
-			Map<BareJID, RosterElement> buddies = repository.getUserRoster(affiliation.getJid());
+			Map<BareJID, RosterElement> buddies = repository.readUserRoster(affiliation.getJid());
 			RosterElement re = buddies.get(bareJid);
 			if (re != null) {
 				if (re.getSubscription() == RosterAbstract.SubscriptionType.both ||
@@ -327,8 +351,12 @@ public class DefaultPubSubLogic
 
 	public boolean isSenderInRosterGroup(BareJID bareJid, AbstractNodeConfig nodeConfig, IAffiliations affiliations,
 										 final ISubscriptions subscriptions) throws RepositoryException {
+		return isSenderInRosterGroup(bareJid, nodeConfig.getRosterGroupsAllowed(), affiliations, subscriptions);
+	}
+
+	protected boolean isSenderInRosterGroup(BareJID bareJid, String[] groupsAllowed, IAffiliations affiliations,
+											final ISubscriptions subscriptions) throws RepositoryException {
 		final Stream<BareJID> subscribers = subscriptions.getSubscriptions().map(UsersSubscription::getJid);
-		final String[] groupsAllowed = nodeConfig.getRosterGroupsAllowed();
 
 		if ((groupsAllowed == null) || (groupsAllowed.length == 0)) {
 			return true;
@@ -343,12 +371,12 @@ public class DefaultPubSubLogic
 			return true;
 		}
 
+		List<String> groups = Arrays.asList(groupsAllowed);
 		for (BareJID owner : owners) {
-			Map<BareJID, RosterElement> buddies = repository.getUserRoster(owner);
-			RosterElement re = buddies.get(bareJid);
+			RosterElement re = repository.readUserRoster(owner).get(bareJid);
 			if (re != null && re.getGroups() != null) {
-				for (String group : groupsAllowed) {
-					if (Utils.contain(group, groupsAllowed)) {
+				for (String group : re.getGroups()) {
+					if (groups.contains(group)) {
 						return true;
 					}
 				}
@@ -375,14 +403,17 @@ public class DefaultPubSubLogic
 	@Override
 	public Stream<JID> subscribersOfNotifications(BareJID serviceJid, String nodeName)
 			throws RepositoryException {
-		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJid, nodeName);
+		NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(serviceJid, nodeName);
 		if (nodeConfig == null) {
 			return Stream.empty();
 		}
 		
 		IAffiliations nodeAffiliations = getRepository().getNodeAffiliations(serviceJid, nodeName);
 		ISubscriptions nodesSubscriptions = getRepository().getNodeSubscriptions(serviceJid, nodeName);
-		Stream<JID> stream = getActiveSubscribers(nodesSubscriptions, nodeAffiliations);
+		Collection<JID> indexedSubscribers = getRepository().getActiveSubscribers(serviceJid, nodeName);
+		Stream<JID> stream = indexedSubscribers != null
+							 ? indexedSubscribers.stream()
+							 : getActiveSubscribers(nodesSubscriptions, nodeAffiliations);
 
 		if (nodeConfig.isPresenceExpired()) {
 			final AtomicBoolean updateSubscriptions = new AtomicBoolean(false);
@@ -422,19 +453,17 @@ public class DefaultPubSubLogic
 																							   "+notify").stream());
 						break;
 					case roster:
-						String[] allowedGroups = nodeConfig.getRosterGroupsAllowed();
-						if (allowedGroups != null && allowedGroups.length > 0) {
-							Arrays.sort(allowedGroups);
+						if (nodeConfig.getRosterGroupsAllowed().length > 0) {
 							List<JID> jids = this.presenceCollectorModule.getAllAvailableJidsWithFeature(serviceJid,
 																										 nodeConfig.getNodeName() +
 																												 "+notify");
 							if (!jids.isEmpty()) {
-								Map<BareJID, RosterElement> roster = this.getRepository()
-										.getUserRoster(serviceJid);
-								stream = Stream.concat(stream, jids.stream().filter(jid -> {
-									RosterElement re = roster.get(jid.getBareJID());
-									return re != null && re.getGroups() != null && Arrays.stream(re.getGroups()).anyMatch(group -> Arrays.binarySearch(allowedGroups, group) < 0);
-								}));
+								Set<BareJID> allowedJids = new HashSet<>();
+								for (String group : nodeConfig.getRosterGroupsAllowed()) {
+									allowedJids.addAll(this.getRepository().getUserRosterGroup(serviceJid, group));
+								}
+								stream = Stream.concat(stream, jids.stream()
+										.filter(jid -> allowedJids.contains(jid.getBareJID())));
 							}
 						}
 						break;
@@ -153,6 +153,7 @@ public class LRUCache<K,V> implements Cache<K,V> {
 		}
 	}
 
+	@Override
 	public boolean remove(K key, V value) {
 		synchronized (this) {
 			Node<K, V> node = cache.get(key);
@@ -46,21 +46,36 @@ import java.util.stream.Stream;
  */
 public class LRUCacheWithFuture<K,V> implements Cache<K,V> {
 
-	private final LRUCache<K,CompletableFuture<V>> cache;
+	private final Cache<K,CompletableFuture<V>> cache;
 
 	public LRUCacheWithFuture() {
 		this(2000);
 	}
 
 	public LRUCacheWithFuture(int maxSize) {
-		cache = new LRUCache<>(maxSize);
+		this(new LRUCache<>(maxSize));
+	}
+
+	/**
+	 * Creates instance using provided cache for storing futures, ie. <code>SegmentedLRUCache</code> to avoid
+	 * contention on a single lock.
+	 *
+	 * @param cache
+	 */
+	public LRUCacheWithFuture(Cache<K,CompletableFuture<V>> cache) {
+		this.cache = cache;
 	}
 
 	public V computeIfAbsent(K key, CacheSupplier<V> supplier) throws CacheException {
 //		requestsCounter.inc();
 
-		CompletableFuture<V> newFuture = new CompletableFuture<>();
-		CompletableFuture<V> oldFuture = cache.putIfAbsent(key, newFuture);
+		CompletableFuture<V> newFuture = null;
+		// checking first without modification of the cache, as for segmented cache it does not require locking
+		CompletableFuture<V> oldFuture = cache.get(key);
+		if (oldFuture == null) {
+			newFuture = new CompletableFuture<>();
+			oldFuture = cache.putIfAbsent(key, newFuture);
+		}
 		if (oldFuture != null) {
 			try {
 				return oldFuture.join();
@@ -151,6 +166,18 @@ public class LRUCacheWithFuture<K,V> implements Cache<K,V> {
 		}
 	}
 
+	@Override
+	public boolean remove(K key, V value) {
+		CompletableFuture<V> node = cache.get(key);
+		if (node == null || !node.isDone() || node.isCompletedExceptionally() || node.isCancelled()) {
+			return false;
+		}
+		if (node.join() != value) {
+			return false;
+		}
+		return cache.remove(key, node);
+	}
+
 	public Set<K> keySet() {
 		return cache.keySet();
 	}
@@ -27,6 +27,7 @@ import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
@@ -48,6 +49,26 @@ public interface PubSubLogic {
 
 	Element prepareNotificationMessage(JID from, String id, String uuid, String nodeName, Element items, String expireAt,
 									   Map<String, String> headers, StanzaType stanzaType);
+
+	/**
+	 * Prepares notification message with body generated earlier by
+	 * <code>prepareNotificationBody(BareJID, String, Element)</code>, so body may be generated once and used in many
+	 * notifications of a single publication.
+	 */
+	default Element prepareNotificationMessage(JID from, String id, String uuid, String nodeName, Element items,
+											   String expireAt, Map<String, String> headers, StanzaType stanzaType,
+											   List<Element> body) {
+		return prepareNotificationMessage(from, id, uuid, nodeName, items, expireAt, headers, stanzaType);
+	}
+
+	/**
+	 * Generates body of notification for items published to the node (ie. using XSLT configured for the node).
+	 *
+	 * @return list of elements to add to the notification or <code>null</code>
+	 */
+	default List<Element> prepareNotificationBody(BareJID serviceJid, String nodeName, Element items) {
+		return null;
+	}
 	
 	void checkPermission(BareJID serviceJid, String nodeName, JID senderJid, Action action) throws PubSubException, RepositoryException;
 
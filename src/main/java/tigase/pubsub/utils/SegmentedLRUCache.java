@@ -0,0 +1,396 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.utils;
+
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * This class is implementation of <code>Cache</code> interface which splits cached entries into segments selected by
+ * the hash code of a key. Each segment keeps its entries in a <code>ConcurrentHashMap</code> so reads do not take any
+ * lock, while modifications lock only the segment to which the key belongs.
+ *
+ * Instead of moving an entry to the end of LRU queue on every access (which requires exclusive access to the queue),
+ * read only marks entry as referenced. Eviction is done per segment using CLOCK (second chance) algorithm which
+ * approximates LRU: referenced entries are moved to the end of the queue with the mark cleared and first entry
+ * without the mark is evicted. Cost of eviction is amortised over insertions to the segment.
+ *
+ * In case when there is no value, <code>computeIfAbsent(K key, CacheSupplier)</code> executes provided
+ * <code>CacheSupplier</code> without holding a lock, so concurrent requests for the same key may call supplier more
+ * than once (only first result will be kept). If supplier should be called only once, wrap this cache with
+ * <code>LRUCacheWithFuture</code>.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class SegmentedLRUCache<K,V> implements Cache<K,V> {
+
+	private final Segment<K,V>[] segments;
+	private final int segmentShift;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final PeriodStats perSecond = new PeriodStats();
+	private final PeriodStats perMinute = new PeriodStats();
+	private final PeriodStats perHour = new PeriodStats();
+
+	private volatile int maxSize;
+
+	public static int defaultSegmentsCount() {
+		return Math.min(64, Runtime.getRuntime().availableProcessors() * 4);
+	}
+
+	public SegmentedLRUCache() {
+		this(2000);
+	}
+
+	public SegmentedLRUCache(int maxSize) {
+		this(maxSize, defaultSegmentsCount());
+	}
+
+	@SuppressWarnings("unchecked")
+	public SegmentedLRUCache(int maxSize, int segmentsCount) {
+		int size = 1;
+		int shift = 0;
+		while (size < Math.max(1, segmentsCount)) {
+			size <<= 1;
+			shift++;
+		}
+		this.segmentShift = 32 - shift;
+		this.maxSize = maxSize;
+		this.segments = new Segment[size];
+		for (int i = 0; i < size; i++) {
+			segments[i] = new Segment<>(segmentMaxSize(maxSize, size));
+		}
+	}
+
+	@Override
+	public V computeIfAbsent(K key, CacheSupplier<V> supplier) throws CacheException {
+		requests.increment();
+		Segment<K,V> segment = segmentFor(key);
+		Entry<K,V> entry = segment.get(key);
+		if (entry != null) {
+			hits.increment();
+			return entry.value;
+		}
+		V value = supplier.get();
+		if (value == null) {
+			return null;
+		}
+		V oldValue = segment.putIfAbsent(key, value);
+		return oldValue == null ? value : oldValue;
+	}
+
+	@Override
+	public V get(K key) {
+		requests.increment();
+		Entry<K,V> entry = segmentFor(key).get(key);
+		if (entry != null) {
+			hits.increment();
+			return entry.value;
+		}
+		return null;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		return segmentFor(key).put(key, value);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		return segmentFor(key).putIfAbsent(key, value);
+	}
+
+	@Override
+	public V remove(K key) {
+		return segmentFor(key).remove(key);
+	}
+
+	@Override
+	public boolean remove(K key, V value) {
+		return segmentFor(key).remove(key, value);
+	}
+
+	@Override
+	public Set<K> keySet() {
+		Set<K> result = new HashSet<>();
+		for (Segment<K,V> segment : segments) {
+			result.addAll(segment.map.keySet());
+		}
+		return result;
+	}
+
+	@Override
+	public Stream<V> values() {
+		return Arrays.stream(segments).flatMap(segment -> segment.map.values().stream()).map(Entry::getValue);
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment<K,V> segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	public int getSegmentsCount() {
+		return segments.length;
+	}
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		int segmentMaxSize = segmentMaxSize(maxSize, segments.length);
+		for (Segment<K,V> segment : segments) {
+			segment.setMaxSize(segmentMaxSize);
+		}
+	}
+
+	@Override
+	public void everyHour() {
+		perHour.update(requests.sum(), hits.sum());
+	}
+
+	@Override
+	public void everyMinute() {
+		perMinute.update(requests.sum(), hits.sum());
+	}
+
+	@Override
+	public void everySecond() {
+		perSecond.update(requests.sum(), hits.sum());
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "cache/requests", requests.sum(), Level.FINEST);
+		list.add(compName, "cache/hits", hits.sum(), Level.FINEST);
+		list.add(compName, "cache/requests last hour", perHour.requests, Level.FINEST);
+		list.add(compName, "cache/hits last hour", perHour.hits, Level.FINEST);
+		list.add(compName, "cache/segments", segments.length, Level.FINEST);
+		list.add(compName, "cache/max size", maxSize, Level.FINEST);
+		list.add(compName, "cache/hit-miss ratio per minute", perMinute.ratio(), Level.FINE);
+		list.add(compName, "cache/hit-miss ratio per second", perSecond.ratio(), Level.FINE);
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+		throw new UnsupportedOperationException("Not supported yet.");
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+		throw new UnsupportedOperationException("Not supported yet.");
+	}
+
+	private Segment<K,V> segmentFor(K key) {
+		if (segments.length == 1) {
+			return segments[0];
+		}
+		int h = key.hashCode() * 0x9E3779B9;
+		return segments[h >>> segmentShift];
+	}
+
+	private static int segmentMaxSize(int maxSize, int segmentsCount) {
+		return Math.max(1, (maxSize + segmentsCount - 1) / segmentsCount);
+	}
+
+	private static class Entry<K,V> {
+
+		final K key;
+		volatile V value;
+		volatile boolean referenced;
+		// guarded by segment lock
+		boolean removed;
+
+		Entry(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		V getValue() {
+			return value;
+		}
+	}
+
+	private static class Segment<K,V> {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final ConcurrentHashMap<K,Entry<K,V>> map = new ConcurrentHashMap<>();
+		// guarded by lock
+		private final ArrayDeque<Entry<K,V>> clock = new ArrayDeque<>();
+		// guarded by lock
+		private int removedInClock = 0;
+		private int maxSize;
+		private volatile int size = 0;
+
+		Segment(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		Entry<K,V> get(K key) {
+			Entry<K,V> entry = map.get(key);
+			if (entry != null && !entry.referenced) {
+				entry.referenced = true;
+			}
+			return entry;
+		}
+
+		V put(K key, V value) {
+			lock.lock();
+			try {
+				Entry<K,V> entry = map.get(key);
+				if (entry != null) {
+					V oldValue = entry.value;
+					entry.value = value;
+					entry.referenced = true;
+					return oldValue;
+				}
+				insert(key, value);
+				return null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		V putIfAbsent(K key, V value) {
+			lock.lock();
+			try {
+				Entry<K,V> entry = map.get(key);
+				if (entry != null) {
+					entry.referenced = true;
+					return entry.value;
+				}
+				insert(key, value);
+				return null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		V remove(K key) {
+			lock.lock();
+			try {
+				Entry<K,V> entry = map.remove(key);
+				if (entry == null) {
+					return null;
+				}
+				markRemoved(entry);
+				return entry.value;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		boolean remove(K key, V value) {
+			lock.lock();
+			try {
+				Entry<K,V> entry = map.get(key);
+				if (entry == null || entry.value != value) {
+					return false;
+				}
+				map.remove(key, entry);
+				markRemoved(entry);
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void setMaxSize(int maxSize) {
+			lock.lock();
+			try {
+				this.maxSize = maxSize;
+				evict();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void insert(K key, V value) {
+			Entry<K,V> entry = new Entry<>(key, value);
+			map.put(key, entry);
+			clock.addLast(entry);
+			size++;
+			evict();
+		}
+
+		private void markRemoved(Entry<K,V> entry) {
+			entry.removed = true;
+			size--;
+			removedInClock++;
+			// removed entries are dropped from the queue lazily, compact it if they start to dominate
+			if (removedInClock > size && removedInClock > 16) {
+				clock.removeIf(e -> e.removed);
+				removedInClock = 0;
+			}
+		}
+
+		private void evict() {
+			while (size > maxSize) {
+				Entry<K,V> entry = clock.pollFirst();
+				if (entry == null) {
+					return;
+				}
+				if (entry.removed) {
+					removedInClock--;
+					continue;
+				}
+				if (entry.referenced) {
+					entry.referenced = false;
+					clock.addLast(entry);
+				} else {
+					map.remove(entry.key, entry);
+					entry.removed = true;
+					size--;
+				}
+			}
+		}
+	}
+
+	private static class PeriodStats {
+
+		private long lastRequests = 0;
+		private long lastHits = 0;
+		private volatile long requests = 0;
+		private volatile long hits = 0;
+
+		synchronized void update(long totalRequests, long totalHits) {
+			requests = totalRequests - lastRequests;
+			hits = totalHits - lastHits;
+			lastRequests = totalRequests;
+			lastHits = totalHits;
+		}
+
+		float ratio() {
+			long requests = this.requests;
+			return requests == 0 ? 0 : ((float) hits) / requests;
+		}
+	}
+}
@@ -43,6 +43,11 @@ public class AbstractQueuingExecutor implements Executor, UnregisterAware {
 		}
 	}
 
+	@Override
+	public void submit(Priority priority, Runnable runnable, int weight) {
+		submit(priority, weight > 1 ? new WeightedTask(runnable, weight) : runnable);
+	}
+
 	@Override
 	public void beforeUnregister() {
 		synchronized (queue) {
@@ -52,12 +57,32 @@ public class AbstractQueuingExecutor implements Executor, UnregisterAware {
 
 	/**
 	 * Method called by subclass to execute a single task from the queue or wait for any task to appear.
+	 * @return weight of executed task (0 if no task was executed)
 	 * @throws InterruptedException
 	 */
-	protected void execute() throws InterruptedException {
+	protected int execute() throws InterruptedException {
 		Runnable run = queue.take();
 		if (run != null) {
 			run.run();
+			return run instanceof WeightedTask ? ((WeightedTask) run).weight : 1;
+		}
+		return 0;
+	}
+
+	private static class WeightedTask
+			implements Runnable {
+
+		private final Runnable task;
+		private final int weight;
+
+		WeightedTask(Runnable task, int weight) {
+			this.task = task;
+			this.weight = weight;
+		}
+
+		@Override
+		public void run() {
+			task.run();
 		}
 	}
 
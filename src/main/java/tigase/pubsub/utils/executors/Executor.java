@@ -36,6 +36,29 @@ public interface Executor {
 	 */
 	void submit(Priority priority, Runnable runnable);
 
+	/**
+	 * Submits a task with a priority for execution, which performs <code>weight</code> operations (ie. sends a batch
+	 * of packets), so that executor limiting rate of executions may count it as <code>weight</code> tasks.
+	 * @param priority
+	 * @param runnable
+	 * @param weight
+	 */
+	default void submit(Priority priority, Runnable runnable, int weight) {
+		submit(priority, runnable);
+	}
+
+	/**
+	 * Submits a task with a priority for execution. Tasks submitted with the same <code>hash</code> and priority are
+	 * executed in order in which they were submitted (even if executor uses many threads).
+	 * @param priority
+	 * @param hash
+	 * @param runnable
+	 * @param weight
+	 */
+	default void submit(Priority priority, int hash, Runnable runnable, int weight) {
+		submit(priority, runnable, weight);
+	}
+
 	public enum Priority{
 		high,
 		normal,
@@ -66,9 +66,10 @@ public class RateLimitingExecutor extends AbstractQueuingExecutor
 			long sleepTime = getSleepTime();
 			MemoryUsage memoryUsage = currentMemoryUsage();
 			long permissions = getPermissions(sleepTime, memoryUsage);
-			for (int i=0; i<permissions; i++) {
+			for (long i=0; i<permissions; ) {
 				try {
-					execute();
+					// batch of notifications is counted as many executions
+					i += Math.max(1, execute());
 				} catch (InterruptedException ex) {
 					// handle exception somehow..
 				}
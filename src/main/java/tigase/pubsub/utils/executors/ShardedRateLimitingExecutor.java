@@ -0,0 +1,297 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.utils.executors;
+
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class implements an executor limiting number of executions of submitted tasks per second, which executes tasks
+ * using many threads.
+ *
+ * Tasks are divided into shards (one per thread) using hash passed during submission (ie. hash of service JID and
+ * node name), so tasks submitted with the same hash are executed by the same thread in order of submission. Tasks
+ * submitted without a hash are assigned to shards by the submitting thread. All threads share a single limit of
+ * executions per second, which is adjusted to the current memory usage in the same way as in
+ * <code>RateLimitingExecutor</code>.
+ *
+ * To use it, set class of <code>publishExecutor</code> bean to this class.
+ */
+public class ShardedRateLimitingExecutor
+		extends RateLimitingExecutor
+		implements StatisticHolder {
+
+	private static final Logger log = Logger.getLogger(ShardedRateLimitingExecutor.class.getCanonicalName());
+
+	@ConfigField(desc = "Number of threads executing tasks")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private final Permissions permissions = new Permissions();
+	private Shard[] shards = null;
+	private Thread ticker = null;
+	private volatile boolean stopped = false;
+	private boolean throttling = false;
+
+	public ShardedRateLimitingExecutor() {
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		if (shards != null) {
+			log.log(Level.WARNING, "number of threads cannot be changed after executor is started");
+			return;
+		}
+		this.threads = threads;
+	}
+
+	@Override
+	public boolean isOverloaded() {
+		return queueSize() > Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void submit(Priority priority, Runnable runnable) {
+		submit(priority, runnable, 1);
+	}
+
+	@Override
+	public void submit(Priority priority, Runnable runnable, int weight) {
+		submit(priority, (int) Thread.currentThread().getId(), runnable, weight);
+	}
+
+	@Override
+	public void submit(Priority priority, int hash, Runnable runnable, int weight) {
+		Shard[] shards = getShards();
+		int h = hash ^ (hash >>> 16);
+		shards[(h & Integer.MAX_VALUE) % shards.length].submit(priority, runnable, weight);
+	}
+
+	/**
+	 * Loop refilling shared permissions for execution of tasks.
+	 */
+	@Override
+	public void run() {
+		while (!stopped) {
+			long sleepTime = getSleepTime();
+			MemoryUsage memoryUsage = currentMemoryUsage();
+			long permitted = getPermissions(sleepTime, memoryUsage);
+			permissions.refill(permitted);
+
+			if (log.isLoggable(Level.CONFIG)) {
+				long size = queueSize();
+				if (size > getLimit() || memoryUsage != MemoryUsage.normal) {
+					if (!throttling) {
+						log.log(Level.CONFIG,
+								"throttling executions started at rate " + permitted + " every " + sleepTime +
+										"ms, current queue size " + size + ", memory usage " + memoryUsage.name());
+						throttling = true;
+					}
+				} else {
+					if (throttling) {
+						log.log(Level.CONFIG, "throttling executions ended");
+					}
+					throttling = false;
+				}
+			}
+
+			try {
+				Thread.sleep(sleepTime);
+			} catch (InterruptedException ex) {
+				// handle exception somehow..
+			}
+		}
+	}
+
+	@Override
+	public synchronized void initialize() {
+		if (ticker != null) {
+			return;
+		}
+		stopped = false;
+		Shard[] shards = getShards();
+		for (int i = 0; i < shards.length; i++) {
+			Thread thread = new Thread(shards[i], "publish-executor-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		ticker = new Thread(this, "publish-executor-limiter");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		stopped = true;
+		permissions.stop();
+		if (shards != null) {
+			for (Shard shard : shards) {
+				shard.beforeUnregister();
+			}
+		}
+		super.beforeUnregister();
+		ticker = null;
+	}
+
+	@Override
+	public void everyHour() {
+	}
+
+	@Override
+	public void everyMinute() {
+	}
+
+	@Override
+	public void everySecond() {
+		Shard[] shards = this.shards;
+		if (shards != null) {
+			for (Shard shard : shards) {
+				shard.everySecond();
+			}
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		Shard[] shards = this.shards;
+		if (shards == null) {
+			return;
+		}
+		list.add(compName, "publishExecutor/queue size", queueSize(), Level.FINE);
+		for (int i = 0; i < shards.length; i++) {
+			Shard shard = shards[i];
+			list.add(compName, "publishExecutor/shard-" + i + "/queue size", shard.queueSize(), Level.FINER);
+			list.add(compName, "publishExecutor/shard-" + i + "/executed", shard.executed.sum(), Level.FINEST);
+			list.add(compName, "publishExecutor/shard-" + i + "/executed last second", shard.executedLastSecond,
+					 Level.FINER);
+		}
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	protected long queueSize() {
+		Shard[] shards = this.shards;
+		long size = 0;
+		if (shards != null) {
+			for (Shard shard : shards) {
+				size += shard.queueSize();
+			}
+		}
+		return size;
+	}
+
+	private Shard[] getShards() {
+		Shard[] shards = this.shards;
+		if (shards == null) {
+			synchronized (this) {
+				shards = this.shards;
+				if (shards == null) {
+					shards = new Shard[Math.max(1, threads)];
+					for (int i = 0; i < shards.length; i++) {
+						shards[i] = new Shard();
+					}
+					this.shards = shards;
+				}
+			}
+		}
+		return shards;
+	}
+
+	/**
+	 * Permissions for executions of tasks shared by all threads. Task is executed if there is any permission left and
+	 * all executions (weight of the task) are deducted after it was executed, so executions of a batch exceeding the
+	 * limit are deducted from permissions of next periods.
+	 */
+	private static class Permissions {
+
+		private long available = 0;
+		private boolean stopped = false;
+
+		synchronized void await() throws InterruptedException {
+			while (available <= 0 && !stopped) {
+				wait();
+			}
+		}
+
+		synchronized void consume(int executions) {
+			available -= executions;
+		}
+
+		synchronized void refill(long permitted) {
+			available = Math.min(available + permitted, permitted);
+			if (available > 0) {
+				notifyAll();
+			}
+		}
+
+		synchronized void stop() {
+			stopped = true;
+			notifyAll();
+		}
+	}
+
+	private class Shard
+			extends AbstractQueuingExecutor
+			implements Runnable {
+
+		private final LongAdder executed = new LongAdder();
+		private long executedBefore = 0;
+		private volatile long executedLastSecond = 0;
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				try {
+					permissions.await();
+					int executions = execute();
+					if (executions > 0) {
+						permissions.consume(executions);
+						executed.add(executions);
+					}
+				} catch (InterruptedException ex) {
+					// handle exception somehow..
+				} catch (Throwable ex) {
+					log.log(Level.WARNING, "execution of a task failed", ex);
+				}
+			}
+		}
+
+		int queueSize() {
+			return queue.totalSize();
+		}
+
+		void everySecond() {
+			long executed = this.executed.sum();
+			executedLastSecond = executed - executedBefore;
+			executedBefore = executed;
+		}
+	}
+}
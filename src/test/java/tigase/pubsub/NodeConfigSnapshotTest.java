@@ -0,0 +1,65 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub;
+
+import org.junit.Test;
+import tigase.xmpp.StanzaType;
+
+import static org.junit.Assert.*;
+
+public class NodeConfigSnapshotTest {
+
+	@Test
+	public void testValuesAreParsed() {
+		LeafNodeConfig config = new LeafNodeConfig("test");
+		config.setValue("pubsub#access_model", AccessModel.whitelist.name());
+		config.setValue("pubsub#notification_type", StanzaType.normal.name());
+		config.setValue("pubsub#send_last_published_item", "on_sub_and_presence");
+		config.setValue("pubsub#max_items", "10");
+		config.setDomains("example.com");
+
+		NodeConfigSnapshot snapshot = NodeConfigSnapshot.of(config);
+		assertEquals("test", snapshot.getNodeName());
+		assertEquals(AccessModel.whitelist, snapshot.getNodeAccessModel());
+		assertEquals(StanzaType.normal, snapshot.getNotificationType());
+		assertEquals(SendLastPublishedItem.on_sub_and_presence, snapshot.getSendLastPublishedItem());
+		assertEquals(config.getCollectionItemsOrdering(), snapshot.getCollectionItemsOrdering());
+		assertEquals(Integer.valueOf(10), snapshot.getMaxItems().getOrNull());
+		assertArrayEquals(new String[]{"example.com"}, snapshot.getDomains());
+		assertEquals(0, snapshot.getRosterGroupsAllowed().length);
+		assertTrue(snapshot.isLeaf());
+		assertFalse(snapshot.isCollection());
+
+		// snapshot is not affected by later changes of configuration
+		config.setValue("pubsub#access_model", AccessModel.open.name());
+		assertEquals(AccessModel.whitelist, snapshot.getNodeAccessModel());
+		assertEquals(AccessModel.open, NodeConfigSnapshot.of(config).getNodeAccessModel());
+	}
+
+	@Test
+	public void testInvalidValuesFallBackToDefaults() {
+		LeafNodeConfig config = new LeafNodeConfig("test");
+		config.setValue("pubsub#notification_type", "invalid");
+		config.setValue("pubsub#send_last_published_item", "invalid");
+
+		NodeConfigSnapshot snapshot = NodeConfigSnapshot.of(config);
+		assertEquals(StanzaType.headline, snapshot.getNotificationType());
+		assertEquals(SendLastPublishedItem.never, snapshot.getSendLastPublishedItem());
+		assertNull(NodeConfigSnapshot.of(null));
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.CollectionItemsOrdering;
+import tigase.pubsub.repository.IItems;
+import tigase.xmpp.rsm.RSM;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares retrieval of a deep page of items of a collection node by <code>PubSubDAOJDBC.getItems()</code> using
+ * offset (when RSM <code>index</code> is requested, done by <code>TigPubSubQueryItems</code>) and using keyset
+ * pagination (when RSM <code>after</code> is used, done by <code>TigPubSubQueryItemsPage</code>).
+ *
+ * Collection node has 50 child nodes with 100k items in total. Benchmark retrieves page 1000 with page size of 10
+ * items, so offset query needs to skip 9990 rows, while keyset query starts from the last item of the previous page.
+ *
+ * Uses embedded Derby database with schema of the component (including stored procedures).
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.CollectionItemsQueryBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class CollectionItemsQueryBenchmark {
+
+	private static final int NODES = 50;
+	private static final int PAGE_SIZE = 10;
+	private static final int PAGE = 1000;
+
+	@Param({"100000"})
+	private int items;
+
+	private PubSubBenchmarkEnvironment environment;
+	private String lastOfPreviousPage;
+	private List<Long> nodesIds;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(CollectionItemsQueryBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		environment = new PubSubBenchmarkEnvironment("pubsub-collection-items-benchmark");
+		nodesIds = new ArrayList<>();
+		for (int i = 0; i < NODES; i++) {
+			String node = "node-" + i;
+			environment.createNode(node, 0);
+			nodesIds.add(environment.dao.getNodeMeta(environment.serviceJid, node).getNodeId());
+		}
+		long now = System.currentTimeMillis() - items;
+		for (int i = 0; i < items; i++) {
+			String id = "item-" + i;
+			environment.dao.writeItem(environment.serviceJid, nodesIds.get(i % NODES), now + i, id,
+									  environment.ownerJid.toString(), PubSubBenchmarkEnvironment.newItem(id), null);
+		}
+
+		// last item of the previous page is known to the client from RSM of the previous response
+		RSM rsm = newRsm();
+		rsm.setIndex((PAGE - 2) * PAGE_SIZE);
+		getItems(rsm);
+		lastOfPreviousPage = rsm.getLast();
+		if (lastOfPreviousPage == null) {
+			throw new IllegalStateException("Previous page is empty");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	@Benchmark
+	public List<IItems.IItem> offset() throws Exception {
+		RSM rsm = newRsm();
+		rsm.setIndex((PAGE - 1) * PAGE_SIZE);
+		return getItems(rsm);
+	}
+
+	@Benchmark
+	public List<IItems.IItem> keyset() throws Exception {
+		RSM rsm = newRsm();
+		rsm.setAfter(lastOfPreviousPage);
+		return getItems(rsm);
+	}
+
+	private List<IItems.IItem> getItems(RSM rsm) throws Exception {
+		return environment.dao.getItems(environment.serviceJid, nodesIds, null, null, rsm,
+										CollectionItemsOrdering.byUpdateDate);
+	}
+
+	private static RSM newRsm() {
+		RSM rsm = new RSM();
+		rsm.setMax(PAGE_SIZE);
+		return rsm;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.CollectionItemsOrdering;
+import tigase.pubsub.repository.IItems;
+import tigase.xmpp.rsm.RSM;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of retrieval of pages of items of a node by <code>PubSubDAOJDBC.getItems()</code> from embedded
+ * Derby database with schema of the component (including stored procedures).
+ *
+ * Benchmark retrieves the first page and the following page (using id of the last item of the first page as RSM
+ * <code>after</code>), each containing 20 items.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.DerbyItemsBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DerbyItemsBenchmark {
+
+	private static final String NODE = "items-node";
+	private static final int PAGE_SIZE = 20;
+
+	@Param({"1000"})
+	private int items;
+
+	private PubSubBenchmarkEnvironment environment;
+	private String lastOfFirstPage;
+	private List<Long> nodesIds;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(DerbyItemsBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		environment = new PubSubBenchmarkEnvironment("pubsub-derby-items-benchmark");
+		environment.createNode(NODE, 0);
+		Long nodeId = environment.dao.getNodeMeta(environment.serviceJid, NODE).getNodeId();
+		nodesIds = Collections.singletonList(nodeId);
+		long now = System.currentTimeMillis() - items;
+		for (int i = 0; i < items; i++) {
+			String id = "item-" + i;
+			environment.dao.writeItem(environment.serviceJid, nodeId, now + i, id,
+									  environment.ownerJid.toString(), PubSubBenchmarkEnvironment.newItem(id), null);
+		}
+		RSM rsm = newRsm();
+		getItems(rsm);
+		lastOfFirstPage = rsm.getLast();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	@Benchmark
+	public List<IItems.IItem> firstPage() throws Exception {
+		return getItems(newRsm());
+	}
+
+	@Benchmark
+	public List<IItems.IItem> nextPage() throws Exception {
+		RSM rsm = newRsm();
+		rsm.setAfter(lastOfFirstPage);
+		return getItems(rsm);
+	}
+
+	private List<IItems.IItem> getItems(RSM rsm) throws Exception {
+		return environment.dao.getItems(environment.serviceJid, nodesIds, null, null, rsm,
+										CollectionItemsOrdering.byUpdateDate);
+	}
+
+	private static RSM newRsm() {
+		RSM rsm = new RSM();
+		rsm.setMax(PAGE_SIZE);
+		return rsm;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.repository.IItems;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares throughput of building response to retrieval of items when payloads loaded from the database are parsed to
+ * elements (as it was done for every loaded item) and when serialized payloads are added to the response without
+ * parsing.
+ *
+ * Each response contains 20 items with payload of around 1KB.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.ItemsRetrievalBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ItemsRetrievalBenchmark {
+
+	private static final int ITEMS = 20;
+
+	private final SimpleParser parser = new SimpleParser();
+	private List<String> payloads;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(ItemsRetrievalBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() {
+		payloads = new ArrayList<>();
+		for (int i = 0; i < ITEMS; i++) {
+			Element entry = new Element("entry", new String[]{"xmlns"}, new String[]{"http://www.w3.org/2005/Atom"});
+			entry.addChild(new Element("title", "Item " + i));
+			entry.addChild(new Element("id", "tag:example.com,2020:item-" + i));
+			entry.addChild(new Element("updated", "2020-01-01T00:00:00Z"));
+			StringBuilder content = new StringBuilder();
+			for (int j = 0; j < 20; j++) {
+				content.append("Lorem ipsum dolor sit amet &amp; consectetur. ");
+			}
+			entry.addChild(new Element("content", content.toString()));
+			Element item = new Element("item", new String[]{"id"}, new String[]{"item-" + i});
+			item.addChild(entry);
+			payloads.add(item.toString());
+		}
+	}
+
+	@Benchmark
+	public String parsed() {
+		return buildResponse(true);
+	}
+
+	@Benchmark
+	public String raw() {
+		return buildResponse(false);
+	}
+
+	private String buildResponse(boolean parse) {
+		Element items = new Element("items", new String[]{"node"}, new String[]{"node"});
+		for (int i = 0; i < payloads.size(); i++) {
+			IItems.IItem item = new IItems.RawItem("node", "item-" + i, null, payloads.get(i), this::parse);
+			items.addChild(parse ? item.getItem() : item.getItemNode());
+		}
+		return items.toString();
+	}
+
+	private Element parse(String data) {
+		char[] chars = data.toCharArray();
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, chars, 0, chars.length);
+		return domHandler.getParsedElements().poll();
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.AccessModel;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares access to configuration of a cached node during publication of an item: by cloning configuration (as
+ * returned by <code>getNodeConfig()</code>) and by using shared <code>NodeConfigSnapshot</code>.
+ *
+ * Each invocation reads the configuration in the same way as a single publication does: for checking permissions,
+ * publishing items, finding collections, finding subscribers and preparing notification.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.NodeConfigSnapshotBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeConfigSnapshotBenchmark {
+
+	private LeafNodeConfig config;
+	private NodeConfigSnapshot snapshot;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(NodeConfigSnapshotBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() {
+		config = new LeafNodeConfig("benchmark");
+		config.setValue("pubsub#access_model", AccessModel.open.name());
+		config.setValue("pubsub#send_last_published_item", "on_sub_and_presence");
+		config.setValue("pubsub#presence_based_delivery", true);
+		config.setDomains("example.com", "example.net");
+		snapshot = NodeConfigSnapshot.of(config);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void publishWithClonedConfig(Blackhole bh) throws CloneNotSupportedException {
+		// checkPermission
+		AbstractNodeConfig c1 = config.clone();
+		bh.consume(c1.getNodeAccessModel());
+		bh.consume(c1.getDomains());
+		bh.consume(c1.getPublisherModel());
+		// publishItems
+		LeafNodeConfig c2 = (LeafNodeConfig) config.clone();
+		bh.consume(c2.getNodeType());
+		bh.consume(c2.isPersistItem());
+		bh.consume(c2.getMaxItems());
+		bh.consume(c2.getCollectionItemsOrdering());
+		// getCollectionsForNotification
+		AbstractNodeConfig c3 = config.clone();
+		bh.consume(c3.getCollection());
+		bh.consume(c3.getNotificationType());
+		// subscribersOfNotifications
+		AbstractNodeConfig c4 = config.clone();
+		bh.consume(c4.isPresenceExpired());
+		bh.consume(c4.isDeliverPresenceBased());
+		bh.consume(c4.getNodeAccessModel());
+		// prepareNotificationMessage
+		AbstractNodeConfig c5 = config.clone();
+		bh.consume(c5.getBodyXslt());
+		bh.consume(c5.getBodyXsltEmbedded());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void publishWithSnapshot(Blackhole bh) {
+		// checkPermission
+		NodeConfigSnapshot c1 = snapshot;
+		bh.consume(c1.getNodeAccessModel());
+		bh.consume(c1.getDomains());
+		bh.consume(c1.getPublisherModel());
+		// publishItems
+		NodeConfigSnapshot c2 = snapshot;
+		bh.consume(c2.getNodeType());
+		bh.consume(c2.isPersistItem());
+		bh.consume(c2.getMaxItems());
+		bh.consume(c2.getCollectionItemsOrdering());
+		// getCollectionsForNotification
+		NodeConfigSnapshot c3 = snapshot;
+		bh.consume(c3.getCollection());
+		bh.consume(c3.getNotificationType());
+		// subscribersOfNotifications
+		NodeConfigSnapshot c4 = snapshot;
+		bh.consume(c4.isPresenceExpired());
+		bh.consume(c4.isDeliverPresenceBased());
+		bh.consume(c4.getNodeAccessModel());
+		// prepareNotificationMessage
+		NodeConfigSnapshot c5 = snapshot;
+		bh.consume(c5.getBodyXslt());
+		bh.consume(c5.getBodyXsltEmbedded());
+	}
+}
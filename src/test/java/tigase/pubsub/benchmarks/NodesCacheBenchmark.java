@@ -0,0 +1,108 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.NodeConfigSnapshot;
+import tigase.pubsub.repository.cached.CachedPubSubRepository;
+import tigase.pubsub.utils.Cache;
+import tigase.pubsub.utils.LRUCache;
+import tigase.pubsub.utils.LRUCacheWithFuture;
+import tigase.pubsub.utils.SegmentedLRUCache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of concurrent lookups of cached nodes for both types of nodes cache: the cache itself and
+ * retrieval of configuration of a node by <code>CachedPubSubRepository</code> (done for almost every request).
+ *
+ * All nodes fit in the cache, so each lookup is a hit, but each of them changes order of entries of the cache.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.NodesCacheBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class NodesCacheBenchmark {
+
+	private static final int CACHE_ENTRIES = 10000;
+	private static final int NODES = 1000;
+
+	@Param({"lru", "segmented"})
+	private CachedPubSubRepository.NodesCacheType cacheType;
+
+	private Cache<String, Object> cache;
+	private PubSubBenchmarkEnvironment environment;
+	private String[] keys;
+	private String[] nodes;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(NodesCacheBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		switch (cacheType) {
+			case segmented:
+				cache = new LRUCacheWithFuture<>(new SegmentedLRUCache<>(CACHE_ENTRIES));
+				break;
+			default:
+				cache = new LRUCacheWithFuture<>(new LRUCache<>(CACHE_ENTRIES));
+				break;
+		}
+		keys = new String[CACHE_ENTRIES];
+		for (int i = 0; i < CACHE_ENTRIES; i++) {
+			keys[i] = "key-" + i;
+			cache.put(keys[i], keys[i]);
+		}
+
+		environment = new PubSubBenchmarkEnvironment("pubsub-nodes-cache-benchmark", cacheType);
+		nodes = new String[NODES];
+		for (int i = 0; i < NODES; i++) {
+			nodes[i] = "node-" + i;
+			environment.createNode(nodes[i], 0);
+			environment.repository.getNodeConfigSnapshot(environment.serviceJid, nodes[i]);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	@Benchmark
+	public Object cacheGet() {
+		return cache.get(keys[ThreadLocalRandom.current().nextInt(CACHE_ENTRIES)]);
+	}
+
+	@Benchmark
+	public NodeConfigSnapshot getNodeConfigSnapshot() throws Exception {
+		return environment.repository.getNodeConfigSnapshot(environment.serviceJid,
+															nodes[ThreadLocalRandom.current().nextInt(NODES)]);
+	}
+}
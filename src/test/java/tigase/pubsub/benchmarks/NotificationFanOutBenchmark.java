@@ -0,0 +1,88 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.utils.executors.Executor;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of delivery of a single notification to all subscribers of a node by
+ * <code>NotificationBroadcaster</code> (from resolution of subscribers to creation of packets for every recipient).
+ *
+ * Notification is prepared once, as it is done by <code>PublishItemModule</code>, and packets are passed to a packet
+ * writer which only counts them. Results are reported as average time of a single broadcast, so time spent per
+ * recipient may be compared for different numbers of subscribers.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.NotificationFanOutBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationFanOutBenchmark {
+
+	private static final String NODE = "fan-out-node";
+
+	@Param({"100", "1000", "10000"})
+	private int subscribers;
+
+	private PubSubBenchmarkEnvironment environment;
+	private Element message;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(NotificationFanOutBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		environment = new PubSubBenchmarkEnvironment("pubsub-fan-out-benchmark");
+		environment.createNode(NODE, subscribers);
+
+		Element items = new Element("items", new String[]{"node"}, new String[]{NODE});
+		items.addChild(PubSubBenchmarkEnvironment.newItem("item-1"));
+		message = environment.logic.prepareNotificationMessage(JID.jidInstance(environment.serviceJid), "1", null,
+															   NODE, items, null, Collections.emptyMap(),
+															   environment.repository.getNodeConfigSnapshot(
+																	   environment.serviceJid, NODE)
+																	   .getNotificationType());
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	@Benchmark
+	public long broadcast() throws Exception {
+		environment.notificationBroadcaster.broadcastNotification(Executor.Priority.normal, environment.serviceJid,
+																  NODE, message);
+		return environment.writtenPackets.sum();
+	}
+}
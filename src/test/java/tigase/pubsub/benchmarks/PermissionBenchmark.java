@@ -0,0 +1,93 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.utils.PubSubLogic;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of checks done by <code>DefaultPubSubLogic</code> for every request and every published item:
+ * verification of permissions of a sender and resolution of subscribers which should receive a notification.
+ *
+ * Node, its affiliations and subscriptions are loaded to the cache before measurement, so results show cost of the
+ * logic and of the lookups in the cache without accessing the database.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.PermissionBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PermissionBenchmark {
+
+	private static final String NODE = "permissions-node";
+
+	@Param({"1000"})
+	private int subscribers;
+
+	private PubSubBenchmarkEnvironment environment;
+	private JID owner;
+	private JID subscriber;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(PermissionBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		environment = new PubSubBenchmarkEnvironment("pubsub-permission-benchmark");
+		environment.createNode(NODE, subscribers);
+		owner = JID.jidInstanceNS(environment.ownerJid, "res");
+		subscriber = JID.jidInstanceNS(environment.subscriberJid(subscribers / 2), "res");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	@Benchmark
+	public void checkPublishPermission() throws Exception {
+		environment.logic.checkPermission(environment.serviceJid, NODE, owner, PubSubLogic.Action.publishItems);
+	}
+
+	@Benchmark
+	public void checkRetrievePermission() throws Exception {
+		environment.logic.checkPermission(environment.serviceJid, NODE, subscriber, PubSubLogic.Action.retrieveItems);
+	}
+
+	@Benchmark
+	public void checkSubscribePermission() throws Exception {
+		environment.logic.checkPermission(environment.serviceJid, NODE, subscriber, PubSubLogic.Action.subscribe);
+	}
+
+	@Benchmark
+	public long subscribersOfNotifications() throws Exception {
+		return environment.logic.subscribersOfNotifications(environment.serviceJid, NODE).count();
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.repository.PresenceCollectorRepository;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares lookup of available resources interested in notifications from a node (with <code>+notify</code> feature)
+ * by checking caps node of every available resource of the service and by using index of resources by caps node.
+ *
+ * Service has 1M of available resources, which announced one of 200 caps nodes. Only resources with 5 of those caps
+ * nodes are interested in notifications.
+ *
+ * Compares also selection of the oldest stale resources to ping (as done by <code>Ghostbuster</code>) by sorting of
+ * all resources and by using index of resources by last seen time.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.PresenceCollectorRepositoryBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class PresenceCollectorRepositoryBenchmark {
+
+	private static final int CAPS_NODES = 200;
+	private static final int PING_BATCH = 20;
+
+	@Param({"1000000"})
+	private int resources;
+
+	private PresenceCollectorRepository repository;
+	private BareJID serviceJid;
+	private Set<String> nodesWithFeature;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(PresenceCollectorRepositoryBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	public void setup() {
+		repository = new PresenceCollectorRepository();
+		serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		for (int i = 0; i < resources; i++) {
+			JID jid = JID.jidInstanceNS("user-" + (i / 2) + "@example.com/res-" + (i % 2));
+			repository.add(serviceJid, jid, "http://example.com/client-" + (i % CAPS_NODES));
+		}
+		nodesWithFeature = new HashSet<>();
+		for (int i = 0; i < 5; i++) {
+			nodesWithFeature.add("http://example.com/client-" + i);
+		}
+	}
+
+	@Benchmark
+	public void findWithPredicate(Blackhole bh) {
+		repository.getAllAvailableJids(serviceJid, nodesWithFeature::contains).forEach(bh::consume);
+	}
+
+	@Benchmark
+	public void findWithIndex(Blackhole bh) {
+		repository.getAllAvailableJidsWithCapsNodes(serviceJid, nodesWithFeature).forEach(bh::consume);
+	}
+
+	@Benchmark
+	public void findOldestWithSorting(Blackhole bh) {
+		long border = System.currentTimeMillis() + 1;
+		repository.userResourceEntryStream()
+				.filter(entry -> entry.isOlderThan(border))
+				.sorted(Comparator.comparing(PresenceCollectorRepository.UserResourceEntry::getLastSeen))
+				.limit(PING_BATCH)
+				.forEach(bh::consume);
+	}
+
+	@Benchmark
+	public void findOldestWithIndex(Blackhole bh) {
+		long border = System.currentTimeMillis() + 1;
+		for (PresenceCollectorRepository.UserResourceEntry entry : repository.pollExpiredUserResourceEntries(border,
+																											  PING_BATCH)) {
+			bh.consume(entry);
+			// put it back, as if ping response was received
+			entry.markAsSeen();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import tigase.pubsub.repository.PresenceCollectorRepository;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.ref.Reference;
+
+/**
+ * Measures heap used by <code>PresenceCollectorRepository</code> to keep 1M of available resources (2 resources of
+ * each user, each of them announced one of 200 caps nodes) and time needed to fetch JIDs of all of them.
+ *
+ * JIDs passed to the repository are created within the measured region (as they would be created while parsing
+ * received presences) and are not referenced by the benchmark, so memory used by JIDs kept by the repository is
+ * counted no matter if the repository keeps passed JIDs or creates its own.
+ *
+ * Run with <code>java -Xmx4g -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.PresenceCollectorRepositoryMemoryBenchmark</code>
+ */
+public class PresenceCollectorRepositoryMemoryBenchmark {
+
+	private static final int CAPS_NODES = 200;
+	private static final int RESOURCES = 1000000;
+
+	public static void main(String[] args) {
+		int resources = args.length > 0 ? Integer.parseInt(args[0]) : RESOURCES;
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+
+		long before = usedMemory();
+		PresenceCollectorRepository repository = new PresenceCollectorRepository();
+		for (int i = 0; i < resources; i++) {
+			JID jid = JID.jidInstanceNS(BareJID.bareJIDInstanceNS("user-" + (i / 2) + "@example.com"), "res-" + (i % 2));
+			repository.add(serviceJid, jid, "http://example.com/client-" + (i % CAPS_NODES));
+		}
+		long after = usedMemory();
+
+		System.out.println("Heap used by " + resources + " resources: " + ((after - before) / (1024 * 1024)) + " MB, " +
+								   ((after - before) / resources) + " bytes per resource");
+
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			long count = repository.getAllAvailableJids(serviceJid, null).count();
+			System.out.println("Fetched JIDs of " + count + " resources in " + ((System.nanoTime() - start) / 1000000) +
+									   " ms");
+		}
+		// keep the repository reachable until the end of measurement
+		Reference.reachabilityFence(repository);
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
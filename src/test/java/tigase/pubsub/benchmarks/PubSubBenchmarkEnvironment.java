@@ -0,0 +1,253 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import tigase.component.PacketWriter;
+import tigase.db.jdbc.DataRepositoryImpl;
+import tigase.eventbus.EventBusFactory;
+import tigase.kernel.core.Kernel;
+import tigase.pubsub.*;
+import tigase.pubsub.modules.CapsModule;
+import tigase.pubsub.modules.PresenceCollectorModule;
+import tigase.pubsub.modules.PublishItemModule;
+import tigase.pubsub.modules.XsltTool;
+import tigase.pubsub.repository.IAffiliations;
+import tigase.pubsub.repository.ISubscriptions;
+import tigase.pubsub.repository.PresenceCollectorRepository;
+import tigase.pubsub.repository.PubSubDAOJDBC;
+import tigase.pubsub.repository.cached.CachedPubSubRepository;
+import tigase.pubsub.utils.DefaultPubSubLogic;
+import tigase.pubsub.utils.executors.Executor;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Component of PubSub wired by a kernel (with beans of the component registered directly) for benchmarks of hot
+ * paths.
+ *
+ * Uses in-memory Derby database initialized with the schema from <code>src/main/database</code>, so benchmarks need
+ * to be started from the root directory of the project. Executor of notifications runs tasks in the calling thread
+ * and packet writer only counts written packets, so benchmarks measure work done by the component without the cost
+ * of routing packets.
+ */
+class PubSubBenchmarkEnvironment
+		implements AutoCloseable {
+
+	private static final String[] SCHEMA_VERSIONS = {"4.0.0", "4.1.0", "5.0.0", "5.1.0", "5.2.0"};
+
+	final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+	final BareJID ownerJid = BareJID.bareJIDInstanceNS("owner@example.com");
+	final PubSubComponent component;
+	final PubSubConfig config;
+	final PubSubDAOJDBC dao;
+	final DefaultPubSubLogic logic;
+	final NotificationBroadcaster notificationBroadcaster;
+	final PublishItemModule publishItemModule;
+	final CachedPubSubRepository<Long> repository;
+	final LongAdder writtenPackets = new LongAdder();
+	private final Kernel kernel;
+	private final String uri;
+
+	PubSubBenchmarkEnvironment(String name) throws Exception {
+		this(name, CachedPubSubRepository.NodesCacheType.lru);
+	}
+
+	PubSubBenchmarkEnvironment(String name, CachedPubSubRepository.NodesCacheType nodesCacheType) throws Exception {
+		uri = "jdbc:derby:memory:" + name;
+		try (Connection connection = DriverManager.getConnection(uri + ";create=true")) {
+			loadSchema(connection);
+		}
+		DataRepositoryImpl dataRepository = new DataRepositoryImpl();
+		dataRepository.initialize(uri);
+
+		dao = new PubSubDAOJDBC();
+		dao.setDataSource(dataRepository);
+
+		component = new PubSubComponent();
+		component.setName("pubsub");
+
+		kernel = new Kernel();
+		kernel.registerBean("service").asInstance(component).exec();
+		kernel.registerBean("eventBus").asInstance(EventBusFactory.getInstance()).exec();
+		kernel.registerBean("packetWriter").asInstance(newPacketWriter(writtenPackets)).exec();
+		kernel.registerBean("publishExecutor").asInstance(new SameThreadExecutor()).exec();
+		kernel.registerBean("pubsubDao").asInstance(dao).exec();
+		kernel.registerBean("config").asClass(PubSubConfig.class).exec();
+		kernel.registerBean("logic").asClass(DefaultPubSubLogic.class).exec();
+		kernel.registerBean("xslTransformer").asClass(XsltTool.class).exec();
+		// presence collector is used only by nodes with presence based delivery, which are not benchmarked
+		kernel.registerBean("presenceRepository").asClass(PresenceCollectorRepository.class).exec();
+		kernel.registerBean("capsModule").asClass(CapsModule.class).exec();
+		kernel.registerBean("presenceCollectorModule").asClass(PresenceCollectorModule.class).exec();
+		kernel.registerBean("repository").asClass(CachedPubSubRepository.class).exec();
+		kernel.registerBean("notificationBroadcaster").asClass(NotificationBroadcaster.class).exec();
+		kernel.registerBean("publishItemModule").asClass(PublishItemModule.class).exec();
+
+		config = kernel.getInstance(PubSubConfig.class);
+		logic = kernel.getInstance(DefaultPubSubLogic.class);
+		repository = kernel.getInstance(CachedPubSubRepository.class);
+		notificationBroadcaster = kernel.getInstance(NotificationBroadcaster.class);
+		publishItemModule = kernel.getInstance(PublishItemModule.class);
+
+		if (nodesCacheType != CachedPubSubRepository.NodesCacheType.lru) {
+			setNodesCacheType(repository, nodesCacheType);
+		}
+
+		repository.createService(serviceJid, true);
+	}
+
+	/**
+	 * Creates leaf node owned by <code>ownerJid</code> with <code>subscribers</code> subscribed users.
+	 */
+	void createNode(String nodeName, int subscribers) throws Exception {
+		LeafNodeConfig nodeConfig = new LeafNodeConfig(nodeName);
+		nodeConfig.setValue("pubsub#max_items", "100");
+		repository.createNode(serviceJid, nodeName, ownerJid, nodeConfig, NodeType.leaf, "");
+
+		IAffiliations affiliations = repository.getNodeAffiliations(serviceJid, nodeName);
+		affiliations.addAffiliation(ownerJid, Affiliation.owner);
+		repository.update(serviceJid, nodeName, affiliations);
+
+		ISubscriptions subscriptions = repository.getNodeSubscriptions(serviceJid, nodeName);
+		for (int i = 0; i < subscribers; i++) {
+			subscriptions.addSubscriberJid(subscriberJid(i), Subscription.subscribed);
+		}
+		repository.update(serviceJid, nodeName, subscriptions);
+	}
+
+	BareJID subscriberJid(int i) {
+		return BareJID.bareJIDInstanceNS("user-" + i + "@example.com");
+	}
+
+	static Element newItem(String id) {
+		Element entry = new Element("entry", new String[]{"xmlns"}, new String[]{"http://www.w3.org/2005/Atom"});
+		entry.addChild(new Element("title", "Item " + id));
+		entry.addChild(new Element("updated", "2020-01-01T00:00:00Z"));
+		entry.addChild(new Element("content", "Lorem ipsum dolor sit amet, consectetur adipiscing elit."));
+		Element item = new Element("item", new String[]{"id"}, new String[]{id});
+		item.addChild(entry);
+		return item;
+	}
+
+	@Override
+	public void close() throws Exception {
+		// unregistering of the repository destroys it
+		kernel.unregister("repository");
+		try {
+			DriverManager.getConnection(uri + ";drop=true");
+		} catch (SQLException ex) {
+			// dropping in-memory database always ends with an exception
+		}
+	}
+
+	private static void loadSchema(Connection connection) throws Exception {
+		try (Statement stmt = connection.createStatement()) {
+			for (String version : SCHEMA_VERSIONS) {
+				Path file = Paths.get("src", "main", "database", "derby-pubsub-" + version + ".sql");
+				for (String query : readQueries(file)) {
+					// version of the schema is not checked by benchmarks
+					if (!query.startsWith("call TigSetComponentVersion")) {
+						stmt.execute(query);
+					}
+				}
+			}
+		}
+	}
+
+	private static List<String> readQueries(Path file) throws Exception {
+		List<String> queries = new ArrayList<>();
+		StringBuilder query = null;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.startsWith("-- QUERY START:")) {
+				query = new StringBuilder();
+			} else if (line.startsWith("-- QUERY END:")) {
+				String sql = query.toString().trim();
+				if (sql.endsWith(";")) {
+					sql = sql.substring(0, sql.length() - 1);
+				}
+				queries.add(sql);
+				query = null;
+			} else if (query != null) {
+				query.append(line).append('\n');
+			}
+		}
+		return queries;
+	}
+
+	private static PacketWriter newPacketWriter(LongAdder counter) {
+		return (PacketWriter) Proxy.newProxyInstance(PacketWriter.class.getClassLoader(), new Class[]{PacketWriter.class},
+													 (proxy, method, args) -> {
+														 switch (method.getName()) {
+															 case "write":
+																 counter.increment();
+																 break;
+															 case "hashCode":
+																 return System.identityHashCode(proxy);
+															 case "equals":
+																 return proxy == args[0];
+															 case "toString":
+																 return "CountingPacketWriter";
+															 default:
+																 break;
+														 }
+														 return method.getReturnType() == boolean.class ? true : null;
+													 });
+	}
+
+	/**
+	 * Changes type of the nodes cache of the repository initialized by the kernel by restarting it with a new (still
+	 * empty) cache.
+	 */
+	private static void setNodesCacheType(CachedPubSubRepository<Long> repository,
+										  CachedPubSubRepository.NodesCacheType nodesCacheType)
+			throws NoSuchFieldException, IllegalAccessException {
+		Field f = CachedPubSubRepository.class.getDeclaredField("nodesCacheType");
+		f.setAccessible(true);
+		repository.destroy();
+		f.set(repository, nodesCacheType);
+		repository.initialize();
+	}
+
+	private static class SameThreadExecutor
+			implements Executor {
+
+		@Override
+		public boolean isOverloaded() {
+			return false;
+		}
+
+		@Override
+		public void submit(Priority priority, Runnable runnable) {
+			runnable.run();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks of hot paths of the component (publication, fan-out of notifications, permission checks, nodes cache
+ * and retrieval of items from the database) with allocation profiler, so results contain allocation rate per
+ * operation next to throughput. Results are stored in <code>target/jmh-result.json</code>.
+ *
+ * Regular expressions passed as arguments narrow benchmarks which should be executed.
+ *
+ * Run with <code>mvn -Pbenchmarks test</code> or <code>java -cp target/test-classes:&lt;test classpath&gt;
+ * tigase.pubsub.benchmarks.PubSubBenchmarks [regexp...]</code>
+ */
+public class PubSubBenchmarks {
+
+	private static final Class[] BENCHMARKS = {PublishBenchmark.class, NotificationFanOutBenchmark.class,
+											   PermissionBenchmark.class, NodesCacheBenchmark.class,
+											   DerbyItemsBenchmark.class};
+
+	public static void main(String[] args) throws RunnerException {
+		ChainedOptionsBuilder builder = new OptionsBuilder().addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("target/jmh-result.json");
+		boolean included = false;
+		for (String arg : args) {
+			// empty argument is passed by maven profile if benchmarks were not selected
+			if (!arg.trim().isEmpty()) {
+				builder.include(arg);
+				included = true;
+			}
+		}
+		if (!included) {
+			for (Class cls : BENCHMARKS) {
+				builder.include(cls.getSimpleName());
+			}
+		}
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.pubsub.NodeConfigSnapshot;
+import tigase.xml.Element;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of publication of a single item by <code>PublishItemModule.doPublishItems()</code>, including
+ * storage of the item in the database, trimming of items of the node and broadcasting notifications to all
+ * subscribers of the node.
+ *
+ * Items are published with one of 100 ids, so number of items of the node stays constant.
+ *
+ * Run with <code>java -cp target/test-classes:&lt;test classpath&gt; tigase.pubsub.benchmarks.PublishBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+
+	private static final String NODE = "publish-node";
+	private static final int ITEM_IDS = 100;
+
+	@Param({"10", "1000"})
+	private int subscribers;
+
+	private PubSubBenchmarkEnvironment environment;
+	private List<Element>[] items;
+	private NodeConfigSnapshot nodeConfig;
+	private String publisher;
+	private int counter = 0;
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(PublishBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+		environment = new PubSubBenchmarkEnvironment("pubsub-publish-benchmark");
+		environment.createNode(NODE, subscribers);
+		nodeConfig = environment.repository.getNodeConfigSnapshot(environment.serviceJid, NODE);
+		publisher = environment.ownerJid.toString();
+		items = new List[ITEM_IDS];
+		for (int i = 0; i < ITEM_IDS; i++) {
+			items[i] = Collections.singletonList(PubSubBenchmarkEnvironment.newItem("item-" + i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	@Benchmark
+	public void publish() throws Exception {
+		counter = (counter + 1) % ITEM_IDS;
+		environment.publishItemModule.doPublishItems(environment.serviceJid, NODE, nodeConfig, publisher,
+													 items[counter]);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.cluster;
+
+import org.junit.Test;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class ConsistentHashRingTest {
+
+	private static final int KEYS = 20000;
+	// maximal allowed difference between share of moved keys and share of keys of a single member
+	private static final double MOVEMENT_TOLERANCE = 0.05;
+
+	@Test
+	public void testKeysAreBalanced() {
+		ConsistentHashRing ring = newRing(5);
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < KEYS; i++) {
+			counts.merge(ring.getOwner(key(i)), 1, Integer::sum);
+		}
+		assertEquals(5, counts.size());
+		for (int count : counts.values()) {
+			assertTrue("unbalanced ring: " + counts, Math.abs(count - KEYS / 5) < KEYS / 5 * 0.3);
+		}
+	}
+
+	@Test
+	public void testMinimalMovementOnMembershipChange() {
+		ConsistentHashRing ring = newRing(5);
+		String[] owners = owners(ring);
+
+		ring.addMember("member-5");
+		String[] afterJoin = owners(ring);
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			if (!owners[i].equals(afterJoin[i])) {
+				// keys are moved only to the new member
+				assertEquals("member-5", afterJoin[i]);
+				moved++;
+			}
+		}
+		double movedOnJoin = ((double) moved) / KEYS;
+
+		ring.removeMember("member-2");
+		String[] afterLeave = owners(ring);
+		moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			if (!afterJoin[i].equals(afterLeave[i])) {
+				// only keys of the removed member are moved
+				assertEquals("member-2", afterJoin[i]);
+				moved++;
+			}
+		}
+		double movedOnLeave = ((double) moved) / KEYS;
+
+		// ideally 1/6 of keys is moved in both cases, as it is a share of a single member in a ring of 6 members
+		assertEquals(1.0 / 6, movedOnJoin, MOVEMENT_TOLERANCE);
+		assertEquals(1.0 / 6, movedOnLeave, MOVEMENT_TOLERANCE);
+	}
+
+	@Test
+	public void testOwnerDoesNotDependOnOrderOfJoining() {
+		ConsistentHashRing ring1 = newRing(3);
+		ConsistentHashRing ring2 = new ConsistentHashRing();
+		for (int i = 2; i >= 0; i--) {
+			ring2.addMember("member-" + i);
+		}
+		assertArrayEquals(owners(ring1), owners(ring2));
+	}
+
+	/**
+	 * Simulates cluster of 4 members, each with its own cache of 1000 PubSub nodes, handling publications to 3000 nodes
+	 * (with 20% of nodes receiving 80% of publications), and compares cache hit rate when publication is handled by a
+	 * random member and by the owner of the node. Then one member joins the cluster and another one leaves it.
+	 */
+	@Test
+	public void testClusterCacheSimulation() {
+		Random random = new Random(1);
+		Map<String, LruCache> caches = new HashMap<>();
+		ClusterNodeMap nodeMap = new ClusterNodeMap(new HashSet<>());
+		for (int i = 0; i < 4; i++) {
+			nodeMap.clusterNodeConnected(JID.jidInstanceNS("sess-man@node-" + i));
+			caches.put("sess-man@node-" + i, new LruCache(1000));
+		}
+		for (int i = 0; i < 3000; i++) {
+			nodeMap.assign(nodeMap.getNewOwnerOfNode(key(i)), key(i));
+		}
+
+		List<String> members = new ArrayList<>(caches.keySet());
+		double randomHitRate = simulate(random, 3000, caches, node -> members.get(random.nextInt(members.size())));
+		double ownerHitRate = simulate(random, 3000, caches, nodeMap::getClusterNodeId);
+
+		nodeMap.clusterNodeConnected(JID.jidInstanceNS("sess-man@node-4"));
+		caches.put("sess-man@node-4", new LruCache(1000));
+		double afterJoinHitRate = simulate(random, 3000, caches, nodeMap::getClusterNodeId);
+
+		Set<String> moved = nodeMap.clusterNodeDisconnected(JID.jidInstanceNS("sess-man@node-1"));
+		caches.remove("sess-man@node-1");
+		double afterLeaveHitRate = simulate(random, 3000, caches, nodeMap::getClusterNodeId);
+
+		// with random routing every member caches nodes of the whole cluster, so hot nodes do not even fit into caches
+		assertTrue("random member hit rate: " + randomHitRate, randomHitRate < 0.9);
+		assertTrue("owner hit rate: " + ownerHitRate, ownerHitRate > 0.95);
+		assertTrue("hit rate after join: " + afterJoinHitRate, afterJoinHitRate > 0.95);
+		assertTrue("hit rate after leave: " + afterLeaveHitRate, afterLeaveHitRate > 0.95);
+		// only nodes of the member which left (1/5 of nodes) are moved
+		assertEquals(3000 / 5, moved.size(), 3000 * MOVEMENT_TOLERANCE);
+
+		int total = nodeMap.getClusterNodesLoad().values().stream().mapToInt(Integer::intValue).sum();
+		assertEquals(3000, total);
+		assertFalse(nodeMap.getClusterNodesLoad().containsKey("sess-man@node-1"));
+	}
+
+	private double simulate(Random random, int nodes, Map<String, LruCache> caches,
+							Function<String, String> router) {
+		int hits = 0;
+		int requests = 100000;
+		for (int i = 0; i < requests; i++) {
+			// 80% of publications goes to 20% of nodes
+			int node = random.nextInt(5) < 4 ? random.nextInt(nodes / 5) : random.nextInt(nodes);
+			String key = key(node);
+			if (caches.get(router.apply(key)).access(key)) {
+				hits++;
+			}
+		}
+		return ((double) hits) / requests;
+	}
+
+	private static ConsistentHashRing newRing(int members) {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		for (int i = 0; i < members; i++) {
+			ring.addMember("member-" + i);
+		}
+		return ring;
+	}
+
+	private static String[] owners(ConsistentHashRing ring) {
+		String[] owners = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			owners[i] = ring.getOwner(key(i));
+		}
+		return owners;
+	}
+
+	private static String key(int i) {
+		return "node-" + i;
+	}
+
+	private static class LruCache
+			extends LinkedHashMap<String, Boolean> {
+
+		private final int maxSize;
+
+		LruCache(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		boolean access(String key) {
+			return put(key, Boolean.TRUE) != null;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > maxSize;
+		}
+	}
+}
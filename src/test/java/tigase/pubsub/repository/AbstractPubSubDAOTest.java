@@ -186,6 +186,54 @@ public abstract class AbstractPubSubDAOTest<DS extends DataSource> extends Abstr
 		assertNull("Element still available in store after removal", el);
 	}
 	
+	@Test
+	public void test07_trimAndPurgeItems() throws RepositoryException {
+		INodeMeta node = dao.getNodeMeta(serviceJid, nodeName);
+		Assert.assertNotNull("Could not fined nodeId", node);
+		long ts = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			String itemId = "item-" + i;
+			Element item = new Element("item", new String[]{"id"}, new String[]{itemId});
+			item.addChild(new Element("payload", "test-payload", new String[]{"xmlns"}, new String[]{"test-xmlns"}));
+			dao.writeItem(serviceJid, node.getNodeId(), ts + (i * 1000), itemId, nodeNameWithoutEmoji, item, null);
+		}
+
+		String[] removed = dao.trimItems(serviceJid, node.getNodeId(), 2, CollectionItemsOrdering.byCreationDate);
+		Arrays.sort(removed);
+		Assert.assertArrayEquals(new String[]{"item-0", "item-1", "item-2"}, removed);
+		Assert.assertArrayEquals(new String[]{"item-3", "item-4"},
+								 dao.getItemsIds(serviceJid, node.getNodeId(), CollectionItemsOrdering.byCreationDate));
+		Assert.assertEquals(0,
+							dao.trimItems(serviceJid, node.getNodeId(), 2, CollectionItemsOrdering.byCreationDate).length);
+
+		removed = dao.purgeItems(serviceJid, node.getNodeId());
+		Arrays.sort(removed);
+		Assert.assertArrayEquals(new String[]{"item-3", "item-4"}, removed);
+		Assert.assertEquals(0, dao.getItemsIds(serviceJid, node.getNodeId(), CollectionItemsOrdering.byCreationDate).length);
+	}
+
+	@Test
+	public void test07_deleteItems() throws RepositoryException {
+		INodeMeta node = dao.getNodeMeta(serviceJid, nodeName);
+		Assert.assertNotNull("Could not fined nodeId", node);
+		String[] itemsIds = new String[]{"item-1", "item,\"2\"", "item-3"};
+		for (String itemId : itemsIds) {
+			Element item = new Element("item", new String[]{"id"}, new String[]{itemId});
+			item.addChild(new Element("payload", "test-payload", new String[]{"xmlns"}, new String[]{"test-xmlns"}));
+			dao.writeItem(serviceJid, node.getNodeId(), System.currentTimeMillis(), itemId, nodeNameWithoutEmoji, item,
+						  null);
+		}
+
+		String[] removed = dao.deleteItems(serviceJid, node.getNodeId(),
+										   new String[]{"item-1", "item,\"2\"", "item-4"});
+		Arrays.sort(removed);
+		Assert.assertArrayEquals(new String[]{"item,\"2\"", "item-1"}, removed);
+		Assert.assertArrayEquals(new String[]{"item-3"},
+								 dao.getItemsIds(serviceJid, node.getNodeId(), CollectionItemsOrdering.byCreationDate));
+
+		dao.purgeItems(serviceJid, node.getNodeId());
+	}
+
 	@Test
 	public void test09_subscribeNodeRemoval() throws RepositoryException {
 		INodeMeta node = dao.getNodeMeta(serviceJid, nodeName);
@@ -286,6 +334,8 @@ public abstract class AbstractPubSubDAOTest<DS extends DataSource> extends Abstr
 			assertEquals(uuids.get(publishedItemIds[i]), item.getId());
 			assertEquals(publishedItems.get(i), item.getMessage());
 		}
+		assertEquals(0, (int) query.getRsm().getIndex());
+		assertEquals(20, (int) query.getRsm().getCount());
 
 		query.setWith(senderJid.copyWithoutResource());
 		results.clear();
@@ -314,6 +364,8 @@ public abstract class AbstractPubSubDAOTest<DS extends DataSource> extends Abstr
 			assertEquals(uuids.get(publishedItemIds[i + 5]), item.getId());
 			assertEquals(publishedItems.get(i + 5), item.getMessage());
 		}
+		assertEquals(5, (int) query.getRsm().getIndex());
+		assertEquals(20, (int) query.getRsm().getCount());
 
 		query.getRsm().setAfter(null);
 		query.getRsm().setHasBefore(true);
@@ -328,6 +380,8 @@ public abstract class AbstractPubSubDAOTest<DS extends DataSource> extends Abstr
 			assertEquals(uuids.get(publishedItemIds[i + 10]), item.getId());
 			assertEquals(publishedItems.get(i + 10), item.getMessage());
 		}
+		assertEquals(10, (int) query.getRsm().getIndex());
+		assertEquals(20, (int) query.getRsm().getCount());
 
 		String[] itemsIds = dao.getItemsIds(serviceJid, node.getNodeId(), CollectionItemsOrdering.byUpdateDate);
 		Arrays.sort(itemsIds);
@@ -0,0 +1,84 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository;
+
+import org.junit.Test;
+import tigase.component.exceptions.RepositoryException;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConnectionLeasePoolTest {
+
+	@Test
+	public void testLeasesAreExclusive() throws RepositoryException {
+		ConnectionLeasePool pool = new ConnectionLeasePool(3);
+		Set<Integer> hashes = new HashSet<>();
+		ConnectionLeasePool.Lease[] leases = new ConnectionLeasePool.Lease[3];
+		for (int i = 0; i < leases.length; i++) {
+			leases[i] = pool.take(100);
+			assertTrue(hashes.add(leases[i].hashCode()));
+		}
+		assertEquals(0, pool.availableCount());
+		for (ConnectionLeasePool.Lease lease : leases) {
+			pool.release(lease);
+		}
+		assertEquals(3, pool.availableCount());
+	}
+
+	@Test
+	public void testTimeout() throws RepositoryException {
+		ConnectionLeasePool pool = new ConnectionLeasePool(1);
+		ConnectionLeasePool.Lease lease = pool.take(100);
+		long start = System.currentTimeMillis();
+		try {
+			pool.take(50);
+			fail("lease should not be available");
+		} catch (RepositoryException ex) {
+			assertTrue(System.currentTimeMillis() - start >= 50);
+		}
+		pool.release(lease);
+		assertNotNull(pool.take(50));
+	}
+
+	@Test
+	public void testWaitForRelease() throws Exception {
+		ConnectionLeasePool pool = new ConnectionLeasePool(1);
+		ConnectionLeasePool.Lease lease = pool.take(100);
+		AtomicReference<ConnectionLeasePool.Lease> result = new AtomicReference<>();
+		CountDownLatch latch = new CountDownLatch(1);
+		Thread thread = new Thread(() -> {
+			try {
+				result.set(pool.take(10000));
+			} catch (RepositoryException ex) {
+				// result will be null
+			}
+			latch.countDown();
+		});
+		thread.start();
+		Thread.sleep(20);
+		pool.release(lease);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertSame(lease, result.get());
+	}
+}
@@ -61,22 +61,25 @@ public class DerbyPubSubDAOTest {
                 "\tpublisher_id bigint references tig_pubsub_jids ( jid_id ),\n" +
                 "\tupdate_date timestamp,\n" +
                 "\tdata varchar(32672),\n" +
+                "\tuuid varchar(36),\n" +
                 "\n" +
                 "\tprimary key ( node_id, id )\n" +
                 ")");
 
-        stmt.execute("create procedure TigPubSubWriteItem(node_id bigint, item_id varchar(1024),\n" +
-                "\tpublisher varchar(2049), item_data varchar(32672), ts timestamp)\n" +
+        stmt.execute("create unique index tig_pubsub_jids_jid on tig_pubsub_jids ( jid )");
+
+        stmt.execute("create procedure TigPubSubUpsertItem(node_id bigint, item_id varchar(1024),\n" +
+                "\tpublisher varchar(2049), publisher_id bigint, item_data varchar(32672), ts timestamp, uuid varchar(36))\n" +
                 "\tPARAMETER STYLE JAVA\n" +
                 "\tLANGUAGE JAVA\n" +
                 "\tMODIFIES SQL DATA\n" +
                 "\tDYNAMIC RESULT SETS 1\n" +
-                "\tEXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubWriteItem'");
+                "\tEXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubUpsertItem'");
         stmt.close();
 
         preparedStatements = new PreparedStatement[connections.length];
         for (int i=0; i<preparedStatements.length; i++) {
-            preparedStatements[i] = connections[i].prepareCall("{ call TigPubSubWriteItem(?, ?, ?, ?, ?) }");
+            preparedStatements[i] = connections[i].prepareCall("{ call TigPubSubUpsertItem(?, ?, ?, ?, ?, ?, ?) }");
         }
 
         List<Callable<Exception>> tasks = new ArrayList<>();
@@ -98,8 +101,10 @@ public class DerbyPubSubDAOTest {
                                 write_item_sp.setLong(1, nodeId);
                                 write_item_sp.setString(2, id);
                                 write_item_sp.setString(3, publisher);
-                                write_item_sp.setString(4, item);
-                                write_item_sp.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+                                write_item_sp.setNull(4, Types.BIGINT);
+                                write_item_sp.setString(5, item);
+                                write_item_sp.setTimestamp(6, new Timestamp(System.currentTimeMillis()));
+                                write_item_sp.setString(7, UUID.randomUUID().toString());
                                 System.out.println("executing query for " + item);
                                 write_item_sp.execute();
                             }
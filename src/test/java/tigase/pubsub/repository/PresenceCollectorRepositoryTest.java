@@ -21,6 +21,14 @@ import org.junit.Test;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -44,4 +52,97 @@ public class PresenceCollectorRepositoryTest {
 		assertTrue(caps2 == null);
 	}
 
+	@Test
+	public void testCapsNodesIndex() {
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		JID jid1 = JID.jidInstanceNS("user-1@example.com/res-1");
+		JID jid2 = JID.jidInstanceNS("user-1@example.com/res-2");
+		JID jid3 = JID.jidInstanceNS("user-2@example.com/res-1");
+		repository.add(serviceJid, jid1, "caps-1");
+		repository.add(serviceJid, jid2, "caps-2");
+		repository.add(serviceJid, jid3, "caps-1");
+
+		assertEquals(new HashSet<>(Arrays.asList(jid1, jid3)), findWithCapsNodes(serviceJid, "caps-1"));
+		assertEquals(new HashSet<>(Arrays.asList(jid1, jid2, jid3)),
+					 findWithCapsNodes(serviceJid, "caps-1", "caps-2", "caps-3"));
+
+		// change of caps node of a resource
+		repository.add(serviceJid, jid1, "caps-2");
+		assertEquals(Collections.singleton(jid3), findWithCapsNodes(serviceJid, "caps-1"));
+		assertEquals(new HashSet<>(Arrays.asList(jid1, jid2)), findWithCapsNodes(serviceJid, "caps-2"));
+
+		// removal of a resource and of all resources of a user
+		repository.remove(serviceJid, jid3);
+		assertTrue(findWithCapsNodes(serviceJid, "caps-1").isEmpty());
+		repository.remove(serviceJid, jid1.copyWithoutResource());
+		assertTrue(findWithCapsNodes(serviceJid, "caps-2").isEmpty());
+	}
+
+	@Test
+	public void testCapsNodesIndexWithResourcesLimit() {
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		List<JID> jids = new ArrayList<>();
+		for (int i = 0; i < 25; i++) {
+			JID jid = JID.jidInstanceNS("user-1@example.com/res-" + i);
+			jids.add(jid);
+			repository.add(serviceJid, jid, "caps-1");
+		}
+		HashSet<JID> expected = new HashSet<>(repository.getAllAvailableResources(serviceJid, jids.get(0).getBareJID()));
+		assertEquals(expected, findWithCapsNodes(serviceJid, "caps-1"));
+	}
+
+	@Test
+	public void testPollingOfExpiredEntries() {
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		JID jid1 = JID.jidInstanceNS("user-1@example.com/res-1");
+		JID jid2 = JID.jidInstanceNS("user-2@example.com/res-1");
+		JID jid3 = JID.jidInstanceNS("user-3@example.com/res-1");
+		repository.add(serviceJid, jid1, null);
+		repository.add(serviceJid, jid2, null);
+		repository.add(serviceJid, jid3, null);
+		long border = System.currentTimeMillis() + 1;
+
+		List<PresenceCollectorRepository.UserResourceEntry> expired = repository.pollExpiredUserResourceEntries(border,
+																											   2);
+		assertEquals(Arrays.asList(jid1, jid2), getJids(expired.stream()));
+		// polled entries are not returned again until they are marked as seen
+		assertEquals(Arrays.asList(jid3), getJids(repository.expiredUserResourceEntriesStream(border)));
+
+		expired.get(0).markAsSeen();
+		repository.remove(serviceJid, jid3);
+		border = System.currentTimeMillis() + 1;
+		assertEquals(Arrays.asList(jid1), getJids(repository.pollExpiredUserResourceEntries(border, 10).stream()));
+		assertTrue(repository.pollExpiredUserResourceEntries(border, 10).isEmpty());
+
+		// entry of removed resource is not put back to the index
+		repository.remove(serviceJid, jid2);
+		expired.get(1).markAsSeen();
+		assertTrue(repository.pollExpiredUserResourceEntries(border, 10).isEmpty());
+	}
+
+	@Test
+	public void testPollingOfExpiredEntriesWithFilter() {
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		JID jid1 = JID.jidInstanceNS("user-1@example.com/res-1");
+		JID jid2 = JID.jidInstanceNS("user-2@example.com/res-1");
+		repository.add(serviceJid, jid1, null);
+		repository.add(serviceJid, jid2, null);
+		long border = System.currentTimeMillis() + 1;
+
+		assertEquals(Arrays.asList(jid2), getJids(
+				repository.pollExpiredUserResourceEntries(border, 10, entry -> !jid1.equals(entry.getJid())).stream()));
+		// skipped entry is kept in the index with unchanged last seen time
+		assertEquals(Arrays.asList(jid1), getJids(repository.expiredUserResourceEntriesStream(border)));
+		assertEquals(Arrays.asList(jid1), getJids(repository.pollExpiredUserResourceEntries(border, 10).stream()));
+	}
+
+	private List<JID> getJids(Stream<PresenceCollectorRepository.UserResourceEntry> entries) {
+		return entries.map(PresenceCollectorRepository.UserResourceEntry::getJid).collect(Collectors.toList());
+	}
+
+	private HashSet<JID> findWithCapsNodes(BareJID serviceJid, String... capsNodes) {
+		return repository.getAllAvailableJidsWithCapsNodes(serviceJid, new HashSet<>(Arrays.asList(capsNodes)))
+				.collect(Collectors.toCollection(HashSet::new));
+	}
+
 }
@@ -191,6 +191,10 @@ public class CachedPubSubRepositoryTest {
 	}
 
 	protected CachedPubSubRepository createCachedPubSubRepository(PubSubDAO dao) {
+		return createCachedPubSubRepository(kernel, dao);
+	}
+
+	static CachedPubSubRepository createCachedPubSubRepository(Kernel kernel, IPubSubDAO dao) {
 		kernel.registerBean("pubsubDao").asInstance(dao).exec();
 		kernel.registerBean("logic").asInstance(new PubSubLogic() {
 
@@ -0,0 +1,364 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.*;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import tigase.db.*;
+import tigase.db.xml.XMLRepository;
+import tigase.kernel.core.Kernel;
+import tigase.pubsub.*;
+import tigase.pubsub.repository.IAffiliations;
+import tigase.pubsub.repository.IItems;
+import tigase.pubsub.repository.IPubSubDAO;
+import tigase.pubsub.repository.ISubscriptions;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback cluster of repositories sharing a single database (ie. Derby), which exchange updates of cached nodes.
+ */
+public class ClusterCacheUpdatesTest
+		extends AbstractDataSourceAwareTestCase<DataRepository, IPubSubDAO> {
+
+	private static final String PROJECT_ID = "pubsub";
+	private static final String VERSION = "5.0.0-SNAPSHOT";
+	private static final int CLUSTER_SIZE = 3;
+
+	@ClassRule
+	public static TestRule rule = new TestRule() {
+		@Override
+		public Statement apply(Statement stmnt, Description d) {
+			if (uri == null || !uri.startsWith("jdbc:")) {
+				return new Statement() {
+					@Override
+					public void evaluate() throws Throwable {
+						Assume.assumeTrue("Ignored due to not passed DB URI!", false);
+					}
+				};
+			}
+			return stmnt;
+		}
+	};
+
+	private final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub-" + UUID.randomUUID() + ".example.com");
+	private final BareJID ownerJid = BareJID.bareJIDInstanceNS("owner@example.com");
+	private final BareJID subscriberJid = BareJID.bareJIDInstanceNS("subscriber@example.com");
+	private IPubSubDAO dao;
+	private LoopbackHub hub;
+	private List<CachedPubSubRepository> repositories;
+
+	@BeforeClass
+	public static void prepareTest() throws DBInitException {
+		loadSchema(PROJECT_ID, VERSION, Collections.singleton("pubsub"));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dao = getDataSourceAware();
+		hub = new LoopbackHub();
+		repositories = new ArrayList<>();
+		for (int i = 0; i < CLUSTER_SIZE; i++) {
+			Kernel kernel = new Kernel();
+			kernel.registerBean("nodeCacheUpdatesChannel").asInstance(hub.channel(i)).exec();
+			CachedPubSubRepository repository = CachedPubSubRepositoryTest.createCachedPubSubRepository(kernel, dao);
+			hub.repositories.add(repository);
+			repositories.add(repository);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (repositories != null) {
+			repositories.get(0).deleteService(serviceJid);
+			repositories.forEach(CachedPubSubRepository::destroy);
+		}
+		if (dao != null) {
+			dao.destroy();
+		}
+	}
+
+	@Test
+	public void testConfigurationIsUpdated() throws Exception {
+		createNode("node-config");
+		List<Node> cached = loadOnAllMembers("node-config");
+
+		AbstractNodeConfig config = repositories.get(0).getNodeConfig(serviceJid, "node-config");
+		config.setValue("pubsub#title", "Updated title");
+		repositories.get(0).update(serviceJid, "node-config", config);
+		flushAll();
+
+		for (int i = 1; i < CLUSTER_SIZE; i++) {
+			// the same cached instance was updated in place
+			assertSame(cached.get(i), repositories.get(i).getNodeFromCache(serviceJid, "node-config"));
+			assertEquals("Updated title", repositories.get(i).getNodeConfig(serviceJid, "node-config").getTitle());
+		}
+	}
+
+	@Test
+	public void testSubscriptionsAndAffiliationsAreUpdated() throws Exception {
+		createNode("node-subscriptions");
+		List<Node> cached = loadOnAllMembers("node-subscriptions");
+
+		CachedPubSubRepository repository = repositories.get(0);
+		ISubscriptions subscriptions = repository.getNodeSubscriptions(serviceJid, "node-subscriptions");
+		subscriptions.addSubscriberJid(subscriberJid, Subscription.subscribed);
+		repository.update(serviceJid, "node-subscriptions", subscriptions);
+		IAffiliations affiliations = repository.getNodeAffiliations(serviceJid, "node-subscriptions");
+		affiliations.addAffiliation(subscriberJid, Affiliation.publisher);
+		repository.update(serviceJid, "node-subscriptions", affiliations);
+		flushAll();
+
+		for (int i = 1; i < CLUSTER_SIZE; i++) {
+			CachedPubSubRepository member = repositories.get(i);
+			assertSame(cached.get(i), member.getNodeFromCache(serviceJid, "node-subscriptions"));
+			assertEquals(Subscription.subscribed,
+						 member.getNodeSubscriptions(serviceJid, "node-subscriptions").getSubscription(subscriberJid));
+			assertEquals(Affiliation.publisher, member.getNodeAffiliations(serviceJid, "node-subscriptions")
+					.getSubscriberAffiliation(subscriberJid)
+					.getAffiliation());
+			assertTrue(member.getActiveSubscribers(serviceJid, "node-subscriptions")
+							   .stream()
+							   .anyMatch(jid -> subscriberJid.equals(jid.getBareJID())));
+		}
+	}
+
+	@Test
+	public void testConcurrentChangesAreAppliedInOrder() throws Exception {
+		createNode("node-conflict");
+		List<Node> cached = loadOnAllMembers("node-conflict");
+
+		for (int i = 0; i < 2; i++) {
+			CachedPubSubRepository repository = repositories.get(i);
+			ISubscriptions subscriptions = repository.getNodeSubscriptions(serviceJid, "node-conflict");
+			subscriptions.addSubscriberJid(BareJID.bareJIDInstanceNS("subscriber-" + i + "@example.com"),
+										   Subscription.subscribed);
+			repository.update(serviceJid, "node-conflict", subscriptions);
+		}
+		flushAll();
+
+		// second member stored its change without the change of the first member, so it had to drop the node
+		assertSame(cached.get(0), repositories.get(0).getNodeFromCache(serviceJid, "node-conflict"));
+		assertNull(repositories.get(1).getNodeFromCache(serviceJid, "node-conflict"));
+		assertSame(cached.get(2), repositories.get(2).getNodeFromCache(serviceJid, "node-conflict"));
+		for (CachedPubSubRepository repository : repositories) {
+			ISubscriptions subscriptions = repository.getNodeSubscriptions(serviceJid, "node-conflict");
+			for (int i = 0; i < 2; i++) {
+				assertEquals(Subscription.subscribed, subscriptions.getSubscription(
+						BareJID.bareJIDInstanceNS("subscriber-" + i + "@example.com")));
+			}
+		}
+	}
+
+	@Test
+	public void testCollectionOfNotCachedNodeIsUpdated() throws Exception {
+		repositories.get(0)
+				.createNode(serviceJid, "collection", ownerJid, new CollectionNodeConfig("collection"),
+							NodeType.collection, null);
+		createNode("node-moved");
+		loadOnAllMembers("node-moved");
+		for (CachedPubSubRepository repository : repositories) {
+			assertArrayEquals(new String[0], repository.getNodeAncestors(serviceJid, "node-moved"));
+			assertArrayEquals(new String[0], repository.getChildNodes(serviceJid, "collection"));
+		}
+		for (int i = 1; i < CLUSTER_SIZE; i++) {
+			repositories.get(i).nodes.remove(new CachedPubSubRepository.NodeKey(serviceJid, "node-moved"));
+		}
+
+		AbstractNodeConfig config = repositories.get(0).getNodeConfig(serviceJid, "node-moved");
+		config.setCollection("collection");
+		repositories.get(0).update(serviceJid, "node-moved", config);
+		flushAll();
+
+		for (CachedPubSubRepository repository : repositories) {
+			assertArrayEquals(new String[]{"collection"}, repository.getNodeAncestors(serviceJid, "node-moved"));
+			assertArrayEquals(new String[]{"node-moved"}, repository.getChildNodes(serviceJid, "collection"));
+		}
+	}
+
+	@Test
+	public void testItemsAreInvalidated() throws Exception {
+		createNode("node-items");
+		loadOnAllMembers("node-items");
+		for (CachedPubSubRepository repository : repositories) {
+			assertNull(repository.getNodeItems(serviceJid, "node-items").getLastItem(CollectionItemsOrdering.byUpdateDate));
+		}
+
+		Element item = new Element("item", new String[]{"id"}, new String[]{"item-1"});
+		item.addChild(new Element("payload", "test"));
+		repositories.get(0)
+				.getNodeItems(serviceJid, "node-items")
+				.writeItem("item-1", ownerJid.toString(), item, null);
+		flushAll();
+
+		for (CachedPubSubRepository repository : repositories) {
+			IItems.IItem last = repository.getNodeItems(serviceJid, "node-items")
+					.getLastItem(CollectionItemsOrdering.byUpdateDate);
+			assertNotNull(last);
+			assertEquals("item-1", last.getId());
+		}
+	}
+
+	@Test
+	public void testNodeRemovalAndCreation() throws Exception {
+		for (CachedPubSubRepository repository : repositories) {
+			assertEquals(0, repository.getRootCollection(serviceJid).length);
+		}
+		createNode("node-removed");
+		repositories.get(0).addToRootCollection(serviceJid, "node-removed");
+		flushAll();
+		for (CachedPubSubRepository repository : repositories) {
+			assertArrayEquals(new String[]{"node-removed"}, repository.getRootCollection(serviceJid));
+		}
+		loadOnAllMembers("node-removed");
+
+		repositories.get(0).deleteNode(serviceJid, "node-removed");
+		repositories.get(0).removeFromRootCollection(serviceJid, "node-removed");
+		flushAll();
+
+		for (CachedPubSubRepository repository : repositories) {
+			assertNull(repository.getNodeFromCache(serviceJid, "node-removed"));
+			assertNull(repository.getNodeConfig(serviceJid, "node-removed"));
+			assertEquals(0, repository.getRootCollection(serviceJid).length);
+		}
+	}
+
+	@Test
+	public void testChangesAreBatched() throws Exception {
+		createNode("node-batch");
+		loadOnAllMembers("node-batch");
+		flushAll();
+		int updates = hub.updates.get();
+
+		CachedPubSubRepository repository = repositories.get(0);
+		for (int i = 0; i < 100; i++) {
+			ISubscriptions subscriptions = repository.getNodeSubscriptions(serviceJid, "node-batch");
+			subscriptions.addSubscriberJid(BareJID.bareJIDInstanceNS("subscriber-" + i + "@example.com"),
+										   Subscription.subscribed);
+			repository.update(serviceJid, "node-batch", subscriptions);
+		}
+		flushAll();
+
+		// changes made within flush interval are merged into a single update
+		assertTrue(hub.updates.get() - updates < 100);
+		for (CachedPubSubRepository member : repositories) {
+			assertEquals(100, member.getNodeSubscriptions(serviceJid, "node-batch").size());
+		}
+	}
+
+	@Override
+	protected Class<? extends DataSourceAware> getDataSourceAwareIfc() {
+		return IPubSubDAO.class;
+	}
+
+	@Override
+	protected DataRepository prepareDataSource()
+			throws DBInitException, IllegalAccessException, InstantiationException {
+		DataRepositoryPool pool = new DataRepositoryPool();
+		pool.initialize(uri);
+		pool.addRepo(super.prepareDataSource());
+		return pool;
+	}
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		try {
+			XMLRepository repository = new XMLRepository();
+			repository.initRepository("memory://xmlRepo?autoCreateUser=true", null);
+			kernel.registerBean("userAuthRepository").asInstance(repository).exportable().exec();
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to initialize user/auth repository", ex);
+		}
+	}
+
+	private void createNode(String nodeName) throws Exception {
+		repositories.get(0)
+				.createNode(serviceJid, nodeName, ownerJid, new LeafNodeConfig(nodeName), NodeType.leaf, null);
+	}
+
+	private List<Node> loadOnAllMembers(String nodeName) throws Exception {
+		flushAll();
+		List<Node> cached = new ArrayList<>();
+		for (CachedPubSubRepository repository : repositories) {
+			Node node = repository.getNode(serviceJid, nodeName);
+			assertNotNull(node);
+			cached.add(node);
+		}
+		return cached;
+	}
+
+	private void flushAll() {
+		for (CachedPubSubRepository repository : repositories) {
+			repository.flushCacheUpdates();
+		}
+		hub.deliver();
+	}
+
+	/**
+	 * Keeps sent batches (serialized as they would be sent between cluster nodes) until they are delivered to all
+	 * other repositories.
+	 */
+	private static class LoopbackHub {
+
+		private final AtomicInteger batches = new AtomicInteger();
+		private final AtomicInteger updates = new AtomicInteger();
+		private final List<Runnable> inFlight = new ArrayList<>();
+		private final List<CachedPubSubRepository> repositories = new ArrayList<>();
+
+		CachedPubSubRepository.NodeCacheUpdatesChannel channel(int sender) {
+			return sent -> {
+				batches.incrementAndGet();
+				updates.addAndGet(sent.size());
+				List<Element> packet = new ArrayList<>(sent.size());
+				for (NodeCacheUpdate update : sent) {
+					packet.add(update.toElement());
+				}
+				synchronized (inFlight) {
+					inFlight.add(() -> {
+						for (int i = 0; i < repositories.size(); i++) {
+							if (i != sender) {
+								List<NodeCacheUpdate> received = new ArrayList<>(packet.size());
+								for (Element elem : packet) {
+									received.add(NodeCacheUpdate.fromElement(elem));
+								}
+								repositories.get(i).nodeCacheUpdatesReceived(received);
+							}
+						}
+					});
+				}
+			};
+		}
+
+		void deliver() {
+			List<Runnable> toDeliver;
+			synchronized (inFlight) {
+				toDeliver = new ArrayList<>(inFlight);
+				inFlight.clear();
+			}
+			toDeliver.forEach(Runnable::run);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionNodeConfig;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CollectionTreeTest {
+
+	private final AtomicInteger childrenLookups = new AtomicInteger();
+	private final Map<String, AbstractNodeConfig> configs = new HashMap<>();
+	private final AtomicInteger configLookups = new AtomicInteger();
+	private CollectionTree tree;
+
+	@Before
+	public void setUp() {
+		add(new CollectionNodeConfig("root"), null);
+		add(new CollectionNodeConfig("a"), "root");
+		add(new CollectionNodeConfig("b"), "a");
+		add(new LeafNodeConfig("leaf"), "b");
+		tree = new CollectionTree(name -> {
+			configLookups.incrementAndGet();
+			return NodeConfigSnapshot.of(configs.get(name));
+		}, name -> {
+			childrenLookups.incrementAndGet();
+			return configs.values()
+					.stream()
+					.filter(config -> name.equals(config.getCollection()))
+					.map(AbstractNodeConfig::getNodeName)
+					.sorted()
+					.toArray(String[]::new);
+		});
+	}
+
+	@Test
+	public void testAncestorsAreLoadedOnce() throws Exception {
+		assertArrayEquals(new String[]{"b", "a", "root"}, tree.getAncestors("leaf"));
+		assertEquals(4, configLookups.get());
+
+		assertArrayEquals(new String[]{"b", "a", "root"}, tree.getAncestors("leaf"));
+		assertArrayEquals(new String[]{"root"}, tree.getAncestors("a"));
+		assertArrayEquals(new String[0], tree.getAncestors("root"));
+		assertEquals(4, configLookups.get());
+	}
+
+	@Test
+	public void testChildren() throws Exception {
+		assertArrayEquals(new String[]{"a"}, tree.getChildren("root"));
+		assertArrayEquals(new String[]{"a"}, tree.getChildren("root"));
+		assertEquals(1, childrenLookups.get());
+
+		assertArrayEquals(new String[]{"leaf"}, tree.getChildren("b"));
+		assertArrayEquals(new String[0], tree.getChildren("leaf"));
+		// leaf nodes do not have children, so they are not loaded
+		assertEquals(2, childrenLookups.get());
+		assertNull(tree.getChildren("missing"));
+	}
+
+	@Test
+	public void testCreateMoveAndRemove() throws Exception {
+		assertArrayEquals(new String[]{"b", "a", "root"}, tree.getAncestors("leaf"));
+		assertArrayEquals(new String[]{"leaf"}, tree.getChildren("b"));
+		assertArrayEquals(new String[]{"b"}, tree.getChildren("a"));
+
+		tree.nodeCreated("leaf2", "b", false);
+		assertArrayEquals(new String[]{"leaf", "leaf2"}, tree.getChildren("b"));
+		assertArrayEquals(new String[]{"b", "a", "root"}, tree.getAncestors("leaf2"));
+
+		// b is moved to the root collection
+		tree.nodeMoved("b", "");
+		assertArrayEquals(new String[0], tree.getChildren("a"));
+		assertArrayEquals(new String[]{"b"}, tree.getAncestors("leaf"));
+		assertArrayEquals(new String[]{"b"}, tree.getAncestors("leaf2"));
+
+		// leaf is moved to a and b is removed
+		tree.nodeMoved("leaf", "a");
+		tree.nodeRemoved("b");
+		assertArrayEquals(new String[]{"leaf"}, tree.getChildren("a"));
+		assertArrayEquals(new String[]{"a", "root"}, tree.getAncestors("leaf"));
+		assertEquals(2, childrenLookups.get());
+	}
+
+	@Test
+	public void testInvalidatedNodeIsReloaded() throws Exception {
+		assertArrayEquals(new String[]{"b", "a", "root"}, tree.getAncestors("leaf"));
+		assertArrayEquals(new String[]{"leaf"}, tree.getChildren("b"));
+		assertArrayEquals(new String[]{"b"}, tree.getChildren("a"));
+
+		// leaf was moved to a in the database
+		configs.get("leaf").setCollection("a");
+		tree.nodeInvalidated("leaf");
+		assertArrayEquals(new String[0], tree.getChildren("b"));
+		assertArrayEquals(new String[]{"b", "leaf"}, tree.getChildren("a"));
+		assertArrayEquals(new String[]{"a", "root"}, tree.getAncestors("leaf"));
+		// other nodes were not reloaded
+		assertArrayEquals(new String[]{"a", "root"}, tree.getAncestors("b"));
+		assertEquals(5, configLookups.get());
+		assertEquals(2, childrenLookups.get());
+	}
+
+	private void add(AbstractNodeConfig config, String collection) {
+		if (collection != null) {
+			config.setCollection(collection);
+		}
+		configs.put(config.getNodeName(), config);
+	}
+}
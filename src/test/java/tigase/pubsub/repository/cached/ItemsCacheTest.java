@@ -0,0 +1,160 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.CollectionItemsOrdering;
+import tigase.pubsub.repository.IItems;
+import tigase.xml.Element;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ItemsCacheTest {
+
+	@Test
+	public void testOrderingOfIds() {
+		ItemsCache cache = new ItemsCache(2, 10);
+		assertNull(cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byCreationDate, new String[]{"a", "b"}, cache.getVersion());
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byUpdateDate, new String[]{"a", "b"}, cache.getVersion());
+
+		cache.itemWritten(newItem("c"));
+		cache.itemWritten(newItem("a"));
+
+		assertArrayEquals(new String[]{"a", "b", "c"}, cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+		assertArrayEquals(new String[]{"b", "c", "a"}, cache.getItemsIds(CollectionItemsOrdering.byUpdateDate));
+		assertEquals("c", cache.getLastItemId(CollectionItemsOrdering.byCreationDate));
+		assertEquals("a", cache.getLastItemId(CollectionItemsOrdering.byUpdateDate));
+
+		cache.itemDeleted("c");
+		assertArrayEquals(new String[]{"a", "b"}, cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+		assertEquals("b", cache.getLastItemId(CollectionItemsOrdering.byCreationDate));
+		assertNull(cache.getItem("c"));
+	}
+
+	@Test
+	public void testPayloadsLimit() {
+		ItemsCache cache = new ItemsCache(2, 10);
+		cache.itemWritten(newItem("a"));
+		cache.itemWritten(newItem("b"));
+		cache.itemWritten(newItem("c"));
+
+		assertEquals(2, cache.size());
+		assertNull(cache.getItem("a"));
+		IItems.IItem item = cache.getItem("c");
+		assertNotNull(item);
+		assertEquals("c", item.getItem().getAttributeStaticStr("id"));
+
+		// returned payload is a copy, so modifications are not visible in cache
+		item.getItem().setAttribute("id", "x");
+		assertEquals("c", cache.getItem("c").getItem().getAttributeStaticStr("id"));
+	}
+
+	@Test
+	public void testStaleLoadIsIgnored() {
+		ItemsCache cache = new ItemsCache(2, 10);
+		long version = cache.getVersion();
+		cache.itemWritten(newItem("b"));
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byCreationDate, new String[]{"a"}, version);
+		assertNull(cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+
+		version = cache.getVersion();
+		cache.itemDeleted("b");
+		cache.itemLoaded(newItem("b"), version);
+		assertNull(cache.getItem("b"));
+	}
+
+	@Test
+	public void testIdsLimit() {
+		ItemsCache cache = new ItemsCache(2, 2);
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byCreationDate, new String[]{"a", "b", "c"}, cache.getVersion());
+		assertNull(cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byCreationDate, new String[]{"a", "b"}, cache.getVersion());
+		assertNotNull(cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+		cache.itemWritten(newItem("c"));
+		assertNull(cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+	}
+
+	@Test
+	public void testLastItemIdOfLargeNode() {
+		ItemsCache cache = new ItemsCache(2, 2);
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byCreationDate, new String[]{"a", "b", "c"}, cache.getVersion());
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byUpdateDate, new String[]{"c", "a", "b"}, cache.getVersion());
+		assertNull(cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+		assertEquals("c", cache.getLastItemId(CollectionItemsOrdering.byCreationDate));
+		assertEquals("b", cache.getLastItemId(CollectionItemsOrdering.byUpdateDate));
+
+		cache.itemWritten(newItem("c"));
+		assertEquals("c", cache.getLastItemId(CollectionItemsOrdering.byCreationDate));
+		assertEquals("c", cache.getLastItemId(CollectionItemsOrdering.byUpdateDate));
+
+		// it is not known if "d" is a new item, so last item in order of creation needs to be loaded again
+		cache.itemWritten(newItem("d"));
+		assertNull(cache.getLastItemId(CollectionItemsOrdering.byCreationDate));
+		assertEquals("d", cache.getLastItemId(CollectionItemsOrdering.byUpdateDate));
+
+		cache.itemDeleted("d");
+		assertNull(cache.getLastItemId(CollectionItemsOrdering.byUpdateDate));
+	}
+
+	@Test
+	public void testBulkRemoval() {
+		ItemsCache cache = new ItemsCache(10, 10);
+		cache.itemsIdsLoaded(CollectionItemsOrdering.byCreationDate, new String[]{"a", "b", "c"}, cache.getVersion());
+		cache.itemWritten(newItem("d"));
+
+		cache.itemsDeleted(new String[]{"a", "b"});
+		assertArrayEquals(new String[]{"c", "d"}, cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+		assertNotNull(cache.getItem("d"));
+
+		cache.itemsPurged();
+		assertEquals(0, cache.size());
+		assertArrayEquals(new String[0], cache.getItemsIds(CollectionItemsOrdering.byCreationDate));
+		assertArrayEquals(new String[0], cache.getItemsIds(CollectionItemsOrdering.byUpdateDate));
+		assertNull(cache.getLastItemId(CollectionItemsOrdering.byUpdateDate));
+	}
+
+	@Test
+	public void testRawItemsAreParsedOnDemand() {
+		AtomicInteger parsed = new AtomicInteger();
+		ItemsCache cache = new ItemsCache(2, 10);
+		cache.itemLoaded(new IItems.RawItem("node", "a", null, "<item id='a'/>", data -> {
+			parsed.incrementAndGet();
+			return new Element("item", new String[]{"id"}, new String[]{"a"});
+		}), cache.getVersion());
+
+		IItems.IItem item = cache.getItem("a");
+		assertNotNull(item.getItemNode());
+		assertEquals(0, parsed.get());
+
+		assertNotNull(item.getItem());
+		assertNotNull(cache.getItem("a").getItem());
+		// each returned copy has its own payload
+		assertEquals(2, parsed.get());
+	}
+
+	private static IItems.IItem newItem(String id) {
+		Element item = new Element("item", new String[]{"id"}, new String[]{id});
+		item.addChild(new Element("payload", id));
+		return new IItems.Item("node", id, null, item);
+	}
+}
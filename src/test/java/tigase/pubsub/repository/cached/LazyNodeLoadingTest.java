@@ -0,0 +1,187 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.*;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import tigase.db.AbstractDataSourceAwareTestCase;
+import tigase.db.DBInitException;
+import tigase.db.DataRepository;
+import tigase.kernel.core.Kernel;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.NodeType;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.IAffiliations;
+import tigase.pubsub.repository.IPubSubDAO;
+import tigase.pubsub.repository.ISubscriptions;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks loading of subscriptions and affiliations of a node with many subscribers on demand (ie. on Derby).
+ */
+public class LazyNodeLoadingTest
+		extends AbstractDataSourceAwareTestCase<DataRepository, IPubSubDAO> {
+
+	private static final String PROJECT_ID = "pubsub";
+	private static final String VERSION = "5.0.0-SNAPSHOT";
+	private static final String NODE = "huge-node";
+	private static final int SUBSCRIBERS = 5000;
+
+	@ClassRule
+	public static TestRule rule = new TestRule() {
+		@Override
+		public Statement apply(Statement stmnt, Description d) {
+			if (uri == null || !uri.startsWith("jdbc:")) {
+				return new Statement() {
+					@Override
+					public void evaluate() throws Throwable {
+						Assume.assumeTrue("Ignored due to not passed DB URI!", false);
+					}
+				};
+			}
+			return stmnt;
+		}
+	};
+
+	private final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub-" + UUID.randomUUID() + ".example.com");
+	private final BareJID ownerJid = BareJID.bareJIDInstanceNS("owner@example.com");
+	private IPubSubDAO dao;
+	private CachedPubSubRepository writer;
+
+	@BeforeClass
+	public static void prepareTest() throws DBInitException {
+		loadSchema(PROJECT_ID, VERSION, Collections.singleton("pubsub"));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dao = getDataSourceAware();
+		writer = CachedPubSubRepositoryTest.createCachedPubSubRepository(new Kernel(), dao);
+		writer.createNode(serviceJid, NODE, ownerJid, new LeafNodeConfig(NODE), NodeType.leaf, null);
+
+		IAffiliations affiliations = writer.getNodeAffiliations(serviceJid, NODE);
+		affiliations.addAffiliation(ownerJid, Affiliation.owner);
+		affiliations.addAffiliation(subscriber(1), Affiliation.outcast);
+		writer.update(serviceJid, NODE, affiliations);
+
+		ISubscriptions subscriptions = writer.getNodeSubscriptions(serviceJid, NODE);
+		for (int i = 0; i < SUBSCRIBERS; i++) {
+			subscriptions.addSubscriberJid(subscriber(i), Subscription.subscribed);
+		}
+		writer.update(serviceJid, NODE, subscriptions);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (writer != null) {
+			writer.deleteService(serviceJid);
+			writer.destroy();
+		}
+		if (dao != null) {
+			dao.destroy();
+		}
+	}
+
+	@Test
+	public void testConfigurationIsLoadedWithoutSubscriptions() throws Exception {
+		CachedPubSubRepository repository = newRepository();
+		assertNotNull(repository.getNodeConfigSnapshot(serviceJid, NODE));
+
+		Node node = repository.getNodeFromCache(serviceJid, NODE);
+		LazyNodeSubscriptions subscriptions = (LazyNodeSubscriptions) node.getNodeSubscriptions();
+		LazyNodeAffiliations affiliations = (LazyNodeAffiliations) node.getNodeAffiliations();
+		assertFalse(subscriptions.isLoaded());
+		assertFalse(affiliations.isLoaded());
+		assertEquals(0, subscriptions.cachedSize());
+		assertEquals(0, affiliations.cachedSize());
+		repository.destroy();
+	}
+
+	@Test
+	public void testPointLookups() throws Exception {
+		CachedPubSubRepository repository = newRepository();
+		assertEquals(Subscription.subscribed,
+					 repository.getNodeSubscriptions(serviceJid, NODE).getSubscription(subscriber(42)));
+		assertEquals(Subscription.none, repository.getNodeSubscriptions(serviceJid, NODE)
+				.getSubscription(BareJID.bareJIDInstanceNS("stranger@example.com")));
+		assertEquals(Affiliation.owner,
+					 repository.getNodeAffiliations(serviceJid, NODE).getSubscriberAffiliation(ownerJid).getAffiliation());
+		assertEquals(Affiliation.none, repository.getNodeAffiliations(serviceJid, NODE)
+				.getSubscriberAffiliation(subscriber(42))
+				.getAffiliation());
+
+		Node node = repository.getNodeFromCache(serviceJid, NODE);
+		LazyNodeSubscriptions subscriptions = (LazyNodeSubscriptions) node.getNodeSubscriptions();
+		assertFalse(subscriptions.isLoaded());
+		assertEquals(1, subscriptions.cachedSize());
+		assertFalse(((LazyNodeAffiliations) node.getNodeAffiliations()).isLoaded());
+		repository.destroy();
+	}
+
+	@Test
+	public void testFullLoadForNotifications() throws Exception {
+		CachedPubSubRepository repository = newRepository();
+		// outcast is not a recipient of notifications
+		assertEquals(SUBSCRIBERS - 1, repository.getActiveSubscribers(serviceJid, NODE).size());
+
+		Node node = repository.getNodeFromCache(serviceJid, NODE);
+		LazyNodeSubscriptions subscriptions = (LazyNodeSubscriptions) node.getNodeSubscriptions();
+		assertTrue(subscriptions.isLoaded());
+		assertEquals(SUBSCRIBERS, subscriptions.cachedSize());
+		assertTrue(((LazyNodeAffiliations) node.getNodeAffiliations()).isLoaded());
+		repository.destroy();
+	}
+
+	@Test
+	public void testChangesBeforeFullLoad() throws Exception {
+		CachedPubSubRepository repository = newRepository();
+		BareJID newSubscriber = BareJID.bareJIDInstanceNS("new-subscriber@example.com");
+
+		ISubscriptions subscriptions = repository.getNodeSubscriptions(serviceJid, NODE);
+		subscriptions.addSubscriberJid(newSubscriber, Subscription.subscribed);
+		subscriptions.changeSubscription(subscriber(2), Subscription.none);
+		repository.update(serviceJid, NODE, subscriptions);
+
+		subscriptions = repository.getNodeSubscriptions(serviceJid, NODE);
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(newSubscriber));
+		assertEquals(Subscription.none, subscriptions.getSubscription(subscriber(2)));
+		assertFalse(((LazyNodeSubscriptions) repository.getNodeFromCache(serviceJid, NODE)
+				.getNodeSubscriptions()).isLoaded());
+
+		assertEquals(SUBSCRIBERS, subscriptions.size());
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(newSubscriber));
+		assertEquals(Subscription.none, subscriptions.getSubscription(subscriber(2)));
+		repository.destroy();
+	}
+
+	private CachedPubSubRepository newRepository() {
+		return CachedPubSubRepositoryTest.createCachedPubSubRepository(new Kernel(), dao);
+	}
+
+	private static BareJID subscriber(int i) {
+		return BareJID.bareJIDInstanceNS("subscriber-" + i + "@example.com");
+	}
+}
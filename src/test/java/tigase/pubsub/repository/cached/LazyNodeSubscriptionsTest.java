@@ -0,0 +1,95 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.component.exceptions.RepositoryException;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+public class LazyNodeSubscriptionsTest {
+
+	@Test
+	public void testFailedPointLookupFallsBackToFullLoad() {
+		Map<BareJID, UsersSubscription> all = new HashMap<>();
+		all.put(jid(1), new UsersSubscription(jid(1), "1", Subscription.subscribed));
+		LazyNodeSubscriptions subscriptions = new LazyNodeSubscriptions(() -> all, jid -> {
+			throw new RepositoryException("lookup failed");
+		}, new LongAdder(), new LongAdder());
+
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(jid(1)));
+		assertEquals(Subscription.none, subscriptions.getSubscription(jid(2)));
+		assertTrue(subscriptions.isLoaded());
+	}
+
+	@Test
+	public void testFailedFullLoadIsRetried() {
+		AtomicInteger loads = new AtomicInteger();
+		LazyNodeSubscriptions subscriptions = new LazyNodeSubscriptions(() -> {
+			if (loads.incrementAndGet() == 1) {
+				throw new RepositoryException("load failed");
+			}
+			return new HashMap<>();
+		}, jid -> null, new LongAdder(), new LongAdder());
+
+		try {
+			subscriptions.size();
+			fail("Failure of loading should be reported");
+		} catch (LazyLoadingException ex) {
+			assertEquals("load failed", ex.getCause().getMessage());
+		}
+		assertFalse(subscriptions.isLoaded());
+		assertEquals(0, subscriptions.size());
+		assertTrue(subscriptions.isLoaded());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testChangesMergedDuringFullLoadAreKept() {
+		Map<BareJID, UsersSubscription> all = new HashMap<>();
+		all.put(jid(1), new UsersSubscription(jid(1), "1", Subscription.subscribed));
+		all.put(jid(2), new UsersSubscription(jid(2), "2", Subscription.subscribed));
+		LazyNodeSubscriptions[] holder = new LazyNodeSubscriptions[1];
+		LazyNodeSubscriptions subscriptions = new LazyNodeSubscriptions(() -> {
+			// data read from the database before concurrent changes were merged
+			Map<BareJID, UsersSubscription> result = new HashMap<>(all);
+			holder[0].addSubscriberJid(jid(3), Subscription.subscribed);
+			holder[0].changeSubscription(jid(1), Subscription.none);
+			holder[0].merge();
+			return result;
+		}, jid -> all.get(jid), new LongAdder(), new LongAdder());
+		holder[0] = subscriptions;
+
+		assertEquals(2, subscriptions.size());
+		assertEquals(Subscription.none, subscriptions.getSubscription(jid(1)));
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(jid(2)));
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(jid(3)));
+	}
+
+	private static BareJID jid(int i) {
+		return BareJID.bareJIDInstanceNS("user" + i + "@example.com");
+	}
+}
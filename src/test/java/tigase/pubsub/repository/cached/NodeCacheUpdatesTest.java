@@ -0,0 +1,181 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NodeCacheUpdatesTest {
+
+	private final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+	private final BareJID user1 = BareJID.bareJIDInstanceNS("user1@example.com");
+	private final BareJID user2 = BareJID.bareJIDInstanceNS("user2@example.com");
+
+	@Test
+	public void testMergeOfChanges() {
+		NodeCacheUpdate older = NodeCacheUpdate.nodeChanged(serviceJid, "node");
+		older.affiliationChanged(new UsersAffiliation(user1, Affiliation.publisher));
+		older.subscriptionChanged(new UsersSubscription(user1, "sub-1", Subscription.subscribed));
+		older.setVersion(1);
+
+		NodeCacheUpdate newer = NodeCacheUpdate.nodeChanged(serviceJid, "node");
+		newer.affiliationChanged(new UsersAffiliation(user1, Affiliation.none));
+		newer.subscriptionChanged(new UsersSubscription(user2, "sub-2", Subscription.subscribed));
+		newer.configChanged(new Element("x", new String[]{"xmlns"}, new String[]{"jabber:x:data"}));
+		newer.itemsChanged();
+		newer.setVersion(2);
+
+		assertTrue(older.canMerge(newer));
+		NodeCacheUpdate merged = older.merge(newer);
+		assertEquals(1, merged.getFirstVersion());
+		assertEquals(2, merged.getVersion());
+		assertNotNull(merged.getConfig());
+		assertTrue(merged.isItemsChanged());
+		assertEquals(1, merged.getAffiliations().size());
+		assertEquals(Affiliation.none, merged.getAffiliations().iterator().next().getAffiliation());
+		assertEquals(2, merged.getSubscriptions().size());
+	}
+
+	@Test
+	public void testUpdatesWithNotConsecutiveVersionsAreNotMerged() {
+		List<List<NodeCacheUpdate>> batches = new ArrayList<>();
+		NodeCacheUpdatesBroadcaster broadcaster = new NodeCacheUpdatesBroadcaster(batches::add, 60000, 1000);
+		broadcaster.start();
+		try {
+			// version 2 was stored by other cluster node
+			for (long version : new long[]{1, 3, 4}) {
+				NodeCacheUpdate update = NodeCacheUpdate.nodeChanged(serviceJid, "node");
+				update.affiliationChanged(new UsersAffiliation(user1, Affiliation.publisher));
+				update.setVersion(version);
+				broadcaster.add(update);
+			}
+			assertEquals(2, broadcaster.size());
+
+			broadcaster.flush();
+			List<NodeCacheUpdate> batch = batches.get(0);
+			assertEquals(2, batch.size());
+			assertEquals(1, batch.get(0).getFirstVersion());
+			assertEquals(1, batch.get(0).getVersion());
+			assertEquals(3, batch.get(1).getFirstVersion());
+			assertEquals(4, batch.get(1).getVersion());
+		} finally {
+			broadcaster.stop();
+		}
+	}
+
+	@Test
+	public void testMergeOfRemovalAndCreation() {
+		NodeCacheUpdate changed = NodeCacheUpdate.nodeChanged(serviceJid, "node");
+		changed.itemsChanged();
+		NodeCacheUpdate removed = NodeCacheUpdate.nodeRemoved(serviceJid, "node", "collection-1");
+		assertSame(removed, changed.merge(removed));
+
+		NodeCacheUpdate created = NodeCacheUpdate.nodeCreated(serviceJid, "node", null);
+		NodeCacheUpdate merged = removed.merge(created);
+		assertEquals(NodeCacheUpdate.Type.created, merged.getType());
+		assertTrue(merged.isReplaced());
+		assertEquals("collection-1", merged.getReplacedCollection());
+
+		// changes of newly created node are not needed by other cluster nodes
+		assertSame(merged, merged.merge(changed));
+		assertFalse(merged.isItemsChanged());
+	}
+
+	@Test
+	public void testElementConversion() {
+		NodeCacheUpdate update = NodeCacheUpdate.nodeChanged(serviceJid, "node");
+		update.affiliationChanged(new UsersAffiliation(user1, Affiliation.owner));
+		update.subscriptionChanged(new UsersSubscription(user2, "sub-2", Subscription.pending));
+		update.configChanged(new Element("x", new String[]{"xmlns"}, new String[]{"jabber:x:data"}));
+		update.itemsChanged();
+		update.setVersion(5);
+
+		NodeCacheUpdate parsed = NodeCacheUpdate.fromElement(update.toElement());
+		assertEquals(NodeCacheUpdate.Type.changed, parsed.getType());
+		assertEquals(serviceJid, parsed.getServiceJid());
+		assertEquals("node", parsed.getNode());
+		assertEquals(5, parsed.getFirstVersion());
+		assertEquals(5, parsed.getVersion());
+
+		NodeCacheUpdate newer = NodeCacheUpdate.nodeChanged(serviceJid, "node");
+		newer.affiliationChanged(new UsersAffiliation(user2, Affiliation.member));
+		newer.setVersion(6);
+		NodeCacheUpdate merged = NodeCacheUpdate.fromElement(update.merge(newer).toElement());
+		assertEquals(5, merged.getFirstVersion());
+		assertEquals(6, merged.getVersion());
+		assertTrue(parsed.isItemsChanged());
+		assertNotNull(parsed.getConfig());
+		UsersAffiliation affiliation = parsed.getAffiliations().iterator().next();
+		assertEquals(user1, affiliation.getJid());
+		assertEquals(Affiliation.owner, affiliation.getAffiliation());
+		UsersSubscription subscription = parsed.getSubscriptions().iterator().next();
+		assertEquals(user2, subscription.getJid());
+		assertEquals("sub-2", subscription.getSubid());
+		assertEquals(Subscription.pending, subscription.getSubscription());
+
+		NodeCacheUpdate removed = NodeCacheUpdate.fromElement(
+				NodeCacheUpdate.nodeRemoved(serviceJid, "node", "parent").toElement());
+		assertEquals(NodeCacheUpdate.Type.removed, removed.getType());
+		assertEquals("parent", removed.getCollection());
+	}
+
+	@Test
+	public void testUpdatesAreSentInBatches() {
+		List<List<NodeCacheUpdate>> batches = new ArrayList<>();
+		NodeCacheUpdatesBroadcaster broadcaster = new NodeCacheUpdatesBroadcaster(batches::add, 60000, 1000);
+		broadcaster.start();
+		try {
+			BareJID otherServiceJid = BareJID.bareJIDInstanceNS("pubsub.example.net");
+			for (int i = 0; i < 100; i++) {
+				NodeCacheUpdate update = NodeCacheUpdate.nodeChanged(i % 2 == 0 ? serviceJid : otherServiceJid,
+																	 "node-" + (i % 10));
+				update.subscriptionChanged(
+						new UsersSubscription(BareJID.bareJIDInstanceNS("user" + i + "@example.com"), "sub-" + i,
+											  Subscription.subscribed));
+				update.setVersion(i / 10 + 1);
+				broadcaster.add(update);
+			}
+			broadcaster.add(NodeCacheUpdate.serviceRemoved(otherServiceJid));
+			assertEquals(6, broadcaster.size());
+			assertTrue(batches.isEmpty());
+
+			broadcaster.flush();
+			assertEquals(0, broadcaster.size());
+			assertEquals(1, batches.size());
+			List<NodeCacheUpdate> batch = batches.get(0);
+			assertEquals(6, batch.size());
+			assertEquals(NodeCacheUpdate.Type.serviceRemoved, batch.get(0).getType());
+			for (NodeCacheUpdate update : batch.subList(1, batch.size())) {
+				assertEquals(serviceJid, update.getServiceJid());
+				assertEquals(10, update.getSubscriptions().size());
+			}
+		} finally {
+			broadcaster.stop();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+public class NodeSubscribersIndexTest {
+
+	private static final BareJID USER_1 = BareJID.bareJIDInstanceNS("user1@example.com");
+	private static final BareJID USER_2 = BareJID.bareJIDInstanceNS("user2@example.com");
+
+	@Test
+	public void testIndexIsUpdatedOnMerge() {
+		NodeAffiliations affiliations = new NodeAffiliations(new HashMap<>());
+		NodeSubscriptions subscriptions = new NodeSubscriptions(new HashMap<>());
+		LongAdder rebuilds = new LongAdder();
+		Node<Long> node = new Node<>(1L, BareJID.bareJIDInstanceNS("pubsub.example.com"),
+									 new LeafNodeConfig("test"), affiliations, subscriptions, null,
+									 USER_1, new Date(), rebuilds);
+		NodeSubscribersIndex index = node.getSubscribersIndex();
+
+		subscriptions.addSubscriberJid(USER_1, Subscription.subscribed);
+		subscriptions.addSubscriberJid(USER_2, Subscription.pending);
+		node.subscriptionsMerge();
+
+		assertEquals(Collections.singleton(JID.jidInstance(USER_1)), new HashSet<>(index.getActiveSubscribers()));
+		assertEquals(1, rebuilds.sum());
+
+		subscriptions.changeSubscription(USER_2, Subscription.subscribed);
+		node.subscriptionsMerge();
+		assertEquals(2, index.size());
+
+		affiliations.changeAffiliation(USER_1, Affiliation.outcast);
+		node.affiliationsMerge();
+		assertEquals(Collections.singleton(JID.jidInstance(USER_2)), new HashSet<>(index.getActiveSubscribers()));
+
+		subscriptions.changeSubscription(USER_2, Subscription.none);
+		node.subscriptionsMerge();
+		assertTrue(index.getActiveSubscribers().isEmpty());
+		assertEquals(1, rebuilds.sum());
+
+		node.resetChanges();
+		assertTrue(index.getActiveSubscribers().isEmpty());
+		assertEquals(2, rebuilds.sum());
+	}
+
+	@Test
+	public void testRebuildOfLazyLoadedNode() {
+		Map<BareJID, UsersSubscription> storedSubscriptions = new HashMap<>();
+		storedSubscriptions.put(USER_1, new UsersSubscription(USER_1, "1", Subscription.subscribed));
+		storedSubscriptions.put(USER_2, new UsersSubscription(USER_2, "2", Subscription.subscribed));
+		Map<BareJID, UsersAffiliation> storedAffiliations = new HashMap<>();
+		storedAffiliations.put(USER_2, new UsersAffiliation(USER_2, Affiliation.outcast));
+
+		LongAdder fullLoads = new LongAdder();
+		LongAdder pointLookups = new LongAdder();
+		LazyNodeAffiliations affiliations = new LazyNodeAffiliations(() -> storedAffiliations,
+																	 storedAffiliations::get, fullLoads,
+																	 pointLookups);
+		LazyNodeSubscriptions subscriptions = new LazyNodeSubscriptions(() -> storedSubscriptions,
+																		storedSubscriptions::get, fullLoads,
+																		pointLookups);
+		Node<Long> node = new Node<>(1L, BareJID.bareJIDInstanceNS("pubsub.example.com"),
+									 new LeafNodeConfig("test"), affiliations, subscriptions, null,
+									 USER_1, new Date(), new LongAdder());
+
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(USER_1));
+		assertEquals(1, pointLookups.sum());
+		assertEquals(0, fullLoads.sum());
+
+		assertEquals(Collections.singleton(JID.jidInstance(USER_1)),
+					 new HashSet<>(node.getSubscribersIndex().getActiveSubscribers()));
+		// each collection is loaded once, without a lookup for each subscriber
+		assertEquals(2, fullLoads.sum());
+		assertEquals(1, pointLookups.sum());
+		assertTrue(subscriptions.isLoaded());
+		assertTrue(affiliations.isLoaded());
+	}
+}
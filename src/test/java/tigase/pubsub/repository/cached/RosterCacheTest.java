@@ -0,0 +1,85 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.xmpp.impl.roster.RosterElement;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RosterCacheTest {
+
+	@Test
+	public void testRosterIsCachedUntilInvalidated() throws Exception {
+		BareJID owner = BareJID.bareJIDInstanceNS("owner@example.com");
+		BareJID friend = BareJID.bareJIDInstanceNS("friend@example.com");
+		BareJID coworker = BareJID.bareJIDInstanceNS("coworker@example.com");
+		Map<BareJID, RosterElement> roster = new HashMap<>();
+		roster.put(friend, newRosterElement(friend, "Friends", "Family"));
+		roster.put(coworker, newRosterElement(coworker, "Work"));
+
+		AtomicInteger loads = new AtomicInteger();
+		RosterCache cache = new RosterCache(10, 60000);
+		RosterCache.UserRoster cached = cache.getRoster(owner, () -> {
+			loads.incrementAndGet();
+			return roster;
+		});
+		assertEquals(2, cached.getRoster().size());
+		assertEquals(Collections.singleton(friend), cached.getGroup("Family"));
+		assertEquals(Collections.singleton(coworker), cached.getGroup("Work"));
+		assertTrue(cached.getGroup("Other").isEmpty());
+
+		assertSame(cached, cache.getRoster(owner, () -> {
+			loads.incrementAndGet();
+			return roster;
+		}));
+		assertEquals(1, loads.get());
+
+		cache.invalidate(owner);
+		cache.getRoster(owner, () -> {
+			loads.incrementAndGet();
+			return roster;
+		});
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testExpiredRosterIsReloaded() throws Exception {
+		BareJID owner = BareJID.bareJIDInstanceNS("owner@example.com");
+		AtomicInteger loads = new AtomicInteger();
+		RosterCache cache = new RosterCache(10, -1);
+		for (int i = 0; i < 2; i++) {
+			cache.getRoster(owner, () -> {
+				loads.incrementAndGet();
+				return Collections.emptyMap();
+			});
+		}
+		assertEquals(2, loads.get());
+		assertEquals(1, cache.size());
+	}
+
+	private static RosterElement newRosterElement(BareJID jid, String... groups) {
+		return new RosterElement(jid, null, groups);
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.Utils;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionsStoreTest {
+
+	@Test
+	public void testEncodingOfSubids() {
+		for (int i = 0; i < 1000; i++) {
+			String subid = Utils.createUID(jid(i));
+			long[] encoded = SubscriptionsStore.encodeSubid(subid);
+			assertNotNull(subid, encoded);
+			assertEquals(subid, SubscriptionsStore.decodeSubid(encoded[0], encoded[1]));
+		}
+		assertEquals("0", SubscriptionsStore.decodeSubid(0, 0));
+		assertNull(SubscriptionsStore.encodeSubid("-0"));
+		assertNull(SubscriptionsStore.encodeSubid("0abc"));
+		assertNull(SubscriptionsStore.encodeSubid("ABC"));
+		assertNull(SubscriptionsStore.encodeSubid("5B5F2CE3-66D2-4B1F-A5C9"));
+	}
+
+	@Test
+	public void testSubidsWhichCannotBeEncoded() {
+		SubscriptionsStore store = new SubscriptionsStore();
+		store.put(new UsersSubscription(jid(1), "5B5F2CE3-66D2-4B1F-A5C9", Subscription.subscribed));
+		store.put(new UsersSubscription(jid(2), null, Subscription.pending));
+		store.put(new UsersSubscription(jid(3), "abc", Subscription.unconfigured));
+
+		assertEquals("5B5F2CE3-66D2-4B1F-A5C9", store.get(jid(1)).getSubid());
+		assertNull(store.get(jid(2)).getSubid());
+		assertEquals("abc", store.get(jid(3)).getSubid());
+
+		// subid kept in the side table is replaced and removed with its subscription
+		store.put(new UsersSubscription(jid(1), "def", Subscription.subscribed));
+		assertEquals("def", store.get(jid(1)).getSubid());
+		store.put(new UsersSubscription(jid(1), "other-subid", Subscription.subscribed));
+		assertTrue(store.remove(jid(1)));
+		assertNull(store.get(jid(1)));
+		assertEquals(new HashSet<>(Arrays.asList(null, "abc")),
+					 store.snapshot().stream().map(UsersSubscription::getSubid).collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void testRandomChanges() {
+		Random random = new Random(12345);
+		Map<BareJID, UsersSubscription> expected = new HashMap<>();
+		SubscriptionsStore store = new SubscriptionsStore();
+		Subscription[] subscriptions = Subscription.values();
+		for (int i = 0; i < 20000; i++) {
+			BareJID jid = jid(random.nextInt(500));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(jid) != null, store.remove(jid));
+			} else {
+				UsersSubscription subscription = new UsersSubscription(jid, Utils.createUID(jid),
+																	   subscriptions[random.nextInt(
+																			   subscriptions.length)]);
+				expected.put(jid, subscription);
+				store.put(subscription);
+			}
+		}
+
+		assertEquals(expected.size(), store.size());
+		for (int i = 0; i < 500; i++) {
+			BareJID jid = jid(i);
+			UsersSubscription subscription = expected.get(jid);
+			if (subscription == null) {
+				assertNull(store.get(jid));
+				assertNull(store.getSubscription(jid));
+			} else {
+				assertEquals(subscription.getSubscription(), store.getSubscription(jid));
+				assertEquals(subscription.getSubid(), store.get(jid).getSubid());
+			}
+		}
+
+		Map<BareJID, Subscription> iterated = new HashMap<>();
+		store.forEach(iterated::put);
+		assertEquals(expected.size(), iterated.size());
+		expected.values().forEach(s -> assertEquals(s.getSubscription(), iterated.get(s.getJid())));
+	}
+
+	@Test
+	public void testReplaceAndRetain() {
+		SubscriptionsStore store = new SubscriptionsStore();
+		List<UsersSubscription> subscriptions = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			subscriptions.add(new UsersSubscription(jid(i), Utils.createUID(), Subscription.subscribed));
+		}
+		store.putAll(subscriptions);
+		store.retainAll(new HashSet<>(Arrays.asList(jid(10), jid(20), jid(200))));
+		assertEquals(2, store.size());
+		assertTrue(store.contains(jid(10)));
+		assertTrue(store.contains(jid(20)));
+		assertFalse(store.contains(jid(30)));
+
+		store.replaceWith(subscriptions.subList(50, 60));
+		assertEquals(10, store.size());
+		assertFalse(store.contains(jid(10)));
+		assertTrue(store.contains(jid(55)));
+	}
+
+	@Test
+	public void testSnapshotIsNotChanged() {
+		SubscriptionsStore store = new SubscriptionsStore();
+		store.put(new UsersSubscription(jid(1), Utils.createUID(), Subscription.subscribed));
+		SubscriptionsStore.Snapshot snapshot = store.snapshot();
+		assertSame(snapshot, store.snapshot());
+
+		store.put(new UsersSubscription(jid(2), Utils.createUID(), Subscription.subscribed));
+		store.remove(jid(1));
+		assertEquals(1, snapshot.size());
+		assertEquals(jid(1), snapshot.stream().findFirst().get().getJid());
+		assertNotSame(snapshot, store.snapshot());
+		assertEquals(jid(2), store.snapshot().stream().findFirst().get().getJid());
+	}
+
+	@Test
+	public void testJidsAreInterned() {
+		SubscriptionsStore store1 = new SubscriptionsStore();
+		SubscriptionsStore store2 = new SubscriptionsStore();
+		store1.put(new UsersSubscription(BareJID.bareJIDInstanceNS("user@example.com"), "a", Subscription.subscribed));
+		store2.put(new UsersSubscription(BareJID.bareJIDInstanceNS("user@example.com"), "b", Subscription.subscribed));
+
+		assertSame(store1.snapshot().stream().findFirst().get().getJid(),
+				   store2.snapshot().stream().findFirst().get().getJid());
+	}
+
+	@Test
+	public void testChangesAreVisibleOnlyToChangingThread() throws Exception {
+		NodeSubscriptions subscriptions = new NodeSubscriptions();
+		subscriptions.addSubscriberJid(jid(1), Subscription.subscribed);
+		assertTrue(subscriptions.isChanged());
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(jid(1)));
+
+		AtomicReference<Subscription> seen = new AtomicReference<>();
+		CountDownLatch latch = new CountDownLatch(1);
+		new Thread(() -> {
+			seen.set(subscriptions.isChanged() ? null : subscriptions.getSubscription(jid(1)));
+			latch.countDown();
+		}).start();
+		latch.await();
+		assertEquals(Subscription.none, seen.get());
+
+		subscriptions.merge();
+		assertFalse(subscriptions.isChanged());
+		assertEquals(1, subscriptions.size());
+
+		subscriptions.changeSubscription(jid(1), Subscription.none);
+		assertEquals(Subscription.none, subscriptions.getSubscription(jid(1)));
+		subscriptions.resetChangedFlag();
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(jid(1)));
+	}
+
+	@Test
+	public void testChangeLogOfTerminatedThreadIsDropped() throws Exception {
+		NodeSubscriptions subscriptions = new NodeSubscriptions();
+		Thread thread = new Thread(() -> subscriptions.addSubscriberJid(jid(1), Subscription.subscribed));
+		thread.start();
+		thread.join();
+		assertEquals(1, subscriptions.changeLogsCount());
+
+		subscriptions.addSubscriberJid(jid(2), Subscription.subscribed);
+		assertEquals(1, subscriptions.changeLogsCount());
+		assertEquals(Subscription.none, subscriptions.getSubscription(jid(1)));
+
+		subscriptions.merge();
+		assertEquals(0, subscriptions.changeLogsCount());
+		assertEquals(1, subscriptions.size());
+	}
+
+	private static BareJID jid(int i) {
+		return BareJID.bareJIDInstanceNS("user" + i + "@example.com");
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.component.exceptions.RepositoryException;
+import tigase.db.DataSource;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.modules.mam.PubSubQuery;
+import tigase.pubsub.repository.IPubSubDAO;
+import tigase.pubsub.repository.NodeChanges;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.jid.BareJID;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindQueueTest {
+
+	private static final BareJID SERVICE = BareJID.bareJIDInstanceNS("pubsub.example.com");
+	private static final BareJID USER = BareJID.bareJIDInstanceNS("user@example.com");
+
+	private final List<NodeChanges<Long>> written = new ArrayList<>();
+	private int failuresToReport = 0;
+	private long version = 0;
+
+	@Test
+	public void testChangesAreCoalesced() throws RepositoryException {
+		WriteBehindQueue<Long> queue = newQueue();
+		try {
+			CachedPubSubRepository.NodeKey key = new CachedPubSubRepository.NodeKey(SERVICE, "node");
+
+			queue.add(key, 1L, null, Collections.singleton(new UsersSubscription(USER, "1", Subscription.subscribed)));
+			queue.add(key, 1L, Collections.singleton(new UsersAffiliation(USER, Affiliation.member)),
+					  Collections.singleton(new UsersSubscription(USER, "1", Subscription.none)));
+			assertEquals(2, queue.size());
+			assertTrue(written.isEmpty());
+
+			queue.flush();
+			assertEquals(0, queue.size());
+			assertEquals(1, written.size());
+			NodeChanges<Long> changes = written.get(0);
+			assertEquals(Long.valueOf(1), changes.getNodeId());
+			assertEquals(Subscription.none, changes.getSubscriptions().iterator().next().getSubscription());
+			assertEquals(Affiliation.member, changes.getAffiliations().iterator().next().getAffiliation());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	@Test
+	public void testFailedChangesAreRetried() throws RepositoryException {
+		WriteBehindQueue<Long> queue = newQueue();
+		try {
+			CachedPubSubRepository.NodeKey key = new CachedPubSubRepository.NodeKey(SERVICE, "node");
+
+			failuresToReport = 1;
+			queue.add(key, 1L, null, Collections.singleton(new UsersSubscription(USER, "1", Subscription.subscribed)));
+			queue.flush();
+			assertTrue(written.isEmpty());
+			assertEquals(1, queue.size());
+
+			queue.flush();
+			assertEquals(1, written.size());
+			assertEquals(0, queue.size());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	@Test
+	public void testFailedChangesAreNotDropped() throws RepositoryException {
+		WriteBehindQueue<Long> queue = newQueue();
+		try {
+			CachedPubSubRepository.NodeKey key = new CachedPubSubRepository.NodeKey(SERVICE, "node");
+
+			failuresToReport = 10;
+			queue.add(key, 1L, Collections.singleton(new UsersAffiliation(USER, Affiliation.owner)), null);
+			for (int i = 0; i < 10; i++) {
+				try {
+					queue.flush(key);
+					fail("Failure of write should be reported");
+				} catch (RepositoryException ex) {
+					assertEquals(1, queue.size());
+				}
+			}
+			assertTrue(written.isEmpty());
+
+			queue.flush();
+			assertEquals(1, written.size());
+			assertEquals(0, queue.size());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	@Test
+	public void testDiscard() throws RepositoryException {
+		WriteBehindQueue<Long> queue = newQueue();
+		try {
+			CachedPubSubRepository.NodeKey key = new CachedPubSubRepository.NodeKey(SERVICE, "node");
+
+			queue.add(key, 1L, Collections.singleton(new UsersAffiliation(USER, Affiliation.owner)), null);
+			queue.discard(key::equals);
+			queue.flush();
+			assertEquals(0, queue.size());
+			assertTrue(written.isEmpty());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	@Test
+	public void testChangesAreWrittenOnStop() throws RepositoryException {
+		WriteBehindQueue<Long> queue = newQueue();
+		CachedPubSubRepository.NodeKey key = new CachedPubSubRepository.NodeKey(SERVICE, "node");
+
+		queue.add(key, 1L, Collections.singleton(new UsersAffiliation(USER, Affiliation.owner)), null);
+		assertTrue(written.isEmpty());
+		queue.stop();
+		assertEquals(1, written.size());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testListenerIsNotifiedAfterWrite() throws RepositoryException {
+		List<NodeChanges<Long>> notified = new ArrayList<>();
+		WriteBehindQueue<Long> queue = newQueue((key, changes) -> notified.add(changes));
+		try {
+			CachedPubSubRepository.NodeKey key = new CachedPubSubRepository.NodeKey(SERVICE, "node");
+
+			queue.add(key, 1L, Collections.singleton(new UsersAffiliation(USER, Affiliation.member)), null);
+			assertTrue(queue.hasChanges(key));
+
+			failuresToReport = 1;
+			queue.flush();
+			assertTrue(notified.isEmpty());
+			assertTrue(queue.hasChanges(key));
+
+			queue.flush();
+			assertFalse(queue.hasChanges(key));
+			assertEquals(1, notified.size());
+			assertTrue(notified.get(0).isVersioned());
+			assertEquals(1, notified.get(0).getVersion());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	@Test
+	public void testChangesAreWrittenSynchronouslyWhenQueueIsFull() throws RepositoryException {
+		WriteBehindQueue<Long> queue = newQueue(2, null);
+		try {
+			CachedPubSubRepository.NodeKey key = new CachedPubSubRepository.NodeKey(SERVICE, "node");
+			BareJID other = BareJID.bareJIDInstanceNS("other@example.com");
+
+			queue.add(key, 1L, Collections.singleton(new UsersAffiliation(USER, Affiliation.member)),
+					  Collections.singleton(new UsersSubscription(USER, "1", Subscription.subscribed)));
+			assertEquals(2, queue.size());
+			assertTrue(written.isEmpty());
+
+			failuresToReport = 1;
+			try {
+				queue.add(key, 1L, null, Collections.singleton(new UsersSubscription(other, "2", Subscription.subscribed)));
+				fail("Failure of write should be reported");
+			} catch (RepositoryException ex) {
+				// failed change is not queued
+				assertEquals(2, queue.size());
+			}
+			assertTrue(written.isEmpty());
+
+			queue.add(key, 1L, null, Collections.singleton(new UsersSubscription(other, "2", Subscription.subscribed)));
+			assertEquals(0, queue.size());
+			// waiting changes of the node are written first
+			assertEquals(2, written.size());
+			assertEquals(2, written.get(0).size());
+			assertEquals(other, written.get(1).getSubscriptions().iterator().next().getJid());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	private WriteBehindQueue<Long> newQueue() {
+		return newQueue(null);
+	}
+
+	private WriteBehindQueue<Long> newQueue(WriteBehindQueue.WriteListener<Long> listener) {
+		return newQueue(Integer.MAX_VALUE, listener);
+	}
+
+	private WriteBehindQueue<Long> newQueue(int maxSize, WriteBehindQueue.WriteListener<Long> listener) {
+		// long interval, so changes are written only when test requests it
+		WriteBehindQueue<Long> queue = new WriteBehindQueue<>(newDao(), 60000, 1000, maxSize, listener);
+		queue.start();
+		return queue;
+	}
+
+	@SuppressWarnings("unchecked")
+	private IPubSubDAO<Long, DataSource, PubSubQuery> newDao() {
+		return (IPubSubDAO<Long, DataSource, PubSubQuery>) Proxy.newProxyInstance(getClass().getClassLoader(),
+																				   new Class[]{IPubSubDAO.class},
+																				   (proxy, method, args) -> {
+			if ("updateNodesChanges".equals(method.getName())) {
+				if (failuresToReport > 0) {
+					failuresToReport--;
+					throw new RepositoryException("failure");
+				}
+				for (NodeChanges<Long> changes : (List<NodeChanges<Long>>) args[1]) {
+					if (changes.isVersioned()) {
+						changes.setVersion(++version);
+					}
+					written.add(changes);
+				}
+			}
+			return null;
+		});
+	}
+}
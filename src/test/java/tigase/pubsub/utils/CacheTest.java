@@ -24,16 +24,19 @@ import tigase.stats.StatisticsList;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.*;
 
 public class CacheTest {
 
@@ -61,6 +64,79 @@ public class CacheTest {
 		testCache(new LRUCacheWithFuture<>(2000));
 	}
 
+	@Test
+	public void testSegmentedLRUCache() throws Cache.CacheException {
+		testCache(new SegmentedLRUCache<>(2000));
+	}
+
+	@Test
+	public void testSegmentedLRUCacheWithFuture() throws Cache.CacheException {
+		testCache(new LRUCacheWithFuture<>(new SegmentedLRUCache<>(2000)));
+	}
+
+	@Test
+	public void testSegmentedLRUCacheEviction() {
+		SegmentedLRUCache<CachedPubSubRepository.NodeKey, String> cache = new SegmentedLRUCache<>(100, 4);
+		CachedPubSubRepository.NodeKey hotKey = newNodeKey("hot");
+		cache.put(hotKey, "hot");
+		for (int i = 0; i < 10000; i++) {
+			cache.put(newNodeKey("node-" + i), String.valueOf(i));
+			assertEquals("hot", cache.get(hotKey));
+		}
+		assertTrue(cache.size() <= 100);
+		assertEquals(cache.size(), cache.keySet().size());
+		assertEquals(cache.size(), cache.values().count());
+
+		cache.setMaxSize(10);
+		assertTrue(cache.size() <= 12);
+		assertTrue(cache.remove(hotKey, "hot"));
+		assertNull(cache.get(hotKey));
+	}
+
+	@Test
+	public void testConcurrentComputeIfAbsent() throws Exception {
+		testConcurrentComputeIfAbsent(new LRUCacheWithFuture<>(2000));
+		testConcurrentComputeIfAbsent(new LRUCacheWithFuture<>(new SegmentedLRUCache<>(2000)));
+	}
+
+	private void testConcurrentComputeIfAbsent(Cache<CachedPubSubRepository.NodeKey, String> cache)
+			throws Exception {
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("test@test.com");
+		Random random = new Random();
+		// working set fits in the cache, as most of requests for nodes are expected to be served from the cache
+		CachedPubSubRepository.NodeKey[] keys = new CachedPubSubRepository.NodeKey[20000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new CachedPubSubRepository.NodeKey(serviceJid, "node-" + random.nextInt(1500));
+		}
+		int threads = 8;
+		CountDownLatch started = new CountDownLatch(threads);
+		ExecutorService service = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int offset = t * 997;
+			futures.add(service.submit(() -> {
+				started.countDown();
+				started.await();
+				for (int i = 0; i < keys.length; i++) {
+					CachedPubSubRepository.NodeKey key = keys[(offset + i) % keys.length];
+					assertEquals(key.node, cache.computeIfAbsent(key, () -> key.node));
+				}
+				return null;
+			}));
+		}
+		service.shutdown();
+		assertTrue(service.awaitTermination(30, TimeUnit.SECONDS));
+		for (Future<?> future : futures) {
+			// rethrows failure of any of the threads
+			future.get();
+		}
+		assertTrue(cache.size() <= 2000);
+		for (CachedPubSubRepository.NodeKey key : keys) {
+			String value = cache.get(key);
+			assertTrue(value == null || value.equals(key.node));
+		}
+	}
+
 	private void testCache(Cache<CachedPubSubRepository.NodeKey,String> cache) throws Cache.CacheException {
 		CachedPubSubRepository.NodeKey nodeKey = newNodeKey("test-1");
 		assertNull(cache.get(nodeKey));
@@ -0,0 +1,92 @@
+/*
+ * Tigase PubSub - Publish Subscribe component for Tigase
+ * Copyright (C) 2008 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.utils.executors;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedRateLimitingExecutorTest {
+
+	@Test
+	public void testOrderingPerHash() throws InterruptedException {
+		ShardedRateLimitingExecutor executor = new ShardedRateLimitingExecutor();
+		executor.setThreads(4);
+		executor.setLimit(100000);
+
+		int hashes = 16;
+		int tasks = 1000;
+		List<List<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < hashes; i++) {
+			results.add(new ArrayList<>());
+		}
+		CountDownLatch latch = new CountDownLatch(hashes * tasks);
+		for (int i = 0; i < tasks; i++) {
+			for (int h = 0; h < hashes; h++) {
+				final List<Integer> result = results.get(h);
+				final int value = i;
+				executor.submit(Executor.Priority.normal, h, () -> {
+					synchronized (result) {
+						result.add(value);
+					}
+					latch.countDown();
+				}, 1);
+			}
+		}
+
+		executor.initialize();
+		try {
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+		} finally {
+			executor.beforeUnregister();
+		}
+
+		for (List<Integer> result : results) {
+			assertEquals(tasks, result.size());
+			for (int i = 0; i < tasks; i++) {
+				assertEquals(i, result.get(i).intValue());
+			}
+		}
+	}
+
+	@Test
+	public void testWeightedTasks() throws InterruptedException {
+		ShardedRateLimitingExecutor executor = new ShardedRateLimitingExecutor();
+		executor.setThreads(2);
+		executor.setLimit(100000);
+
+		CountDownLatch latch = new CountDownLatch(100);
+		for (int i = 0; i < 100; i++) {
+			executor.submit(Executor.Priority.normal, i, latch::countDown, 100);
+		}
+
+		executor.initialize();
+		try {
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			assertEquals(0, executor.queueSize());
+		} finally {
+			executor.beforeUnregister();
+		}
+	}
+}